@@ -25,6 +25,7 @@ import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
 
 import org.jetbrains.annotations.TestOnly;
 
@@ -33,10 +34,13 @@ import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class FindMP3FileAndroidInstrumentedTest
         extends ActivityInstrumentationTestCase2<MainActivity> {
+    private static final String TAG = "FindMP3FileTest";
+
     private static final int REQUEST_EXTERNAL_STORAGE = 1;
     private static String[] PERMISSIONS_STORAGE = {
             Manifest.permission.READ_EXTERNAL_STORAGE,
@@ -134,4 +138,42 @@ public class FindMP3FileAndroidInstrumentedTest
             }
         }
     }
+
+    @TestOnly
+    public void testCompareWalkers() throws Throwable {
+        final CountDownLatch signal = new CountDownLatch(1);
+
+        if (Build.VERSION.SDK_INT >= 23) {
+            allowStoragePermissions(getActivity());
+        }
+
+        signal.await(10, TimeUnit.SECONDS);
+
+        File root = Environment.getExternalStorageDirectory();
+
+        long start = System.nanoTime();
+        int recursiveCount = findMP3Files(root).size();
+        long recursiveNanos = System.nanoTime() - start;
+
+        final AtomicInteger parallelCount = new AtomicInteger();
+        ParallelMP3Walker.Stats stats = new ParallelMP3Walker().walk(root,
+                new ParallelMP3Walker.Sink() {
+                    @Override
+                    public String[] getUnchangedSubDirectories(String path, long lastModified) {
+                        return null;
+                    }
+
+                    @Override
+                    public void onDirectory(String path, long lastModified,
+                                            String[] subDirectories, String[] tracks) {
+                        parallelCount.addAndGet(tracks.length);
+                    }
+                });
+
+        Log.i(TAG, "Recursive walker: " + recursiveCount + " tracks in "
+                + TimeUnit.NANOSECONDS.toMillis(recursiveNanos) + " ms");
+        Log.i(TAG, "Parallel walker: " + stats);
+
+        assertEquals(recursiveCount, parallelCount.get());
+    }
 }
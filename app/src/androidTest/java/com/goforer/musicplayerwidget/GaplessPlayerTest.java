@@ -0,0 +1,149 @@
+package com.goforer.musicplayerwidget;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class PlayerServiceTest extends ServiceTestCase<PlayerService> {
+
+    public PlayerServiceTest()
+    {
+        super(PlayerService.class);
+    }
+
+    @SmallTest
+    public void testPlay() {
+        Intent intent = new Intent();
+package com.goforer.musicplayerwidget;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class GaplessPlayerTest extends AndroidTestCase {
+    private static final String TAG = "GaplessPlayerTest";
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SONG_MILLIS = 1500;
+    private static final int MAX_GAP_MILLIS = 100;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private File mFirst;
+    private File mSecond;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mFirst = writeTone("first.wav", 440);
+        mSecond = writeTone("second.wav", 660);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quitSafely();
+        mFirst.delete();
+        mSecond.delete();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testChainedSongFollowsWithoutGap() throws Exception {
+        final List<File> started = new ArrayList<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final GaplessPlayer[] player = new GaplessPlayer[1];
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                player[0] = new GaplessPlayer(getContext(), new GaplessPlayer.Callback() {
+                    @Override
+                    public void onSongStarted(File file) {
+                        started.add(file);
+                        if (file.equals(mFirst)) {
+                            try {
+                                player[0].setNext(mSecond);
+                            } catch (IOException e) {
+                                throw new AssertionError(e);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onSongCompleted() {
+                        completed.countDown();
+                    }
+
+                    @Override
+                    public void onError(int what, int extra) {
+                        completed.countDown();
+                    }
+                });
+
+                try {
+                    player[0].play(mFirst);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        assertTrue(completed.await(SONG_MILLIS * 4, TimeUnit.MILLISECONDS));
+
+        long gap = player[0].getLastGap();
+        Log.i(TAG, "Gap between the chained songs: " + gap + " ms");
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                player[0].release();
+            }
+        });
+
+        assertEquals(2, started.size());
+        assertEquals(mSecond, started.get(1));
+        assertTrue(gap >= 0);
+        assertTrue(gap < MAX_GAP_MILLIS);
+    }
+
+    /**
+     * Write a mono 16 bit PCM WAV file with a sine tone of the song length.
+     */
+    private File writeTone(String name, int frequency) throws IOException {
+        File file = new File(getContext().getCacheDir(), name);
+        int samples = SAMPLE_RATE * SONG_MILLIS / 1000;
+        int dataSize = samples * 2;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + dataSize));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE * 2));
+            out.writeShort(Short.reverseBytes((short) 2));
+            out.writeShort(Short.reverseBytes((short) 16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(dataSize));
+            for (int i = 0; i < samples; i++) {
+                double value = Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+                out.writeShort(Short.reverseBytes((short) (value * Short.MAX_VALUE / 4)));
+            }
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,88 @@
+package com.goforer.musicplayerwidget;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class PlayerServiceTest extends ServiceTestCase<PlayerService> {
+
+    public PlayerServiceTest()
+    {
+        super(PlayerService.class);
+    }
+
+    @SmallTest
+    public void testPlay() {
+        Intent intent = new Intent();
+package com.goforer.musicplayerwidget;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+public class WidgetRendererTest extends AndroidTestCase {
+    private static final String TAG = "WidgetRendererTest";
+
+    private static final int TRACK_CHANGES = 5000;
+
+    private static final int[] STATES = {
+            PlayerAppWidget.PLAYER_STATE_PLAY,
+            PlayerAppWidget.PLAYER_STATE_PAUSE,
+            PlayerAppWidget.PLAYER_STATE_PLAY,
+            PlayerAppWidget.PLAYER_STATE_STOP
+    };
+
+    @LargeTest
+    public void testPayloadStaysConstantOverTrackChanges() {
+        WidgetRenderer renderer = new WidgetRenderer(getContext());
+        WidgetState state = WidgetState.INITIAL;
+        int firstSize = -1;
+        int maxSize = 0;
+        for (int i = 0; i < TRACK_CHANGES; i++) {
+            // Titles of the same length, so every snapshot has the same content size
+            state = state.withTitle(String.format("Song %05d", i), String.format("Album %05d", i))
+                    .withPlayerState(STATES[i % STATES.length]);
+
+            int size = parcelSize(renderer.render(state));
+            if (firstSize < 0) {
+                firstSize = size;
+            }
+
+            maxSize = Math.max(maxSize, size);
+        }
+
+        Log.i(TAG, "Payload after " + TRACK_CHANGES + " track changes: first=" + firstSize
+                + " bytes, max=" + maxSize + " bytes");
+        assertEquals(firstSize, maxSize);
+    }
+
+    @LargeTest
+    public void testReusedViewsPayloadGrows() {
+        // The views were kept and changed again before, which grows the action list.
+        WidgetRenderer renderer = new WidgetRenderer(getContext());
+        RemoteViews views = renderer.render(WidgetState.INITIAL);
+        int firstSize = parcelSize(views);
+        for (int i = 0; i < TRACK_CHANGES / 10; i++) {
+            views.setTextViewText(R.id.tv_file_name, String.format("Song %05d", i));
+            views.setTextViewText(R.id.tv_album_name, String.format("Album %05d", i));
+        }
+
+        int size = parcelSize(views);
+        Log.i(TAG, "Payload of reused views: first=" + firstSize + " bytes, after "
+                + TRACK_CHANGES / 10 + " track changes=" + size + " bytes");
+        assertTrue(size > firstSize * 10);
+    }
+
+    private static int parcelSize(RemoteViews views) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            views.writeToParcel(parcel, 0);
+
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of the player commands which collapses a burst of commands into the last one.
+ *
+ * <p>
+ * The first command after a quiet period is executed right away, so a single tap isn't
+ * delayed. It opens a window in which the following commands only replace the pending one.
+ * When the window closes, the last pending command is executed unless it is the command which
+ * has just been executed, in which case the burst had no net effect. A play-pause-play burst
+ * thus executes a single play and repeated stops a single stop. Executing the pending command
+ * opens the next window, so continuous tapping executes at most one command per window.
+ * </p>
+ *
+ * <p>
+ * The commands are executed on the thread which offers them or on the scheduler's thread,
+ * which are both the main thread in the service.
+ * </p>
+ */
+class CommandQueue {
+    /**
+     * Runs the tasks of the queue after a delay.
+     */
+    interface Scheduler {
+        /**
+         * Run the task on the scheduler's thread after the delay.
+         *
+         * @param task the task to run
+         * @param delayMillis the delay in ms
+         */
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private final Scheduler mScheduler;
+    private final long mWindowMillis;
+    private final AtomicLong mDroppedCommands;
+
+    private final Runnable mCloseWindow = new Runnable() {
+        @Override
+        public void run() {
+            closeWindow();
+        }
+    };
+
+    private boolean mWindowOpen;
+    private Runnable mPending;
+    private Runnable mLastExecuted;
+    private long mOffered;
+    private long mExecuted;
+
+    /**
+     * Create the queue.
+     *
+     * @param scheduler the scheduler to close the windows with
+     * @param windowMillis the time in ms in which the commands after an executed one coalesce
+     * @param droppedCommands the counter of the commands which are never executed
+     */
+    CommandQueue(Scheduler scheduler, long windowMillis, AtomicLong droppedCommands) {
+        mScheduler = scheduler;
+        mWindowMillis = windowMillis;
+        mDroppedCommands = droppedCommands;
+    }
+
+    /**
+     * Offer the command, which is executed now if no window is open and replaces the pending
+     * command otherwise.
+     *
+     * @param command the command
+     */
+    void offer(Runnable command) {
+        synchronized (this) {
+            mOffered++;
+            if (mWindowOpen) {
+                if (mPending != null) {
+                    mDroppedCommands.incrementAndGet();
+                }
+
+                mPending = command;
+                return;
+            }
+
+            openWindow(command);
+        }
+
+        command.run();
+    }
+
+    /**
+     * Drop the pending command, e.g. when the service is destroyed.
+     */
+    synchronized void clear() {
+        if (mPending != null) {
+            mDroppedCommands.incrementAndGet();
+            mPending = null;
+        }
+    }
+
+    /**
+     * @return true if no window is open, so the next command is executed right away
+     */
+    synchronized boolean isIdle() {
+        return !mWindowOpen;
+    }
+
+    /**
+     * @return the number of commands offered so far
+     */
+    synchronized long getOfferedCount() {
+        return mOffered;
+    }
+
+    /**
+     * @return the number of commands executed so far
+     */
+    synchronized long getExecutedCount() {
+        return mExecuted;
+    }
+
+    private void closeWindow() {
+        Runnable command;
+        synchronized (this) {
+            command = mPending;
+            mPending = null;
+            if (command == null || command == mLastExecuted) {
+                if (command != null) {
+                    mDroppedCommands.incrementAndGet();
+                }
+
+                mWindowOpen = false;
+                return;
+            }
+
+            openWindow(command);
+        }
+
+        command.run();
+    }
+
+    private void openWindow(Runnable command) {
+        mWindowOpen = true;
+        mLastExecuted = command;
+        mExecuted++;
+        mScheduler.schedule(mCloseWindow, mWindowMillis);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Guard to keep a directory walk out of symbolic link and bind mount loops.
+ *
+ * <p>
+ * A directory whose canonical path matches its place below the root is a plain directory and
+ * is always entered. A directory reached through a link is skipped if its target lies inside
+ * the root, because the target is walked through its real path anyway, and is entered only once
+ * if the target lies outside the root. So only the link targets outside the root are remembered,
+ * never every visited directory. Bind mounts can't be told apart by their path, so the depth of
+ * the walk is limited as well.
+ * </p>
+ *
+ * <p>
+ * A loop always runs through a link, so only the links have to be canonicalized. On Android a
+ * single lstat tells a plain directory from a link and a plain directory is entered without
+ * resolving its path. The guard is shared with the plain Java benchmarks, so lstat is looked up
+ * at run time; where it is missing, like in the JVM unit tests, every directory is canonicalized.
+ * </p>
+ *
+ * <p>
+ * A guard is good for a single walk and may be used from several threads at the same time.
+ * </p>
+ */
+class DirectoryLoopGuard {
+    static final int MAX_DEPTH = 32;
+
+    private static final Method sLstat;
+    private static final Field sStMode;
+    private static final Method sIsLink;
+
+    static {
+        Method lstat = null;
+        Field stMode = null;
+        Method isLink = null;
+        try {
+            lstat = Class.forName("android.system.Os").getMethod("lstat", String.class);
+            stMode = lstat.getReturnType().getField("st_mode");
+            isLink = Class.forName("android.system.OsConstants").getMethod("S_ISLNK", int.class);
+        } catch (ReflectiveOperationException e) {
+            lstat = null;
+        }
+
+        sLstat = lstat;
+        sStMode = stMode;
+        sIsLink = isLink;
+    }
+
+    // Cleared once lstat turns out to be a stub
+    private static volatile boolean sLstatWorks = true;
+
+    private final String mRoot;
+    private final String mRootPrefix;
+    private final String mCanonicalRoot;
+
+    private final Set<String> mLinkedDirectories
+            = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Create the guard for a walk of the specified directory.
+     *
+     * @param root the directory where the walk starts
+     */
+    DirectoryLoopGuard(File root) {
+        mRoot = root.getPath();
+        mRootPrefix = mRoot + File.separator;
+        mCanonicalRoot = getCanonicalPath(root);
+    }
+
+    /**
+     * Decide whether the walk should enter the specified directory.
+     *
+     * @param path the directory path below the root
+     * @param depth the number of directories between the root and the directory
+     * @return true if the directory should be walked
+     */
+    boolean enter(String path, int depth) {
+        if (depth > MAX_DEPTH || mCanonicalRoot == null
+                || !(path.equals(mRoot) || path.startsWith(mRootPrefix))) {
+            return false;
+        }
+
+        if (!isLink(path)) {
+            return true;
+        }
+
+        String canonicalPath = getCanonicalPath(new File(path));
+        if (canonicalPath == null) {
+            return false;
+        }
+
+        if (canonicalPath.equals(mCanonicalRoot + path.substring(mRoot.length()))) {
+            return true;
+        }
+
+        if (canonicalPath.equals(mCanonicalRoot)
+                || canonicalPath.startsWith(mCanonicalRoot + File.separator)) {
+            return false;
+        }
+
+        return mLinkedDirectories.add(canonicalPath);
+    }
+
+    /**
+     * @return false only if lstat tells the path is no symbolic link
+     */
+    private static boolean isLink(String path) {
+        if (sLstat == null || !sLstatWorks) {
+            return true;
+        }
+
+        try {
+            return (Boolean) sIsLink.invoke(null, sStMode.getInt(sLstat.invoke(null, path)));
+        } catch (ReflectiveOperationException e) {
+            // ErrnoException leaves the path to the canonical check, a stub turns lstat off.
+            if (e.getCause() instanceof RuntimeException) {
+                sLstatWorks = false;
+            }
+
+            return true;
+        }
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
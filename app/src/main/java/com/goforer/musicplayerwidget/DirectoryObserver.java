@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import android.os.FileObserver;
+
+/**
+ * Watch of a single library directory on top of inotify.
+ */
+class DirectoryObserver extends FileObserver implements LibraryWatcher.Watch {
+    private static final int EVENTS = CREATE | DELETE | MOVED_FROM | MOVED_TO | DELETE_SELF
+            | MOVE_SELF;
+
+    static final LibraryWatcher.WatchFactory FACTORY = new LibraryWatcher.WatchFactory() {
+        @Override
+        public LibraryWatcher.Watch startWatching(String path, LibraryWatcher watcher) {
+            DirectoryObserver observer = new DirectoryObserver(path, watcher);
+            observer.startWatching();
+
+            return observer;
+        }
+    };
+
+    private final String mPath;
+    private final LibraryWatcher mWatcher;
+
+    private DirectoryObserver(String path, LibraryWatcher watcher) {
+        super(path, EVENTS);
+        mPath = path;
+        mWatcher = watcher;
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+        if ((event & EVENTS) != 0) {
+            mWatcher.onDirectoryChanged(mPath);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopWatching();
+    }
+}
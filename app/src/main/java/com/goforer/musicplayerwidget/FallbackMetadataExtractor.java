@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Metadata extractor which asks a second extractor only for the files the first one finds no
+ * tags in.
+ */
+class FallbackMetadataExtractor implements MetadataExtractor {
+    private final MetadataExtractor mPrimary;
+    private final MetadataExtractor mFallback;
+
+    FallbackMetadataExtractor(MetadataExtractor primary, MetadataExtractor fallback) {
+        mPrimary = primary;
+        mFallback = fallback;
+    }
+
+    @Override
+    public SongMetadata extract(File file) throws IOException {
+        SongMetadata metadata = mPrimary.extract(file);
+        if (metadata != SongMetadata.EMPTY) {
+            return metadata;
+        }
+
+        return mFallback.extract(file);
+    }
+
+    @Override
+    public void close() {
+        mPrimary.close();
+        mFallback.close();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Flight recorder of the last player events, for diagnosing the problems seen in the field.
+ *
+ * <p>
+ * The events are kept in a fixed size ring buffer of primitive arrays, so recording an event
+ * allocates nothing and only costs a clock read and a few ordered stores. Any thread can record.
+ * A writer claims its slot with an atomic increment and publishes the event with the sequence
+ * number of the slot, so a reader skips an event which is being overwritten instead of
+ * reporting it torn. The process shares {@link #getDefault()}, which is dumped with the service
+ * and when the player fails.
+ * </p>
+ */
+final class FlightRecorder {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /** A command was requested, arg1 is the command. */
+    static final int EVENT_REQUEST = 1;
+    /** A command was executed by the engine, arg1 is the command. */
+    static final int EVENT_COMMAND = 2;
+    /** The player state has changed, arg1 is the old state, arg2 the new state. */
+    static final int EVENT_STATE = 3;
+    /** A MediaPlayer was prepared, arg1 is 1 for the playing player and 0 for the next one. */
+    static final int EVENT_PREPARED = 4;
+    /** A song has completed, arg1 is 1 if the next song was chained. */
+    static final int EVENT_COMPLETION = 5;
+    /** A MediaPlayer reported an info, arg1 is the info, arg2 the extra. */
+    static final int EVENT_INFO = 6;
+    /** A MediaPlayer failed, arg1 is the error, arg2 the extra. */
+    static final int EVENT_ERROR = 7;
+    /** A song has started. */
+    static final int EVENT_SONG_STARTED = 8;
+    /** The widgets were rendered, arg1 is the changed parts or -1 for all, arg2 the state. */
+    static final int EVENT_WIDGET_RENDER = 9;
+    /** An event was rejected by the player state, arg1 is the state, arg2 the event. */
+    static final int EVENT_ILLEGAL_TRANSITION = 10;
+
+    private static final String[] EVENT_NAMES = { "?", "request", "command", "state", "prepared",
+            "completion", "info", "error", "song-started", "widget-render", "illegal" };
+
+    private static final FlightRecorder sDefault = new FlightRecorder(DEFAULT_CAPACITY);
+
+    /**
+     * Receives the recorded events, the oldest first.
+     */
+    interface Visitor {
+        /**
+         * @param time the {@link System#nanoTime()} of the event
+         * @param event the event type
+         * @param thread the ID of the thread which recorded the event
+         * @param arg1 the first argument of the event
+         * @param arg2 the second argument of the event
+         */
+        void onEvent(long time, int event, int thread, int arg1, int arg2);
+    }
+
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+    // The sequence number + 1 of the event in every slot, 0 if it is empty or being written
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mTimes;
+    // The event type in the upper and the thread ID in the lower 32 bits
+    private final AtomicLongArray mHeaders;
+    // The first argument in the upper and the second in the lower 32 bits
+    private final AtomicLongArray mArgs;
+
+    /**
+     * Create the recorder.
+     *
+     * @param capacity the number of events kept, rounded up to a power of two
+     */
+    FlightRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+        mHeaders = new AtomicLongArray(size);
+        mArgs = new AtomicLongArray(size);
+    }
+
+    /**
+     * @return the recorder shared by the process
+     */
+    static FlightRecorder getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Record an event without arguments.
+     *
+     * @param event the event type
+     */
+    void record(int event) {
+        record(event, 0, 0);
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param event the event type
+     * @param arg1 the first argument
+     * @param arg2 the second argument
+     */
+    void record(int event, int arg1, int arg2) {
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) sequence & mMask;
+        // Every store is ordered after the previous one, so a reader which sees the sequence
+        // number before and after reading the event sees the complete event.
+        long thread = Thread.currentThread().getId() & 0xffffffffL;
+        mSequences.set(slot, 0);
+        mTimes.lazySet(slot, System.nanoTime());
+        mHeaders.lazySet(slot, ((long) event << 32) | thread);
+        mArgs.lazySet(slot, ((long) arg1 << 32) | (arg2 & 0xffffffffL));
+        mSequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return the number of events recorded since the recorder was created
+     */
+    long getRecordedCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Visit the events in the buffer, the oldest first. Events which are overwritten while they
+     * are visited are skipped.
+     *
+     * @param visitor the visitor
+     */
+    void forEach(Visitor visitor) {
+        long next = mNext.get();
+        for (long sequence = Math.max(0, next - mMask - 1); sequence < next; sequence++) {
+            int slot = (int) sequence & mMask;
+            if (mSequences.get(slot) != sequence + 1) {
+                continue;
+            }
+
+            long time = mTimes.get(slot);
+            long header = mHeaders.get(slot);
+            long args = mArgs.get(slot);
+            if (mSequences.get(slot) != sequence + 1) {
+                continue;
+            }
+
+            visitor.onEvent(time, (int) (header >>> 32), (int) header, (int) (args >>> 32),
+                    (int) args);
+        }
+    }
+
+    /**
+     * Print the events in the buffer, the oldest first, with their times relative to now.
+     *
+     * @param writer the writer to print to
+     */
+    void dump(final PrintWriter writer) {
+        final long now = System.nanoTime();
+        writer.println("Flight recorder (" + getRecordedCount() + " events recorded):");
+        forEach(new Visitor() {
+            @Override
+            public void onEvent(long time, int event, int thread, int arg1, int arg2) {
+                String name = event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event]
+                        : String.valueOf(event);
+                writer.println(String.format(Locale.US, "  %12.3f ms  %-13s tid=%-5d %d %d",
+                        (time - now) / 1e6, name, thread, arg1, arg2));
+            }
+        });
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnInfoListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays the songs back to back on two MediaPlayers.
+ *
+ * <p>
+ * While the current song is playing, the next song is prepared on the second player and chained
+ * with {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}, so the next song starts without the
+ * gap of preparing it after the current one has completed. The two players swap roles on every
+ * song change and are reset instead of being created again.
+ * </p>
+ *
+ * <p>
+ * The players are created on the calling thread, so all methods must be called and all
+ * {@link Callback} methods are called on the thread the player is created on.
+ * </p>
+ */
+class GaplessPlayer implements OnPreparedListener, OnCompletionListener, OnErrorListener,
+        OnInfoListener {
+    private static final String TAG = "GaplessPlayer";
+
+    /**
+     * Receives the playback events of the player.
+     */
+    interface Callback {
+        /**
+         * Called when the specified song has started, either after {@link #play(File)} or
+         * because the previous song has completed and the next song was chained to it.
+         *
+         * @param file the playing song file
+         */
+        void onSongStarted(File file);
+
+        /**
+         * Called when the playing song has completed and no next song was ready to follow.
+         */
+        void onSongCompleted();
+
+        /**
+         * Called when the playing song has failed. Both players have been released.
+         *
+         * @param what the type of the error
+         * @param extra the error code
+         */
+        void onError(int what, int extra);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+
+    private MediaPlayer mPlayer;
+    private MediaPlayer mNextPlayer;
+
+    private File mFile;
+    private File mNextFile;
+
+    private boolean mPrepared;
+    private boolean mNextPrepared;
+    private boolean mCompleting;
+
+    // The uptimes of the last song change, 0 if the event hasn't happened yet
+    private long mCompletionTime;
+    private long mStartedAsNextTime;
+
+    private volatile long mLastGap = -1;
+
+    // The nano times when the players started to prepare
+    private long mPrepareStart;
+    private long mNextPrepareStart;
+
+    private final Histogram mPrepareTime =
+            MetricsRegistry.getDefault().histogram(MetricsRegistry.PREPARE);
+    private final Histogram mGaps =
+            MetricsRegistry.getDefault().histogram(MetricsRegistry.SONG_GAP);
+    private final AtomicLong mNextSongErrors =
+            MetricsRegistry.getDefault().counter(MetricsRegistry.NEXT_SONG_ERRORS);
+    private final FlightRecorder mRecorder = FlightRecorder.getDefault();
+
+    /**
+     * Create the player.
+     *
+     * @param context the context to hold the wake lock with
+     * @param callback the callback to receive the playback events
+     */
+    GaplessPlayer(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+    }
+
+    /**
+     * Prepare the specified song and start it once prepared. A chained next song is dropped.
+     *
+     * @param file the song file
+     * @throws IOException if the song can't be read
+     */
+    void play(File file) throws IOException {
+        if (!mCompleting) {
+            // Only a song picked on completion follows the previous one.
+            mCompletionTime = 0;
+        }
+
+        clearNext();
+        mPlayer = obtainPlayer(mPlayer);
+        mPrepared = false;
+        mFile = file;
+        mPrepareStart = System.nanoTime();
+        prepare(mPlayer, file);
+    }
+
+    /**
+     * Prepare the specified song on the second player to follow the current song without a gap.
+     * A previously chained next song is replaced.
+     *
+     * @param file the next song file
+     * @throws IOException if the song can't be read
+     */
+    void setNext(File file) throws IOException {
+        clearNext();
+        mNextPlayer = obtainPlayer(mNextPlayer);
+        mNextFile = file;
+        mNextPrepareStart = System.nanoTime();
+        prepare(mNextPlayer, file);
+    }
+
+    void pause() {
+        if (mPlayer != null && mPlayer.isPlaying()) {
+            mPlayer.pause();
+        }
+    }
+
+    void resume() {
+        if (mPlayer != null && mPrepared && !mPlayer.isPlaying()) {
+            mPlayer.start();
+        }
+    }
+
+    /**
+     * @return the playback position of the current song in ms, 0 if it isn't prepared
+     */
+    int getCurrentPosition() {
+        return mPlayer != null && mPrepared ? mPlayer.getCurrentPosition() : 0;
+    }
+
+    /**
+     * @return the duration of the current song in ms, or 0 if it isn't prepared
+     */
+    int getDuration() {
+        return mPlayer != null && mPrepared ? mPlayer.getDuration() : 0;
+    }
+
+    void stop() {
+        clearNext();
+        if (mPlayer != null && mPrepared) {
+            mPlayer.stop();
+        }
+
+        mPrepared = false;
+        mCompletionTime = 0;
+    }
+
+    /**
+     * Release both players. They are created again by the next {@link #play(File)}.
+     */
+    void release() {
+        mPlayer = releasePlayer(mPlayer);
+        mNextPlayer = releasePlayer(mNextPlayer);
+        mFile = null;
+        mNextFile = null;
+        mPrepared = false;
+        mNextPrepared = false;
+        mCompletionTime = 0;
+        mStartedAsNextTime = 0;
+    }
+
+    /**
+     * @return the gap in ms between the last two songs, or -1 if no song has followed another yet
+     */
+    long getLastGap() {
+        return mLastGap;
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer player) {
+        Trace.beginSection("GaplessPlayer.onPrepared");
+        try {
+            mRecorder.record(FlightRecorder.EVENT_PREPARED, player == mPlayer ? 1 : 0, 0);
+            handlePrepared(player);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void handlePrepared(MediaPlayer player) {
+        if (player == mPlayer) {
+            mPrepared = true;
+            mPrepareTime.record((System.nanoTime() - mPrepareStart) / 1000);
+            player.start();
+            if (mCompletionTime != 0) {
+                // The previous song has completed before this one could be chained.
+                onSongChanged(SystemClock.uptimeMillis() - mCompletionTime, false);
+            }
+
+            chainNext();
+            mCallback.onSongStarted(mFile);
+        } else if (player == mNextPlayer) {
+            mNextPrepared = true;
+            mPrepareTime.record((System.nanoTime() - mNextPrepareStart) / 1000);
+            chainNext();
+        }
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer player) {
+        if (player != mPlayer) {
+            return;
+        }
+
+        mRecorder.record(FlightRecorder.EVENT_COMPLETION, mPrepared && mNextPrepared ? 1 : 0, 0);
+        Trace.beginSection("GaplessPlayer.onCompletion");
+        try {
+            handleCompletion(player);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void handleCompletion(MediaPlayer player) {
+        mCompletionTime = SystemClock.uptimeMillis();
+        if (!mPrepared || !mNextPrepared) {
+            mCompleting = true;
+            try {
+                mCallback.onSongCompleted();
+            } finally {
+                mCompleting = false;
+            }
+
+            return;
+        }
+
+        // The next player has been started by the framework, so the players swap roles.
+        mPlayer = mNextPlayer;
+        mFile = mNextFile;
+        mNextPlayer = player;
+        mNextFile = null;
+        mNextPrepared = false;
+        player.reset();
+        if (mStartedAsNextTime != 0) {
+            onSongChanged(mStartedAsNextTime - mCompletionTime, true);
+        }
+
+        mCallback.onSongStarted(mFile);
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer player, int what, int extra) {
+        mRecorder.record(FlightRecorder.EVENT_INFO, what, extra);
+        if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+            mStartedAsNextTime = SystemClock.uptimeMillis();
+            if (player == mPlayer && mCompletionTime != 0) {
+                onSongChanged(mStartedAsNextTime - mCompletionTime, true);
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean onError(MediaPlayer player, int what, int extra) {
+        mRecorder.record(FlightRecorder.EVENT_ERROR, what, extra);
+        if (player == mNextPlayer) {
+            // Keep playing the current song, it just won't be followed without a gap.
+            Log.w(TAG, "Next song failed: what=" + what + ", extra=" + extra);
+            mNextSongErrors.incrementAndGet();
+            clearNext();
+            return true;
+        }
+
+        release();
+        mCallback.onError(what, extra);
+
+        return true;
+    }
+
+    private void onSongChanged(long gap, boolean chained) {
+        mLastGap = Math.abs(gap);
+        mGaps.record(mLastGap * 1000);
+        mCompletionTime = 0;
+        mStartedAsNextTime = 0;
+        Log.i(TAG, "Song change gap: " + mLastGap + " ms" + (chained ? " (chained)" : ""));
+    }
+
+    private void chainNext() {
+        if (mPrepared && mNextPrepared) {
+            mPlayer.setNextMediaPlayer(mNextPlayer);
+        }
+    }
+
+    private void clearNext() {
+        if (mNextPrepared && mPrepared) {
+            mPlayer.setNextMediaPlayer(null);
+        }
+
+        if (mNextPlayer != null) {
+            mNextPlayer.reset();
+        }
+
+        mNextFile = null;
+        mNextPrepared = false;
+        mStartedAsNextTime = 0;
+    }
+
+    private static void prepare(MediaPlayer player, File file) throws IOException {
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setDataSource(file.getAbsolutePath());
+        player.prepareAsync();
+    }
+
+    /**
+     * Create a player, or reset the existing one for the next song.
+     */
+    private MediaPlayer obtainPlayer(MediaPlayer player) {
+        if (player != null) {
+            player.reset();
+            return player;
+        }
+
+        player = new MediaPlayer();
+        player.setWakeMode(mContext, PowerManager.PARTIAL_WAKE_LOCK);
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnErrorListener(this);
+        player.setOnInfoListener(this);
+        player.setVolume(3.0f, 3.0f);
+
+        return player;
+    }
+
+    private static MediaPlayer releasePlayer(MediaPlayer player) {
+        if (player != null) {
+            player.reset();
+            player.release();
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, such as latencies in microseconds.
+ *
+ * <p>
+ * The values are counted in log-linear buckets: every power of two is split into 16 buckets
+ * of equal width, so a percentile is reported with a relative error of at most 1/16 over the
+ * whole range of long values, in about 8 KB. Recording a value is a few atomic increments and
+ * never blocks or allocates, so it can be done on the audio thread. The statistics read while
+ * values are being recorded may be off by the values in flight.
+ * </p>
+ */
+final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record the value. A negative value is recorded as 0.
+     *
+     * @param value the value
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        mBuckets.incrementAndGet(getBucket(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return the largest recorded value, 0 if no value was recorded
+     */
+    long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, 0 if no value was recorded
+     */
+    double getMean() {
+        long count = mCount.get();
+
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Get the value below which the specified percentage of the recorded values fall.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the upper bound of the bucket the percentile falls in, never more than the largest
+     * recorded value, or 0 if no value was recorded
+     */
+    long getPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(i);
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT && count > 0; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), mMax.get());
+            }
+        }
+
+        return 0;
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Pure Java reader of the album, title, artist, genre and year from the ID3 tags of an mp3
+ * file.
+ *
+ * <p>
+ * Supports ID3v2.2, ID3v2.3 and ID3v2.4 including the unsynchronisation scheme and all four
+ * text encodings, and ID3v1 for the fields ID3v2 doesn't have. Only the frame headers and the
+ * wanted text frames are read through a {@link FileChannel}. Every other frame, like embedded
+ * artwork, is skipped by its size without reading or allocating anything, and the buffers are
+ * reused from song to song.
+ * </p>
+ *
+ * <p>
+ * A reader is not meant to be used from several threads at the same time, the calls are
+ * serialized.
+ * </p>
+ */
+class ID3TagReader implements MetadataExtractor {
+    private static final int HEADER_SIZE = 10;
+    private static final int ID3V1_SIZE = 128;
+
+    // Larger text frames are skipped, an album or a title is never that long.
+    private static final int MAX_TEXT_FRAME_SIZE = 4096;
+    // ID3v2.2/2.3 tags with tag-wide unsynchronisation have to be read at once to find the frames.
+    private static final int MAX_UNSYNCHRONISED_TAG_SIZE = 512 * 1024;
+
+    private static final int FLAG_UNSYNCHRONISATION = 0x80;
+    private static final int FLAG_EXTENDED_HEADER = 0x40;
+
+    private static final int V23_FRAME_COMPRESSION = 0x80;
+    private static final int V23_FRAME_ENCRYPTION = 0x40;
+    private static final int V23_FRAME_GROUPING = 0x20;
+
+    private static final int V24_FRAME_GROUPING = 0x40;
+    private static final int V24_FRAME_COMPRESSION = 0x08;
+    private static final int V24_FRAME_ENCRYPTION = 0x04;
+    private static final int V24_FRAME_UNSYNCHRONISATION = 0x02;
+    private static final int V24_FRAME_DATA_LENGTH = 0x01;
+
+    private static final int ENCODING_ISO_8859_1 = 0;
+    private static final int ENCODING_UTF_16 = 1;
+    private static final int ENCODING_UTF_16BE = 2;
+    private static final int ENCODING_UTF_8 = 3;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FIELD_NONE = -1;
+    private static final int FIELD_ALBUM = 0;
+    private static final int FIELD_TITLE = 1;
+    private static final int FIELD_ARTIST = 2;
+    private static final int FIELD_GENRE = 3;
+    private static final int FIELD_YEAR = 4;
+    private static final int FIELD_COUNT = 5;
+
+    private static final int V22_ALBUM = frameId("TAL");
+    private static final int V22_TITLE = frameId("TT2");
+    private static final int V22_ARTIST = frameId("TP1");
+    private static final int V22_GENRE = frameId("TCO");
+    private static final int V22_YEAR = frameId("TYE");
+    private static final int ALBUM = frameId("TALB");
+    private static final int TITLE = frameId("TIT2");
+    private static final int ARTIST = frameId("TPE1");
+    private static final int GENRE = frameId("TCON");
+    // ID3v2.3 has the year, ID3v2.4 the recording time
+    private static final int YEAR = frameId("TYER");
+    private static final int RECORDING_TIME = frameId("TDRC");
+
+    // The genres a genre tag can refer to by number, as defined by ID3v1
+    private static final String[] GENRES = {
+            "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop",
+            "Jazz", "Metal", "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae",
+            "Rock", "Techno", "Industrial", "Alternative", "Ska", "Death Metal", "Pranks",
+            "Soundtrack", "Euro-Techno", "Ambient", "Trip-Hop", "Vocal", "Jazz+Funk", "Fusion",
+            "Trance", "Classical", "Instrumental", "Acid", "House", "Game", "Sound Clip",
+            "Gospel", "Noise", "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative",
+            "Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic", "Darkwave",
+            "Techno-Industrial", "Electronic", "Pop-Folk", "Eurodance", "Dream",
+            "Southern Rock", "Comedy", "Cult", "Gangsta", "Top 40", "Christian Rap", "Pop/Funk",
+            "Jungle", "Native American", "Cabaret", "New Wave", "Psychadelic", "Rave",
+            "Showtunes", "Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka",
+            "Retro", "Musical", "Rock & Roll", "Hard Rock"
+    };
+
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private final byte[] mFrame = new byte[MAX_TEXT_FRAME_SIZE];
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.wrap(mHeader);
+    private final ByteBuffer mFrameBuffer = ByteBuffer.wrap(mFrame);
+
+    // The whole tag, only used for tags with tag-wide unsynchronisation
+    private byte[] mTag;
+    private int mTagLength;
+
+    private final String[] mFields = new String[FIELD_COUNT];
+    private int mFieldCount;
+
+    private FileChannel mChannel;
+
+    @Override
+    public synchronized SongMetadata extract(File file) throws IOException {
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            mFields[i] = null;
+        }
+        mFieldCount = 0;
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            mChannel = in.getChannel();
+            long fileSize = mChannel.size();
+            readID3v2(fileSize);
+            if (mFieldCount < FIELD_COUNT) {
+                readID3v1(fileSize);
+            }
+        } finally {
+            mChannel = null;
+            mTagLength = -1;
+        }
+
+        if (mFieldCount == 0) {
+            return SongMetadata.EMPTY;
+        }
+
+        return new SongMetadata(mFields[FIELD_ALBUM], mFields[FIELD_TITLE], mFields[FIELD_ARTIST],
+                normalizeGenre(mFields[FIELD_GENRE]), SongMetadata.parseYear(mFields[FIELD_YEAR]));
+    }
+
+    @Override
+    public void close() {
+        // Nothing is held between two songs.
+    }
+
+    private void readID3v2(long fileSize) throws IOException {
+        mTagLength = -1;
+        if (!read(0, mHeaderBuffer, HEADER_SIZE) || mHeader[0] != 'I' || mHeader[1] != 'D'
+                || mHeader[2] != '3') {
+            return;
+        }
+
+        int version = mHeader[3];
+        int flags = mHeader[5] & 0xff;
+        int tagSize = syncSafe(mHeader, 6);
+        if (version < 2 || version > 4 || tagSize < 0) {
+            return;
+        }
+
+        long end = Math.min(HEADER_SIZE + (long) tagSize, fileSize);
+        boolean unsynchronised = (flags & FLAG_UNSYNCHRONISATION) != 0;
+        if (unsynchronised && version < 4) {
+            // The frame sizes count the bytes after unsynchronisation has been undone.
+            if (tagSize > MAX_UNSYNCHRONISED_TAG_SIZE) {
+                return;
+            }
+
+            int length = (int) (end - HEADER_SIZE);
+            if (mTag == null || mTag.length < length) {
+                mTag = new byte[length];
+            }
+
+            if (!read(HEADER_SIZE, ByteBuffer.wrap(mTag, 0, length), length)) {
+                return;
+            }
+
+            mTagLength = HEADER_SIZE + resynchronise(mTag, 0, length);
+            end = mTagLength;
+        }
+
+        long position = HEADER_SIZE;
+        if ((flags & FLAG_EXTENDED_HEADER) != 0 && version >= 3) {
+            if (!readTag(position, mHeaderBuffer, 4)) {
+                return;
+            }
+
+            position += version == 4 ? syncSafe(mHeader, 0) : 4 + int32(mHeader, 0);
+        }
+
+        int frameHeaderSize = version == 2 ? 6 : 10;
+        while (mFieldCount < FIELD_COUNT && position + frameHeaderSize <= end) {
+            if (!readTag(position, mHeaderBuffer, frameHeaderSize) || mHeader[0] == 0) {
+                // Reached the padding
+                return;
+            }
+
+            int id;
+            int frameSize;
+            int frameFlags = 0;
+            if (version == 2) {
+                id = ((mHeader[0] & 0xff) << 16) | ((mHeader[1] & 0xff) << 8) | (mHeader[2] & 0xff);
+                frameSize = ((mHeader[3] & 0xff) << 16) | ((mHeader[4] & 0xff) << 8)
+                        | (mHeader[5] & 0xff);
+            } else {
+                id = int32(mHeader, 0);
+                frameSize = version == 4 ? syncSafe(mHeader, 4) : int32(mHeader, 4);
+                frameFlags = mHeader[9] & 0xff;
+            }
+
+            long body = position + frameHeaderSize;
+            if (frameSize <= 0 || body + frameSize > end) {
+                return;
+            }
+
+            int field = getField(version, id);
+            if (field != FIELD_NONE && mFields[field] == null && frameSize <= MAX_TEXT_FRAME_SIZE
+                    && readTag(body, mFrameBuffer, frameSize)) {
+                setField(field, decodeFrame(version, unsynchronised, frameFlags, frameSize));
+            }
+
+            position = body + frameSize;
+        }
+    }
+
+    private void readID3v1(long fileSize) throws IOException {
+        if (fileSize < ID3V1_SIZE || !read(fileSize - ID3V1_SIZE, mFrameBuffer, ID3V1_SIZE)
+                || mFrame[0] != 'T' || mFrame[1] != 'A' || mFrame[2] != 'G') {
+            return;
+        }
+
+        setField(FIELD_TITLE, decodeText(ENCODING_ISO_8859_1, 3, 30));
+        setField(FIELD_ARTIST, decodeText(ENCODING_ISO_8859_1, 33, 30));
+        setField(FIELD_ALBUM, decodeText(ENCODING_ISO_8859_1, 63, 30));
+        setField(FIELD_YEAR, decodeText(ENCODING_ISO_8859_1, 93, 4));
+        // The genre byte isn't used, 0 is Blues but also what many taggers leave behind.
+    }
+
+    private String decodeFrame(int version, boolean unsynchronised, int frameFlags, int size) {
+        int offset = 0;
+        if (version == 3) {
+            if ((frameFlags & (V23_FRAME_COMPRESSION | V23_FRAME_ENCRYPTION)) != 0) {
+                return null;
+            }
+
+            if ((frameFlags & V23_FRAME_GROUPING) != 0) {
+                offset++;
+            }
+        } else if (version == 4) {
+            if ((frameFlags & (V24_FRAME_COMPRESSION | V24_FRAME_ENCRYPTION)) != 0) {
+                return null;
+            }
+
+            if ((frameFlags & V24_FRAME_GROUPING) != 0) {
+                offset++;
+            }
+
+            if ((frameFlags & V24_FRAME_DATA_LENGTH) != 0) {
+                offset += 4;
+            }
+
+            if (unsynchronised || (frameFlags & V24_FRAME_UNSYNCHRONISATION) != 0) {
+                size = offset + resynchronise(mFrame, offset, size - offset);
+            }
+        }
+
+        if (offset >= size) {
+            return null;
+        }
+
+        return decodeText(mFrame[offset], offset + 1, size - offset - 1);
+    }
+
+    /**
+     * Decode a text from the frame buffer up to the first terminator.
+     */
+    private String decodeText(int encoding, int offset, int length) {
+        Charset charset;
+        boolean wide = false;
+        switch (encoding) {
+            case ENCODING_ISO_8859_1:
+                charset = ISO_8859_1;
+                break;
+            case ENCODING_UTF_16:
+                charset = UTF_16;
+                wide = true;
+                break;
+            case ENCODING_UTF_16BE:
+                charset = UTF_16BE;
+                wide = true;
+                break;
+            case ENCODING_UTF_8:
+                charset = UTF_8;
+                break;
+            default:
+                return null;
+        }
+
+        int end = offset;
+        int limit = offset + length;
+        if (wide) {
+            while (end + 1 < limit && (mFrame[end] != 0 || mFrame[end + 1] != 0)) {
+                end += 2;
+            }
+        } else {
+            while (end < limit && mFrame[end] != 0) {
+                end++;
+            }
+        }
+
+        String text = new String(mFrame, offset, end - offset, charset).trim();
+
+        return text.isEmpty() ? null : text;
+    }
+
+    private void setField(int field, String value) {
+        if (value != null && mFields[field] == null) {
+            mFields[field] = value;
+            mFieldCount++;
+        }
+    }
+
+    /**
+     * Read from the tag, which is either in memory after unsynchronisation was undone or still
+     * in the file.
+     */
+    private boolean readTag(long position, ByteBuffer buffer, int length) throws IOException {
+        if (mTagLength < 0) {
+            return read(position, buffer, length);
+        }
+
+        if (position + length > mTagLength) {
+            return false;
+        }
+
+        System.arraycopy(mTag, (int) position - HEADER_SIZE, buffer.array(), 0, length);
+
+        return true;
+    }
+
+    private boolean read(long position, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(buffer.position() + length);
+        while (buffer.hasRemaining()) {
+            int count = mChannel.read(buffer, position);
+            if (count < 0) {
+                return false;
+            }
+
+            position += count;
+        }
+
+        return true;
+    }
+
+    private static int getField(int version, int id) {
+        if (version == 2) {
+            if (id == V22_ALBUM) {
+                return FIELD_ALBUM;
+            } else if (id == V22_TITLE) {
+                return FIELD_TITLE;
+            } else if (id == V22_ARTIST) {
+                return FIELD_ARTIST;
+            } else if (id == V22_GENRE) {
+                return FIELD_GENRE;
+            } else if (id == V22_YEAR) {
+                return FIELD_YEAR;
+            }
+        } else if (id == ALBUM) {
+            return FIELD_ALBUM;
+        } else if (id == TITLE) {
+            return FIELD_TITLE;
+        } else if (id == ARTIST) {
+            return FIELD_ARTIST;
+        } else if (id == GENRE) {
+            return FIELD_GENRE;
+        } else if (id == YEAR || id == RECORDING_TIME) {
+            return FIELD_YEAR;
+        }
+
+        return FIELD_NONE;
+    }
+
+    /**
+     * Resolve a genre which refers to an ID3v1 genre by number, like "(17)", "(17)Rock" with a
+     * refinement, or just "17" in ID3v2.4.
+     *
+     * @param genre the text of the genre tag, or null
+     * @return the genre name, or null if there is none
+     */
+    static String normalizeGenre(String genre) {
+        if (genre == null) {
+            return null;
+        }
+
+        String number = genre;
+        if (genre.startsWith("(")) {
+            int end = genre.indexOf(')');
+            if (end == -1) {
+                return genre;
+            }
+
+            String refinement = genre.substring(end + 1).trim();
+            if (!refinement.isEmpty()) {
+                return refinement;
+            }
+
+            number = genre.substring(1, end);
+        }
+
+        try {
+            int index = Integer.parseInt(number);
+
+            return index >= 0 && index < GENRES.length ? GENRES[index] : null;
+        } catch (NumberFormatException e) {
+            return genre;
+        }
+    }
+
+    /**
+     * Undo the unsynchronisation scheme in place, every 0xff 0x00 becomes 0xff.
+     *
+     * @return the length of the data after unsynchronisation has been undone
+     */
+    static int resynchronise(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int out = offset;
+        for (int i = offset; i < end; i++) {
+            data[out++] = data[i];
+            if (data[i] == (byte) 0xff && i + 1 < end && data[i + 1] == 0) {
+                i++;
+            }
+        }
+
+        return out - offset;
+    }
+
+    private static int syncSafe(byte[] data, int offset) {
+        return ((data[offset] & 0x7f) << 21) | ((data[offset + 1] & 0x7f) << 14)
+                | ((data[offset + 2] & 0x7f) << 7) | (data[offset + 3] & 0x7f);
+    }
+
+    private static int int32(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int frameId(String id) {
+        int value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            value = (value << 8) | id.charAt(i);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,1022 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent index of all mp3 files in the primary external storage directory.
+ *
+ * <p>
+ * The index remembers every directory it visited together with the directory's last modified
+ * time, its sub directories and its mp3 files. A refresh still has to check the last modified
+ * time of every known directory, because adding a file deep in the tree doesn't touch the
+ * parent directories, but only the directories whose time has changed are listed again.
+ * Picking a song is a lookup into the compact {@link TrackTable} and never touches the file
+ * system.
+ * </p>
+ *
+ * <p>
+ * The tree is walked by {@link ParallelMP3Walker}, the index itself is the walker's sink.
+ * Songs can be picked while a refresh is running. If the index was empty when the refresh
+ * started, the songs found so far are picked from as soon as the walker reports them, and
+ * the picks are uniform across the whole library once the refresh has finished.
+ * </p>
+ *
+ * <p>
+ * Between two refreshes, {@link #update(File, File, Collection, Collection)} brings single
+ * directories up to date which are known to have changed, without checking the others.
+ * </p>
+ *
+ * <p>
+ * The index is saved as a {@link LibrarySnapshot}. When the service starts cold,
+ * {@link #openSnapshot()} maps the snapshot and songs are picked straight from the mapped file
+ * until {@link #load()} has verified and read it on a background thread.
+ * </p>
+ *
+ * <p>
+ * {@link #pickShuffledTrack(Random)} plays every track once before any track repeats. A track
+ * only counts as played once {@link #markPlayed(File)} reports that it has started, so a pick
+ * which is never heard, like a discarded gapless lookahead, doesn't use up its place in the
+ * cycle. The tracks played in the current cycle are flagged in the track table and kept in a
+ * {@link ShuffleHistory} next to the index file, so the cycle survives restarts and rebuilds
+ * of the table.
+ * </p>
+ *
+ * <p>
+ * {@link #pickWeightedTrack(Random)} picks by the weights the {@link TrackStats} derive from
+ * the plays counted with {@link #recordPlayback(File, float, int)}, so songs which are
+ * usually skipped come up less often. A play is appended to the {@link PlayLog} in the
+ * directory next to the index file and then updates the weight of its track in O(log n), both
+ * on the log executor. The statistics are loaded after the first rebuild of the track table,
+ * without holding the index, as a task of the log executor, so a play either is in the log they
+ * replay or is counted after them. The index is only held to set the loaded weights.
+ * </p>
+ *
+ * <p>
+ * {@link #pickFilteredTrack(RadioFilter, Random)} picks the songs of a genre, an artist or a
+ * decade from the bitmap indexes of the track table. The tags are read in batches by
+ * {@link #tagTracks(MetadataService, int)} without holding the index, are kept for the
+ * tracks which are still there when the table is rebuilt, and are saved with the snapshot, so
+ * only the new tracks are read after a restart.
+ * </p>
+ *
+ * <p>
+ * {@link #search(CharSequence, int)} finds the songs by the first letters of the words of their
+ * file names, albums and tags in the prefix index the track table keeps up to date with every
+ * change. The prefix index is built by {@link #buildSearchIndex()} from the words copied out of
+ * the track table, without holding the index, and is dropped when the table is rebuilt.
+ * </p>
+ */
+class LibraryIndex {
+    private static final String[] EMPTY = new String[0];
+
+    private static final String SHUFFLE_HISTORY_SUFFIX = ".played";
+    private static final String PLAY_LOG_SUFFIX = ".plays";
+
+    // The number of saved tags restored at a time while the index is held
+    private static final int RESTORE_TAGS_BATCH_SIZE = 4096;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final File mIndexFile;
+    private final ParallelMP3Walker mWalker;
+    private final Executor mLogExecutor;
+    private final ShuffleHistory mShuffleHistory;
+    private final PlayLog mPlayLog;
+    // Empty until the statistics are loaded, then replaced by the loaded ones
+    private TrackStats mStats;
+
+    private final Object mRefreshLock = new Object();
+
+    private ParallelMP3Walker.Stats mLastWalkStats;
+
+    private Map<String, Directory> mDirectories = new HashMap<>();
+    private final TrackTable mTracks = new TrackTable();
+    // The snapshot picked from until the index is loaded, or null
+    private LibrarySnapshot mSnapshot;
+    // Whether the played tracks of the shuffle history have been flagged in the track table
+    private boolean mShuffleHistoryRead;
+    private boolean mStatsLoading;
+    private boolean mStatsLoaded;
+    // The track IDs of the last search, reused by the searches with the same maximum
+    private int[] mSearchResults = new int[0];
+
+    /**
+     * The cached listing of a single directory.
+     */
+    static final class Directory {
+        final long mLastModified;
+        final String[] mSubDirectories;
+        final String[] mTracks;
+
+        Directory(long lastModified, String[] subDirectories, String[] tracks) {
+            mLastModified = lastModified;
+            mSubDirectories = subDirectories;
+            mTracks = tracks;
+        }
+    }
+
+    /**
+     * Receives the progress of a refresh which started with an empty index.
+     */
+    interface ScanListener {
+        /**
+         * Called from the walker threads whenever new tracks have become available to pick.
+         *
+         * @param trackCount the number of tracks found so far
+         */
+        void onTracksFound(int trackCount);
+    }
+
+    /**
+     * Create the library index which is stored in the specified file.
+     *
+     * @param indexFile the file the index is loaded from and saved to
+     * @param walker the walker to scan the directories with
+     * @param logExecutor the executor to write the shuffle history and the play log on, which
+     *                    must run the tasks one after another
+     */
+    LibraryIndex(File indexFile, ParallelMP3Walker walker, Executor logExecutor) {
+        mIndexFile = indexFile;
+        mWalker = walker;
+        mLogExecutor = logExecutor;
+        mShuffleHistory = new ShuffleHistory(new File(indexFile.getPath()
+                + SHUFFLE_HISTORY_SUFFIX), logExecutor);
+        mPlayLog = new PlayLog(new File(indexFile.getPath() + PLAY_LOG_SUFFIX), logExecutor);
+        mStats = new TrackStats(mPlayLog.getAggregatesFile());
+    }
+
+    /**
+     * Create the library index which is stored in the specified file and writes the shuffle
+     * history and the play log on the calling thread.
+     *
+     * @param indexFile the file the index is loaded from and saved to
+     * @param walker the walker to scan the directories with
+     */
+    LibraryIndex(File indexFile, ParallelMP3Walker walker) {
+        this(indexFile, walker, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Create the library index which is stored in the specified file and scanned by a walker
+     * of its own.
+     *
+     * @param indexFile the file the index is loaded from and saved to
+     * @param logExecutor the executor to write the shuffle history and the play log on, which
+     *                    must run the tasks one after another
+     */
+    LibraryIndex(File indexFile, Executor logExecutor) {
+        this(indexFile, new ParallelMP3Walker(), logExecutor);
+    }
+
+    /**
+     * Create the library index which is stored in the specified file, scanned by a walker of
+     * its own and writes the shuffle history and the play log on the calling thread.
+     *
+     * @param indexFile the file the index is loaded from and saved to
+     */
+    LibraryIndex(File indexFile) {
+        this(indexFile, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Map the snapshot of the index file, so songs can be picked from it before the index is
+     * loaded. Only the header of the snapshot is read.
+     *
+     * @return true if the snapshot was mapped, false if it is missing, corrupt or of another
+     * version
+     */
+    synchronized boolean openSnapshot() {
+        try {
+            mSnapshot = LibrarySnapshot.open(mIndexFile);
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Load the index from the index file. The file is read completely and its checksum is
+     * checked, so this belongs on a background thread. Songs can be picked from the snapshot
+     * mapped by {@link #openSnapshot()} in the meantime.
+     *
+     * @return true if the index file was read, false if it is missing, corrupt or of another
+     * version, in which case the index has to be rebuilt by a refresh
+     */
+    boolean load() {
+        synchronized (mRefreshLock) {
+            LibrarySnapshot snapshot;
+            synchronized (this) {
+                snapshot = mSnapshot;
+            }
+
+            Map<String, Directory> directories = null;
+            LibrarySnapshot.TrackTags tags = null;
+            try {
+                if (snapshot == null) {
+                    snapshot = LibrarySnapshot.open(mIndexFile);
+                }
+
+                if (!snapshot.verify()) {
+                    throw new IOException("Corrupt snapshot " + mIndexFile);
+                }
+
+                directories = snapshot.readDirectories();
+                tags = snapshot.readTags();
+            } catch (FileNotFoundException e) {
+                // There is no index yet.
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            synchronized (this) {
+                mSnapshot = null;
+                if (directories == null) {
+                    return false;
+                }
+
+                mDirectories = directories;
+                rebuildTracks();
+            }
+
+            loadStats();
+            if (tags != null) {
+                restoreSavedTags(tags);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Save the index and the tags read so far to the index file.
+     *
+     * @throws IOException if the index file can't be written
+     */
+    synchronized void save() throws IOException {
+        LibrarySnapshot.write(mIndexFile, mDirectories, mTracks);
+    }
+
+    /**
+     * Bring the index up to date with the specified directory.
+     *
+     * @param root the directory to index
+     * @return true if the index has changed
+     */
+    boolean refresh(File root) {
+        return refresh(root, null);
+    }
+
+    /**
+     * Bring the index up to date with the specified directory. Only one refresh runs at a time,
+     * but the index can be read while the refresh is running.
+     *
+     * @param root the directory to index
+     * @param listener the listener to notify of the tracks found while the index is filling up
+     *                 for the first time, or null
+     * @return true if the index has changed
+     */
+    boolean refresh(File root, ScanListener listener) {
+        synchronized (mRefreshLock) {
+            Map<String, Directory> known;
+            boolean streaming;
+            synchronized (this) {
+                known = mDirectories;
+                streaming = mTracks.size() == 0;
+            }
+
+            RefreshSink sink = new RefreshSink(known, streaming, listener);
+            ParallelMP3Walker.Stats stats = mWalker.walk(root, sink);
+            boolean changed = sink.mChanged.get() || sink.mVisited.size() != known.size();
+
+            synchronized (this) {
+                mLastWalkStats = stats;
+                mDirectories = new HashMap<>(sink.mVisited);
+                mSnapshot = null;
+                if (changed || streaming) {
+                    rebuildTracks();
+                }
+            }
+
+            loadStats();
+
+            return changed;
+        }
+    }
+
+    /**
+     * Bring the specified directory of the index up to date after it has changed. Only the
+     * directory itself is listed again, its new sub directories are walked and the sub
+     * directories which are gone are removed with everything below them. The other known sub
+     * directories are kept as they are.
+     *
+     * @param root the directory the index was refreshed with
+     * @param directory the changed directory, the root or a directory below it
+     * @param addedDirectories receives the paths of the directories added to the index, or null
+     * @param removedDirectories receives the paths of the directories removed from the index,
+     *                           or null
+     * @return true if the index has changed
+     */
+    boolean update(File root, File directory, Collection<String> addedDirectories,
+                   Collection<String> removedDirectories) {
+        synchronized (mRefreshLock) {
+            // The directories are only changed while the refresh lock is held.
+            Map<String, Directory> known;
+            synchronized (this) {
+                known = mDirectories;
+            }
+
+            String path = directory.getPath();
+            UpdateSink sink = new UpdateSink(known, path);
+            mWalker.walk(root, directory, sink);
+
+            synchronized (this) {
+                Directory previous = known.get(path);
+                Directory current = sink.mVisited.get(path);
+                if (current == null) {
+                    // The directory is gone or can't be walked anymore.
+                    return removeDirectory(path, removedDirectories);
+                }
+
+                boolean changed = previous == null;
+                String[] previousTracks = previous != null ? previous.mTracks : EMPTY;
+                Set<String> tracks = new HashSet<>(Arrays.asList(current.mTracks));
+                for (String name : previousTracks) {
+                    if (!tracks.remove(name)) {
+                        mTracks.remove(path, name);
+                        changed = true;
+                    }
+                }
+
+                for (String name : tracks) {
+                    addTrack(path, name);
+                    changed = true;
+                }
+
+                if (previous != null) {
+                    String prefix = path + File.separator;
+                    Set<String> subDirectories = new HashSet<>(
+                            Arrays.asList(current.mSubDirectories));
+                    for (String name : previous.mSubDirectories) {
+                        if (!subDirectories.contains(name)) {
+                            changed |= removeDirectory(prefix + name, removedDirectories);
+                        }
+                    }
+                }
+
+                for (Map.Entry<String, Directory> entry : sink.mVisited.entrySet()) {
+                    String visitedPath = entry.getKey();
+                    if (!known.containsKey(visitedPath) && !visitedPath.equals(path)) {
+                        Directory added = entry.getValue();
+                        mDirectories.put(visitedPath, added);
+                        addTracks(visitedPath, added.mTracks);
+                        if (addedDirectories != null) {
+                            addedDirectories.add(visitedPath);
+                        }
+
+                        changed = true;
+                    }
+                }
+
+                mDirectories.put(path, current);
+                if (previous == null && addedDirectories != null) {
+                    addedDirectories.add(path);
+                }
+
+                return changed;
+            }
+        }
+    }
+
+    /**
+     * @return the paths of all known directories, the most recently modified first
+     */
+    synchronized ArrayList<String> getDirectoriesByLastModified() {
+        final Map<String, Directory> directories = mDirectories;
+        ArrayList<String> paths = new ArrayList<>(directories.keySet());
+        Collections.sort(paths, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long lastModifiedA = directories.get(a).mLastModified;
+                long lastModifiedB = directories.get(b).mLastModified;
+
+                return lastModifiedA < lastModifiedB ? 1
+                        : (lastModifiedA == lastModifiedB ? 0 : -1);
+            }
+        });
+
+        return paths;
+    }
+
+    /**
+     * @param path the directory path
+     * @return the last modified time of the directory when it was listed, or -1 if the
+     * directory isn't known
+     */
+    synchronized long getLastModified(String path) {
+        Directory directory = mDirectories.get(path);
+
+        return directory != null ? directory.mLastModified : -1;
+    }
+
+    /**
+     * @return the statistics of the last refresh, or null if the index was never refreshed
+     */
+    synchronized ParallelMP3Walker.Stats getLastWalkStats() {
+        return mLastWalkStats;
+    }
+
+    /**
+     * @return true if there is no track in the index
+     */
+    synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of tracks in the index
+     */
+    synchronized int size() {
+        if (mTracks.size() == 0 && mSnapshot != null) {
+            return mSnapshot.getTrackCount();
+        }
+
+        return mTracks.size();
+    }
+
+    /**
+     * Get a randomly selected song file from the index.
+     *
+     * @param random the random generator to pick with
+     * @return A randomly selected song file, or null if the index is empty
+     */
+    synchronized File pickRandomTrack(Random random) {
+        if (mTracks.size() == 0) {
+            return mSnapshot != null ? mSnapshot.pickRandomTrack(random) : null;
+        }
+
+        return mTracks.getFile(random.nextInt(mTracks.size()));
+    }
+
+    /**
+     * Get a randomly selected song file which hasn't been played in the current shuffle cycle.
+     * The song only counts as played once it is reported to {@link #markPlayed(File)}. Once
+     * every song has been played, a new cycle starts. Before the index is loaded, the song is
+     * picked from the snapshot without the shuffle history.
+     *
+     * @param random the random generator to pick with
+     * @return A randomly selected song file, or null if the index is empty
+     */
+    synchronized File pickShuffledTrack(Random random) {
+        if (mTracks.size() == 0) {
+            return mSnapshot != null ? mSnapshot.pickRandomTrack(random) : null;
+        }
+
+        int id = mTracks.pickUnplayed(random);
+        if (id == -1) {
+            mTracks.clearPlayed();
+            mShuffleHistory.clear();
+            id = mTracks.pickUnplayed(random);
+        }
+
+        return mTracks.getFile(id);
+    }
+
+    /**
+     * Count the song as played in the current shuffle cycle, once it has started to play.
+     *
+     * @param file the song file
+     */
+    synchronized void markPlayed(File file) {
+        int id = mTracks.indexOf(file.getParent(), file.getName());
+        if (id != -1 && !mTracks.isPlayed(id)) {
+            mTracks.setPlayed(id);
+            mShuffleHistory.append(mTracks.getPathHash(id));
+        }
+    }
+
+    /**
+     * Get a randomly selected song file with a probability proportional to its weight. Before
+     * the index is loaded, the song is picked from the snapshot with equal weights.
+     *
+     * @param random the random generator to pick with
+     * @return A randomly selected song file, or null if the index is empty
+     */
+    synchronized File pickWeightedTrack(Random random) {
+        if (mTracks.size() == 0) {
+            return mSnapshot != null ? mSnapshot.pickRandomTrack(random) : null;
+        }
+
+        return mTracks.getFile(mTracks.pickWeighted(random));
+    }
+
+    /**
+     * Get a randomly selected song file which matches the radio filter. Before the index is
+     * loaded and the tags are read, no song matches.
+     *
+     * @param filter the filter of the radio
+     * @param random the random generator to pick with
+     * @return A randomly selected song file, or null if no song matches
+     */
+    synchronized File pickFilteredTrack(RadioFilter filter, Random random) {
+        int id = mTracks.pickFiltered(filter, random);
+
+        return id != -1 ? mTracks.getFile(id) : null;
+    }
+
+    /**
+     * @param filter the filter of the radio
+     * @return the number of songs which match the filter
+     */
+    synchronized int getFilteredCount(RadioFilter filter) {
+        return mTracks.countFiltered(filter);
+    }
+
+    /**
+     * Find the songs which have a word starting with every word of the query, in the
+     * alphabetical order of the matched words. Before the index is loaded, no song is found.
+     *
+     * @param query the words the user has typed so far, the case doesn't matter
+     * @param maxResults the maximum number of songs to find
+     * @return the found song files
+     */
+    ArrayList<File> search(CharSequence query, int maxResults) {
+        buildSearchIndex();
+        synchronized (this) {
+            if (mSearchResults.length != maxResults) {
+                mSearchResults = new int[maxResults];
+            }
+
+            // The table indexes the words itself if it has been rebuilt in the meantime.
+            int count = mTracks.search(query, mSearchResults);
+            ArrayList<File> files = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                files.add(mTracks.getFile(mSearchResults[i]));
+            }
+
+            return files;
+        }
+    }
+
+    /**
+     * Build the prefix index of the words of the tracks for {@link #search(CharSequence, int)},
+     * unless it is built already. The words are copied while the index is held, the prefix index
+     * is built without holding it and then takes in the changes made in the meantime. This
+     * belongs on a background thread after the index has been loaded or refreshed.
+     */
+    void buildSearchIndex() {
+        TrackTable.SearchWords words;
+        synchronized (this) {
+            if (mTracks.isSearchable()) {
+                return;
+            }
+
+            words = mTracks.getSearchWords();
+        }
+
+        SearchIndex search = words.build();
+        synchronized (this) {
+            mTracks.setSearchIndex(words, search);
+        }
+    }
+
+    /**
+     * Read the tags of a batch of tracks which have none yet. The metadata is read without
+     * holding the index, so songs can be picked in the meantime.
+     *
+     * @param metadataService the service to read the metadata with
+     * @param batchSize the maximum number of tracks to tag
+     * @return the number of tracks tagged, 0 if there are no tracks left to tag
+     */
+    int tagTracks(MetadataService metadataService, int batchSize) {
+        String[] directories = new String[batchSize];
+        String[] names = new String[batchSize];
+        int count = 0;
+        synchronized (this) {
+            for (; count < batchSize; count++) {
+                int id = mTracks.findUntagged(count);
+                if (id == -1) {
+                    break;
+                }
+
+                directories[count] = mTracks.getDirectory(id);
+                names[count] = mTracks.getName(id);
+            }
+        }
+
+        SongMetadata[] metadata = new SongMetadata[count];
+        for (int i = 0; i < count; i++) {
+            metadata[i] = metadataService.get(new File(directories[i], names[i]));
+        }
+
+        int tagged = 0;
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                // The track may have been removed or moved to another ID in the meantime.
+                int id = mTracks.indexOf(directories[i], names[i]);
+                if (id != -1 && !mTracks.isTagged(id)) {
+                    setTags(id, metadata[i]);
+                    tagged++;
+                }
+            }
+        }
+
+        return tagged;
+    }
+
+    /**
+     * Append a play of the song to the play log and count it to update the weight of the song.
+     * Both happen on the log executor, so the calling thread neither waits for the storage nor
+     * for the index.
+     *
+     * @param file the song file
+     * @param completion the part of the song which was heard, from 0 to 1
+     * @param duration the duration of the song in ms, 0 if unknown
+     */
+    void recordPlayback(final File file, final float completion, int duration) {
+        final long hash = TrackTable.getPathHash(file.getPath());
+        mPlayLog.append(System.currentTimeMillis(), hash, duration, completion);
+        executeOnLog(new Runnable() {
+            @Override
+            public void run() {
+                countPlayback(file, hash, completion);
+            }
+        });
+    }
+
+    /**
+     * @param file the song file
+     * @return true if the song is in the index
+     */
+    synchronized boolean contains(File file) {
+        return mTracks.indexOf(file.getParent(), file.getName()) != -1;
+    }
+
+    /**
+     * @param file the song file
+     * @return the weight of the song in the weighted shuffle, or 0 if it isn't in the index
+     */
+    synchronized int getWeight(File file) {
+        int id = mTracks.indexOf(file.getParent(), file.getName());
+
+        return id != -1 ? mTracks.getWeight(id) : 0;
+    }
+
+    /**
+     * Fold the plays logged so far into the aggregates of the play log in the background.
+     */
+    void compactPlayLog() {
+        mPlayLog.compact();
+    }
+
+    /**
+     * Seal the play log once the plays appended so far are written.
+     */
+    void closePlayLog() {
+        mPlayLog.close();
+    }
+
+    /**
+     * @return the number of tracks played in the current shuffle cycle
+     */
+    synchronized int getPlayedCount() {
+        return mTracks.getPlayedCount();
+    }
+
+    /**
+     * Fill the track table from the directories again. The tags and the played flags are kept
+     * for the tracks which are still there, the played flags are read from the shuffle history
+     * the first time.
+     */
+    private void rebuildTracks() {
+        long[] played;
+        if (mShuffleHistoryRead) {
+            played = new long[mTracks.getPlayedCount()];
+            int count = 0;
+            for (int id = 0; id < mTracks.size(); id++) {
+                if (mTracks.isPlayed(id)) {
+                    played[count++] = mTracks.getPathHash(id);
+                }
+            }
+
+            Arrays.sort(played);
+        } else {
+            played = mShuffleHistory.read();
+            mShuffleHistoryRead = true;
+        }
+
+        // The tags are kept by path, so no two tracks can swap their tags.
+        String[] directories = new String[mTracks.size()];
+        String[] names = new String[mTracks.size()];
+        String[] tags = new String[mTracks.size() * TagIndex.FACET_COUNT];
+        int taggedCount = 0;
+        for (int id = 0; id < mTracks.size(); id++) {
+            if (mTracks.isTagged(id)) {
+                directories[taggedCount] = mTracks.getDirectory(id);
+                names[taggedCount] = mTracks.getName(id);
+                for (int facet = 0; facet < TagIndex.FACET_COUNT; facet++) {
+                    tags[taggedCount * TagIndex.FACET_COUNT + facet] = mTracks.getTag(id, facet);
+                }
+
+                taggedCount++;
+            }
+        }
+
+        mTracks.clear();
+        for (Map.Entry<String, Directory> entry : mDirectories.entrySet()) {
+            addTracks(entry.getKey(), entry.getValue().mTracks);
+        }
+
+        if (taggedCount > 0) {
+            restoreTags(new LibrarySnapshot.TrackTags(taggedCount, directories, names, tags), 0,
+                    taggedCount);
+        }
+
+        if (played.length == 0) {
+            return;
+        }
+
+        long[] restored = new long[played.length];
+        int count = 0;
+        for (int id = 0; id < mTracks.size() && count < restored.length; id++) {
+            long hash = mTracks.getPathHash(id);
+            if (Arrays.binarySearch(played, hash) >= 0) {
+                mTracks.setPlayed(id);
+                restored[count++] = hash;
+            }
+        }
+
+        if (count < played.length) {
+            // Drop the hashes of the tracks which are gone.
+            mShuffleHistory.write(restored, count);
+        }
+    }
+
+    /**
+     * Set the saved tags of the loaded tracks which haven't been tagged since, one batch at a
+     * time, so songs can be picked in between.
+     */
+    private void restoreSavedTags(LibrarySnapshot.TrackTags tags) {
+        for (int start = 0; start < tags.mCount; start += RESTORE_TAGS_BATCH_SIZE) {
+            synchronized (this) {
+                restoreTags(tags, start, Math.min(start + RESTORE_TAGS_BATCH_SIZE, tags.mCount));
+            }
+        }
+    }
+
+    /**
+     * Set the tags of the tracks in the specified range which are still in the table and
+     * haven't been tagged since.
+     */
+    private void restoreTags(LibrarySnapshot.TrackTags tags, int start, int end) {
+        for (int i = start; i < end; i++) {
+            int id = mTracks.indexOf(tags.mDirectories[i], tags.mNames[i]);
+            if (id != -1 && !mTracks.isTagged(id)) {
+                int offset = i * TagIndex.FACET_COUNT;
+                mTracks.setTags(id, tags.mTags[offset + TagIndex.FACET_GENRE],
+                        tags.mTags[offset + TagIndex.FACET_ARTIST],
+                        tags.mTags[offset + TagIndex.FACET_DECADE]);
+            }
+        }
+    }
+
+    private void setTags(int id, SongMetadata metadata) {
+        mTracks.setTags(id, metadata.mGenre, metadata.mArtist,
+                RadioFilter.getDecade(metadata.mYear));
+    }
+
+    private synchronized int appendTracks(String path, String[] tracks) {
+        addTracks(path, tracks);
+
+        return mTracks.size();
+    }
+
+    private void addTracks(String path, String[] tracks) {
+        for (String name : tracks) {
+            addTrack(path, name);
+        }
+    }
+
+    /**
+     * Add the track with the weight of its statistics.
+     */
+    private void addTrack(String path, String name) {
+        int id = mTracks.add(path, name);
+        if (!mStats.isEmpty()) {
+            mTracks.setWeight(id, mStats.getWeight(mTracks.getPathHash(id)));
+        }
+    }
+
+    /**
+     * Count a logged play, unless the statistics haven't been loaded yet, in which case the
+     * play is counted when they replay the log.
+     */
+    private synchronized void countPlayback(File file, long hash, float completion) {
+        if (!mStatsLoaded) {
+            return;
+        }
+
+        mStats.record(hash, completion);
+        int id = mTracks.indexOf(file.getParent(), file.getName());
+        if (id != -1) {
+            mTracks.setWeight(id, mStats.getWeight(hash));
+        }
+    }
+
+    /**
+     * Load the aggregates of the play log and count the plays logged after them on the log
+     * executor, unless that has been started before. The plays counted before the task runs
+     * have been written before, so they are replayed, and the plays after it are counted.
+     */
+    private void loadStats() {
+        synchronized (this) {
+            if (mStatsLoading) {
+                return;
+            }
+
+            mStatsLoading = true;
+        }
+
+        executeOnLog(new Runnable() {
+            @Override
+            public void run() {
+                TrackStats stats = new TrackStats(mPlayLog.getAggregatesFile());
+                stats.load();
+                mPlayLog.replay(stats);
+                setStats(stats);
+            }
+        });
+    }
+
+    /**
+     * Set the weights of the loaded statistics.
+     */
+    private synchronized void setStats(TrackStats stats) {
+        mStats = stats;
+        mStatsLoaded = true;
+        if (stats.isEmpty()) {
+            return;
+        }
+
+        for (int id = 0; id < mTracks.size(); id++) {
+            int weight = stats.getWeight(mTracks.getPathHash(id));
+            if (weight != TrackTable.DEFAULT_WEIGHT) {
+                mTracks.setWeight(id, weight);
+            }
+        }
+    }
+
+    /**
+     * Run the task on the log executor. A play which ends while the player is being released,
+     * after the executor has been shut down, is neither logged nor counted.
+     */
+    private void executeOnLog(Runnable task) {
+        try {
+            mLogExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Remove the directory with its tracks and everything below it.
+     *
+     * @return true if the directory was known
+     */
+    private boolean removeDirectory(String path, Collection<String> removedDirectories) {
+        Directory directory = mDirectories.remove(path);
+        if (directory == null) {
+            return false;
+        }
+
+        for (String name : directory.mTracks) {
+            mTracks.remove(path, name);
+        }
+
+        String prefix = path + File.separator;
+        for (String name : directory.mSubDirectories) {
+            removeDirectory(prefix + name, removedDirectories);
+        }
+
+        if (removedDirectories != null) {
+            removedDirectories.add(path);
+        }
+
+        return true;
+    }
+
+    /**
+     * Collects the directories of a single refresh. The directories known from the previous
+     * refresh are only read while the walk runs, so they need no synchronization.
+     */
+    private final class RefreshSink implements ParallelMP3Walker.Sink {
+        private final Map<String, Directory> mKnown;
+        private final boolean mStreaming;
+        private final ScanListener mListener;
+        private final ConcurrentHashMap<String, Directory> mVisited = new ConcurrentHashMap<>();
+        private final AtomicBoolean mChanged = new AtomicBoolean();
+
+        RefreshSink(Map<String, Directory> known, boolean streaming, ScanListener listener) {
+            mKnown = known;
+            mStreaming = streaming;
+            mListener = listener;
+        }
+
+        @Override
+        public String[] getUnchangedSubDirectories(String path, long lastModified) {
+            Directory directory = mKnown.get(path);
+            if (directory == null || directory.mLastModified != lastModified) {
+                return null;
+            }
+
+            mVisited.put(path, directory);
+
+            return directory.mSubDirectories;
+        }
+
+        @Override
+        public void onDirectory(String path, long lastModified, String[] subDirectories,
+                                String[] tracks) {
+            mVisited.put(path, new Directory(lastModified, subDirectories, tracks));
+            mChanged.set(true);
+
+            if (mStreaming && tracks.length > 0) {
+                int trackCount = appendTracks(path, tracks);
+                if (mListener != null) {
+                    mListener.onTracksFound(trackCount);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the directories of a single update. The changed directory is always listed, new
+     * directories are walked and the other known directories are kept without walking into them.
+     */
+    private static final class UpdateSink implements ParallelMP3Walker.Sink {
+        private final Map<String, Directory> mKnown;
+        private final String mPath;
+        private final ConcurrentHashMap<String, Directory> mVisited = new ConcurrentHashMap<>();
+
+        UpdateSink(Map<String, Directory> known, String path) {
+            mKnown = known;
+            mPath = path;
+        }
+
+        @Override
+        public String[] getUnchangedSubDirectories(String path, long lastModified) {
+            Directory directory = mKnown.get(path);
+            if (directory == null || path.equals(mPath)) {
+                return null;
+            }
+
+            return EMPTY;
+        }
+
+        @Override
+        public void onDirectory(String path, long lastModified, String[] subDirectories,
+                                String[] tracks) {
+            mVisited.put(path, new Directory(lastModified, subDirectories, tracks));
+        }
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the {@link LibraryIndex} which is memory-mapped and read in place.
+ *
+ * <p>
+ * The snapshot consists of a header and fixed size records, so the n-th track is found by its
+ * offset without parsing anything before it. The directory records hold the directory path,
+ * the last modified time and the ranges of the directory's tracks and sub directories, the
+ * track records hold the directory, the file name and the IDs of the track's tags, and all
+ * strings are UTF-8 in a shared string pool at the end. Every distinct tag value is stored
+ * once, so the tags read for the radios survive a restart without reading the songs again.
+ * </p>
+ *
+ * <p>
+ * {@link #open(File)} only checks the header, which has a checksum of its own, so the first
+ * song can be picked right after the service has started. The checksum of the records is
+ * checked by {@link #verify()}, which reads the whole file and belongs on a background thread.
+ * Every record read is checked against the bounds of the file, so a corrupt record can't do
+ * more than return a file which doesn't exist.
+ * </p>
+ */
+final class LibrarySnapshot {
+    private static final int MAGIC = 0x4d504c49;
+    static final int VERSION = 3;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int DIRECTORY_COUNT_OFFSET = 8;
+    private static final int TRACK_COUNT_OFFSET = 12;
+    private static final int SUB_DIRECTORY_COUNT_OFFSET = 16;
+    private static final int TAG_VALUE_COUNT_OFFSET = 20;
+    private static final int STRINGS_LENGTH_OFFSET = 24;
+    private static final int BODY_CHECKSUM_OFFSET = 28;
+    private static final int HEADER_CHECKSUM_OFFSET = 32;
+    private static final int HEADER_SIZE = 36;
+
+    // int path offset, int path length, long last modified, int first track, int track count,
+    // int first sub directory, int sub directory count
+    private static final int DIRECTORY_RECORD_SIZE = 32;
+    // int directory, int name offset, int name length, int tag value ID by facet
+    private static final int TRACK_RECORD_SIZE = 12 + 4 * TagIndex.FACET_COUNT;
+    private static final int TRACK_TAGS_OFFSET = 12;
+    // int name offset, int name length
+    private static final int NAME_RECORD_SIZE = 8;
+
+    // The tag value ID of a tag the track doesn't have
+    private static final int NO_TAG = -1;
+    // The tag value IDs of a track whose tags haven't been read
+    private static final int UNTAGGED = -2;
+
+    private static final String[] EMPTY = new String[0];
+
+    private final ByteBuffer mBuffer;
+    private final int mDirectoryCount;
+    private final int mTrackCount;
+    private final int mSubDirectoryCount;
+    private final int mTagValueCount;
+    private final int mTracksOffset;
+    private final int mSubDirectoriesOffset;
+    private final int mTagValuesOffset;
+    private final int mStringsOffset;
+
+    private LibrarySnapshot(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException("Not a library snapshot");
+        }
+
+        if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(VERSION_OFFSET));
+        }
+
+        if (buffer.getInt(HEADER_CHECKSUM_OFFSET) != checksum(buffer, 0, HEADER_CHECKSUM_OFFSET)) {
+            throw new IOException("Corrupt snapshot header");
+        }
+
+        mDirectoryCount = buffer.getInt(DIRECTORY_COUNT_OFFSET);
+        mTrackCount = buffer.getInt(TRACK_COUNT_OFFSET);
+        mSubDirectoryCount = buffer.getInt(SUB_DIRECTORY_COUNT_OFFSET);
+        mTagValueCount = buffer.getInt(TAG_VALUE_COUNT_OFFSET);
+        long tracksOffset = HEADER_SIZE + (long) mDirectoryCount * DIRECTORY_RECORD_SIZE;
+        long subDirectoriesOffset = tracksOffset + (long) mTrackCount * TRACK_RECORD_SIZE;
+        long tagValuesOffset = subDirectoriesOffset
+                + (long) mSubDirectoryCount * NAME_RECORD_SIZE;
+        long stringsOffset = tagValuesOffset + (long) mTagValueCount * NAME_RECORD_SIZE;
+        if (mDirectoryCount < 0 || mTrackCount < 0 || mSubDirectoryCount < 0
+                || mTagValueCount < 0
+                || stringsOffset + buffer.getInt(STRINGS_LENGTH_OFFSET) != buffer.capacity()) {
+            throw new IOException("Truncated snapshot");
+        }
+
+        mTracksOffset = (int) tracksOffset;
+        mSubDirectoriesOffset = (int) subDirectoriesOffset;
+        mTagValuesOffset = (int) tagValuesOffset;
+        mStringsOffset = (int) stringsOffset;
+    }
+
+    /**
+     * Map the snapshot file and check its header.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws java.io.FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be mapped, is of another version or is corrupt
+     */
+    static LibrarySnapshot open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+
+            return new LibrarySnapshot(buffer);
+        }
+    }
+
+    /**
+     * Write the directories of the index as a snapshot, without any tags.
+     *
+     * @param file the snapshot file
+     * @param directories the directories of the index by their paths
+     * @throws IOException if the snapshot can't be written
+     */
+    static void write(File file, Map<String, LibraryIndex.Directory> directories)
+            throws IOException {
+        write(file, directories, null);
+    }
+
+    /**
+     * Write the directories of the index and the tags of their tracks as a snapshot. The
+     * snapshot is written to a temporary file first, synced and renamed over the snapshot file,
+     * so a crash while writing never leaves a truncated snapshot behind.
+     *
+     * @param file the snapshot file
+     * @param directories the directories of the index by their paths
+     * @param tracks the track table to take the tags from, or null to write no tags
+     * @throws IOException if the snapshot can't be written
+     */
+    static void write(File file, Map<String, LibraryIndex.Directory> directories,
+                      TrackTable tracks) throws IOException {
+        StringPool strings = new StringPool();
+        HashMap<String, Integer> tagValueIds = new HashMap<>();
+        ArrayList<String> tagValues = new ArrayList<>();
+        int trackCount = 0;
+        int subDirectoryCount = 0;
+        for (Map.Entry<String, LibraryIndex.Directory> entry : directories.entrySet()) {
+            trackCount += entry.getValue().mTracks.length;
+            subDirectoryCount += entry.getValue().mSubDirectories.length;
+        }
+
+        int directoryCount = directories.size();
+        ByteBuffer directoryRecords = ByteBuffer.allocate(directoryCount * DIRECTORY_RECORD_SIZE);
+        ByteBuffer trackRecords = ByteBuffer.allocate(trackCount * TRACK_RECORD_SIZE);
+        ByteBuffer subDirectoryRecords = ByteBuffer.allocate(subDirectoryCount * NAME_RECORD_SIZE);
+        int directoryId = 0;
+        int trackId = 0;
+        int subDirectoryId = 0;
+        for (Map.Entry<String, LibraryIndex.Directory> entry : directories.entrySet()) {
+            LibraryIndex.Directory directory = entry.getValue();
+            strings.putRecord(directoryRecords, entry.getKey());
+            directoryRecords.putLong(directory.mLastModified);
+            directoryRecords.putInt(trackId).putInt(directory.mTracks.length);
+            directoryRecords.putInt(subDirectoryId).putInt(directory.mSubDirectories.length);
+            for (String name : directory.mTracks) {
+                trackRecords.putInt(directoryId);
+                strings.putRecord(trackRecords, name);
+                int id = tracks != null ? tracks.indexOf(entry.getKey(), name) : -1;
+                for (int facet = 0; facet < TagIndex.FACET_COUNT; facet++) {
+                    if (id == -1 || !tracks.isTagged(id)) {
+                        trackRecords.putInt(UNTAGGED);
+                    } else {
+                        trackRecords.putInt(getTagValueId(tracks.getTag(id, facet), tagValueIds,
+                                tagValues));
+                    }
+                }
+
+                trackId++;
+            }
+
+            for (String name : directory.mSubDirectories) {
+                strings.putRecord(subDirectoryRecords, name);
+                subDirectoryId++;
+            }
+
+            directoryId++;
+        }
+
+        ByteBuffer tagValueRecords = ByteBuffer.allocate(tagValues.size() * NAME_RECORD_SIZE);
+        for (String value : tagValues) {
+            strings.putRecord(tagValueRecords, value);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC_OFFSET, MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        header.putInt(DIRECTORY_COUNT_OFFSET, directoryCount);
+        header.putInt(TRACK_COUNT_OFFSET, trackCount);
+        header.putInt(SUB_DIRECTORY_COUNT_OFFSET, subDirectoryCount);
+        header.putInt(TAG_VALUE_COUNT_OFFSET, tagValues.size());
+        header.putInt(STRINGS_LENGTH_OFFSET, strings.mLength);
+
+        CRC32 crc = new CRC32();
+        crc.update(directoryRecords.array());
+        crc.update(trackRecords.array());
+        crc.update(subDirectoryRecords.array());
+        crc.update(tagValueRecords.array());
+        crc.update(strings.mBytes, 0, strings.mLength);
+        header.putInt(BODY_CHECKSUM_OFFSET, (int) crc.getValue());
+        header.putInt(HEADER_CHECKSUM_OFFSET, checksum(header, 0, HEADER_CHECKSUM_OFFSET));
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(header.array());
+            out.write(directoryRecords.array());
+            out.write(trackRecords.array());
+            out.write(subDirectoryRecords.array());
+            out.write(tagValueRecords.array());
+            out.write(strings.mBytes, 0, strings.mLength);
+            out.getFD().sync();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Can't rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * @return the number of tracks in the snapshot
+     */
+    int getTrackCount() {
+        return mTrackCount;
+    }
+
+    /**
+     * @return the number of directories in the snapshot
+     */
+    int getDirectoryCount() {
+        return mDirectoryCount;
+    }
+
+    /**
+     * Get the specified track straight from the mapped file.
+     *
+     * @param id the track ID, from 0 to {@link #getTrackCount()} - 1
+     * @return the track's file, or null if the track record is corrupt
+     */
+    File getTrack(int id) {
+        if (id < 0 || id >= mTrackCount) {
+            throw new IndexOutOfBoundsException("Track " + id + ", count " + mTrackCount);
+        }
+
+        int track = mTracksOffset + id * TRACK_RECORD_SIZE;
+        int directory = mBuffer.getInt(track);
+        if (directory < 0 || directory >= mDirectoryCount) {
+            return null;
+        }
+
+        String path = getString(HEADER_SIZE + directory * DIRECTORY_RECORD_SIZE);
+        String name = getString(track + 4);
+
+        return path == null || name == null ? null : new File(path, name);
+    }
+
+    /**
+     * Get a randomly selected song file straight from the mapped file.
+     *
+     * @param random the random generator to pick with
+     * @return A randomly selected song file, or null if the snapshot has no tracks or the
+     * picked track record is corrupt
+     */
+    File pickRandomTrack(Random random) {
+        return mTrackCount == 0 ? null : getTrack(random.nextInt(mTrackCount));
+    }
+
+    /**
+     * Check the checksum of the records. This reads the whole file.
+     *
+     * @return true if the records are intact
+     */
+    boolean verify() {
+        return mBuffer.getInt(BODY_CHECKSUM_OFFSET)
+                == checksum(mBuffer, HEADER_SIZE, mBuffer.capacity() - HEADER_SIZE);
+    }
+
+    /**
+     * Read all directories of the snapshot. The snapshot should be verified first.
+     *
+     * @return the directories by their paths
+     * @throws IOException if a record is corrupt
+     */
+    Map<String, LibraryIndex.Directory> readDirectories() throws IOException {
+        Map<String, LibraryIndex.Directory> directories = new HashMap<>(mDirectoryCount * 2);
+        for (int i = 0; i < mDirectoryCount; i++) {
+            int record = HEADER_SIZE + i * DIRECTORY_RECORD_SIZE;
+            String path = getString(record);
+            long lastModified = mBuffer.getLong(record + 8);
+            String[] tracks = readNames(mBuffer.getInt(record + 16), mBuffer.getInt(record + 20),
+                    mTracksOffset + 4, TRACK_RECORD_SIZE, mTrackCount);
+            String[] subDirectories = readNames(mBuffer.getInt(record + 24),
+                    mBuffer.getInt(record + 28), mSubDirectoriesOffset, NAME_RECORD_SIZE,
+                    mSubDirectoryCount);
+            if (path == null || tracks == null || subDirectories == null) {
+                throw new IOException("Corrupt directory record " + i);
+            }
+
+            directories.put(path, new LibraryIndex.Directory(lastModified, subDirectories,
+                    tracks));
+        }
+
+        return directories;
+    }
+
+    /**
+     * The tags of the tracks which were tagged when the snapshot was written.
+     */
+    static final class TrackTags {
+        final int mCount;
+        final String[] mDirectories;
+        final String[] mNames;
+        // TagIndex.FACET_COUNT values per track, null for a tag the track doesn't have
+        final String[] mTags;
+
+        TrackTags(int count, String[] directories, String[] names, String[] tags) {
+            mCount = count;
+            mDirectories = directories;
+            mNames = names;
+            mTags = tags;
+        }
+    }
+
+    /**
+     * Read the tags of the tracks which were tagged when the snapshot was written. The
+     * snapshot should be verified first.
+     *
+     * @return the tags of the tagged tracks
+     * @throws IOException if a record is corrupt
+     */
+    TrackTags readTags() throws IOException {
+        String[] values = readNames(0, mTagValueCount, mTagValuesOffset, NAME_RECORD_SIZE,
+                mTagValueCount);
+        if (values == null) {
+            throw new IOException("Corrupt tag value records");
+        }
+
+        int count = 0;
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mBuffer.getInt(mTracksOffset + i * TRACK_RECORD_SIZE + TRACK_TAGS_OFFSET)
+                    != UNTAGGED) {
+                count++;
+            }
+        }
+
+        String[] directories = new String[count];
+        String[] names = new String[count];
+        String[] tags = new String[count * TagIndex.FACET_COUNT];
+        String path = null;
+        int pathDirectory = -1;
+        int tagged = 0;
+        for (int i = 0; i < mTrackCount && tagged < count; i++) {
+            int record = mTracksOffset + i * TRACK_RECORD_SIZE;
+            if (mBuffer.getInt(record + TRACK_TAGS_OFFSET) == UNTAGGED) {
+                continue;
+            }
+
+            int directory = mBuffer.getInt(record);
+            if (directory != pathDirectory) {
+                if (directory < 0 || directory >= mDirectoryCount) {
+                    throw new IOException("Corrupt track record " + i);
+                }
+
+                // The tracks of a directory are written one after another.
+                path = getString(HEADER_SIZE + directory * DIRECTORY_RECORD_SIZE);
+                pathDirectory = directory;
+            }
+
+            String name = getString(record + 4);
+            if (path == null || name == null) {
+                throw new IOException("Corrupt track record " + i);
+            }
+
+            for (int facet = 0; facet < TagIndex.FACET_COUNT; facet++) {
+                int value = mBuffer.getInt(record + TRACK_TAGS_OFFSET + facet * 4);
+                if (value < NO_TAG || value >= values.length) {
+                    throw new IOException("Corrupt track record " + i);
+                }
+
+                tags[tagged * TagIndex.FACET_COUNT + facet] = value == NO_TAG ? null
+                        : values[value];
+            }
+
+            directories[tagged] = path;
+            names[tagged] = name;
+            tagged++;
+        }
+
+        return new TrackTags(tagged, directories, names, tags);
+    }
+
+    /**
+     * @return the names of the specified range of records, or null if the range or a name is
+     * out of bounds
+     */
+    private String[] readNames(int first, int count, int offset, int recordSize, int limit) {
+        if (first < 0 || count < 0 || first > limit - count) {
+            return null;
+        }
+
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = getString(offset + (first + i) * recordSize);
+            if (names[i] == null) {
+                return null;
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * @param record the offset of the string's offset and length in the file
+     * @return the string, or null if it is out of the bounds of the string pool
+     */
+    private String getString(int record) {
+        int offset = mBuffer.getInt(record);
+        int length = mBuffer.getInt(record + 4);
+        int poolLength = mBuffer.capacity() - mStringsOffset;
+        if (offset < 0 || length < 0 || offset > poolLength - length) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        ByteBuffer string = mBuffer.duplicate();
+        string.position(mStringsOffset + offset);
+        string.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the ID of the tag value, which is added to the values if it is new, or
+     * {@link #NO_TAG} if there is no value
+     */
+    private static int getTagValueId(String value, HashMap<String, Integer> ids,
+                                     ArrayList<String> values) {
+        if (value == null) {
+            return NO_TAG;
+        }
+
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+
+        return id;
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer data = buffer.duplicate();
+        data.position(offset);
+        byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+        for (int remaining = length; remaining > 0; remaining -= chunk.length) {
+            int count = Math.min(remaining, chunk.length);
+            data.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The UTF-8 strings of a snapshot being written, each written once.
+     */
+    private static final class StringPool {
+        private final HashMap<String, Integer> mOffsets = new HashMap<>();
+        private byte[] mBytes = new byte[4096];
+        private int mLength;
+
+        /**
+         * Add the string to the pool and put its offset and length into the record.
+         */
+        void putRecord(ByteBuffer record, String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            Integer offset = mOffsets.get(string);
+            if (offset == null) {
+                offset = mLength;
+                if (mLength + bytes.length > mBytes.length) {
+                    byte[] grown = new byte[Math.max(mLength + bytes.length, mBytes.length * 2)];
+                    System.arraycopy(mBytes, 0, grown, 0, mLength);
+                    mBytes = grown;
+                }
+
+                System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+                mLength += bytes.length;
+                mOffsets.put(string, offset);
+            }
+
+            record.putInt(offset).putInt(bytes.length);
+        }
+    }
+}
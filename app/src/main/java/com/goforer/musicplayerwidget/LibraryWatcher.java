@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps the {@link LibraryIndex} up to date by watching the library directories for changes.
+ *
+ * <p>
+ * Every watched directory reports its changes, and only the changed directories are updated in
+ * the index, so adding or deleting songs costs O(changed files) instead of a walk of the whole
+ * storage. The number of watches is limited, because every watch uses one of the few inotify
+ * watch descriptors a user may hold. The most recently changed directories are watched, the
+ * cold ones are polled by {@link #poll()} which only compares their last modified times, and a
+ * polled directory found changed takes over the watch of the directory which has changed least
+ * recently.
+ * </p>
+ *
+ * <p>
+ * The changes reported by the watches are queued and coalesced, and all the work is done on the
+ * specified executor. {@link #start(File)}, {@link #stop()} and {@link #poll()} must be called
+ * on the same executor. The changes reported while the watcher is stopped, or once the executor
+ * has been shut down, are dropped.
+ * </p>
+ */
+class LibraryWatcher {
+    static final int DEFAULT_MAX_WATCHES = 1024;
+
+    /**
+     * A watch of a single directory.
+     */
+    interface Watch {
+        /**
+         * Stop watching and release the watch descriptor.
+         */
+        void stop();
+    }
+
+    /**
+     * Creates the watches.
+     */
+    interface WatchFactory {
+        /**
+         * Start watching the specified directory. The watch calls
+         * {@link LibraryWatcher#onDirectoryChanged(String)} with the directory path whenever an
+         * entry of the directory is created, deleted or moved, and when the directory itself is
+         * deleted or moved.
+         *
+         * @param path the directory path
+         * @param watcher the watcher to report the changes to
+         * @return the watch
+         */
+        Watch startWatching(String path, LibraryWatcher watcher);
+    }
+
+    /**
+     * Receives the index changes on the executor of the watcher.
+     */
+    interface Listener {
+        /**
+         * Called when the watcher has changed the index.
+         */
+        void onLibraryChanged();
+    }
+
+    private final LibraryIndex mIndex;
+    private final WatchFactory mFactory;
+    private final Executor mExecutor;
+    private final int mMaxWatches;
+    private final Listener mListener;
+
+    // The fields below are only accessed on the executor.
+    private File mRoot;
+    // The watched directories, the least recently changed first
+    private final LinkedHashMap<String, Watch> mWatches = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashSet<String> mColdDirectories = new LinkedHashSet<>();
+
+    // Guarded by itself
+    private final LinkedHashSet<String> mChangedDirectories = new LinkedHashSet<>();
+    private boolean mUpdateScheduled;
+    private boolean mAccepting;
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            updateChangedDirectories();
+        }
+    };
+
+    /**
+     * Create the watcher.
+     *
+     * @param index the index to keep up to date
+     * @param factory the factory to create the watches with
+     * @param executor the executor to update the index on
+     * @param maxWatches the maximum number of watched directories
+     * @param listener the listener to notify of the index changes
+     */
+    LibraryWatcher(LibraryIndex index, WatchFactory factory, Executor executor, int maxWatches,
+                   Listener listener) {
+        mIndex = index;
+        mFactory = factory;
+        mExecutor = executor;
+        mMaxWatches = maxWatches;
+        mListener = listener;
+    }
+
+    /**
+     * Start watching all directories of the index below the specified root. The index must have
+     * been refreshed with the root. If the watcher was started before, the watches are set up
+     * again.
+     *
+     * @param root the root of the library
+     */
+    void start(File root) {
+        stop();
+        mRoot = root;
+        synchronized (mChangedDirectories) {
+            mAccepting = true;
+        }
+
+        ArrayList<String> paths = mIndex.getDirectoriesByLastModified();
+        int watchCount = Math.min(paths.size(), mMaxWatches);
+        // The least recently modified directory is watched first, so it is the first to be polled.
+        for (int i = watchCount - 1; i >= 0; i--) {
+            String path = paths.get(i);
+            mWatches.put(path, mFactory.startWatching(path, this));
+        }
+
+        for (int i = watchCount; i < paths.size(); i++) {
+            mColdDirectories.add(paths.get(i));
+        }
+    }
+
+    /**
+     * Stop watching, for example when the storage is unmounted. The changes reported but not
+     * applied yet are dropped.
+     */
+    void stop() {
+        for (Watch watch : mWatches.values()) {
+            watch.stop();
+        }
+
+        mWatches.clear();
+        mColdDirectories.clear();
+        mRoot = null;
+        synchronized (mChangedDirectories) {
+            mAccepting = false;
+            mChangedDirectories.clear();
+        }
+    }
+
+    /**
+     * @return true if the watcher has been started and not stopped
+     */
+    boolean isWatching() {
+        return mRoot != null;
+    }
+
+    /**
+     * @return the number of watched directories
+     */
+    int getWatchCount() {
+        return mWatches.size();
+    }
+
+    /**
+     * @return the number of polled directories
+     */
+    int getColdDirectoryCount() {
+        return mColdDirectories.size();
+    }
+
+    /**
+     * Update the polled directories whose last modified time has changed.
+     *
+     * @return the number of changed directories
+     */
+    int poll() {
+        if (mRoot == null) {
+            return 0;
+        }
+
+        ArrayList<String> changed = new ArrayList<>();
+        for (String path : mColdDirectories) {
+            if (new File(path).lastModified() != mIndex.getLastModified(path)) {
+                changed.add(path);
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            update(changed);
+        }
+
+        return changed.size();
+    }
+
+    /**
+     * Report that the specified watched directory has changed. This may be called on any thread.
+     *
+     * @param path the directory path
+     */
+    void onDirectoryChanged(String path) {
+        synchronized (mChangedDirectories) {
+            if (!mAccepting) {
+                return;
+            }
+
+            mChangedDirectories.add(path);
+            if (mUpdateScheduled) {
+                return;
+            }
+
+            mUpdateScheduled = true;
+        }
+
+        try {
+            mExecutor.execute(mUpdate);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down before the watcher was stopped.
+            synchronized (mChangedDirectories) {
+                mAccepting = false;
+                mUpdateScheduled = false;
+                mChangedDirectories.clear();
+            }
+        }
+    }
+
+    private void updateChangedDirectories() {
+        ArrayList<String> paths;
+        synchronized (mChangedDirectories) {
+            mUpdateScheduled = false;
+            paths = new ArrayList<>(mChangedDirectories);
+            mChangedDirectories.clear();
+        }
+
+        if (mRoot != null && !paths.isEmpty()) {
+            update(paths);
+        }
+    }
+
+    private void update(ArrayList<String> paths) {
+        ArrayList<String> added = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+        boolean changed = false;
+        for (String path : paths) {
+            changed |= mIndex.update(mRoot, new File(path), added, removed);
+        }
+
+        for (String path : removed) {
+            Watch watch = mWatches.remove(path);
+            if (watch != null) {
+                watch.stop();
+            } else {
+                mColdDirectories.remove(path);
+            }
+        }
+
+        // The changed and the added directories are the most likely to change again.
+        for (String path : paths) {
+            if (mWatches.get(path) == null && mIndex.getLastModified(path) != -1) {
+                watch(path);
+            }
+        }
+
+        for (String path : added) {
+            watch(path);
+        }
+
+        if (changed) {
+            mListener.onLibraryChanged();
+        }
+    }
+
+    /**
+     * Watch the directory, and poll the least recently changed watched directory instead if
+     * there are no watches left.
+     */
+    private void watch(String path) {
+        mColdDirectories.remove(path);
+        if (mWatches.size() >= mMaxWatches) {
+            Iterator<Map.Entry<String, Watch>> eldest = mWatches.entrySet().iterator();
+            if (!eldest.hasNext()) {
+                mColdDirectories.add(path);
+                return;
+            }
+
+            Map.Entry<String, Watch> entry = eldest.next();
+            entry.getValue().stop();
+            mColdDirectories.add(entry.getKey());
+            eldest.remove();
+        }
+
+        mWatches.put(path, mFactory.startWatching(path, this));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator to hand out the mp3 files of a directory tree one at a time.
+ *
+ * <p>
+ * The tree is walked with an explicit stack of pending directories instead of recursion, so a
+ * deep tree can't overflow the thread stack, and only the listing of the current directory is
+ * kept in memory. The memory use depends on the shape of the tree but never on the number of
+ * mp3 files in it. Unreadable directories are skipped and {@link DirectoryLoopGuard} keeps the
+ * walk out of link loops.
+ * </p>
+ *
+ * <p>
+ * Besides {@link #hasNext()} and {@link #next()}, {@link #moveToNext()} together with
+ * {@link #getDirectory()} and {@link #getName()} hand out each mp3 file as its directory and
+ * name instead of a File. The walk itself still creates a File for every directory entry,
+ * because the {@link File#isDirectory()} stat is the only way to tell a sub directory from a
+ * file by its name. Use either of both styles on one iterator, but don't mix them.
+ * </p>
+ */
+class MP3FileIterator implements Iterator<File> {
+    private final DirectoryLoopGuard mGuard;
+
+    private final ArrayDeque<String> mPendingDirectories = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mPendingDepths = new ArrayDeque<>();
+
+    private String mDirectory;
+    private int mDepth;
+    private String[] mNames;
+    private int mPosition;
+    private String mName;
+
+    private boolean mLookedAhead;
+    private boolean mHasNext;
+
+    /**
+     * Create the iterator over all mp3 files below the specified directory.
+     *
+     * @param root the directory to walk
+     */
+    MP3FileIterator(File root) {
+        mGuard = new DirectoryLoopGuard(root);
+        mPendingDirectories.push(root.getPath());
+        mPendingDepths.push(0);
+    }
+
+    /**
+     * Move to the next mp3 file.
+     *
+     * @return true if there is a next file, false if the walk is finished
+     */
+    boolean moveToNext() {
+        while (true) {
+            if (mNames != null) {
+                while (mPosition < mNames.length) {
+                    String name = mNames[mPosition++];
+                    File file = new File(mDirectory, name);
+                    if (file.isDirectory()) {
+                        if (name.charAt(0) != '.' && mGuard.enter(file.getPath(), mDepth + 1)) {
+                            mPendingDirectories.push(file.getPath());
+                            mPendingDepths.push(mDepth + 1);
+                        }
+                    } else if (name.endsWith(ParallelMP3Walker.MP3_EXTENSION)) {
+                        mName = name;
+                        return true;
+                    }
+                }
+
+                mNames = null;
+            }
+
+            if (mPendingDirectories.isEmpty()) {
+                mDirectory = null;
+                mName = null;
+                return false;
+            }
+
+            mDirectory = mPendingDirectories.pop();
+            mDepth = mPendingDepths.pop();
+            mNames = new File(mDirectory).list();
+            mPosition = 0;
+        }
+    }
+
+    /**
+     * @return the directory path of the current file
+     */
+    String getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return the name of the current file
+     */
+    String getName() {
+        return mName;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!mLookedAhead) {
+            mHasNext = moveToNext();
+            mLookedAhead = true;
+        }
+
+        return mHasNext;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        mLookedAhead = false;
+
+        return new File(mDirectory, mName);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
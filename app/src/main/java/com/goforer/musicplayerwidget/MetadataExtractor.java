@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the tag metadata from a song file.
+ */
+interface MetadataExtractor {
+    /**
+     * Read the metadata of the specified song file.
+     *
+     * @param file the song file
+     * @return the metadata, {@link SongMetadata#EMPTY} if the file has no tags
+     * @throws IOException if the file can't be read
+     */
+    SongMetadata extract(File file) throws IOException;
+
+    /**
+     * Release the resources held by the extractor.
+     */
+    void close();
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Service to get the tag metadata of the songs.
+ *
+ * <p>
+ * A lookup goes through a bounded in-memory LRU cache first, then through the persistent
+ * {@link MetadataStore}, and only if both miss the file is parsed by the
+ * {@link MetadataExtractor}. A cached entry is only used while the file's size and last modified
+ * time are the same as when it was extracted, so a retagged file is parsed again.
+ * </p>
+ *
+ * <p>
+ * Only the cache is guarded by the service's lock. The store and the extractor are used without
+ * it, so the playing song's lookup doesn't wait behind a file being parsed for the tags on
+ * another thread. Two threads missing the same file at once both parse it.
+ * </p>
+ */
+class MetadataService {
+    static final int DEFAULT_CACHE_SIZE = 64;
+
+    private final MetadataStore mStore;
+    private final MetadataExtractor mExtractor;
+    private final LinkedHashMap<String, CacheEntry> mCache;
+    private final Histogram mExtractionTime =
+            MetricsRegistry.getDefault().histogram(MetricsRegistry.METADATA_EXTRACTION);
+
+    private int mHits;
+    private int mStoreHits;
+    private int mMisses;
+
+    private static final class CacheEntry {
+        final long mSize;
+        final long mLastModified;
+        final SongMetadata mMetadata;
+
+        CacheEntry(long size, long lastModified, SongMetadata metadata) {
+            mSize = size;
+            mLastModified = lastModified;
+            mMetadata = metadata;
+        }
+    }
+
+    /**
+     * Create the service.
+     *
+     * @param store the persistent store behind the in-memory cache
+     * @param extractor the extractor to parse the files the store doesn't know
+     * @param cacheSize the maximum number of entries kept in memory
+     */
+    MetadataService(MetadataStore store, MetadataExtractor extractor, final int cacheSize) {
+        mStore = store;
+        mExtractor = extractor;
+        mCache = new LinkedHashMap<String, CacheEntry>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Get the metadata of the specified song file.
+     *
+     * @param file the song file
+     * @return the metadata, {@link SongMetadata#EMPTY} if the file has no tags or can't be read
+     */
+    SongMetadata get(File file) {
+        String path = file.getPath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (this) {
+            CacheEntry entry = mCache.get(path);
+            if (entry != null && entry.mSize == size && entry.mLastModified == lastModified) {
+                mHits++;
+                return entry.mMetadata;
+            }
+        }
+
+        SongMetadata metadata = mStore.get(path, size, lastModified);
+        boolean stored = metadata != null;
+        if (!stored) {
+            long start = System.nanoTime();
+            try {
+                metadata = mExtractor.extract(file);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    mMisses++;
+                }
+
+                return SongMetadata.EMPTY;
+            } finally {
+                mExtractionTime.record((System.nanoTime() - start) / 1000);
+            }
+
+            mStore.put(path, size, lastModified, metadata);
+        }
+
+        synchronized (this) {
+            if (stored) {
+                mStoreHits++;
+            } else {
+                mMisses++;
+            }
+
+            mCache.put(path, new CacheEntry(size, lastModified, metadata));
+        }
+
+        return metadata;
+    }
+
+    /**
+     * @return the cache statistics for logging
+     */
+    synchronized String getStats() {
+        return "cache hits=" + mHits + ", store hits=" + mStoreHits + ", misses=" + mMisses
+                + ", cached=" + mCache.size();
+    }
+
+    /**
+     * Release the extractor and close the store. No lookup may be running or follow.
+     */
+    synchronized void close() {
+        mCache.clear();
+        mExtractor.close();
+        mStore.close();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+/**
+ * Persistent store of the song metadata which has been extracted before.
+ */
+interface MetadataStore {
+    /**
+     * Get the stored metadata of the specified song.
+     *
+     * @param path the song's file path
+     * @param size the song's current file size
+     * @param lastModified the song's current last modified time
+     * @return the metadata, or null if it isn't stored or the file has changed since
+     */
+    SongMetadata get(String path, long size, long lastModified);
+
+    /**
+     * Store the metadata of the specified song.
+     *
+     * @param path the song's file path
+     * @param size the song's file size
+     * @param lastModified the song's last modified time
+     * @param metadata the metadata to store
+     */
+    void put(String path, long size, long lastModified, SongMetadata metadata);
+
+    /**
+     * Close the store.
+     */
+    void close();
+}
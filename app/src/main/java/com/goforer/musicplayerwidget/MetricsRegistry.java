@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the playback metrics, the latency histograms and the event counters.
+ *
+ * <p>
+ * The metrics are created on first use and never removed, and the callers keep the returned
+ * {@link Histogram} or counter, so recording doesn't even look the metric up. The registry is
+ * lock-free and the process shares {@link #getDefault()}. The latencies are recorded in
+ * microseconds and reported in milliseconds, by {@link #dump(PrintWriter)} for
+ * {@code dumpsys activity service} and by {@link #appendCsv(File, long)} for offline analysis.
+ * </p>
+ */
+final class MetricsRegistry {
+    static final String SCAN = "library_scan";
+    static final String POLL = "library_poll";
+    static final String METADATA_EXTRACTION = "metadata_extraction";
+    static final String PREPARE = "prepare";
+    static final String TAP_TO_PLAY = "tap_to_play";
+    static final String SONG_GAP = "song_gap";
+
+    static final String PLAYER_ERRORS = "player_errors";
+    static final String NEXT_SONG_ERRORS = "next_song_errors";
+    static final String MISSING_FILE_SKIPS = "missing_file_skips";
+    static final String ILLEGAL_TRANSITIONS = "illegal_transitions";
+    static final String DROPPED_COMMANDS = "dropped_commands";
+
+    static final String CSV_HEADER = "time,metric,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms";
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry shared by the process
+     */
+    static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @param name the name of the histogram
+     * @return the histogram, created if it doesn't exist yet
+     */
+    Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @param name the name of the counter
+     * @return the counter, created if it doesn't exist yet
+     */
+    AtomicLong counter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Print the percentiles of all histograms and the values of all counters.
+     *
+     * @param writer the writer to print to
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Latencies (ms):");
+        for (String name : sorted(mHistograms)) {
+            Histogram histogram = mHistograms.get(name);
+            writer.println(String.format(Locale.US,
+                    "  %-20s count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f", name,
+                    histogram.getCount(), histogram.getMean() / 1000,
+                    toMillis(histogram.getPercentile(50)), toMillis(histogram.getPercentile(90)),
+                    toMillis(histogram.getPercentile(99)), toMillis(histogram.getMax())));
+        }
+
+        writer.println("Counters:");
+        for (String name : sorted(mCounters)) {
+            writer.println("  " + name + "=" + mCounters.get(name).get());
+        }
+    }
+
+    /**
+     * Append a row per metric to the CSV file, with a header if the file is new. The values are
+     * cumulative since the process has started.
+     *
+     * @param file the CSV file
+     * @param time the time of the rows in ms since the epoch
+     * @throws IOException if the file can't be written
+     */
+    void appendCsv(File file, long time) throws IOException {
+        boolean created = !file.exists();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
+            if (created) {
+                writer.println(CSV_HEADER);
+            }
+
+            for (String name : sorted(mHistograms)) {
+                Histogram histogram = mHistograms.get(name);
+                writer.println(String.format(Locale.US, "%d,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f", time,
+                        name, histogram.getCount(), histogram.getMean() / 1000,
+                        toMillis(histogram.getPercentile(50)),
+                        toMillis(histogram.getPercentile(90)),
+                        toMillis(histogram.getPercentile(99)), toMillis(histogram.getMax())));
+            }
+
+            for (String name : sorted(mCounters)) {
+                writer.println(time + "," + name + "," + mCounters.get(name).get() + ",,,,,");
+            }
+
+            if (writer.checkError()) {
+                throw new IOException("Can't write " + file);
+            }
+        }
+    }
+
+    private static ArrayList<String> sorted(Map<String, ?> metrics) {
+        ArrayList<String> names = new ArrayList<>(metrics.keySet());
+        Collections.sort(names);
+
+        return names;
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory walker to find the mp3 files in parallel on a work-stealing {@link ForkJoinPool}.
+ *
+ * <p>
+ * Every directory is a task of its own, so idle workers steal the sub directories of a busy
+ * one. A directory is read with a single {@link File#list()} call which returns the bare names,
+ * the hidden and the mp3 checks are done on the name and the only system call per entry is the
+ * {@link File#isDirectory()} stat. Every listed directory is reported to one shared
+ * {@link Sink}. Sub directories are only reported if {@link DirectoryLoopGuard} lets the walk
+ * enter them, so the sink never caches a link loop either.
+ * </p>
+ */
+class ParallelMP3Walker {
+    static final String MP3_EXTENSION = ".mp3";
+
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * Receives the listed directories. The methods are called from several worker threads at the
+     * same time, so the implementation must be thread-safe.
+     */
+    interface Sink {
+        /**
+         * Give the sink the chance to skip listing a directory which hasn't changed.
+         *
+         * @param path the directory path
+         * @param lastModified the directory's last modified time
+         * @return the cached sub directory names to walk into, or null to list the directory
+         */
+        String[] getUnchangedSubDirectories(String path, long lastModified);
+
+        /**
+         * Called once for every listed directory.
+         *
+         * @param path the directory path
+         * @param lastModified the directory's last modified time
+         * @param subDirectories the names of the visible sub directories
+         * @param tracks the names of the mp3 files
+         */
+        void onDirectory(String path, long lastModified, String[] subDirectories,
+                         String[] tracks);
+    }
+
+    /**
+     * The statistics of a single walk.
+     */
+    static final class Stats {
+        final long mDirectories;
+        final long mEntries;
+        final long mTracks;
+        final long mElapsedNanos;
+
+        Stats(long directories, long entries, long tracks, long elapsedNanos) {
+            mDirectories = directories;
+            mEntries = entries;
+            mTracks = tracks;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the number of directory entries examined per second
+         */
+        double getFilesPerSecond() {
+            if (mElapsedNanos <= 0) {
+                return 0;
+            }
+
+            return mEntries * (double) TimeUnit.SECONDS.toNanos(1) / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mDirectories + " directories, " + mEntries + " entries, " + mTracks
+                    + " tracks in " + TimeUnit.NANOSECONDS.toMillis(mElapsedNanos) + " ms ("
+                    + Math.round(getFilesPerSecond()) + " files/s)";
+        }
+    }
+
+    private final ForkJoinPool mPool;
+
+    private final AtomicLong mDirectories = new AtomicLong();
+    private final AtomicLong mEntries = new AtomicLong();
+    private final AtomicLong mTracks = new AtomicLong();
+
+    /**
+     * Create the walker which runs on the specified pool.
+     *
+     * @param pool the pool to run the directory tasks on
+     */
+    ParallelMP3Walker(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Create the walker with a pool of its own, one worker per available processor.
+     */
+    ParallelMP3Walker() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Walk the specified directory and report every directory to the sink. Only one walk can
+     * run at a time.
+     *
+     * @param root the directory to walk
+     * @param sink the sink to report the directories to
+     * @return the statistics of the walk
+     */
+    Stats walk(File root, Sink sink) {
+        return walk(root, root, sink);
+    }
+
+    /**
+     * Walk the specified directory below the root and report every directory to the sink. The
+     * walk is guarded against loops as if it had started at the root. Only one walk can run at a
+     * time.
+     *
+     * @param root the root of the whole tree
+     * @param start the directory to walk, the root or a directory below it
+     * @param sink the sink to report the directories to
+     * @return the statistics of the walk
+     */
+    synchronized Stats walk(File root, File start, Sink sink) {
+        mDirectories.set(0);
+        mEntries.set(0);
+        mTracks.set(0);
+
+        long startTime = System.nanoTime();
+        DirectoryLoopGuard guard = new DirectoryLoopGuard(root);
+        String path = start.getPath();
+        int depth = getDepth(root.getPath(), path);
+        if (depth == 0 || (depth > 0 && start.getName().charAt(0) != '.'
+                && guard.enter(path, depth))) {
+            mPool.invoke(new DirectoryTask(path, depth, sink, guard));
+        }
+
+        return new Stats(mDirectories.get(), mEntries.get(), mTracks.get(),
+                System.nanoTime() - startTime);
+    }
+
+    /**
+     * @return the number of directories between the root and the path, or -1 if the path isn't
+     * below the root
+     */
+    private static int getDepth(String root, String path) {
+        if (path.equals(root)) {
+            return 0;
+        }
+
+        if (!path.startsWith(root + File.separator)) {
+            return -1;
+        }
+
+        int depth = 0;
+        for (int i = root.length(); i < path.length(); i++) {
+            if (path.charAt(i) == File.separatorChar) {
+                depth++;
+            }
+        }
+
+        return depth;
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String mPath;
+        private final int mDepth;
+        private final Sink mSink;
+        private final DirectoryLoopGuard mGuard;
+
+        DirectoryTask(String path, int depth, Sink sink, DirectoryLoopGuard guard) {
+            mPath = path;
+            mDepth = depth;
+            mSink = sink;
+            mGuard = guard;
+        }
+
+        @Override
+        protected void compute() {
+            File dir = new File(mPath);
+            long lastModified = dir.lastModified();
+            String[] subDirectories = mSink.getUnchangedSubDirectories(mPath, lastModified);
+            if (subDirectories == null) {
+                subDirectories = list(dir, lastModified);
+                if (subDirectories == null) {
+                    return;
+                }
+            }
+
+            mDirectories.incrementAndGet();
+            if (subDirectories.length == 0) {
+                return;
+            }
+
+            ArrayList<DirectoryTask> tasks = new ArrayList<>(subDirectories.length);
+            for (String name : subDirectories) {
+                tasks.add(new DirectoryTask(mPath + File.separator + name, mDepth + 1, mSink,
+                        mGuard));
+            }
+
+            invokeAll(tasks);
+        }
+
+        private String[] list(File dir, long lastModified) {
+            String[] names = dir.list();
+            if (names == null) {
+                return null;
+            }
+
+            int subDirectoryCount = 0;
+            int trackCount = 0;
+            boolean[] directories = new boolean[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                File file = new File(dir, name);
+                if (file.isDirectory()) {
+                    if (name.charAt(0) != '.' && mGuard.enter(file.getPath(), mDepth + 1)) {
+                        directories[i] = true;
+                        subDirectoryCount++;
+                    } else {
+                        names[i] = null;
+                    }
+                } else if (name.endsWith(MP3_EXTENSION)) {
+                    trackCount++;
+                } else {
+                    names[i] = null;
+                }
+            }
+
+            String[] subDirectories = subDirectoryCount == 0 ? EMPTY
+                    : new String[subDirectoryCount];
+            String[] tracks = trackCount == 0 ? EMPTY : new String[trackCount];
+            subDirectoryCount = 0;
+            trackCount = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (directories[i]) {
+                    subDirectories[subDirectoryCount++] = names[i];
+                } else if (names[i] != null) {
+                    tracks[trackCount++] = names[i];
+                }
+            }
+
+            mEntries.addAndGet(names.length);
+            mTracks.addAndGet(trackCount);
+            mSink.onDirectory(mPath, lastModified, subDirectories, tracks);
+
+            return subDirectories;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the plays, which is compacted into the {@link TrackStats} aggregates.
+ *
+ * <p>
+ * Every play is a fixed size record of the time, the 64-bit path hash of the track, the
+ * duration and the part heard, with a checksum of its own. The caller only encodes the record,
+ * the write runs on the executor, so the playback thread never waits for the storage. The
+ * records are appended to numbered segment files. A segment is sealed once it is full, when
+ * the log is compacted and when the process ends, and a new process never appends to an old
+ * segment, so only the end of a segment can be torn by a crash. Reading a segment stops at the
+ * first record whose checksum doesn't match.
+ * </p>
+ *
+ * <p>
+ * {@link #compact()} folds the sealed segments into the aggregates file on the executor, and
+ * only deletes them after the aggregates, which remember the last segment folded into them,
+ * have been replaced atomically. A crash in between therefore neither loses nor double counts
+ * a play. The aggregates plus the segments after the last folded one are the complete history,
+ * which {@link #replay(TrackStats)} loads at startup.
+ * </p>
+ */
+class PlayLog {
+    static final String AGGREGATES_FILE_NAME = "aggregates";
+    // long time, long path hash, int duration in ms, float completion, int checksum
+    static final int RECORD_SIZE = 28;
+    // 28 KB segments
+    static final int SEGMENT_RECORDS = 1024;
+
+    private static final String SEGMENT_PREFIX = "plays-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int CHECKSUM_OFFSET = 24;
+
+    /**
+     * Receives the plays of the log.
+     */
+    interface Visitor {
+        /**
+         * @param time the wall clock time of the end of the play in ms
+         * @param hash the path hash of the track
+         * @param duration the duration of the song in ms, 0 if unknown
+         * @param completion the part of the song which was heard, from 0 to 1
+         */
+        void onPlay(long time, long hash, int duration, float completion);
+    }
+
+    private final File mDirectory;
+    private final Executor mExecutor;
+
+    // The fields below are guarded by the log.
+    private FileOutputStream mOut;
+    private int mSegmentRecords;
+    // The number of the newest segment which exists or has existed, -1 before it is known
+    private long mLastSegment = -1;
+
+    /**
+     * Create the log in the specified directory.
+     *
+     * @param directory the directory of the segments and the aggregates
+     * @param executor the executor to write and compact on, which must run the tasks one after
+     *                 another
+     */
+    PlayLog(File directory, Executor executor) {
+        mDirectory = directory;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return the file of the aggregates the segments are compacted into
+     */
+    File getAggregatesFile() {
+        return new File(mDirectory, AGGREGATES_FILE_NAME);
+    }
+
+    /**
+     * Append a play. The record is written on the executor.
+     *
+     * @param time the wall clock time of the end of the play in ms
+     * @param hash the path hash of the track, see {@link TrackTable#getPathHash(String)}
+     * @param duration the duration of the song in ms, 0 if unknown
+     * @param completion the part of the song which was heard, from 0 to 1
+     */
+    void append(long time, long hash, int duration, float completion) {
+        final byte[] record = encode(time, hash, duration, completion);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(record);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fold the sealed segments into the aggregates and delete them. This runs on the executor.
+     */
+    void compact() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compactSegments();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Seal the current segment. This runs on the executor, after the plays appended before.
+     */
+    void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                seal();
+            }
+        });
+    }
+
+    /**
+     * Count the plays of the segments which haven't been folded into the statistics yet.
+     *
+     * @param stats the statistics loaded from the aggregates file
+     */
+    synchronized void replay(final TrackStats stats) {
+        read(stats.getCompactedSegment(), Long.MAX_VALUE, new Visitor() {
+            @Override
+            public void onPlay(long time, long hash, int duration, float completion) {
+                stats.record(hash, completion);
+            }
+        });
+    }
+
+    /**
+     * Visit the plays of the segments in the specified range in the order they were appended.
+     *
+     * @param after the number of the segment after which to start
+     * @param last the number of the last segment to visit
+     * @param visitor the visitor
+     * @return the number of the last segment visited, or after if there was none
+     */
+    synchronized long read(long after, long last, Visitor visitor) {
+        long visited = after;
+        for (long segment : listSegments()) {
+            if (segment > after && segment <= last) {
+                readSegment(getSegmentFile(segment), visitor);
+                visited = segment;
+            }
+        }
+
+        return visited;
+    }
+
+    /**
+     * Run the task on the executor. A play which ends while the player is being released, after
+     * the executor has been shut down, is dropped like a play torn by a crash.
+     */
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void write(byte[] record) throws IOException {
+        if (mOut == null) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Can't create " + mDirectory);
+            }
+
+            mOut = new FileOutputStream(getSegmentFile(nextSegment()));
+            mSegmentRecords = 0;
+        }
+
+        mOut.write(record);
+        if (++mSegmentRecords == SEGMENT_RECORDS) {
+            seal();
+        }
+    }
+
+    private synchronized void seal() {
+        if (mOut == null) {
+            return;
+        }
+
+        try {
+            mOut.getFD().sync();
+            mOut.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mOut = null;
+    }
+
+    private synchronized void compactSegments() throws IOException {
+        seal();
+        final TrackStats aggregates = new TrackStats(getAggregatesFile());
+        aggregates.load();
+        long compacted = aggregates.getCompactedSegment();
+        long last = read(compacted, Long.MAX_VALUE, new Visitor() {
+            @Override
+            public void onPlay(long time, long hash, int duration, float completion) {
+                aggregates.record(hash, completion);
+            }
+        });
+
+        if (last > compacted) {
+            aggregates.setCompactedSegment(last);
+            aggregates.save();
+        }
+
+        // The segments folded before are deleted too, in case a crash left them behind.
+        for (long segment : listSegments()) {
+            if (segment <= last && !getSegmentFile(segment).delete()) {
+                throw new IOException("Can't delete " + getSegmentFile(segment));
+            }
+        }
+    }
+
+    /**
+     * @return the number of a new segment, after all segments which exist or have been
+     * compacted
+     */
+    private long nextSegment() {
+        if (mLastSegment == -1) {
+            TrackStats aggregates = new TrackStats(getAggregatesFile());
+            aggregates.load();
+            mLastSegment = aggregates.getCompactedSegment();
+            long[] segments = listSegments();
+            if (segments.length > 0) {
+                mLastSegment = Math.max(mLastSegment, segments[segments.length - 1]);
+            }
+        }
+
+        return ++mLastSegment;
+    }
+
+    /**
+     * @return the numbers of the segment files in ascending order
+     */
+    private long[] listSegments() {
+        String[] names = mDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] segments = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                segments[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // Not a segment of the log.
+            }
+        }
+
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+
+        return segments;
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private static void readSegment(File file, Visitor visitor) {
+        byte[] bytes = new byte[RECORD_SIZE];
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        try (InputStream in = new FileInputStream(file)) {
+            while (readFully(in, bytes)) {
+                if (record.getInt(CHECKSUM_OFFSET) != checksum(bytes)) {
+                    // A torn or corrupt record, nothing after it can be trusted.
+                    return;
+                }
+
+                visitor.onPlay(record.getLong(0), record.getLong(8), record.getInt(16),
+                        record.getFloat(20));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if the buffer was filled, false at the end of the stream or a partial record
+     */
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                return false;
+            }
+
+            length += read;
+        }
+
+        return true;
+    }
+
+    static byte[] encode(long time, long hash, int duration, float completion) {
+        byte[] bytes = new byte[RECORD_SIZE];
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        record.putLong(time).putLong(hash).putInt(duration).putFloat(completion);
+        record.putInt(CHECKSUM_OFFSET, checksum(bytes));
+
+        return bytes;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CHECKSUM_OFFSET);
+
+        return (int) crc.getValue();
+    }
+}
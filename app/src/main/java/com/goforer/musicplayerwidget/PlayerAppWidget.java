@@ -16,12 +16,11 @@
 
 package com.goforer.musicplayerwidget;
 
-import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
+import android.os.Trace;
 import android.widget.RemoteViews;
 
 /**
@@ -32,86 +31,30 @@ public class PlayerAppWidget extends AppWidgetProvider {
     public static final int PLAYER_STATE_PAUSE = 10001;
     public static final int PLAYER_STATE_STOP = 10002;
 
-    public static final String ACTION_STATE_CHANGE
-            = "com.goforer.musicplayerwidget.action.STATE_CHANGE";
-    public static final String ACTION_TITLE_CHANGE
-            = "com.goforer.musicplayerwidget.action.TITLE_CHANGE";
-
-    public static final String EXTRA_PLAYER_STATE
-            = "com.goforer.musicplayerwidget.extra:control_state";
-    public static final String EXTRA_SONG_FILE_NAME
-            = "com.goforer.musicplayerwidget.extra:file_name";
-    public static final String EXTRA_SONG_ALBUM_TITLE
-            = "com.goforer.musicplayerwidget.extra:album_title";
-
-    private static final int INTENT_FLAGS = 0;
-    private static final int REQUEST_CODE = 0;
-
     private static int[] mAppWidgetIds;
-    private static RemoteViews mViews;
     private static AppWidgetManager mAppWidgetManager;
+    private static WidgetRenderer mRenderer;
+    // The state all widgets show, it is rendered into fresh views on every update.
+    private static WidgetState mState = WidgetState.INITIAL;
+    // The state last sent to all widgets, or null if they haven't been fully updated yet
+    private static WidgetState mPublishedState;
 
     static void updateAppWidget(Context context, AppWidgetManager appWidgetManager,
-                                int appWidgetId) {
-        // Construct the RemoteViews object
-        mViews = new RemoteViews(context.getPackageName(), R.layout.player_app_widget);
-
+                                int[] appWidgetIds) {
         mAppWidgetManager = appWidgetManager;
 
-        Intent playIntent = new Intent(PlayerService.ACTION_PLAY);
-        Intent pauseIntent = new Intent(PlayerService.ACTION_PAUSE);
-        Intent stopIntent = new Intent(PlayerService.ACTION_STOP);
-
-        PendingIntent playPendingIntent = PendingIntent.getService(
-                context, REQUEST_CODE, playIntent, INTENT_FLAGS);
-        PendingIntent pausePendingIntent = PendingIntent.getService(
-                context, REQUEST_CODE, pauseIntent, INTENT_FLAGS);
-        PendingIntent stopPendingIntent = PendingIntent.getService(
-                context, REQUEST_CODE, stopIntent, INTENT_FLAGS);
-
-        mViews.setOnClickPendingIntent(
-                R.id.btn_play, playPendingIntent);
-        mViews.setOnClickPendingIntent(
-                R.id.btn_pause, pausePendingIntent);
-        mViews.setOnClickPendingIntent(
-                R.id.btn_stop, stopPendingIntent);
-
-        // Instruct the widget manager to update the widget
-        appWidgetManager.updateAppWidget(appWidgetId, mViews);
+        // Instruct the widget manager to update all the widgets at once
+        appWidgetManager.updateAppWidget(appWidgetIds, getRenderer(context).render(mState));
     }
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-        mAppWidgetIds = appWidgetIds;
+        // The specified widgets may only be the new ones, the partial updates go to all of them.
+        mAppWidgetIds = appWidgetManager.getAppWidgetIds(new ComponentName(context,
+                PlayerAppWidget.class));
         // There may be multiple widgets active, so update all of them
-        for (int appWidgetId : appWidgetIds) {
-            updateAppWidget(context, appWidgetManager, appWidgetId);
-        }
-    }
-
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        final String action = intent.getAction();
-
-        if (mViews == null) {
-            mViews = new RemoteViews(context.getPackageName(), R.layout.player_app_widget);
-        }
-
-        if (mAppWidgetManager == null) {
-            mAppWidgetManager = AppWidgetManager.getInstance(context);
-            final ComponentName componentName = new ComponentName(context,
-                    PlayerAppWidget.class);
-            mAppWidgetIds = mAppWidgetManager.getAppWidgetIds(componentName);
-        }
-
-        if (ACTION_STATE_CHANGE.equals(action)) {
-            updatePlayerState(intent.getIntExtra(EXTRA_PLAYER_STATE, 0));
-        } else if (ACTION_TITLE_CHANGE.equals(action)) {
-            updateTitle(intent.getStringExtra(EXTRA_SONG_FILE_NAME),
-                    intent.getStringExtra(EXTRA_SONG_ALBUM_TITLE));
-        }
-
-        super.onReceive(context, intent);
+        updateAppWidget(context, appWidgetManager, mAppWidgetIds);
+        mPublishedState = mState;
     }
 
     @Override
@@ -127,51 +70,54 @@ public class PlayerAppWidget extends AppWidgetProvider {
     }
 
     /**
-     * Update the song file name and album title of MPlayer Widget whenever new song is played.
+     * Update all MPlayer Widgets to show the specified state.
      *
-     * @param fileName the playing song's file name
-     * @param albumTitle the playing song's album tile
+     * @param context the context to update the widgets with
+     * @param state the state to show
      */
-    private void updateTitle(String fileName, String albumTitle) {
-        // There may be multiple widgets active, so update all of them
-        for (int appWidgetId : mAppWidgetIds) {
-            mViews.setTextViewText(R.id.tv_file_name, fileName);
-            mViews.setTextViewText(R.id.tv_album_name, albumTitle);
-            mAppWidgetManager.updateAppWidget(appWidgetId, mViews);
+    static void update(Context context, WidgetState state) {
+        if (mAppWidgetManager == null) {
+            mAppWidgetManager = AppWidgetManager.getInstance(context);
+            final ComponentName componentName = new ComponentName(context,
+                    PlayerAppWidget.class);
+            mAppWidgetIds = mAppWidgetManager.getAppWidgetIds(componentName);
         }
+
+        mState = state;
+        updateAllAppWidgets(context);
     }
 
     /**
-     * Update the current MPlayer Widget state.
-     *
-     * @param state the current MPlayer state
-     *               : State -  {PLAYER_STATE_PLAY, PLAYER_STATE_PAUSE, PLAYER_STATE_STOP}
+     * Send the changes since the last published state to all widgets in one call.
      */
-    private void updatePlayerState(int state) {
-        // There may be multiple widgets active, so update all of them
-        for (int appWidgetId : mAppWidgetIds) {
-            switch(state) {
-                case PLAYER_STATE_PLAY:
-                    mViews.setInt(R.id.btn_play, "setBackgroundResource", R.color.colorSelectedButton);
-                    mViews.setInt(R.id.btn_pause, "setBackgroundResource", R.color.colorButton);
-                    mViews.setInt(R.id.btn_stop, "setBackgroundResource", R.color.colorButton);
-                    break;
-                case PLAYER_STATE_PAUSE:
-                    mViews.setInt(R.id.btn_play, "setBackgroundResource", R.color.colorButton);
-                    mViews.setInt(R.id.btn_pause, "setBackgroundResource", R.color.colorSelectedButton);
-                    mViews.setInt(R.id.btn_stop, "setBackgroundResource", R.color.colorButton);
-                    break;
-                case PLAYER_STATE_STOP:
-                    mViews.setInt(R.id.btn_play, "setBackgroundResource", R.color.colorButton);
-                    mViews.setInt(R.id.btn_pause, "setBackgroundResource", R.color.colorButton);
-                    mViews.setInt(R.id.btn_stop, "setBackgroundResource", R.color.colorSelectedButton);
-                    break;
-                default:
-                    break;
+    private static void updateAllAppWidgets(Context context) {
+        Trace.beginSection("PlayerAppWidget.update");
+        try {
+            FlightRecorder.getDefault().record(FlightRecorder.EVENT_WIDGET_RENDER,
+                    mPublishedState == null ? -1 : mState.getChanges(mPublishedState),
+                    mState.mPlayerState);
+            if (mPublishedState == null) {
+                updateAppWidget(context, mAppWidgetManager, mAppWidgetIds);
+            } else {
+                RemoteViews views = getRenderer(context).renderChanges(mPublishedState, mState);
+                if (views == null) {
+                    return;
+                }
+
+                mAppWidgetManager.partiallyUpdateAppWidget(mAppWidgetIds, views);
             }
 
-            mAppWidgetManager.updateAppWidget(appWidgetId, mViews);
+            mPublishedState = mState;
+        } finally {
+            Trace.endSection();
         }
     }
-}
 
+    private static WidgetRenderer getRenderer(Context context) {
+        if (mRenderer == null) {
+            mRenderer = new WidgetRenderer(context.getApplicationContext());
+        }
+
+        return mRenderer;
+    }
+}
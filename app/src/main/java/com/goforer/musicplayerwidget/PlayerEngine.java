@@ -0,0 +1,1017 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.MediaPlayer;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.goforer.musicplayerwidget.PlayerStateMachine.Event;
+import com.goforer.musicplayerwidget.PlayerStateMachine.State;
+
+/**
+ * Playback engine to play the random mp3 files on its own worker thread.
+ *
+ * <p>
+ * The library scan, the metadata extraction and the MediaPlayer all run on the worker thread.
+ * Commands are queued to the worker thread and executed one after another, so the main thread
+ * only sends commands and receives the state updates through {@link Listener}.
+ * </p>
+ *
+ * <p>
+ * The player state is kept by {@link PlayerStateMachine}. A command fires its event on the
+ * calling thread, so a command the state doesn't allow is dropped right away, and it is only
+ * executed on the worker thread if no other command or player event has changed the state
+ * since.
+ * </p>
+ *
+ * <p>
+ * The library is refreshed on a scan thread of its own while the worker thread keeps playing.
+ * If there is no index yet, the first song is prepared as soon as the scan has found the first
+ * batch of songs instead of after the whole storage has been walked. After the first refresh,
+ * {@link LibraryWatcher} keeps the index up to date with the changed directories only, and the
+ * storage is walked again only after it has been mounted.
+ * </p>
+ *
+ * <p>
+ * As soon as a song has started, the next song is picked and prepared by {@link GaplessPlayer},
+ * so it follows the current song without a gap.
+ * </p>
+ *
+ * <p>
+ * Once the library has been loaded or scanned, the tags of the new songs are read in small
+ * batches on the scan thread, so the {@link PickMode#Radio} modes can pick by genre, artist or
+ * decade.
+ * </p>
+ *
+ * <p>
+ * {@link #search(CharSequence, int)} finds songs in the library index on the calling thread,
+ * and {@link #playSong(File)} starts the chosen one in place of whatever is playing.
+ * </p>
+ */
+class PlayerEngine implements Handler.Callback, GaplessPlayer.Callback,
+        LibraryIndex.ScanListener {
+    private static final String TAG = "PlayerEngine";
+
+    private static final String LIBRARY_INDEX_FILE_NAME = "library.idx";
+    private static final String METRICS_FILE_NAME = "metrics.csv";
+
+    private static final int MSG_INIT = 1;
+    private static final int MSG_PLAY = 2;
+    private static final int MSG_PAUSE = 3;
+    private static final int MSG_STOP = 4;
+    private static final int MSG_RELEASE = 5;
+    private static final int MSG_TRACKS_FOUND = 6;
+    private static final int MSG_SCAN_FINISHED = 7;
+    private static final int MSG_STORAGE_MOUNTED = 8;
+    private static final int MSG_STORAGE_UNMOUNTED = 9;
+    private static final int MSG_WRITE_METRICS = 10;
+    private static final int MSG_SET_PICK_MODE = 11;
+    private static final int MSG_SET_RADIO = 12;
+    private static final int MSG_NEXT_PICK_MODE = 13;
+    private static final int MSG_PLAY_SONG = 14;
+
+    // The trace section names of the commands, by the message codes
+    private static final String[] COMMAND_SECTIONS = { TAG, "PlayerEngine.init",
+            "PlayerEngine.play", "PlayerEngine.pause", "PlayerEngine.stop", "PlayerEngine.release",
+            "PlayerEngine.tracksFound", "PlayerEngine.scanFinished",
+            "PlayerEngine.storageMounted", "PlayerEngine.storageUnmounted",
+            "PlayerEngine.writeMetrics", "PlayerEngine.setPickMode", "PlayerEngine.setRadio",
+            "PlayerEngine.nextPickMode", "PlayerEngine.playSong" };
+
+    // The number of songs to pick from while the library is scanned for the first time
+    private static final int FIRST_BATCH_SIZE = 16;
+
+    private static final int MAX_PICK_ATTEMPTS = 3;
+
+    // The number of songs whose tags are read in one task of the scan thread
+    private static final int TAG_BATCH_SIZE = 64;
+
+    // The radios nextPickMode() goes through after the shuffles, by the current song's tags
+    private static final int[] RADIO_FACETS = { TagIndex.FACET_GENRE, TagIndex.FACET_ARTIST,
+            TagIndex.FACET_DECADE };
+
+    private static final long METRICS_INTERVAL_MS = 60 * 1000;
+    // The metrics file is started over once it is larger, the previous one is kept
+    private static final long MAX_METRICS_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * How the songs are picked from the library.
+     */
+    enum PickMode {
+        // Every song is played once before any song repeats
+        Shuffle,
+        // The songs which are usually heard to the end come up more often than the skipped ones
+        Weighted,
+        // Only the songs which match the radio filter, like a genre, an artist or a decade
+        Radio
+    }
+
+    /**
+     * Receives the state updates of the engine. All methods are called on the main thread.
+     */
+    interface Listener {
+        /**
+         * Called when the engine has started to play the specified song.
+         *
+         * @param file the song file which is prepared or resumed
+         */
+        void onPlay(File file);
+
+        /**
+         * Called when the specified song is prepared and its playback has started.
+         *
+         * @param file the playing song file
+         * @param albumTitle the playing song's album title
+         */
+        void onSongStarted(File file, String albumTitle);
+
+        /**
+         * Called when the playback is paused.
+         *
+         * @param position the playback position in ms
+         */
+        void onPause(int position);
+
+        /**
+         * Called when the playback is stopped and the player is released.
+         */
+        void onStop();
+
+        /**
+         * Called when there is no song file to play.
+         */
+        void onNoFile();
+
+        /**
+         * Called when the player has failed and has been released.
+         */
+        void onError();
+
+        /**
+         * Called when the songs are picked in another way.
+         *
+         * @param mode the new pick mode
+         * @param filter the filter of the radio if the mode is {@link PickMode#Radio}, or null
+         * @param songCount the number of songs of the radio, 0 for the other modes
+         */
+        void onPickModeChanged(PickMode mode, RadioFilter filter, int songCount);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mScanExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mFirstBatchFound = new AtomicBoolean();
+    // Set when the watcher or the tagging has changed the index since it was last saved
+    private final AtomicBoolean mIndexChanged = new AtomicBoolean();
+    // Set while the tags of the library are read on the scan thread
+    private final AtomicBoolean mTagging = new AtomicBoolean();
+    // Set once the engine is released, so the tagging stops before the metadata service closes
+    private volatile boolean mReleased;
+
+    private final Random mRandomGenerator = RandomSource.get();
+
+    private final FlightRecorder mRecorder = FlightRecorder.getDefault();
+
+    private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
+    private final Histogram mScanTime = mMetrics.histogram(MetricsRegistry.SCAN);
+    private final Histogram mPollTime = mMetrics.histogram(MetricsRegistry.POLL);
+    private final Histogram mTapToPlayTime = mMetrics.histogram(MetricsRegistry.TAP_TO_PLAY);
+    private final AtomicLong mPlayerErrors = mMetrics.counter(MetricsRegistry.PLAYER_ERRORS);
+    private final AtomicLong mMissingFileSkips =
+            mMetrics.counter(MetricsRegistry.MISSING_FILE_SKIPS);
+
+    private final PlayerStateMachine mStateMachine = new PlayerStateMachine(mRecorder,
+            mMetrics.counter(MetricsRegistry.ILLEGAL_TRANSITIONS));
+
+    private final BroadcastReceiver mStorageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mHandler.sendEmptyMessage(Intent.ACTION_MEDIA_MOUNTED.equals(intent.getAction())
+                    ? MSG_STORAGE_MOUNTED : MSG_STORAGE_UNMOUNTED);
+        }
+    };
+
+    // The fields below are only accessed on the worker thread.
+    private GaplessPlayer mPlayer;
+
+    private File mFile;
+    // The started song whose play hasn't been counted yet, or null
+    private File mPlayingFile;
+    private int mPlayingDuration;
+
+    private PickMode mPickMode = PickMode.Shuffle;
+    // The filter of the radio, or null unless the pick mode is Radio
+    private RadioFilter mRadioFilter;
+
+    // Created on the worker thread, read by search() on the calling thread
+    private volatile LibraryIndex mLibraryIndex;
+
+    // Only used on the scan thread
+    private LibraryWatcher mLibraryWatcher;
+
+    // Used on the worker thread for the playing song and on the scan thread for the tags
+    private MetadataService mMetadataService;
+
+    private boolean mScanning;
+    private boolean mWaitingForTracks;
+
+    // The uptime when play was requested from the stopped state, or 0 if the song has started
+    private long mPlayRequestTime;
+
+    /**
+     * Create the engine and start its worker thread.
+     *
+     * @param context the application context
+     * @param listener the listener to receive the state updates on the main thread
+     */
+    PlayerEngine(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), this);
+        mHandler.sendEmptyMessage(MSG_INIT);
+    }
+
+    /**
+     * Play a random song, or resume the paused one.
+     */
+    void play() {
+        sendCommand(MSG_PLAY, Event.PLAY);
+    }
+
+    /**
+     * Play the specified song, in place of the playing or paused one. Only a song of the library
+     * index is played, any other file is ignored.
+     *
+     * @param file the song file
+     */
+    void playSong(File file) {
+        LibraryIndex libraryIndex = mLibraryIndex;
+        if (libraryIndex == null || !libraryIndex.contains(file)) {
+            Log.w(TAG, "Not in the library: " + file);
+            return;
+        }
+
+        sendCommand(MSG_PLAY_SONG, Event.PLAY_SONG, file);
+    }
+
+    /**
+     * Pause the playing song.
+     */
+    void pause() {
+        sendCommand(MSG_PAUSE, Event.PAUSE);
+    }
+
+    /**
+     * Stop the playback and release the player.
+     */
+    void stop() {
+        sendCommand(MSG_STOP, Event.STOP);
+    }
+
+    /**
+     * Release the player and quit the worker thread once the queued commands are executed.
+     */
+    void release() {
+        sendCommand(MSG_RELEASE, Event.RELEASE);
+    }
+
+    /**
+     * Pick the following songs in the specified way.
+     *
+     * @param mode the pick mode
+     */
+    void setPickMode(PickMode mode) {
+        mHandler.obtainMessage(MSG_SET_PICK_MODE, mode).sendToTarget();
+    }
+
+    /**
+     * Only pick the songs which match the filter.
+     *
+     * @param filter the filter of the radio
+     */
+    void setRadio(RadioFilter filter) {
+        mHandler.obtainMessage(MSG_SET_RADIO, filter).sendToTarget();
+    }
+
+    /**
+     * Switch to the next pick mode, from the shuffles to the radios of the playing song's
+     * genre, artist and decade and back.
+     */
+    void nextPickMode() {
+        mHandler.sendEmptyMessage(MSG_NEXT_PICK_MODE);
+    }
+
+    /**
+     * Find the songs which have a word starting with every word of the query. This may be
+     * called on any thread.
+     *
+     * @param query the words the user has typed so far
+     * @param maxResults the maximum number of songs to find
+     * @return the found song files, empty until the library index is loaded
+     */
+    List<File> search(CharSequence query, int maxResults) {
+        LibraryIndex libraryIndex = mLibraryIndex;
+        if (libraryIndex == null) {
+            return Collections.emptyList();
+        }
+
+        return libraryIndex.search(query, maxResults);
+    }
+
+    private void sendCommand(int what, Event event) {
+        sendCommand(what, event, null);
+    }
+
+    /**
+     * Fire the event of the command on the calling thread and queue the command to the worker
+     * thread if the event is allowed. The stamp of the transition is sent with the command.
+     */
+    private void sendCommand(int what, Event event, Object obj) {
+        mRecorder.record(FlightRecorder.EVENT_REQUEST, what, 0);
+        int stamp = mStateMachine.fire(event);
+        if (stamp != -1) {
+            mHandler.obtainMessage(what, stamp, 0, obj).sendToTarget();
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        mRecorder.record(FlightRecorder.EVENT_COMMAND, msg.what, msg.arg1);
+        Trace.beginSection(msg.what < COMMAND_SECTIONS.length ? COMMAND_SECTIONS[msg.what] : TAG);
+        try {
+            return handleCommand(msg);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private boolean handleCommand(Message msg) {
+        switch (msg.what) {
+            case MSG_INIT:
+                // The plays are logged on the scan thread, so they never wait for the storage.
+                mLibraryIndex = new LibraryIndex(new File(mContext.getFilesDir(),
+                        LIBRARY_INDEX_FILE_NAME), mScanExecutor);
+                // Songs are picked from the mapped snapshot while the index is being loaded.
+                if (mLibraryIndex.openSnapshot()) {
+                    Log.i(TAG, "Library snapshot mapped: " + mLibraryIndex.size() + " tracks");
+                }
+
+                // Created before the load, which goes on to read the tags with it.
+                mMetadataService = new MetadataService(new SQLiteMetadataStore(mContext),
+                        new FallbackMetadataExtractor(new ID3TagReader(),
+                                new RetrieverMetadataExtractor()),
+                        MetadataService.DEFAULT_CACHE_SIZE);
+                mScanExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mLibraryIndex.load()) {
+                            Log.i(TAG, "No valid library snapshot, the library is rebuilt");
+                        }
+
+                        startTagging();
+                        mLibraryIndex.buildSearchIndex();
+                    }
+                });
+                mLibraryWatcher = new LibraryWatcher(mLibraryIndex, DirectoryObserver.FACTORY,
+                        mScanExecutor, LibraryWatcher.DEFAULT_MAX_WATCHES,
+                        new LibraryWatcher.Listener() {
+                            @Override
+                            public void onLibraryChanged() {
+                                mIndexChanged.set(true);
+                            }
+                        });
+                registerStorageReceiver();
+                mPlayer = new GaplessPlayer(mContext, this);
+                mHandler.sendEmptyMessageDelayed(MSG_WRITE_METRICS, METRICS_INTERVAL_MS);
+                break;
+            case MSG_PLAY:
+                if (!mStateMachine.isCurrent(msg.arg1)) {
+                    // A newer command or player event has superseded the command.
+                    break;
+                }
+
+                if (PlayerStateMachine.getFrom(msg.arg1) == State.Paused) {
+                    handleResume();
+                    break;
+                }
+
+                mPlayRequestTime = msg.getWhen();
+                /**
+                 * Only the directories changed since the last refresh are listed again, so it is
+                 * cheap to catch up with the songs added or deleted in the meantime. The song is
+                 * picked from the current index without waiting for the refresh.
+                 */
+                startLibraryScan();
+                if (mLibraryIndex.isEmpty()) {
+                    mWaitingForTracks = true;
+                    break;
+                }
+
+                handlePlay();
+                break;
+            case MSG_PLAY_SONG:
+                if (mStateMachine.isCurrent(msg.arg1)) {
+                    mPlayRequestTime = msg.getWhen();
+                    handlePlaySong((File) msg.obj);
+                }
+                break;
+            case MSG_TRACKS_FOUND:
+                if (mWaitingForTracks) {
+                    mWaitingForTracks = false;
+                    handlePlay();
+                }
+                break;
+            case MSG_SCAN_FINISHED:
+                mScanning = false;
+                if (msg.arg1 != 0) {
+                    Log.i(TAG, "Library refresh: " + mLibraryIndex.getLastWalkStats());
+                }
+
+                if (mWaitingForTracks) {
+                    mWaitingForTracks = false;
+                    handlePlay();
+                }
+                break;
+            case MSG_PAUSE:
+                if (mStateMachine.isCurrent(msg.arg1)) {
+                    handlePause();
+                }
+                break;
+            case MSG_STOP:
+                if (mStateMachine.isCurrent(msg.arg1)) {
+                    mWaitingForTracks = false;
+                    handleStop(PlayerStateMachine.getFrom(msg.arg1));
+                }
+                break;
+            case MSG_STORAGE_MOUNTED:
+                // The storage may have changed completely while it wasn't mounted.
+                stopLibraryWatcher();
+                startLibraryScan();
+                break;
+            case MSG_STORAGE_UNMOUNTED:
+                stopLibraryWatcher();
+                break;
+            case MSG_WRITE_METRICS:
+                writeMetrics();
+                mHandler.sendEmptyMessageDelayed(MSG_WRITE_METRICS, METRICS_INTERVAL_MS);
+                break;
+            case MSG_SET_PICK_MODE:
+                setPickMode((PickMode) msg.obj, null);
+                break;
+            case MSG_SET_RADIO:
+                setPickMode(PickMode.Radio, (RadioFilter) msg.obj);
+                break;
+            case MSG_NEXT_PICK_MODE:
+                handleNextPickMode();
+                break;
+            case MSG_RELEASE:
+                mReleased = true;
+                mWaitingForTracks = false;
+                mPlayingFile = null;
+                mContext.unregisterReceiver(mStorageReceiver);
+                stopLibraryWatcher();
+                mPlayer.release();
+                // The service is closed after the tags being read on the scan thread.
+                mScanExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.i(TAG, "Metadata: " + mMetadataService.getStats());
+                        mMetadataService.close();
+                    }
+                });
+                mHandler.removeMessages(MSG_WRITE_METRICS);
+                writeMetrics();
+                mLibraryIndex.closePlayLog();
+                mScanExecutor.shutdown();
+                mThread.quitSafely();
+                break;
+            default:
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void onSongStarted(final File file) {
+        mRecorder.record(FlightRecorder.EVENT_SONG_STARTED);
+        /**
+         * If the song has been paused or stopped in the meantime, the state is left to the queued
+         * command. The song has started all the same, so it is still tracked and counted.
+         */
+        mStateMachine.fire(Event.SONG_STARTED);
+
+        if (mPlayingFile != null) {
+            // The previous song was followed without a gap, so it has been heard to the end.
+            mLibraryIndex.recordPlayback(mPlayingFile, 1, mPlayingDuration);
+        }
+
+        mFile = file;
+        mPlayingFile = file;
+        mPlayingDuration = Math.max(mPlayer.getDuration(), 0);
+        // Only a song which is heard uses up its place in the shuffle cycle.
+        mLibraryIndex.markPlayed(file);
+        final String albumTitle = getSongAlbumTitle(file);
+        if (mPlayRequestTime != 0) {
+            long tapToPlayTime = SystemClock.uptimeMillis() - mPlayRequestTime;
+            mTapToPlayTime.record(tapToPlayTime * 1000);
+            Log.i(TAG, "Tap to first sound: " + tapToPlayTime + " ms");
+            mPlayRequestTime = 0;
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onSongStarted(file, albumTitle);
+            }
+        });
+
+        prepareNextSong();
+    }
+
+    @Override
+    public void onSongCompleted() {
+        if (mPlayingFile != null) {
+            mLibraryIndex.recordPlayback(mPlayingFile, 1, mPlayingDuration);
+            mPlayingFile = null;
+        }
+
+        if (mStateMachine.fire(Event.SONG_COMPLETED) != -1) {
+            // The next song is picked from the library index by handlePlay(), no rescan is needed.
+            handlePlay();
+        }
+    }
+
+    @Override
+    public void onError(int what, int extra) {
+        Log.e(TAG, "Error: what=" + String.valueOf(what) + ", extra=" + String.valueOf(extra));
+        mPlayerErrors.incrementAndGet();
+        mPlayingFile = null;
+        mStateMachine.fire(Event.ERROR);
+        dumpFlightRecorder();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onError();
+            }
+        });
+    }
+
+    @Override
+    public void onTracksFound(int trackCount) {
+        if (trackCount >= FIRST_BATCH_SIZE && !mFirstBatchFound.getAndSet(true)) {
+            mHandler.sendEmptyMessage(MSG_TRACKS_FOUND);
+        }
+    }
+
+    /**
+     * Pick a random song and prepare it, unless the player has left the preparing state in the
+     * meantime.
+     */
+    private void handlePlay() {
+        if (mStateMachine.getState() != State.Preparing) {
+            return;
+        }
+
+        mFile = getRandomMusicFile();
+        if (mFile == null && mScanning) {
+            // The snapshot or the index turned out to be unusable, so wait for the scan.
+            mWaitingForTracks = true;
+            return;
+        }
+
+        if (mFile == null) {
+            mStateMachine.fire(Event.STOP);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onNoFile();
+                }
+            });
+            return;
+        }
+
+        try {
+            mPlayer.play(mFile);
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+            onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+            return;
+        }
+
+        notifyPlay();
+    }
+
+    /**
+     * Prepare the chosen song. The interrupted song counts as played as far as it was heard.
+     */
+    private void handlePlaySong(File file) {
+        // The chosen song isn't replaced by a random one once the scan has found songs.
+        mWaitingForTracks = false;
+        recordInterruptedPlayback();
+        mFile = file;
+        try {
+            mPlayer.play(mFile);
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+            onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+            return;
+        }
+
+        notifyPlay();
+    }
+
+    private void handleResume() {
+        mPlayer.resume();
+        notifyPlay();
+    }
+
+    private void notifyPlay() {
+        final File file = mFile;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPlay(file);
+            }
+        });
+    }
+
+    private void handlePause() {
+        mPlayer.pause();
+        final int position = mPlayer.getCurrentPosition();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPause(position);
+            }
+        });
+    }
+
+    private void handleStop(State from) {
+        recordInterruptedPlayback();
+        if (from == State.Playing || from == State.Paused) {
+            mPlayer.stop();
+        }
+
+        mPlayer.release();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStop();
+            }
+        });
+    }
+
+    /**
+     * Count the play of the playing song up to the current position, if a song is playing.
+     */
+    private void recordInterruptedPlayback() {
+        if (mPlayingFile != null) {
+            if (mPlayingDuration > 0) {
+                mLibraryIndex.recordPlayback(mPlayingFile,
+                        (float) mPlayer.getCurrentPosition() / mPlayingDuration,
+                        mPlayingDuration);
+            }
+
+            mPlayingFile = null;
+        }
+    }
+
+    /**
+     * Get a song file from the library index.
+     *
+     * <p>
+     * The song is picked from the index as the {@link PickMode} says, without touching the file
+     * system. If the picked song has been deleted in the meantime, another one is picked and the
+     * index is refreshed in the background. If the index turns out to be too stale to pick from,
+     * no song is picked and the caller waits for the refresh, so the worker thread never walks
+     * the storage itself.
+     * </p>
+     *
+     * @return A randomly selected song file, or null if there is none or the index is too stale
+     */
+    private File getRandomMusicFile() {
+        for (int i = 0; i < MAX_PICK_ATTEMPTS; i++) {
+            File file = pickTrack();
+            if (file == null || file.exists()) {
+                return file;
+            }
+
+            mMissingFileSkips.incrementAndGet();
+            startLibraryScan();
+        }
+
+        return null;
+    }
+
+    /**
+     * Pick a song from the library index as the {@link PickMode} says. A radio without known
+     * songs, e.g. before the tags have been read, falls back to the shuffle.
+     */
+    private File pickTrack() {
+        switch (mPickMode) {
+            case Weighted:
+                return mLibraryIndex.pickWeightedTrack(mRandomGenerator);
+            case Radio:
+                File file = mLibraryIndex.pickFilteredTrack(mRadioFilter, mRandomGenerator);
+                if (file != null) {
+                    return file;
+                }
+
+                return mLibraryIndex.pickShuffledTrack(mRandomGenerator);
+            default:
+                return mLibraryIndex.pickShuffledTrack(mRandomGenerator);
+        }
+    }
+
+    /**
+     * Switch to the pick mode, prepare the next song in the new way if a song is playing and
+     * report the new mode.
+     */
+    private void setPickMode(final PickMode mode, final RadioFilter filter) {
+        mPickMode = mode;
+        mRadioFilter = filter;
+        State state = mStateMachine.getState();
+        if (state == State.Playing || state == State.Paused) {
+            prepareNextSong();
+        }
+
+        final int songCount = filter != null ? mLibraryIndex.getFilteredCount(filter) : 0;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPickModeChanged(mode, filter, songCount);
+            }
+        });
+    }
+
+    /**
+     * Switch from Shuffle to Weighted, then to the radios of the playing song's genre, artist
+     * and decade, and back to Shuffle. A radio is left out if the song has no such tag.
+     */
+    private void handleNextPickMode() {
+        SongMetadata metadata = mFile != null ? mMetadataService.get(mFile) : SongMetadata.EMPTY;
+        ArrayList<RadioFilter> radios = new ArrayList<>();
+        for (int facet : RADIO_FACETS) {
+            RadioFilter filter = RadioFilter.of(facet, metadata);
+            if (filter != null) {
+                radios.add(filter);
+            }
+        }
+
+        int next;
+        switch (mPickMode) {
+            case Shuffle:
+                setPickMode(PickMode.Weighted, null);
+                return;
+            case Weighted:
+                next = 0;
+                break;
+            default:
+                // A radio of another song is followed by the first radio of this one.
+                next = radios.indexOf(mRadioFilter) + 1;
+                break;
+        }
+
+        if (next < radios.size()) {
+            setPickMode(PickMode.Radio, radios.get(next));
+        } else {
+            setPickMode(PickMode.Shuffle, null);
+        }
+    }
+
+    /**
+     * Read the tags of the songs which have none yet on the scan thread, one batch per task, so
+     * the other tasks of the scan thread don't wait for the whole library. The index is saved
+     * with the new tags once all songs are tagged, so they aren't read again after a restart.
+     */
+    private void startTagging() {
+        if (mTagging.compareAndSet(false, true)) {
+            tagNextBatch();
+        }
+    }
+
+    private void tagNextBatch() {
+        try {
+            mScanExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mReleased
+                            && mLibraryIndex.tagTracks(mMetadataService, TAG_BATCH_SIZE) > 0) {
+                        mIndexChanged.set(true);
+                        tagNextBatch();
+                    } else {
+                        mTagging.set(false);
+                        saveLibraryIndex();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The engine has been released while the previous batch was read.
+            mTagging.set(false);
+        }
+    }
+
+    /**
+     * Bring the library index up to date on the scan thread and save it if changed. The storage
+     * is walked if the library isn't watched yet, otherwise only the directories which aren't
+     * watched are checked. {@link #MSG_SCAN_FINISHED} is sent to the worker thread once the scan
+     * is done.
+     */
+    private void startLibraryScan() {
+        if (mScanning) {
+            return;
+        }
+
+        mScanning = true;
+        mFirstBatchFound.set(false);
+        final File root = Environment.getExternalStorageDirectory();
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean refreshed = false;
+                long start = System.nanoTime();
+                if (mLibraryWatcher.isWatching()) {
+                    mLibraryWatcher.poll();
+                    mPollTime.record((System.nanoTime() - start) / 1000);
+                } else {
+                    if (mLibraryIndex.refresh(root, PlayerEngine.this)) {
+                        mIndexChanged.set(true);
+                    }
+
+                    mLibraryWatcher.start(root);
+                    mScanTime.record((System.nanoTime() - start) / 1000);
+                    refreshed = true;
+                    Log.i(TAG, "Library watcher: " + mLibraryWatcher.getWatchCount()
+                            + " watched, " + mLibraryWatcher.getColdDirectoryCount()
+                            + " polled directories");
+                }
+
+                saveLibraryIndex();
+                startTagging();
+                mHandler.obtainMessage(MSG_SCAN_FINISHED, refreshed ? 1 : 0, 0).sendToTarget();
+                // A rebuilt track table is searchable again once the song has been picked.
+                mLibraryIndex.buildSearchIndex();
+            }
+        });
+    }
+
+    /**
+     * Stop watching the library on the scan thread and save the changes it has made.
+     */
+    private void stopLibraryWatcher() {
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLibraryWatcher.stop();
+                saveLibraryIndex();
+            }
+        });
+    }
+
+    /**
+     * Save the library index if it has changed. Must be called on the scan thread.
+     */
+    private void saveLibraryIndex() {
+        if (mIndexChanged.getAndSet(false)) {
+            try {
+                mLibraryIndex.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write the recorded events to the log, so the events leading to a failure can be seen.
+     */
+    private void dumpFlightRecorder() {
+        StringWriter out = new StringWriter();
+        mRecorder.dump(new PrintWriter(out));
+        for (String line : out.toString().split("\n")) {
+            Log.w(TAG, line);
+        }
+    }
+
+    /**
+     * Append the metrics to the metrics file and compact the play log on the scan thread.
+     */
+    private void writeMetrics() {
+        final File file = new File(mContext.getFilesDir(), METRICS_FILE_NAME);
+        final long time = System.currentTimeMillis();
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (file.length() > MAX_METRICS_FILE_SIZE
+                        && !file.renameTo(new File(file.getPath() + ".old"))) {
+                    Log.w(TAG, "Can't rotate " + file);
+                }
+
+                try {
+                    mMetrics.appendCsv(file, time);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        mLibraryIndex.compactPlayLog();
+    }
+
+    private void registerStorageReceiver() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addDataScheme("file");
+        mContext.registerReceiver(mStorageReceiver, filter);
+    }
+
+    /**
+     * Pick the next song and prepare it to follow the playing song without a gap. If the index
+     * is too stale to pick from, the next song is picked once the playing one has completed.
+     */
+    private void prepareNextSong() {
+        File next = getRandomMusicFile();
+        if (next == null) {
+            return;
+        }
+
+        try {
+            mPlayer.setNext(next);
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the album tile from the specified file.
+     *
+     * @param file the specified file
+     *
+     * @return the album title
+     */
+    private String getSongAlbumTitle(@NonNull File file) {
+        String title = mMetadataService.get(file).mAlbum;
+        if (title == null) {
+            return mContext.getResources().getString(R.string.player_no_album_title);
+        }
+
+        title = title.trim();
+        if (title.isEmpty()) {
+            title = file.getName().replace(".mp3", "");
+        }
+
+        return title;
+    }
+}
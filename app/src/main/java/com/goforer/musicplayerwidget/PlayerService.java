@@ -20,47 +20,126 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
-import android.media.AudioManager;
-import android.media.MediaMetadataRetriever;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
-import android.media.MediaPlayer.OnErrorListener;
-import android.media.MediaPlayer.OnPreparedListener;
-import android.os.Environment;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.support.annotation.NonNull;
-import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Random;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Player service to play the random mp3 files.
+ *
+ * <p>
+ * The playback itself runs on the worker thread of {@link PlayerEngine}. The service only
+ * sends the widget commands to the engine and updates the notification and the
+ * {@link PlayerStateStore} whenever the engine reports a new state. The widget observes the
+ * store in the same process, so a burst of state changes is rendered once.
+ * </p>
+ *
+ * <p>
+ * The widget commands go through a {@link CommandQueue}, so a burst of taps only executes the
+ * command the user ended with. The stopped service only stops itself once the queue is idle, so
+ * a play tapped right after stop isn't dropped with the service.
+ * </p>
+ *
+ * <p>
+ * {@link SearchActivity} binds to the service to search the library through
+ * {@link SearchBinder} and starts the chosen song with {@link #ACTION_PLAY_SONG}.
+ * </p>
  */
-public class PlayerService extends Service implements OnCompletionListener, OnPreparedListener,
-        OnErrorListener {
+public class PlayerService extends Service implements PlayerEngine.Listener {
     public static final String ACTION_PLAY = "com.goforer.musicplayerwidget.action.PLAY";
     public static final String ACTION_PAUSE = "com.goforer.musicplayerwidget.action.PAUSE";
     public static final String ACTION_STOP = "com.goforer.musicplayerwidget.action.STOP";
-
-    private static final  String TAG = "PlayerService";
+    public static final String ACTION_SET_PICK_MODE =
+            "com.goforer.musicplayerwidget.action.SET_PICK_MODE";
+    // The name of the PlayerEngine.PickMode for ACTION_SET_PICK_MODE
+    public static final String EXTRA_PICK_MODE = "com.goforer.musicplayerwidget.extra.PICK_MODE";
+    // The tag values of a radio for ACTION_SET_PICK_MODE, a song has to match all given ones
+    public static final String EXTRA_GENRE = "com.goforer.musicplayerwidget.extra.GENRE";
+    public static final String EXTRA_ARTIST = "com.goforer.musicplayerwidget.extra.ARTIST";
+    // The decade like "1990s"
+    public static final String EXTRA_DECADE = "com.goforer.musicplayerwidget.extra.DECADE";
+    public static final String ACTION_NEXT_PICK_MODE =
+            "com.goforer.musicplayerwidget.action.NEXT_PICK_MODE";
+    public static final String ACTION_PLAY_SONG = "com.goforer.musicplayerwidget.action.PLAY_SONG";
+    // The path of the song file for ACTION_PLAY_SONG
+    public static final String EXTRA_PATH = "com.goforer.musicplayerwidget.extra.PATH";
 
     private final int NOTIFICATION_ID = 1;
 
-    private enum State { Paused, Playing, Preparing, Stopped }
-
-    private State mState = State.Preparing;
+    // The time in ms in which the commands after an executed one are collapsed into the last one
+    private static final long COMMAND_WINDOW_MS = 250;
 
     private NotificationManager mNotificationManager;
     private Notification.Builder mNotificationBuilder = null;
 
-    private MediaPlayer mPlayer = null;
+    private Handler mHandler;
+    private PlayerEngine mEngine;
+    private CommandQueue mCommandQueue;
+    // Set when the player has stopped, until a play command is executed
+    private boolean mStopped;
+    private final IBinder mBinder = new SearchBinder();
+
+    private final Runnable mPlayCommand = new Runnable() {
+        @Override
+        public void run() {
+            mStopped = false;
+            mEngine.play();
+        }
+    };
+
+    private final Runnable mPauseCommand = new Runnable() {
+        @Override
+        public void run() {
+            mEngine.pause();
+        }
+    };
+
+    private final Runnable mStopCommand = new Runnable() {
+        @Override
+        public void run() {
+            mEngine.stop();
+        }
+    };
+
+    private final Runnable mStopWhenIdle = new Runnable() {
+        @Override
+        public void run() {
+            stopWhenIdle();
+        }
+    };
+
+    /**
+     * Searches the library of the player for the bound {@link SearchActivity}.
+     */
+    class SearchBinder extends Binder {
+        /**
+         * Find the songs which have a word starting with every word of the query. This may be
+         * called on any thread.
+         *
+         * @param query the words the user has typed so far
+         * @param maxResults the maximum number of songs to find
+         * @return the found song files
+         */
+        List<File> search(CharSequence query, int maxResults) {
+            return mEngine.search(query, maxResults);
+        }
+    }
 
-    private File mFile;
+    private final PlayerStateStore mStateStore = new PlayerStateStore();
+    private final PlayerStateStore.Observer mWidgetObserver = new PlayerStateStore.Observer() {
+        @Override
+        public void onStateChanged(PlayerStateStore.Snapshot snapshot) {
+            PlayerAppWidget.update(getApplicationContext(), snapshot.toWidgetState());
+        }
+    };
 
     @Override
     public void onCreate() {
@@ -71,7 +150,22 @@ public class PlayerService extends Service implements OnCompletionListener, OnPr
          */
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
-        createPlayer();
+        mHandler = new Handler();
+        mStateStore.addObserver(mWidgetObserver, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                mHandler.post(command);
+            }
+        });
+
+        mEngine = new PlayerEngine(getApplicationContext(), this);
+        mCommandQueue = new CommandQueue(new CommandQueue.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                mHandler.postDelayed(task, delayMillis);
+            }
+        }, COMMAND_WINDOW_MS, MetricsRegistry.getDefault().counter(
+                MetricsRegistry.DROPPED_COMMANDS));
     }
 
     @Override
@@ -80,17 +174,47 @@ public class PlayerService extends Service implements OnCompletionListener, OnPr
 
         switch (action) {
             case ACTION_PLAY:
+                mCommandQueue.offer(mPlayCommand);
+                break;
+            case ACTION_PAUSE:
+                mCommandQueue.offer(mPauseCommand);
+                break;
+            case ACTION_STOP:
+                mCommandQueue.offer(mStopCommand);
+                break;
+            case ACTION_SET_PICK_MODE:
+                String mode = intent.getStringExtra(EXTRA_PICK_MODE);
                 try {
-                    play();
-                } catch (IOException e) {
+                    if (PlayerEngine.PickMode.Radio.name().equals(mode)) {
+                        mEngine.setRadio(new RadioFilter(intent.getStringExtra(EXTRA_GENRE),
+                                intent.getStringExtra(EXTRA_ARTIST),
+                                intent.getStringExtra(EXTRA_DECADE)));
+                    } else {
+                        mEngine.setPickMode(PlayerEngine.PickMode.valueOf(String.valueOf(mode)));
+                    }
+                } catch (IllegalArgumentException e) {
                     e.printStackTrace();
                 }
                 break;
-            case ACTION_PAUSE:
-                pause();
+            case ACTION_NEXT_PICK_MODE:
+                mEngine.nextPickMode();
                 break;
-            case ACTION_STOP:
-                stop();
+            case ACTION_PLAY_SONG:
+                String path = intent.getStringExtra(EXTRA_PATH);
+                if (path == null) {
+                    // An intent without a song is ignored, the engine checks the others against
+                    // the library.
+                    break;
+                }
+
+                final File file = new File(path);
+                mCommandQueue.offer(new Runnable() {
+                    @Override
+                    public void run() {
+                        mStopped = false;
+                        mEngine.playSong(file);
+                    }
+                });
                 break;
             default:
                 break;
@@ -101,65 +225,116 @@ public class PlayerService extends Service implements OnCompletionListener, OnPr
 
     @Override
     public void onDestroy() {
-        mState = State.Stopped;
-        releaseMediaPlayer();
+        mHandler.removeCallbacks(mStopWhenIdle);
+        mCommandQueue.clear();
+        mEngine.release();
+        mStateStore.removeObserver(mWidgetObserver);
+        /**
+         * Notice : When I carried out the instrumented unit test for Service,
+         * I commented below code(the line) colling stopForeground(true).
+         * Please comment below code(the line( whenever you run the instrumented unit test for Service.
+         */
+        stopForeground(true);
         stopSelf();
     }
 
     @Override
     public IBinder onBind(Intent arg0) {
-        return null;
+        return mBinder;
     }
 
+    /**
+     * Print the playback metrics and the last player events for
+     * {@code adb shell dumpsys activity service PlayerService}.
+     */
     @Override
-    public void onCompletion(MediaPlayer player) {
-        if (mState == State.Playing) {
-            mState = State.Stopped;
-            createPlayer();
-        }
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        MetricsRegistry.getDefault().dump(writer);
+        FlightRecorder.getDefault().dump(writer);
+    }
 
-        mFile = getRandomMusicFile(Environment.getExternalStorageDirectory());
-        if (mFile == null) {
-            try {
-                showMessage(getString(R.string.player_no_file));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            return;
-        }
+    @Override
+    public void onPlay(File file) {
+        /**
+         * A music player that plays music from a service should be set to run in the foreground,
+         * because the user is explicitly aware of its operation.
+         */
+        setForeground(getSongFileName(file));
 
-        try {
-            play();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        mStopped = false;
+        mStateStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY);
     }
 
     @Override
-    public void onPrepared(MediaPlayer player) {
-        mState = State.Playing;
-        if (!mPlayer.isPlaying()) {
-            updatePlayerTitle(PlayerAppWidget.ACTION_TITLE_CHANGE, getSongFileName(mFile),
-                    getSongAlbumTitle(mFile));
-            mPlayer.start();
-        }
-
-        updateNotification(getSongFileName(mFile) + " : "
+    public void onSongStarted(File file, String albumTitle) {
+        mStateStore.setSong(getSongFileName(file), albumTitle);
+        updateNotification(getSongFileName(file) + " : "
                 + getResources().getString(R.string.button_playing));
     }
 
     @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
+    public void onPause(int position) {
+        mStateStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_PAUSE);
+        mStateStore.setPosition(position);
+        /**
+         * Notice : When I carried out the instrumented unit test for Service,
+         * I commented below code(the line) colling stopForeground(true).
+         * Please comment below code(the line( whenever you run the instrumented unit test for Service.
+         */
+        stopForeground(true);
+    }
+
+    @Override
+    public void onStop() {
+        mStateStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_STOP);
+        mStateStore.setPosition(0);
+        /**
+         * Notice : When I carried out the instrumented unit test for Service,
+         * I commented below code(the line) colling stopForeground(true).
+         * Please comment below code(the line( whenever you run the instrumented unit test for Service.
+         */
+        stopForeground(true);
+        mStopped = true;
+        stopWhenIdle();
+    }
+
+    @Override
+    public void onNoFile() {
+        try {
+            showMessage(getString(R.string.player_no_file));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onError() {
         try {
             showMessage(getString(R.string.player_error_message));
         } catch (Exception e) {
             e.printStackTrace();
         }
-        Log.e(TAG, "Error: what=" + String.valueOf(what) + ", extra=" + String.valueOf(extra));
-        mState = State.Stopped;
-        releaseMediaPlayer();
+        /**
+         * Notice : When I carried out the instrumented unit test for Service,
+         * I commented below code(the line) colling stopForeground(true).
+         * Please comment below code(the line( whenever you run the instrumented unit test for Service.
+         */
+        stopForeground(true);
+    }
 
-        return true;
+    @Override
+    public void onPickModeChanged(PlayerEngine.PickMode mode, RadioFilter filter, int songCount) {
+        switch (mode) {
+            case Weighted:
+                showMessage(getString(R.string.pick_mode_weighted));
+                break;
+            case Radio:
+                showMessage(getString(R.string.pick_mode_radio, filter.getLabel(), songCount));
+                break;
+            default:
+                showMessage(getString(R.string.pick_mode_shuffle));
+                break;
+        }
     }
 
     public void showMessage(String message) {
@@ -167,81 +342,23 @@ public class PlayerService extends Service implements OnCompletionListener, OnPr
     }
 
     /**
-     * Get a randomly selected song file from list
-     *
-     * @param files the song list
-     * @return A randomly selected song file
+     * Stop the service if the player is still stopped, once the commands tapped after the stop
+     * have been executed. A play tapped right after the stop reopens the window of the queue,
+     * so the service goes on with the new song instead.
      */
-    private File getRandomFile(@NonNull ArrayList<File> files) {
-        Random mRandomGenerator = new Random();
-
-        return files.get(mRandomGenerator.nextInt(files.size()));
-    }
-
-    /**
-     * Get all mp3 files from specified directory.
-     *
-     * @param root the specified directory
-     * @return  All mp3 files
-     */
-    private ArrayList<File> findMP3Files(@NonNull final File root) {
-        ArrayList<File> fileList = new ArrayList<>();
-        File[] files = root.listFiles();
-        for(File file : files) {
-            if (file.isDirectory() && !file.isHidden()) {
-                fileList.addAll(findMP3Files(file));
-            } else {
-                if (file.getName().endsWith(".mp3")) {
-                    fileList.add(file);
-                }
-            }
+    private void stopWhenIdle() {
+        if (!mStopped) {
+            return;
         }
 
-        return  fileList;
-    }
-
-    /**
-     * Get a song file from the specified directory
-     *
-     * @param root the specified directory
-     *
-     * @return A randomly selected song file
-     */
-    private File getRandomMusicFile(@NonNull final File root) {
-        ArrayList<File> mFileList = findMP3Files(root);
-        if (mFileList == null || mFileList.size() == 0) {
-            return null;
+        if (mCommandQueue.isIdle()) {
+            stopSelf();
         } else {
-            return getRandomFile(mFileList);
+            mHandler.removeCallbacks(mStopWhenIdle);
+            mHandler.postDelayed(mStopWhenIdle, COMMAND_WINDOW_MS);
         }
     }
 
-    /**
-     * Update the current MPlayer Widget state.
-     *
-     * @param action the action to update MPlayer Widget
-     * @param state the current MPlayer state
-     */
-    private void updatePlayerState(String action, int state) {
-        Intent intent = new Intent(action);
-        intent.putExtra(PlayerAppWidget.EXTRA_PLAYER_STATE, state);
-        sendBroadcast(intent);
-    }
-
-    /**
-     *  Update the song file name and album title of MPlayer Widget whenever new song is played.
-     *
-     * @param action the action to update MPlayer Widget
-     * @param fileName  the playing song's file name
-     * @param albumTitle the playing song's album tile
-     */
-    private void updatePlayerTitle(String action, String fileName, String albumTitle) {
-        Intent intent = new Intent(action);
-        intent.putExtra(PlayerAppWidget.EXTRA_SONG_FILE_NAME, fileName);
-        intent.putExtra(PlayerAppWidget.EXTRA_SONG_ALBUM_TITLE, albumTitle);
-        sendBroadcast(intent);
-    }
-
     /**
      * Post a notification to be shown in the status bar whenever the new song is played.
      *
@@ -285,120 +402,6 @@ public class PlayerService extends Service implements OnCompletionListener, OnPr
         startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
-    private void play() throws IOException {
-        if (mState == State.Preparing || mState == State.Stopped) {
-            mFile = getRandomMusicFile(Environment.getExternalStorageDirectory());
-            if (mFile == null) {
-                try {
-                    showMessage(getString(R.string.player_no_file));
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                return;
-            } else {
-                try {
-                    prepare(mFile.getAbsolutePath());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } else if (mState == State.Paused) {
-            mState = State.Playing;
-            if (!mPlayer.isPlaying()) {
-                mPlayer.start();
-            }
-        }
-
-        /**
-         * A music player that plays music from a service should be set to run in the foreground,
-         * because the user is explicitly aware of its operation.
-         */
-        setForeground(getSongFileName(mFile));
-
-        updatePlayerState(PlayerAppWidget.ACTION_STATE_CHANGE, PlayerAppWidget.PLAYER_STATE_PLAY);
-    }
-
-    /**
-     * Prepares the player for playback, asynchronously.
-     *
-     * <p>
-     * Sets the audio stream type & data source
-     * </p>
-     *
-     * @param path the song's file path
-     * @throws IllegalStateException if it is called in an invalid state
-     */
-    private void prepare(String path) throws IOException, IllegalStateException {
-        mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        mPlayer.setDataSource(path);
-        /**
-         * Notice : When I carried out the instrumented unit test for Service,
-         * I commented below code(the line) colling stopForeground(true).
-         * Please comment below code(the line( whenever you run the instrumented unit test for Service.
-         */
-        stopForeground(true);
-        mPlayer.prepareAsync();
-    }
-
-    private void createPlayer() {
-        if (mPlayer == null) {
-            mPlayer = new MediaPlayer();
-            mPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-            mPlayer.setOnPreparedListener(this);
-            mPlayer.setOnCompletionListener(this);
-            mPlayer.setOnErrorListener(this);
-            mPlayer.setVolume(3.0f, 3.0f);
-        }
-        else {
-            mPlayer.reset();
-        }
-    }
-
-    private void pause() {
-        if (mState == State.Playing) {
-            mState = State.Paused;
-            updatePlayerState(PlayerAppWidget.ACTION_STATE_CHANGE,
-                    PlayerAppWidget.PLAYER_STATE_PAUSE);
-            mPlayer.pause();
-            /**
-             * Notice : When I carried out the instrumented unit test for Service,
-             * I commented below code(the line) colling stopForeground(true).
-             * Please comment below code(the line( whenever you run the instrumented unit test for Service.
-             */
-            stopForeground(true);
-        }
-    }
-
-    private void stop() {
-        if (mState == State.Playing || mState == State.Paused) {
-            mState = State.Stopped;
-            updatePlayerState(PlayerAppWidget.ACTION_STATE_CHANGE,
-                    PlayerAppWidget.PLAYER_STATE_STOP);
-            mPlayer.stop();
-        }
-
-        releaseMediaPlayer();
-        stopSelf();
-    }
-
-    /**
-     * Release the using MediaPlayer.
-     */
-    private void releaseMediaPlayer() {
-        /**
-         * Notice : When I carried out the instrumented unit test for Service,
-         * I commented below code(the line) colling stopForeground(true).
-         * Please comment below code(the line( whenever you run the instrumented unit test for Service.
-         */
-        stopForeground(true);
-
-        if (mPlayer != null) {
-            mPlayer.reset();
-            mPlayer.release();
-            mPlayer = null;
-        }
-    }
-
     /**
      * Get the file name from the specified file.
      *
@@ -409,27 +412,4 @@ public class PlayerService extends Service implements OnCompletionListener, OnPr
     private String getSongFileName(@NonNull File file) {
         return file.getName().replace(".mp3", "");
     }
-
-    /**
-     * Get the album tile from the specified file.
-     *
-     * @param file the specified file
-     *
-     * @return the album title
-     */
-    private String getSongAlbumTitle(@NonNull File file) {
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        retriever.setDataSource(file.getAbsolutePath());
-        try {
-            String title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM).trim();
-            if (title.isEmpty() || title.equals("")) {
-                title = file.getName().replace(".mp3", "");
-            }
-
-            return title;
-        } catch (Exception e) {
-            return getResources().getString(R.string.player_no_album_title);
-        }
-    }
 }
-
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lifecycle of the player as an explicit transition table.
+ *
+ * <p>
+ * The state is changed by compare-and-set, so commands and player callbacks can fire events
+ * from any thread without a lock. An event which isn't allowed in the current state is
+ * rejected, counted and recorded in the {@link FlightRecorder}, so a double start or a
+ * callback of a player which has already failed can't corrupt the state.
+ * </p>
+ *
+ * <p>
+ * Every accepted transition returns a stamp, which holds the old and the new state and a
+ * generation number. The work of a transition is usually done later on another thread, and
+ * {@link #isCurrent(int)} tells whether another transition has happened in the meantime,
+ * in which case the newer transition's work supersedes the stale one.
+ * </p>
+ */
+final class PlayerStateMachine {
+    /**
+     * The states of the player.
+     */
+    enum State { Stopped, Preparing, Playing, Paused, Released }
+
+    /**
+     * The events which change the state. PLAY_SONG starts a chosen song in any state but
+     * Released.
+     */
+    enum Event { PLAY, SONG_STARTED, PAUSE, STOP, SONG_COMPLETED, ERROR, RELEASE, PLAY_SONG }
+
+    private static final State[] STATES = State.values();
+
+    private static final int STATE_BITS = 4;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+    private static final int GENERATION_MASK = (1 << (31 - 2 * STATE_BITS)) - 1;
+
+    // The new state by the current state and the event, null if the event isn't allowed
+    private static final State[][] TRANSITIONS = new State[STATES.length][];
+
+    static {
+        State S = State.Stopped;
+        State R = State.Preparing;
+        State P = State.Playing;
+        State U = State.Paused;
+        State X = State.Released;
+        // The columns are the events in the order of Event.
+        TRANSITIONS[S.ordinal()] = new State[] { R, null, null, S, null, S, X, R };
+        TRANSITIONS[R.ordinal()] = new State[] { null, P, null, S, null, S, X, R };
+        TRANSITIONS[P.ordinal()] = new State[] { null, P, U, S, R, S, X, R };
+        TRANSITIONS[U.ordinal()] = new State[] { P, null, null, S, null, S, X, R };
+        TRANSITIONS[X.ordinal()] = new State[] { null, null, null, null, null, null, null, null };
+    }
+
+    private final AtomicInteger mStamp = new AtomicInteger(stamp(0, State.Stopped, State.Stopped));
+    private final FlightRecorder mRecorder;
+    private final AtomicLong mIllegalTransitions;
+
+    /**
+     * Create the state machine in the stopped state.
+     *
+     * @param recorder the recorder to record the transitions in
+     * @param illegalTransitions the counter of the rejected events
+     */
+    PlayerStateMachine(FlightRecorder recorder, AtomicLong illegalTransitions) {
+        mRecorder = recorder;
+        mIllegalTransitions = illegalTransitions;
+    }
+
+    /**
+     * @param state the current state
+     * @param event the event
+     * @return the state the event leads to, or null if the event isn't allowed in the state
+     */
+    static State getTransition(State state, Event event) {
+        return TRANSITIONS[state.ordinal()][event.ordinal()];
+    }
+
+    /**
+     * Fire the event. This may be called on any thread.
+     *
+     * @param event the event
+     * @return the stamp of the transition, or -1 if the event isn't allowed in the current state
+     */
+    int fire(Event event) {
+        while (true) {
+            int current = mStamp.get();
+            State from = STATES[current & STATE_MASK];
+            State to = TRANSITIONS[from.ordinal()][event.ordinal()];
+            if (to == null) {
+                mIllegalTransitions.incrementAndGet();
+                mRecorder.record(FlightRecorder.EVENT_ILLEGAL_TRANSITION, from.ordinal(),
+                        event.ordinal());
+                return -1;
+            }
+
+            int next = stamp((current >>> (2 * STATE_BITS)) + 1, from, to);
+            if (mStamp.compareAndSet(current, next)) {
+                mRecorder.record(FlightRecorder.EVENT_STATE, from.ordinal(), to.ordinal());
+                return next;
+            }
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    State getState() {
+        return getTo(mStamp.get());
+    }
+
+    /**
+     * @param stamp the stamp of a transition
+     * @return true if no other transition has happened since
+     */
+    boolean isCurrent(int stamp) {
+        return mStamp.get() == stamp;
+    }
+
+    /**
+     * @param stamp the stamp of a transition
+     * @return the state the transition started from
+     */
+    static State getFrom(int stamp) {
+        return STATES[(stamp >>> STATE_BITS) & STATE_MASK];
+    }
+
+    /**
+     * @param stamp the stamp of a transition
+     * @return the state the transition led to
+     */
+    static State getTo(int stamp) {
+        return STATES[stamp & STATE_MASK];
+    }
+
+    private static int stamp(int generation, State from, State to) {
+        return ((generation & GENERATION_MASK) << (2 * STATE_BITS))
+                | (from.ordinal() << STATE_BITS) | to.ordinal();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Observable store of the player state which the widget and the other views of the player
+ * show.
+ *
+ * <p>
+ * Every change creates a new immutable {@link Snapshot}. The observers are not called for every
+ * change. Each observer has at most one delivery pending on its executor, and the delivery
+ * passes the latest snapshot when it runs, so a burst of changes ends in one call with the
+ * final state. The snapshots an observer receives are always newer than the ones before.
+ * </p>
+ */
+class PlayerStateStore {
+    /**
+     * Receives the state changes of the store on the executor it was added with.
+     */
+    interface Observer {
+        /**
+         * Called with the latest snapshot after one or more changes.
+         *
+         * @param snapshot the latest snapshot
+         */
+        void onStateChanged(Snapshot snapshot);
+    }
+
+    /**
+     * Immutable state of the player.
+     */
+    static final class Snapshot {
+        static final Snapshot INITIAL = new Snapshot(0, WidgetState.PLAYER_STATE_UNKNOWN, null,
+                null, 0);
+
+        // Increases with every change
+        final long mVersion;
+        /**
+         * The player state : State - {WidgetState.PLAYER_STATE_UNKNOWN,
+         * PlayerAppWidget.PLAYER_STATE_PLAY, PlayerAppWidget.PLAYER_STATE_PAUSE,
+         * PlayerAppWidget.PLAYER_STATE_STOP}
+         */
+        final int mPlayerState;
+        // The playing song's file name, or null before any song has been played
+        final String mFileName;
+        // The playing song's album title, or null before any song has been played
+        final String mAlbumTitle;
+        // The playback position in ms when the player has last been paused, stopped or started
+        final int mPosition;
+
+        Snapshot(long version, int playerState, String fileName, String albumTitle,
+                 int position) {
+            mVersion = version;
+            mPlayerState = playerState;
+            mFileName = fileName;
+            mAlbumTitle = albumTitle;
+            mPosition = position;
+        }
+
+        /**
+         * @return the state of the widget showing this snapshot
+         */
+        WidgetState toWidgetState() {
+            return new WidgetState(mPlayerState, mFileName, mAlbumTitle);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{version=" + mVersion + ", state=" + mPlayerState + ", fileName="
+                    + mFileName + ", album=" + mAlbumTitle + ", position=" + mPosition + "}";
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private Snapshot mSnapshot = Snapshot.INITIAL;
+
+    /**
+     * @return the latest snapshot
+     */
+    synchronized Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Set the player state and keep the song and the position.
+     *
+     * @param playerState the player state
+     */
+    void setPlayerState(int playerState) {
+        synchronized (this) {
+            Snapshot s = mSnapshot;
+            if (s.mPlayerState == playerState) {
+                return;
+            }
+
+            mSnapshot = new Snapshot(s.mVersion + 1, playerState, s.mFileName, s.mAlbumTitle,
+                    s.mPosition);
+        }
+
+        notifyObservers();
+    }
+
+    /**
+     * Set the playback position.
+     *
+     * @param position the playback position in ms
+     */
+    void setPosition(int position) {
+        synchronized (this) {
+            Snapshot s = mSnapshot;
+            if (s.mPosition == position) {
+                return;
+            }
+
+            mSnapshot = new Snapshot(s.mVersion + 1, s.mPlayerState, s.mFileName, s.mAlbumTitle,
+                    position);
+        }
+
+        notifyObservers();
+    }
+
+    /**
+     * Set the song which has started from its beginning.
+     *
+     * @param fileName the song's file name
+     * @param albumTitle the song's album title
+     */
+    void setSong(String fileName, String albumTitle) {
+        synchronized (this) {
+            Snapshot s = mSnapshot;
+            mSnapshot = new Snapshot(s.mVersion + 1, s.mPlayerState, fileName, albumTitle, 0);
+        }
+
+        notifyObservers();
+    }
+
+    /**
+     * Add the observer. It receives the current snapshot and then the changes on the specified
+     * executor.
+     *
+     * @param observer the observer
+     * @param executor the executor to call the observer on
+     */
+    void addObserver(Observer observer, Executor executor) {
+        Subscription subscription = new Subscription(observer, executor);
+        mSubscriptions.add(subscription);
+        subscription.schedule();
+    }
+
+    /**
+     * Remove the observer. A delivery which is still pending isn't made anymore.
+     *
+     * @param observer the observer
+     */
+    void removeObserver(Observer observer) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mObserver == observer) {
+                subscription.cancel();
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private void notifyObservers() {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    private final class Subscription implements Runnable {
+        final Observer mObserver;
+        final Executor mExecutor;
+        final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        // Guarded by this
+        private long mDeliveredVersion = -1;
+        private boolean mCancelled;
+
+        Subscription(Observer observer, Executor executor) {
+            mObserver = observer;
+            mExecutor = executor;
+        }
+
+        void schedule() {
+            if (!mScheduled.getAndSet(true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public void run() {
+            // Cleared before the snapshot is read, so a later change schedules another delivery.
+            mScheduled.set(false);
+            Snapshot snapshot = getSnapshot();
+            synchronized (this) {
+                if (mCancelled || snapshot.mVersion <= mDeliveredVersion) {
+                    return;
+                }
+
+                mDeliveredVersion = snapshot.mVersion;
+                mObserver.onStateChanged(snapshot);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+/**
+ * The tag values the songs of a radio have to match, like a genre, an artist, a decade or a
+ * combination of them. A null value matches every song.
+ */
+final class RadioFilter {
+    final String mGenre;
+    final String mArtist;
+    final String mDecade;
+
+    /**
+     * Create the filter. At least one value must be set.
+     *
+     * @param genre the genre, or null
+     * @param artist the artist, or null
+     * @param decade the decade like "1990s", or null
+     */
+    RadioFilter(String genre, String artist, String decade) {
+        if (genre == null && artist == null && decade == null) {
+            throw new IllegalArgumentException("No tag value to match");
+        }
+
+        mGenre = genre;
+        mArtist = artist;
+        mDecade = decade;
+    }
+
+    /**
+     * Create the filter which matches the songs with the same value of a tag as the specified
+     * song.
+     *
+     * @param facet the tag, one of the TagIndex.FACET_* constants
+     * @param metadata the metadata of the song
+     * @return the filter, or null if the song has no such tag
+     */
+    static RadioFilter of(int facet, SongMetadata metadata) {
+        String value = getValue(metadata, facet);
+        if (value == null) {
+            return null;
+        }
+
+        return new RadioFilter(facet == TagIndex.FACET_GENRE ? value : null,
+                facet == TagIndex.FACET_ARTIST ? value : null,
+                facet == TagIndex.FACET_DECADE ? value : null);
+    }
+
+    /**
+     * @param metadata the metadata of a song
+     * @param facet the tag, one of the TagIndex.FACET_* constants
+     * @return the song's value of the tag, or null if it has none
+     */
+    static String getValue(SongMetadata metadata, int facet) {
+        switch (facet) {
+            case TagIndex.FACET_GENRE:
+                return metadata.mGenre;
+            case TagIndex.FACET_ARTIST:
+                return metadata.mArtist;
+            case TagIndex.FACET_DECADE:
+                return getDecade(metadata.mYear);
+            default:
+                throw new IllegalArgumentException("Unknown facet " + facet);
+        }
+    }
+
+    /**
+     * @param year the year, or 0 if unknown
+     * @return the decade of the year like "1990s", or null if the year is unknown
+     */
+    static String getDecade(int year) {
+        return year > 0 ? year / 10 * 10 + "s" : null;
+    }
+
+    /**
+     * @param facet the tag, one of the TagIndex.FACET_* constants
+     * @return the value the tag has to match, or null if it matches every song
+     */
+    String get(int facet) {
+        switch (facet) {
+            case TagIndex.FACET_GENRE:
+                return mGenre;
+            case TagIndex.FACET_ARTIST:
+                return mArtist;
+            case TagIndex.FACET_DECADE:
+                return mDecade;
+            default:
+                throw new IllegalArgumentException("Unknown facet " + facet);
+        }
+    }
+
+    /**
+     * @return the values to match joined for display, like "Rock / 1990s"
+     */
+    String getLabel() {
+        StringBuilder label = new StringBuilder();
+        for (int facet = 0; facet < TagIndex.FACET_COUNT; facet++) {
+            String value = get(facet);
+            if (value != null) {
+                if (label.length() > 0) {
+                    label.append(" / ");
+                }
+
+                label.append(value);
+            }
+        }
+
+        return label.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof RadioFilter)) {
+            return false;
+        }
+
+        RadioFilter other = (RadioFilter) o;
+
+        return equals(mGenre, other.mGenre) && equals(mArtist, other.mArtist)
+                && equals(mDecade, other.mDecade);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mGenre != null ? mGenre.hashCode() : 0;
+        result = 31 * result + (mArtist != null ? mArtist.hashCode() : 0);
+        result = 31 * result + (mDecade != null ? mDecade.hashCode() : 0);
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "RadioFilter{genre=" + mGenre + ", artist=" + mArtist + ", decade=" + mDecade
+                + "}";
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
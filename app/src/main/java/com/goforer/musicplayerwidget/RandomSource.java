@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.Random;
+
+/**
+ * The one random generator every song pick is made with.
+ *
+ * <p>
+ * {@link Random} is thread-safe, so the generator is shared instead of creating a new one for
+ * every pick. Tests seed it to make the picks repeatable.
+ * </p>
+ */
+final class RandomSource {
+    private static final Random sRandom = new Random();
+
+    private RandomSource() {
+    }
+
+    /**
+     * @return the shared random generator
+     */
+    static Random get() {
+        return sRandom;
+    }
+
+    /**
+     * Seed the shared random generator, so the following picks are repeatable.
+     *
+     * @param seed the seed
+     */
+    static void setSeed(long seed) {
+        sRandom.setSeed(seed);
+    }
+}
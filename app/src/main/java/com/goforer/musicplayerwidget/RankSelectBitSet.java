@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.Arrays;
+
+/**
+ * Bit set which finds the n-th clear bit in O(log n).
+ *
+ * <p>
+ * Besides the words of the bits, the set keeps a Fenwick tree of the number of set bits per
+ * word. Setting or clearing a bit updates O(log n) counts of the tree, and the word holding
+ * the n-th clear bit is found by descending the tree, so neither needs a scan over the set.
+ * With 200k bits the set takes 25 KB for the words and as much for the tree.
+ * </p>
+ *
+ * <p>
+ * The set isn't thread-safe.
+ * </p>
+ */
+final class RankSelectBitSet {
+    private static final int WORD_BITS = 64;
+
+    private long[] mWords;
+    // Fenwick tree of the bit counts of the words, 1-based
+    private int[] mTree;
+    private int mCardinality;
+
+    /**
+     * Create the set which can hold the specified number of bits before it grows.
+     *
+     * @param capacity the number of bits
+     */
+    RankSelectBitSet(int capacity) {
+        int wordCount = Integer.highestOneBit(Math.max(1, (capacity - 1) / WORD_BITS + 1) * 2 - 1);
+        mWords = new long[wordCount];
+        mTree = new int[wordCount + 1];
+    }
+
+    /**
+     * @param index the bit index
+     * @return true if the bit is set
+     */
+    boolean get(int index) {
+        int word = index / WORD_BITS;
+
+        return word < mWords.length && (mWords[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Set the bit.
+     *
+     * @param index the bit index
+     */
+    void set(int index) {
+        int word = index / WORD_BITS;
+        if (word >= mWords.length) {
+            grow(word + 1);
+        }
+
+        long bit = 1L << index;
+        if ((mWords[word] & bit) == 0) {
+            mWords[word] |= bit;
+            mCardinality++;
+            add(word, 1);
+        }
+    }
+
+    /**
+     * Clear the bit.
+     *
+     * @param index the bit index
+     */
+    void clear(int index) {
+        int word = index / WORD_BITS;
+        long bit = 1L << index;
+        if (word < mWords.length && (mWords[word] & bit) != 0) {
+            mWords[word] &= ~bit;
+            mCardinality--;
+            add(word, -1);
+        }
+    }
+
+    /**
+     * Clear all bits. The memory is kept.
+     */
+    void clear() {
+        Arrays.fill(mWords, 0);
+        Arrays.fill(mTree, 0);
+        mCardinality = 0;
+    }
+
+    /**
+     * @return the number of set bits
+     */
+    int cardinality() {
+        return mCardinality;
+    }
+
+    /**
+     * @param index the bit index
+     * @return the number of set bits below the index
+     */
+    int rank(int index) {
+        int word = Math.min(index / WORD_BITS, mWords.length);
+        int rank = 0;
+        for (int i = word; i > 0; i -= i & -i) {
+            rank += mTree[i];
+        }
+
+        if (word < mWords.length) {
+            rank += Long.bitCount(mWords[word] & ((1L << index) - 1));
+        }
+
+        return rank;
+    }
+
+    /**
+     * Find the clear bit with the specified number of clear bits below it.
+     *
+     * @param n the number of clear bits below the wanted one, from 0
+     * @return the index of the bit
+     */
+    int selectClear(int n) {
+        // Find the last word whose preceding words have at most n clear bits.
+        int word = 0;
+        int remaining = n;
+        for (int step = Integer.highestOneBit(mWords.length); step > 0; step >>= 1) {
+            int next = word + step;
+            if (next <= mWords.length) {
+                int clear = step * WORD_BITS - mTree[next];
+                if (clear <= remaining) {
+                    word = next;
+                    remaining -= clear;
+                }
+            }
+        }
+
+        if (word == mWords.length) {
+            // All bits of the words are taken, the bit lies beyond them.
+            return word * WORD_BITS + remaining;
+        }
+
+        long clearBits = ~mWords[word];
+        for (int i = 0; i < remaining; i++) {
+            clearBits &= clearBits - 1;
+        }
+
+        return word * WORD_BITS + Long.numberOfTrailingZeros(clearBits);
+    }
+
+    private void add(int word, int delta) {
+        for (int i = word + 1; i < mTree.length; i += i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    private void grow(int wordCount) {
+        int newLength = mWords.length;
+        while (newLength < wordCount) {
+            newLength *= 2;
+        }
+
+        mWords = Arrays.copyOf(mWords, newLength);
+        mTree = new int[newLength + 1];
+        for (int word = 0; word < newLength; word++) {
+            int i = word + 1;
+            mTree[i] += Long.bitCount(mWords[word]);
+            int parent = i + (i & -i);
+            if (parent <= newLength) {
+                mTree[parent] += mTree[i];
+            }
+        }
+    }
+}
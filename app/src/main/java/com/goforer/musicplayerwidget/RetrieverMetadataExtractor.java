@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import android.media.MediaMetadataRetriever;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Metadata extractor backed by a small pool of {@link MediaMetadataRetriever}s.
+ *
+ * <p>
+ * A retriever holds native resources, so instead of creating one per song the retrievers are
+ * reused, and every retriever is released once it isn't needed anymore.
+ * </p>
+ */
+class RetrieverMetadataExtractor implements MetadataExtractor {
+    private static final int MAX_POOL_SIZE = 2;
+
+    private final ArrayDeque<MediaMetadataRetriever> mPool = new ArrayDeque<>();
+
+    private boolean mClosed;
+
+    @Override
+    public SongMetadata extract(File file) throws IOException {
+        MediaMetadataRetriever retriever = acquire();
+        try {
+            retriever.setDataSource(file.getAbsolutePath());
+
+            return new SongMetadata(
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM),
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE),
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST),
+                    ID3TagReader.normalizeGenre(retriever.extractMetadata(
+                            MediaMetadataRetriever.METADATA_KEY_GENRE)),
+                    SongMetadata.parseYear(retriever.extractMetadata(
+                            MediaMetadataRetriever.METADATA_KEY_YEAR)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Can't read " + file, e);
+        } finally {
+            recycle(retriever);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        for (MediaMetadataRetriever retriever : mPool) {
+            retriever.release();
+        }
+
+        mPool.clear();
+    }
+
+    private synchronized MediaMetadataRetriever acquire() {
+        MediaMetadataRetriever retriever = mPool.poll();
+
+        return retriever != null ? retriever : new MediaMetadataRetriever();
+    }
+
+    private synchronized void recycle(MediaMetadataRetriever retriever) {
+        if (mClosed || mPool.size() >= MAX_POOL_SIZE) {
+            retriever.release();
+        } else {
+            mPool.push(retriever);
+        }
+    }
+}
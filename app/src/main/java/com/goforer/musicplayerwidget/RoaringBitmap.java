@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.Arrays;
+
+/**
+ * Compressed bitmap of non-negative ints in the style of a Roaring bitmap.
+ *
+ * <p>
+ * The values are split by their upper 16 bits into chunks of 65536 values. A chunk with at
+ * most {@link #MAX_ARRAY_SIZE} values is a sorted char array of the lower 16 bits, a denser
+ * chunk is a bitmap of 8 KB, so a chunk never takes more than 8 KB and a sparse bitmap takes
+ * 2 bytes per value. Two bitmaps are intersected chunk by chunk, and only the chunks which are
+ * in both are looked at. The n-th value is selected by skipping whole chunks by their
+ * cardinality, so a random value of a bitmap is picked without iterating over the values.
+ * </p>
+ *
+ * <p>
+ * The bitmap isn't thread-safe.
+ * </p>
+ */
+final class RoaringBitmap {
+    // A chunk with more values is a bitmap
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    private static final int BITMAP_WORDS = 1024;
+    private static final int INITIAL_CAPACITY = 4;
+
+    // The upper 16 bits of the values of the chunks, in ascending order
+    private char[] mKeys = new char[INITIAL_CAPACITY];
+    private Chunk[] mChunks = new Chunk[INITIAL_CAPACITY];
+    private int mSize;
+    private int mCardinality;
+
+    /**
+     * The values of a bitmap which have the same upper 16 bits.
+     */
+    private static final class Chunk {
+        // The sorted values while the chunk is an array, null once it is a bitmap
+        char[] mValues;
+        // The bits of the values once the chunk is a bitmap, null while it is an array
+        long[] mWords;
+        int mCardinality;
+
+        static Chunk newArray(char[] values, int cardinality) {
+            Chunk chunk = new Chunk();
+            chunk.mValues = values;
+            chunk.mCardinality = cardinality;
+
+            return chunk;
+        }
+
+        boolean add(char value) {
+            if (mWords != null) {
+                long bit = 1L << value;
+                if ((mWords[value >>> 6] & bit) != 0) {
+                    return false;
+                }
+
+                mWords[value >>> 6] |= bit;
+                mCardinality++;
+
+                return true;
+            }
+
+            int index = Arrays.binarySearch(mValues, 0, mCardinality, value);
+            if (index >= 0) {
+                return false;
+            }
+
+            if (mCardinality == MAX_ARRAY_SIZE) {
+                toBitmap();
+
+                return add(value);
+            }
+
+            index = -1 - index;
+            if (mCardinality == mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.min(mCardinality * 2, MAX_ARRAY_SIZE));
+            }
+
+            System.arraycopy(mValues, index, mValues, index + 1, mCardinality - index);
+            mValues[index] = value;
+            mCardinality++;
+
+            return true;
+        }
+
+        boolean remove(char value) {
+            if (mWords != null) {
+                long bit = 1L << value;
+                if ((mWords[value >>> 6] & bit) == 0) {
+                    return false;
+                }
+
+                mWords[value >>> 6] &= ~bit;
+                // Only half way down, so a chunk at the limit doesn't switch on every change.
+                if (--mCardinality <= MAX_ARRAY_SIZE / 2) {
+                    toArray();
+                }
+
+                return true;
+            }
+
+            int index = Arrays.binarySearch(mValues, 0, mCardinality, value);
+            if (index < 0) {
+                return false;
+            }
+
+            System.arraycopy(mValues, index + 1, mValues, index, mCardinality - index - 1);
+            mCardinality--;
+
+            return true;
+        }
+
+        boolean contains(char value) {
+            if (mWords != null) {
+                return (mWords[value >>> 6] & (1L << value)) != 0;
+            }
+
+            return Arrays.binarySearch(mValues, 0, mCardinality, value) >= 0;
+        }
+
+        char select(int n) {
+            if (mValues != null) {
+                return mValues[n];
+            }
+
+            int remaining = n;
+            for (int word = 0; ; word++) {
+                int count = Long.bitCount(mWords[word]);
+                if (remaining < count) {
+                    long bits = mWords[word];
+                    for (int i = 0; i < remaining; i++) {
+                        bits &= bits - 1;
+                    }
+
+                    return (char) (word * 64 + Long.numberOfTrailingZeros(bits));
+                }
+
+                remaining -= count;
+            }
+        }
+
+        /**
+         * @return the values which are in both chunks, or null if there are none
+         */
+        static Chunk and(Chunk a, Chunk b) {
+            if (a.mValues != null && b.mValues != null) {
+                char[] values = new char[Math.min(a.mCardinality, b.mCardinality)];
+                int count = 0;
+                int i = 0;
+                int j = 0;
+                while (i < a.mCardinality && j < b.mCardinality) {
+                    char x = a.mValues[i];
+                    char y = b.mValues[j];
+                    if (x == y) {
+                        values[count++] = x;
+                        i++;
+                        j++;
+                    } else if (x < y) {
+                        i++;
+                    } else {
+                        j++;
+                    }
+                }
+
+                return count > 0 ? newArray(values, count) : null;
+            }
+
+            if (a.mValues != null || b.mValues != null) {
+                Chunk array = a.mValues != null ? a : b;
+                Chunk bitmap = a.mValues != null ? b : a;
+                char[] values = new char[array.mCardinality];
+                int count = 0;
+                for (int i = 0; i < array.mCardinality; i++) {
+                    char value = array.mValues[i];
+                    if ((bitmap.mWords[value >>> 6] & (1L << value)) != 0) {
+                        values[count++] = value;
+                    }
+                }
+
+                return count > 0 ? newArray(values, count) : null;
+            }
+
+            long[] words = new long[BITMAP_WORDS];
+            int cardinality = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] = a.mWords[i] & b.mWords[i];
+                cardinality += Long.bitCount(words[i]);
+            }
+
+            if (cardinality == 0) {
+                return null;
+            }
+
+            Chunk chunk = new Chunk();
+            chunk.mWords = words;
+            chunk.mCardinality = cardinality;
+            if (cardinality <= MAX_ARRAY_SIZE) {
+                chunk.toArray();
+            }
+
+            return chunk;
+        }
+
+        private void toBitmap() {
+            mWords = new long[BITMAP_WORDS];
+            for (int i = 0; i < mCardinality; i++) {
+                mWords[mValues[i] >>> 6] |= 1L << mValues[i];
+            }
+
+            mValues = null;
+        }
+
+        private void toArray() {
+            mValues = new char[mCardinality];
+            int count = 0;
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                for (long bits = mWords[word]; bits != 0; bits &= bits - 1) {
+                    mValues[count++] = (char) (word * 64 + Long.numberOfTrailingZeros(bits));
+                }
+            }
+
+            mWords = null;
+        }
+    }
+
+    /**
+     * Add the value.
+     *
+     * @param value the value, not negative
+     * @return true if the value wasn't in the bitmap yet
+     */
+    boolean add(int value) {
+        checkValue(value);
+        char key = (char) (value >>> 16);
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index < 0) {
+            index = -1 - index;
+            insertChunk(index, key, Chunk.newArray(new char[INITIAL_CAPACITY], 0));
+        }
+
+        if (!mChunks[index].add((char) value)) {
+            return false;
+        }
+
+        mCardinality++;
+
+        return true;
+    }
+
+    /**
+     * Remove the value.
+     *
+     * @param value the value
+     * @return true if the value was in the bitmap
+     */
+    boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+
+        int index = Arrays.binarySearch(mKeys, 0, mSize, (char) (value >>> 16));
+        if (index < 0 || !mChunks[index].remove((char) value)) {
+            return false;
+        }
+
+        mCardinality--;
+        if (mChunks[index].mCardinality == 0) {
+            System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+            System.arraycopy(mChunks, index + 1, mChunks, index, mSize - index - 1);
+            mChunks[--mSize] = null;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param value the value
+     * @return true if the value is in the bitmap
+     */
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+
+        int index = Arrays.binarySearch(mKeys, 0, mSize, (char) (value >>> 16));
+
+        return index >= 0 && mChunks[index].contains((char) value);
+    }
+
+    /**
+     * @return the number of values in the bitmap
+     */
+    int getCardinality() {
+        return mCardinality;
+    }
+
+    /**
+     * @return true if the bitmap has no values
+     */
+    boolean isEmpty() {
+        return mCardinality == 0;
+    }
+
+    /**
+     * Remove all values.
+     */
+    void clear() {
+        Arrays.fill(mChunks, 0, mSize, null);
+        mSize = 0;
+        mCardinality = 0;
+    }
+
+    /**
+     * Find the value with the specified number of smaller values in the bitmap.
+     *
+     * @param n the number of smaller values, from 0 to {@link #getCardinality()} - 1
+     * @return the value
+     */
+    int select(int n) {
+        if (n < 0 || n >= mCardinality) {
+            throw new IndexOutOfBoundsException("Index " + n + ", cardinality " + mCardinality);
+        }
+
+        int remaining = n;
+        for (int i = 0; ; i++) {
+            Chunk chunk = mChunks[i];
+            if (remaining < chunk.mCardinality) {
+                return (mKeys[i] << 16) | chunk.select(remaining);
+            }
+
+            remaining -= chunk.mCardinality;
+        }
+    }
+
+    /**
+     * @return the values in ascending order
+     */
+    int[] toArray() {
+        int[] values = new int[mCardinality];
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            int high = mKeys[i] << 16;
+            Chunk chunk = mChunks[i];
+            if (chunk.mValues != null) {
+                for (int j = 0; j < chunk.mCardinality; j++) {
+                    values[count++] = high | chunk.mValues[j];
+                }
+            } else {
+                for (int word = 0; word < BITMAP_WORDS; word++) {
+                    for (long bits = chunk.mWords[word]; bits != 0; bits &= bits - 1) {
+                        values[count++] = high | (word * 64 + Long.numberOfTrailingZeros(bits));
+                    }
+                }
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Intersect two bitmaps.
+     *
+     * @param a the first bitmap
+     * @param b the second bitmap
+     * @return a new bitmap of the values which are in both
+     */
+    static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.mSize && j < b.mSize) {
+            char x = a.mKeys[i];
+            char y = b.mKeys[j];
+            if (x == y) {
+                Chunk chunk = Chunk.and(a.mChunks[i], b.mChunks[j]);
+                if (chunk != null) {
+                    result.insertChunk(result.mSize, x, chunk);
+                    result.mCardinality += chunk.mCardinality;
+                }
+
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    private void insertChunk(int index, char key, Chunk chunk) {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mChunks = Arrays.copyOf(mChunks, mSize * 2);
+        }
+
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mChunks, index, mChunks, index + 1, mSize - index);
+        mKeys[index] = key;
+        mChunks[index] = chunk;
+        mSize++;
+    }
+
+    private static void checkValue(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Metadata store kept in a SQLite database, one row per song path.
+ *
+ * <p>
+ * The store is only read when the in-memory cache of {@link MetadataService} misses and only
+ * written when a song is parsed for the first time, so the database isn't touched on most song
+ * changes.
+ * </p>
+ */
+class SQLiteMetadataStore extends SQLiteOpenHelper implements MetadataStore {
+    private static final String DATABASE_NAME = "metadata.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "metadata";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_MODIFIED = "modified";
+    private static final String COLUMN_ALBUM = "album";
+    private static final String COLUMN_TITLE = "title";
+    private static final String COLUMN_ARTIST = "artist";
+    private static final String COLUMN_GENRE = "genre";
+    private static final String COLUMN_YEAR = "year";
+
+    private static final String[] COLUMNS = {
+            COLUMN_SIZE, COLUMN_MODIFIED, COLUMN_ALBUM, COLUMN_TITLE, COLUMN_ARTIST, COLUMN_GENRE,
+            COLUMN_YEAR
+    };
+
+    SQLiteMetadataStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_ALBUM + " TEXT, "
+                + COLUMN_TITLE + " TEXT, "
+                + COLUMN_ARTIST + " TEXT, "
+                + COLUMN_GENRE + " TEXT, "
+                + COLUMN_YEAR + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The store is only a cache, so it is simply rebuilt.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    @Override
+    public SongMetadata get(String path, long size, long lastModified) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, COLUMN_PATH + " = ?",
+                new String[] { path }, null, null, null)) {
+            if (!cursor.moveToFirst() || cursor.getLong(0) != size
+                    || cursor.getLong(1) != lastModified) {
+                return null;
+            }
+
+            return new SongMetadata(cursor.getString(2), cursor.getString(3),
+                    cursor.getString(4), cursor.getString(5), cursor.getInt(6));
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String path, long size, long lastModified, SongMetadata metadata) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_SIZE, size);
+        values.put(COLUMN_MODIFIED, lastModified);
+        values.put(COLUMN_ALBUM, metadata.mAlbum);
+        values.put(COLUMN_TITLE, metadata.mTitle);
+        values.put(COLUMN_ARTIST, metadata.mArtist);
+        values.put(COLUMN_GENRE, metadata.mGenre);
+        values.put(COLUMN_YEAR, metadata.mYear);
+        try {
+            getWritableDatabase().insertWithOnConflict(TABLE, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Screen to find a song by the first letters of the words of its name, album or artist and to
+ * play it.
+ *
+ * <p>
+ * The activity binds to {@link PlayerService} and searches its library index on a thread of its
+ * own on every change of the query, so typing never waits for the index. A query which has been
+ * replaced by a newer one before it was searched is dropped. The chosen song is sent to the
+ * service like the widget commands.
+ * </p>
+ */
+public class SearchActivity extends AppCompatActivity implements ServiceConnection,
+        TextWatcher, AdapterView.OnItemClickListener {
+    private static final String TAG = "SearchActivity";
+
+    private static final int MSG_SEARCH = 1;
+
+    // The number of songs shown for a query
+    private static final int MAX_RESULTS = 50;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mSearchThread;
+    private Handler mSearchHandler;
+
+    // Set on the main thread, used on the search thread
+    private volatile PlayerService.SearchBinder mBinder;
+
+    private EditText mQueryView;
+    private ArrayAdapter<String> mAdapter;
+    // The songs of the shown results, by position
+    private final ArrayList<File> mResults = new ArrayList<>();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_search);
+
+        mQueryView = (EditText) findViewById(R.id.et_query);
+        mQueryView.addTextChangedListener(this);
+        mAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        ListView resultsView = (ListView) findViewById(R.id.lv_results);
+        resultsView.setAdapter(mAdapter);
+        resultsView.setOnItemClickListener(this);
+
+        mSearchThread = new HandlerThread(TAG);
+        mSearchThread.start();
+        mSearchHandler = new Handler(mSearchThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                handleSearch((String) msg.obj);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, PlayerService.class), this, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        unbindService(this);
+        mBinder = null;
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mSearchThread.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        mBinder = (PlayerService.SearchBinder) service;
+        search(mQueryView.getText().toString());
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        mBinder = null;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        search(s.toString());
+    }
+
+    @Override
+    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        Intent intent = new Intent(this, PlayerService.class);
+        intent.setAction(PlayerService.ACTION_PLAY_SONG);
+        intent.putExtra(PlayerService.EXTRA_PATH, mResults.get(position).getPath());
+        startService(intent);
+    }
+
+    /**
+     * Queue the query to the search thread in place of the one which is still waiting.
+     */
+    private void search(String query) {
+        mSearchHandler.removeMessages(MSG_SEARCH);
+        mSearchHandler.obtainMessage(MSG_SEARCH, query).sendToTarget();
+    }
+
+    private void handleSearch(String query) {
+        PlayerService.SearchBinder binder = mBinder;
+        final List<File> files = binder != null ? binder.search(query, MAX_RESULTS)
+                : Collections.<File>emptyList();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                showResults(files);
+            }
+        });
+    }
+
+    private void showResults(List<File> files) {
+        mResults.clear();
+        mResults.addAll(files);
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        for (File file : files) {
+            mAdapter.add(getSongTitle(file));
+        }
+
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Get the song's file name without the extension, followed by the name of its directory,
+     * which is usually the album.
+     *
+     * @param file the song file
+     *
+     * @return the title to show
+     */
+    private static String getSongTitle(File file) {
+        return file.getName().replace(".mp3", "") + " - " + file.getParentFile().getName();
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.Arrays;
+
+/**
+ * Prefix search index of the words of the tracks, by track ID.
+ *
+ * <p>
+ * The words are the runs of letters and digits of the fields of a track, like its file name,
+ * its album and its artist, compared in lower case. They are kept in a trie of one node per
+ * char, stored in parallel arrays instead of an object per node, and every node at the end of
+ * a word holds the IDs of the tracks which have the word. The child of a node with a char is
+ * found in an open addressing hash table, the sorted sibling links are only walked to insert
+ * a node and to list the words below a prefix.
+ * </p>
+ *
+ * <p>
+ * The tracks of a prefix are found by walking the prefix down from the root and then the nodes
+ * below it, so a search of one word only looks at the tracks it returns. The walk is in the
+ * alphabetical order of the words, so a word which is the whole prefix comes first, and it
+ * stops once the results are full. A query of several words matches the tracks which have a
+ * word starting with every one of them. Every node counts the tracks below it, so the tracks
+ * are collected below the word of the query with the fewest of them, and are checked against
+ * the word nodes kept for every track. A search allocates nothing, the results are written
+ * into the caller's array.
+ * </p>
+ *
+ * <p>
+ * The nodes of the words no track has anymore are kept until {@link #clear()}. The index isn't
+ * thread-safe.
+ * </p>
+ */
+final class SearchIndex {
+    // The number of words of a query which are matched, the following ones are ignored
+    static final int MAX_QUERY_WORDS = 8;
+    // The number of chars of a word which are indexed, the following ones are ignored
+    static final int MAX_WORD_LENGTH = 64;
+
+    private static final int INITIAL_NODE_CAPACITY = 64;
+    // The root is nobody's child or sibling, so 0 marks no node in the links.
+    private static final int ROOT = 0;
+    private static final int NONE = 0;
+
+    private char[] mChars = new char[INITIAL_NODE_CAPACITY];
+    private char[] mDepths = new char[INITIAL_NODE_CAPACITY];
+    private int[] mParents = new int[INITIAL_NODE_CAPACITY];
+    private int[] mFirstChildren = new int[INITIAL_NODE_CAPACITY];
+    // The siblings are linked in the order of their chars.
+    private int[] mNextSiblings = new int[INITIAL_NODE_CAPACITY];
+    // The IDs of the tracks which have the word ending at the node, in no order
+    private int[][] mPostings = new int[INITIAL_NODE_CAPACITY][];
+    private int[] mPostingCounts = new int[INITIAL_NODE_CAPACITY];
+    // The number of postings of the node and of all nodes below it
+    private int[] mSubtreeCounts = new int[INITIAL_NODE_CAPACITY];
+    private int mNodeCount = 1;
+    // The node + 1 of every used slot by the hash of its parent and char, 0 marks an empty slot
+    private int[] mChildSlots = new int[INITIAL_NODE_CAPACITY * 2];
+
+    // The word nodes of every track, mTrackWordCounts[id] from mTrackWordStarts[id] in mWords
+    private int[] mWords;
+    private int mWordsLength;
+    // The number of entries of the removed tracks in mWords
+    private int mGarbage;
+    private int[] mTrackWordStarts;
+    private int[] mTrackWordCounts;
+
+    // The search in which every track was last looked at, so it is collected once
+    private int[] mSearches;
+    private int mSearch;
+    private final int[] mQueryNodes = new int[MAX_QUERY_WORDS];
+
+    /**
+     * Create the index which can hold the specified number of tracks before it grows.
+     *
+     * @param capacity the number of tracks
+     */
+    SearchIndex(int capacity) {
+        mWords = new int[capacity * 4];
+        mTrackWordStarts = new int[capacity];
+        mTrackWordCounts = new int[capacity];
+        mSearches = new int[capacity];
+    }
+
+    /**
+     * Set the fields of the track, replacing the ones it had.
+     *
+     * @param id the track ID
+     * @param fields the fields whose words are indexed, a field may be null
+     */
+    void set(int id, String... fields) {
+        ensureTrackCapacity(id + 1);
+        remove(id);
+
+        int start = mWordsLength;
+        for (String field : fields) {
+            if (field != null) {
+                addWords(id, field, start);
+            }
+        }
+
+        mTrackWordStarts[id] = start;
+        mTrackWordCounts[id] = mWordsLength - start;
+    }
+
+    /**
+     * Remove the track from the index.
+     *
+     * @param id the track ID
+     */
+    void remove(int id) {
+        if (id >= mTrackWordCounts.length || mTrackWordCounts[id] == 0) {
+            return;
+        }
+
+        int start = mTrackWordStarts[id];
+        for (int i = start, end = start + mTrackWordCounts[id]; i < end; i++) {
+            int node = mWords[i];
+            int[] posting = mPostings[node];
+            int last = --mPostingCounts[node];
+            posting[indexOf(posting, last + 1, id)] = posting[last];
+            for (int n = node; n != ROOT; n = mParents[n]) {
+                mSubtreeCounts[n]--;
+            }
+        }
+
+        mGarbage += mTrackWordCounts[id];
+        mTrackWordCounts[id] = 0;
+        if (mGarbage > mWordsLength / 2) {
+            compactWords();
+        }
+    }
+
+    /**
+     * Give the track another ID. The new ID must not be in the index.
+     *
+     * @param from the current track ID
+     * @param to the new track ID
+     */
+    void move(int from, int to) {
+        if (from >= mTrackWordCounts.length || mTrackWordCounts[from] == 0) {
+            return;
+        }
+
+        ensureTrackCapacity(to + 1);
+        int start = mTrackWordStarts[from];
+        int count = mTrackWordCounts[from];
+        for (int i = start; i < start + count; i++) {
+            int node = mWords[i];
+            int[] posting = mPostings[node];
+            posting[indexOf(posting, mPostingCounts[node], from)] = to;
+        }
+
+        mTrackWordStarts[to] = start;
+        mTrackWordCounts[to] = count;
+        mTrackWordCounts[from] = 0;
+    }
+
+    /**
+     * Remove all tracks and words. The memory of the index is kept for the tracks set next.
+     */
+    void clear() {
+        mNodeCount = 1;
+        mFirstChildren[ROOT] = NONE;
+        Arrays.fill(mChildSlots, 0);
+        mWordsLength = 0;
+        mGarbage = 0;
+        Arrays.fill(mTrackWordCounts, 0);
+    }
+
+    /**
+     * Find the tracks which have a word starting with every word of the query.
+     *
+     * @param query the words the user has typed so far, the case doesn't matter
+     * @param results the array to write the IDs of the found tracks into, a search stops once
+     *                it is full
+     * @return the number of tracks found
+     */
+    int search(CharSequence query, int[] results) {
+        int words = 0;
+        int rarest = 0;
+        int i = 0;
+        int length = query.length();
+        while (words < MAX_QUERY_WORDS) {
+            while (i < length && !Character.isLetterOrDigit(query.charAt(i))) {
+                i++;
+            }
+
+            if (i == length) {
+                break;
+            }
+
+            int node = ROOT;
+            for (int depth = 0; i < length && Character.isLetterOrDigit(query.charAt(i));
+                 i++, depth++) {
+                if (node != -1 && depth < MAX_WORD_LENGTH) {
+                    node = findChild(node, Character.toLowerCase(query.charAt(i)), false);
+                }
+            }
+
+            if (node == -1) {
+                // No word starts with this one.
+                return 0;
+            }
+
+            if (words == 0 || mSubtreeCounts[node] < mSubtreeCounts[mQueryNodes[rarest]]) {
+                rarest = words;
+            }
+
+            mQueryNodes[words++] = node;
+        }
+
+        if (words == 0 || results.length == 0) {
+            return 0;
+        }
+
+        if (++mSearch == 0) {
+            Arrays.fill(mSearches, 0);
+            mSearch = 1;
+        }
+
+        // Walk the nodes below the rarest word in pre-order, each posting before the children.
+        int count = 0;
+        int top = mQueryNodes[rarest];
+        int node = top;
+        while (true) {
+            int[] posting = mPostings[node];
+            for (int p = 0, n = mPostingCounts[node]; p < n; p++) {
+                int id = posting[p];
+                if (mSearches[id] == mSearch) {
+                    continue;
+                }
+
+                mSearches[id] = mSearch;
+                if (hasAllWords(id, words, rarest)) {
+                    results[count++] = id;
+                    if (count == results.length) {
+                        return count;
+                    }
+                }
+            }
+
+            if (mFirstChildren[node] != NONE) {
+                node = mFirstChildren[node];
+                continue;
+            }
+
+            while (node != top && mNextSiblings[node] == NONE) {
+                node = mParents[node];
+            }
+
+            if (node == top) {
+                return count;
+            }
+
+            node = mNextSiblings[node];
+        }
+    }
+
+    /**
+     * @return true if the track has a word below every query node except the skipped one
+     */
+    private boolean hasAllWords(int id, int words, int skipped) {
+        int start = mTrackWordStarts[id];
+        int end = start + mTrackWordCounts[id];
+        for (int w = 0; w < words; w++) {
+            if (w == skipped) {
+                continue;
+            }
+
+            int prefix = mQueryNodes[w];
+            int depth = mDepths[prefix];
+            boolean found = false;
+            for (int i = start; i < end && !found; i++) {
+                int node = mWords[i];
+                while (mDepths[node] > depth) {
+                    node = mParents[node];
+                }
+
+                found = node == prefix;
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Add the words of the field to the track, except the ones it already has since start.
+     */
+    private void addWords(int id, String field, int start) {
+        int i = 0;
+        int length = field.length();
+        while (true) {
+            while (i < length && !Character.isLetterOrDigit(field.charAt(i))) {
+                i++;
+            }
+
+            if (i == length) {
+                return;
+            }
+
+            int node = ROOT;
+            for (int depth = 0; i < length && Character.isLetterOrDigit(field.charAt(i));
+                 i++, depth++) {
+                if (depth < MAX_WORD_LENGTH) {
+                    node = findChild(node, Character.toLowerCase(field.charAt(i)), true);
+                }
+            }
+
+            if (indexOf(mWords, start, mWordsLength, node) == -1) {
+                addPosting(node, id);
+                ensureWordCapacity(mWordsLength + 1);
+                mWords[mWordsLength++] = node;
+            }
+        }
+    }
+
+    /**
+     * @return the child of the node with the char, or -1 if there is none and create is false
+     */
+    private int findChild(int parent, char c, boolean create) {
+        int mask = mChildSlots.length - 1;
+        for (int slot = hash(parent, c) & mask; mChildSlots[slot] != 0;
+             slot = (slot + 1) & mask) {
+            int node = mChildSlots[slot] - 1;
+            if (mParents[node] == parent && mChars[node] == c) {
+                return node;
+            }
+        }
+
+        if (!create) {
+            return -1;
+        }
+
+        ensureNodeCapacity(mNodeCount + 1);
+        int child = mNodeCount++;
+        mChars[child] = c;
+        mDepths[child] = (char) (mDepths[parent] + 1);
+        mParents[child] = parent;
+        mFirstChildren[child] = NONE;
+        // The posting array of a node used before clear() is kept.
+        mPostingCounts[child] = 0;
+        mSubtreeCounts[child] = 0;
+        insertSlot(child);
+
+        int previous = NONE;
+        int node = mFirstChildren[parent];
+        while (node != NONE && mChars[node] < c) {
+            previous = node;
+            node = mNextSiblings[node];
+        }
+
+        mNextSiblings[child] = node;
+        if (previous == NONE) {
+            mFirstChildren[parent] = child;
+        } else {
+            mNextSiblings[previous] = child;
+        }
+
+        return child;
+    }
+
+    private void insertSlot(int node) {
+        int mask = mChildSlots.length - 1;
+        int slot = hash(mParents[node], mChars[node]) & mask;
+        while (mChildSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        mChildSlots[slot] = node + 1;
+    }
+
+    private void addPosting(int node, int id) {
+        int[] posting = mPostings[node];
+        int count = mPostingCounts[node];
+        if (posting == null) {
+            posting = mPostings[node] = new int[2];
+        } else if (count == posting.length) {
+            posting = mPostings[node] = Arrays.copyOf(posting, count * 2);
+        }
+
+        posting[count] = id;
+        mPostingCounts[node] = count + 1;
+        for (int n = node; n != ROOT; n = mParents[n]) {
+            mSubtreeCounts[n]++;
+        }
+    }
+
+    /**
+     * Copy the word nodes of the tracks into a new array without the ones of the removed tracks.
+     */
+    private void compactWords() {
+        int[] words = new int[Math.max(mWordsLength - mGarbage, INITIAL_NODE_CAPACITY)];
+        int length = 0;
+        for (int id = 0; id < mTrackWordCounts.length; id++) {
+            int count = mTrackWordCounts[id];
+            if (count > 0) {
+                System.arraycopy(mWords, mTrackWordStarts[id], words, length, count);
+                mTrackWordStarts[id] = length;
+                length += count;
+            }
+        }
+
+        mWords = words;
+        mWordsLength = length;
+        mGarbage = 0;
+    }
+
+    private void ensureNodeCapacity(int capacity) {
+        if (capacity <= mChars.length) {
+            return;
+        }
+
+        int newCapacity = mChars.length * 2;
+        mChars = Arrays.copyOf(mChars, newCapacity);
+        mDepths = Arrays.copyOf(mDepths, newCapacity);
+        mParents = Arrays.copyOf(mParents, newCapacity);
+        mFirstChildren = Arrays.copyOf(mFirstChildren, newCapacity);
+        mNextSiblings = Arrays.copyOf(mNextSiblings, newCapacity);
+        mPostings = Arrays.copyOf(mPostings, newCapacity);
+        mPostingCounts = Arrays.copyOf(mPostingCounts, newCapacity);
+        mSubtreeCounts = Arrays.copyOf(mSubtreeCounts, newCapacity);
+
+        // Keep the load factor of the slots at 1/2 at most.
+        mChildSlots = new int[newCapacity * 2];
+        for (int node = 1; node < mNodeCount; node++) {
+            insertSlot(node);
+        }
+    }
+
+    private void ensureTrackCapacity(int capacity) {
+        if (capacity <= mTrackWordCounts.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, mTrackWordCounts.length * 2);
+        mTrackWordStarts = Arrays.copyOf(mTrackWordStarts, newCapacity);
+        mTrackWordCounts = Arrays.copyOf(mTrackWordCounts, newCapacity);
+        mSearches = Arrays.copyOf(mSearches, newCapacity);
+    }
+
+    private void ensureWordCapacity(int capacity) {
+        if (capacity > mWords.length) {
+            mWords = Arrays.copyOf(mWords, Math.max(capacity, mWords.length * 2));
+        }
+    }
+
+    private static int hash(int parent, char c) {
+        int hash = parent * 31 + c;
+        // Spread the bits, so the low bits used as the slot depend on the whole hash.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+
+        return hash;
+    }
+
+    private static int indexOf(int[] array, int length, int value) {
+        return indexOf(array, 0, length, value);
+    }
+
+    private static int indexOf(int[] array, int start, int end, int value) {
+        for (int i = start; i < end; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
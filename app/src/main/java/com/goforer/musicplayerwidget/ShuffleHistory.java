@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The file of the tracks played in the current shuffle cycle, so the cycle goes on after the
+ * service is restarted.
+ *
+ * <p>
+ * The file is a plain list of the 64-bit path hashes of the played tracks, 8 bytes each, and
+ * every pick appends one hash to it, so no write grows with the library. Since the tracks are
+ * identified by their paths and not by their IDs, the list stays valid when the library
+ * changes: the hashes of removed tracks just match nothing. A torn last entry is ignored. A
+ * hash collision would count an unplayed track as played for the rest of the cycle, but with
+ * 64 bits it is unlikely even in a huge library. The entries of a file of the earlier 4 byte
+ * hash codes match nothing either, so that cycle just starts over.
+ * </p>
+ *
+ * <p>
+ * Like the {@link PlayLog}, the caller only encodes the change and the file is written on the
+ * executor, so the playback thread never waits for the storage while it holds the index.
+ * </p>
+ */
+class ShuffleHistory {
+    // long path hash
+    private static final int ENTRY_SIZE = 8;
+
+    private final File mFile;
+    private final Executor mExecutor;
+
+    /**
+     * Create the history which is stored in the specified file.
+     *
+     * @param file the history file
+     * @param executor the executor to write on, which must run the tasks one after another
+     */
+    ShuffleHistory(File file, Executor executor) {
+        mFile = file;
+        mExecutor = executor;
+    }
+
+    /**
+     * Read the hashes of the played tracks.
+     *
+     * @return the sorted hashes, empty if the file is missing or can't be read
+     */
+    synchronized long[] read() {
+        long[] hashes;
+        try (RandomAccessFile in = new RandomAccessFile(mFile, "r")) {
+            int count = (int) Math.min(in.length() / ENTRY_SIZE, Integer.MAX_VALUE / ENTRY_SIZE);
+            byte[] bytes = new byte[count * ENTRY_SIZE];
+            in.readFully(bytes);
+            hashes = new long[count];
+            ByteBuffer.wrap(bytes).asLongBuffer().get(hashes);
+        } catch (FileNotFoundException e) {
+            return new long[0];
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new long[0];
+        }
+
+        Arrays.sort(hashes);
+
+        return hashes;
+    }
+
+    /**
+     * Append the hash of a played track. The file is written on the executor.
+     *
+     * @param hash the path hash of the track
+     */
+    void append(long hash) {
+        final byte[] bytes = ByteBuffer.allocate(ENTRY_SIZE).putLong(hash).array();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(bytes, true);
+            }
+        });
+    }
+
+    /**
+     * Start a new cycle by emptying the file.
+     */
+    void clear() {
+        write(new long[0], 0);
+    }
+
+    /**
+     * Replace the file with the specified hashes, e.g. to drop the ones of removed tracks. The
+     * file is written on the executor.
+     *
+     * @param hashes the path hashes of the played tracks
+     * @param count the number of hashes to write
+     */
+    void write(long[] hashes, int count) {
+        final byte[] bytes = new byte[count * ENTRY_SIZE];
+        ByteBuffer.wrap(bytes).asLongBuffer().put(hashes, 0, count);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(bytes, false);
+            }
+        });
+    }
+
+    /**
+     * Run the write on the executor. A refresh which is still running when the player is
+     * released may change the history after the executor has been shut down. That change is
+     * dropped, the next rebuild drops the hashes of the removed tracks again.
+     */
+    private void execute(Runnable write) {
+        try {
+            mExecutor.execute(write);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void writeFile(byte[] bytes, boolean append) {
+        try (FileOutputStream out = new FileOutputStream(mFile, append)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+/**
+ * The tag metadata of a song. A text field is null and the year is 0 if the song has no such
+ * tag.
+ */
+final class SongMetadata {
+    static final SongMetadata EMPTY = new SongMetadata(null, null, null);
+
+    final String mAlbum;
+    final String mTitle;
+    final String mArtist;
+    final String mGenre;
+    final int mYear;
+
+    SongMetadata(String album, String title, String artist) {
+        this(album, title, artist, null, 0);
+    }
+
+    SongMetadata(String album, String title, String artist, String genre, int year) {
+        mAlbum = album;
+        mTitle = title;
+        mArtist = artist;
+        mGenre = genre;
+        mYear = year;
+    }
+
+    /**
+     * Get the year from a year or date tag like "1994" or "1994-05-17".
+     *
+     * @param text the tag text, or null
+     * @return the year, or 0 if the text doesn't start with a year
+     */
+    static int parseYear(String text) {
+        if (text == null || text.length() < 4) {
+            return 0;
+        }
+
+        int year = 0;
+        for (int i = 0; i < 4; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+
+            year = year * 10 + c - '0';
+        }
+
+        return year;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof SongMetadata)) {
+            return false;
+        }
+
+        SongMetadata other = (SongMetadata) o;
+
+        return equals(mAlbum, other.mAlbum) && equals(mTitle, other.mTitle)
+                && equals(mArtist, other.mArtist) && equals(mGenre, other.mGenre)
+                && mYear == other.mYear;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mAlbum != null ? mAlbum.hashCode() : 0;
+        result = 31 * result + (mTitle != null ? mTitle.hashCode() : 0);
+        result = 31 * result + (mArtist != null ? mArtist.hashCode() : 0);
+        result = 31 * result + (mGenre != null ? mGenre.hashCode() : 0);
+        result = 31 * result + mYear;
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SongMetadata{album=" + mAlbum + ", title=" + mTitle + ", artist=" + mArtist
+                + ", genre=" + mGenre + ", year=" + mYear + "}";
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Bitmap indexes of the tag values of the tracks, by track ID.
+ *
+ * <p>
+ * Every facet, the genre, the artist and the decade, maps each of its values to a
+ * {@link RoaringBitmap} of the IDs of the tracks which have it. The tracks of a
+ * {@link RadioFilter} are the intersection of one bitmap per value of the filter, and a random
+ * one of them is a select on the intersection, so the tags of the tracks which don't match
+ * are never looked at. The value IDs of every track are kept as well, so its bits can be moved
+ * when {@link TrackTable} gives the track another ID.
+ * </p>
+ *
+ * <p>
+ * The index isn't thread-safe.
+ * </p>
+ */
+final class TagIndex {
+    static final int FACET_GENRE = 0;
+    static final int FACET_ARTIST = 1;
+    static final int FACET_DECADE = 2;
+    static final int FACET_COUNT = 3;
+
+    private static final int NO_VALUE = -1;
+
+    private final Facet[] mFacets = new Facet[FACET_COUNT];
+    // The value IDs of the tracks, FACET_COUNT per track
+    private int[] mTrackValues;
+    // The tracks whose tags have been set, even if they have none of the facets
+    private final RankSelectBitSet mTagged;
+
+    /**
+     * The values of one facet.
+     */
+    private static final class Facet {
+        final HashMap<String, Integer> mValueIds = new HashMap<>();
+        final ArrayList<String> mValues = new ArrayList<>();
+        // The tracks of every value, by value ID
+        final ArrayList<RoaringBitmap> mTracks = new ArrayList<>();
+
+        int addValue(String value) {
+            Integer id = mValueIds.get(value);
+            if (id != null) {
+                return id;
+            }
+
+            mValueIds.put(value, mValues.size());
+            mValues.add(value);
+            mTracks.add(new RoaringBitmap());
+
+            return mValues.size() - 1;
+        }
+
+        void clear() {
+            mValueIds.clear();
+            mValues.clear();
+            mTracks.clear();
+        }
+    }
+
+    /**
+     * Create the index which can hold the specified number of tracks before it grows.
+     *
+     * @param capacity the number of tracks
+     */
+    TagIndex(int capacity) {
+        for (int facet = 0; facet < FACET_COUNT; facet++) {
+            mFacets[facet] = new Facet();
+        }
+
+        mTrackValues = new int[capacity * FACET_COUNT];
+        Arrays.fill(mTrackValues, NO_VALUE);
+        mTagged = new RankSelectBitSet(capacity);
+    }
+
+    /**
+     * Set the tag values of the track, replacing the ones it had.
+     *
+     * @param id the track ID
+     * @param values the values by facet, a null value if the track has no such tag
+     */
+    void set(int id, String... values) {
+        remove(id);
+        ensureCapacity(id + 1);
+        for (int facet = 0; facet < FACET_COUNT; facet++) {
+            String value = values[facet];
+            if (value != null) {
+                int valueId = mFacets[facet].addValue(value);
+                mTrackValues[id * FACET_COUNT + facet] = valueId;
+                mFacets[facet].mTracks.get(valueId).add(id);
+            }
+        }
+
+        mTagged.set(id);
+    }
+
+    /**
+     * Remove the track from the index, so its tags aren't set anymore.
+     *
+     * @param id the track ID
+     */
+    void remove(int id) {
+        if (!mTagged.get(id)) {
+            return;
+        }
+
+        for (int facet = 0; facet < FACET_COUNT; facet++) {
+            int valueId = mTrackValues[id * FACET_COUNT + facet];
+            if (valueId != NO_VALUE) {
+                mFacets[facet].mTracks.get(valueId).remove(id);
+                mTrackValues[id * FACET_COUNT + facet] = NO_VALUE;
+            }
+        }
+
+        mTagged.clear(id);
+    }
+
+    /**
+     * Move the tags of a track to another ID which has none.
+     *
+     * @param from the track's ID
+     * @param to the track's new ID
+     */
+    void move(int from, int to) {
+        if (!mTagged.get(from)) {
+            return;
+        }
+
+        ensureCapacity(to + 1);
+        for (int facet = 0; facet < FACET_COUNT; facet++) {
+            int valueId = mTrackValues[from * FACET_COUNT + facet];
+            if (valueId != NO_VALUE) {
+                RoaringBitmap tracks = mFacets[facet].mTracks.get(valueId);
+                tracks.remove(from);
+                tracks.add(to);
+            }
+
+            mTrackValues[to * FACET_COUNT + facet] = valueId;
+            mTrackValues[from * FACET_COUNT + facet] = NO_VALUE;
+        }
+
+        mTagged.clear(from);
+        mTagged.set(to);
+    }
+
+    /**
+     * Remove all tracks and values. The memory of the track values is kept.
+     */
+    void clear() {
+        for (Facet facet : mFacets) {
+            facet.clear();
+        }
+
+        Arrays.fill(mTrackValues, NO_VALUE);
+        mTagged.clear();
+    }
+
+    /**
+     * @param id the track ID
+     * @return true if the tags of the track have been set
+     */
+    boolean isTagged(int id) {
+        return mTagged.get(id);
+    }
+
+    /**
+     * Find a track whose tags haven't been set.
+     *
+     * @param n the number of such tracks with a lower ID, from 0
+     * @return the track ID, which may be beyond the tracks of the table
+     */
+    int findUntagged(int n) {
+        return mTagged.selectClear(n);
+    }
+
+    /**
+     * @param id the track ID
+     * @param facet the facet, one of the FACET_* constants
+     * @return the track's value of the facet, or null if it has none
+     */
+    String get(int id, int facet) {
+        int index = id * FACET_COUNT + facet;
+        int valueId = index < mTrackValues.length ? mTrackValues[index] : NO_VALUE;
+
+        return valueId != NO_VALUE ? mFacets[facet].mValues.get(valueId) : null;
+    }
+
+    /**
+     * Get the tracks which match the filter.
+     *
+     * @param filter the filter
+     * @return the IDs of the tracks, which must not be changed, or null if there are none
+     */
+    RoaringBitmap select(RadioFilter filter) {
+        RoaringBitmap result = null;
+        for (int facet = 0; facet < FACET_COUNT; facet++) {
+            String value = filter.get(facet);
+            if (value == null) {
+                continue;
+            }
+
+            Integer valueId = mFacets[facet].mValueIds.get(value);
+            if (valueId == null) {
+                return null;
+            }
+
+            RoaringBitmap tracks = mFacets[facet].mTracks.get(valueId);
+            result = result == null ? tracks : RoaringBitmap.and(result, tracks);
+            if (result.isEmpty()) {
+                return null;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param filter the filter
+     * @return the number of tracks which match the filter
+     */
+    int count(RadioFilter filter) {
+        RoaringBitmap tracks = select(filter);
+
+        return tracks != null ? tracks.getCardinality() : 0;
+    }
+
+    /**
+     * Pick a uniformly random track which matches the filter.
+     *
+     * @param filter the filter
+     * @param random the random generator to pick with
+     * @return the track ID, or -1 if no track matches
+     */
+    int pick(RadioFilter filter, Random random) {
+        RoaringBitmap tracks = select(filter);
+
+        return tracks != null ? tracks.select(random.nextInt(tracks.getCardinality())) : -1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        int length = mTrackValues.length;
+        if (capacity * FACET_COUNT <= length) {
+            return;
+        }
+
+        mTrackValues = Arrays.copyOf(mTrackValues, Math.max(capacity * FACET_COUNT, length * 2));
+        Arrays.fill(mTrackValues, length, mTrackValues.length, NO_VALUE);
+    }
+}
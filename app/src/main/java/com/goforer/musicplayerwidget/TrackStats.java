@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The play statistics of the tracks and the weights of the weighted shuffle derived from them.
+ *
+ * <p>
+ * Every track which has been played has an entry of its play count, its skip count and the
+ * sum of the parts of the song which were heard, keyed by the 64-bit hash of its path like in
+ * {@link ShuffleHistory}, so two tracks practically never share their statistics. A track counts as skipped if it was stopped before half of it was
+ * heard. The weight is the full {@link #MAX_WEIGHT} for a track which has never been played
+ * and falls with the skips and the unheard parts, smoothed by two virtual complete plays so a
+ * single skip doesn't bury a track. It never drops below 1, so every track can still be picked.
+ * </p>
+ *
+ * <p>
+ * The statistics are the aggregates of the {@link PlayLog}. They are saved to a file of fixed
+ * size records with a checksum, together with the number of the last log segment folded into
+ * them. The class isn't thread-safe, the {@link LibraryIndex} guards it with its own lock.
+ * </p>
+ */
+class TrackStats {
+    static final int MAX_WEIGHT = TrackTable.DEFAULT_WEIGHT;
+    // A song stopped before this part of it has been heard counts as skipped
+    static final float SKIP_COMPLETION = 0.5f;
+
+    private static final int MAGIC = 0x4d505453;
+    private static final int VERSION = 3;
+    // int magic, int version, int count, long compacted segment, int checksum of the records
+    private static final int HEADER_SIZE = 24;
+    private static final int COUNT_OFFSET = 8;
+    private static final int COMPACTED_SEGMENT_OFFSET = 12;
+    private static final int CHECKSUM_OFFSET = 20;
+    // long path hash, int plays, int skips, float completion sum
+    private static final int RECORD_SIZE = 20;
+    // The virtual complete plays every track starts with
+    private static final int PRIOR_PLAYS = 2;
+
+    private static final class Entry {
+        int mPlays;
+        int mSkips;
+        float mCompletion;
+    }
+
+    private final File mFile;
+    private final HashMap<Long, Entry> mEntries = new HashMap<>();
+    // The number of the last log segment folded into the statistics, 0 if none
+    private long mCompactedSegment;
+
+    /**
+     * Create the statistics which are stored in the specified file.
+     *
+     * @param file the statistics file
+     */
+    TrackStats(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Count a play of the track.
+     *
+     * @param hash the path hash of the track
+     * @param completion the part of the song which was heard, from 0 to 1
+     */
+    void record(long hash, float completion) {
+        Entry entry = mEntries.get(hash);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(hash, entry);
+        }
+
+        completion = Math.max(0, Math.min(1, completion));
+        entry.mPlays++;
+        entry.mCompletion += completion;
+        if (completion < SKIP_COMPLETION) {
+            entry.mSkips++;
+        }
+    }
+
+    /**
+     * @param hash the path hash of the track
+     * @return the weight of the track in the weighted shuffle
+     */
+    int getWeight(long hash) {
+        Entry entry = mEntries.get(hash);
+
+        return entry == null ? MAX_WEIGHT
+                : getWeight(entry.mPlays, entry.mSkips, entry.mCompletion);
+    }
+
+    /**
+     * @param plays the number of plays
+     * @param skips the number of plays which were skipped
+     * @param completion the sum of the parts of the song which were heard
+     * @return the weight of a track with the statistics
+     */
+    static int getWeight(int plays, int skips, float completion) {
+        double heard = (completion + PRIOR_PLAYS) / (plays + PRIOR_PLAYS);
+        double kept = (double) (plays - skips + PRIOR_PLAYS) / (plays + PRIOR_PLAYS);
+
+        return Math.max(1, (int) Math.round(MAX_WEIGHT * heard * kept));
+    }
+
+    /**
+     * @param hash the path hash of the track
+     * @return the number of plays of the track
+     */
+    int getPlayCount(long hash) {
+        Entry entry = mEntries.get(hash);
+
+        return entry != null ? entry.mPlays : 0;
+    }
+
+    /**
+     * @param hash the path hash of the track
+     * @return the number of skipped plays of the track
+     */
+    int getSkipCount(long hash) {
+        Entry entry = mEntries.get(hash);
+
+        return entry != null ? entry.mSkips : 0;
+    }
+
+    /**
+     * @param hash the path hash of the track
+     * @return the average part of the song which was heard, 1 if it has never been played
+     */
+    float getCompletionRatio(long hash) {
+        Entry entry = mEntries.get(hash);
+
+        return entry != null ? entry.mCompletion / entry.mPlays : 1;
+    }
+
+    /**
+     * @return true if no track has been played
+     */
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * @return the number of the last log segment folded into the statistics, 0 if none
+     */
+    long getCompactedSegment() {
+        return mCompactedSegment;
+    }
+
+    /**
+     * @param segment the number of the last log segment folded into the statistics
+     */
+    void setCompactedSegment(long segment) {
+        mCompactedSegment = segment;
+    }
+
+    /**
+     * Load the statistics from the file, replacing the ones in memory.
+     *
+     * @return true if the file was read, false if it is missing or corrupt
+     */
+    boolean load() {
+        mEntries.clear();
+        mCompactedSegment = 0;
+        ByteBuffer buffer;
+        try (RandomAccessFile in = new RandomAccessFile(mFile, "r")) {
+            if (in.length() < HEADER_SIZE || in.length() > Integer.MAX_VALUE) {
+                throw new IOException("Truncated statistics " + mFile);
+            }
+
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            buffer = ByteBuffer.wrap(bytes);
+            int count = buffer.getInt(COUNT_OFFSET);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || count < 0
+                    || bytes.length != HEADER_SIZE + (long) count * RECORD_SIZE) {
+                throw new IOException("Not a statistics file " + mFile);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+            if (buffer.getInt(CHECKSUM_OFFSET) != (int) crc.getValue()) {
+                throw new IOException("Corrupt statistics " + mFile);
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        mCompactedSegment = buffer.getLong(COMPACTED_SEGMENT_OFFSET);
+        buffer.position(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            long hash = buffer.getLong();
+            Entry entry = new Entry();
+            entry.mPlays = buffer.getInt();
+            entry.mSkips = buffer.getInt();
+            entry.mCompletion = buffer.getFloat();
+            mEntries.put(hash, entry);
+        }
+
+        return true;
+    }
+
+    /**
+     * Save the statistics to the file. The file is replaced atomically.
+     *
+     * @throws IOException if the file can't be written
+     */
+    void save() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mEntries.size() * RECORD_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(mEntries.size()).putLong(mCompactedSegment)
+                .putInt(0);
+        for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            Entry stats = entry.getValue();
+            buffer.putLong(entry.getKey()).putInt(stats.mPlays).putInt(stats.mSkips)
+                    .putFloat(stats.mCompletion);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, buffer.capacity() - HEADER_SIZE);
+        buffer.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(buffer.array());
+            out.getFD().sync();
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Can't rename " + tempFile + " to " + mFile);
+        }
+    }
+}
@@ -0,0 +1,782 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compact table of the tracks of the library, which holds no object per track.
+ *
+ * <p>
+ * Every directory path is stored once, the file names are copied into one shared char buffer,
+ * and a track is an int ID into parallel arrays of the name offset, the name length and the
+ * directory ID. The IDs are dense, from 0 to {@link #size()} - 1, so a random track is picked
+ * in O(1), and only the picked track is turned into a {@link File}. A track is removed by
+ * moving the last track into its place, which changes the ID of the moved track. An open
+ * addressing hash table of the IDs finds a track by its directory and name.
+ * </p>
+ *
+ * <p>
+ * The space of the removed names is reclaimed once it makes up more than half of the name
+ * buffer, and the ID of a directory without tracks is reused. {@link #clear()} keeps the
+ * arrays, so the table is filled again without allocating, and only drops the search index. The table isn't thread-safe.
+ * </p>
+ *
+ * <p>
+ * Every track has a played flag for the no-repeat shuffle, kept in a {@link RankSelectBitSet}
+ * by track ID, so an unplayed track is picked uniformly in O(log n). The flag moves with the
+ * track when a removal changes its ID.
+ * </p>
+ *
+ * <p>
+ * Every track also has a weight for the weighted shuffle, {@link #DEFAULT_WEIGHT} when it is
+ * added, kept in a {@link WeightedSampler} by track ID, so a track is picked by weight in
+ * O(log n) and a weight is changed in O(log n).
+ * </p>
+ *
+ * <p>
+ * The genre, artist and decade of the tracks are indexed in a {@link TagIndex} by track ID, so
+ * a track of a {@link RadioFilter} is picked with a select on compressed bitmaps.
+ * </p>
+ *
+ * <p>
+ * The words of the file name, the album directory, the genre and the artist of every track are
+ * indexed in a {@link SearchIndex} by track ID, so the tracks are found by the first letters of
+ * their words. The words are only indexed from the first search on, so a table which is never
+ * searched doesn't pay for the index when it is filled. The index can also be built from the
+ * {@link SearchWords} copied out of the table, without holding the table, and then set with
+ * {@link #setSearchIndex(SearchWords, SearchIndex)}, which applies the changes the table has
+ * had since the copy.
+ * </p>
+ */
+final class TrackTable {
+    static final int DEFAULT_WEIGHT = 1000;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int AVERAGE_NAME_LENGTH = 24;
+
+    private char[] mNames = new char[INITIAL_CAPACITY * AVERAGE_NAME_LENGTH];
+    private int mNamesLength;
+    // The number of chars of the removed names in mNames
+    private int mGarbage;
+
+    private int[] mNameStarts = new int[INITIAL_CAPACITY];
+    private int[] mNameLengths = new int[INITIAL_CAPACITY];
+    private int[] mTrackDirectories = new int[INITIAL_CAPACITY];
+    private int[] mHashes = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    // The track ID + 1 of every used slot, 0 marks an empty slot. Linear probing.
+    private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+    private final ArrayList<String> mDirectories = new ArrayList<>();
+    private final HashMap<String, Integer> mDirectoryIds = new HashMap<>();
+    private int[] mDirectoryTrackCounts = new int[INITIAL_CAPACITY];
+    private int[] mFreeDirectoryIds = new int[INITIAL_CAPACITY];
+    private int mFreeDirectoryCount;
+
+    private final RankSelectBitSet mPlayed = new RankSelectBitSet(INITIAL_CAPACITY);
+    private final WeightedSampler mWeights = new WeightedSampler(INITIAL_CAPACITY);
+    private final TagIndex mTags = new TagIndex(INITIAL_CAPACITY);
+    // The words of the tracks, null until the first search or setSearchIndex()
+    private SearchIndex mSearch;
+    // The words of the last getSearchWords() which collect the changes since, or null
+    private SearchWords mSearchWords;
+
+    /**
+     * The words of the tracks copied out of the table, to build a search index from without
+     * holding the table.
+     */
+    static final class SearchWords {
+        private final int mSize;
+        private final String[] mDirectories;
+        private final int[] mTrackDirectories;
+        private final char[] mNames;
+        private final int[] mNameStarts;
+        private final int[] mNameLengths;
+        private final String[] mGenres;
+        private final String[] mArtists;
+        // The changes of the words since the copy
+        private final ArrayList<SearchChange> mChanges = new ArrayList<>();
+
+        private SearchWords(TrackTable table) {
+            mSize = table.mSize;
+            mDirectories = table.mDirectories.toArray(new String[table.mDirectories.size()]);
+            mTrackDirectories = Arrays.copyOf(table.mTrackDirectories, mSize);
+            mNames = Arrays.copyOf(table.mNames, table.mNamesLength);
+            mNameStarts = Arrays.copyOf(table.mNameStarts, mSize);
+            mNameLengths = Arrays.copyOf(table.mNameLengths, mSize);
+            mGenres = new String[mSize];
+            mArtists = new String[mSize];
+            for (int id = 0; id < mSize; id++) {
+                mGenres[id] = table.mTags.get(id, TagIndex.FACET_GENRE);
+                mArtists[id] = table.mTags.get(id, TagIndex.FACET_ARTIST);
+            }
+        }
+
+        /**
+         * @return the search index of the words
+         */
+        SearchIndex build() {
+            SearchIndex search = new SearchIndex(Math.max(mSize, INITIAL_CAPACITY));
+            for (int id = 0; id < mSize; id++) {
+                search.set(id, getWordFields(mDirectories[mTrackDirectories[id]],
+                        new String(mNames, mNameStarts[id], mNameLengths[id]), mGenres[id],
+                        mArtists[id]));
+            }
+
+            return search;
+        }
+    }
+
+    /**
+     * A change of the words, which sets the fields of a track, removes a track or moves the
+     * words of a track to another ID.
+     */
+    private static final class SearchChange {
+        final int mFrom;
+        final int mTo;
+        final String[] mFields;
+
+        SearchChange(int from, int to, String[] fields) {
+            mFrom = from;
+            mTo = to;
+            mFields = fields;
+        }
+    }
+
+    /**
+     * @return the number of tracks
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Add the track if it isn't in the table yet.
+     *
+     * @param directory the path of the track's directory
+     * @param name the track's file name
+     * @return the ID of the track
+     */
+    int add(String directory, String name) {
+        ensureTrackCapacity(mSize + 1);
+
+        int directoryId = addDirectory(directory);
+        int hash = hash(directoryId, name);
+        int slot = findSlot(directoryId, name, hash);
+        if (slot >= 0) {
+            return mSlots[slot] - 1;
+        }
+
+        int length = name.length();
+        ensureNameCapacity(mNamesLength + length);
+        name.getChars(0, length, mNames, mNamesLength);
+
+        int id = mSize++;
+        mNameStarts[id] = mNamesLength;
+        mNameLengths[id] = length;
+        mTrackDirectories[id] = directoryId;
+        mHashes[id] = hash;
+        mNamesLength += length;
+        mDirectoryTrackCounts[directoryId]++;
+        mSlots[-1 - slot] = id + 1;
+        mWeights.set(id, DEFAULT_WEIGHT);
+        indexWords(id);
+
+        return id;
+    }
+
+    /**
+     * @param directory the path of the track's directory
+     * @param name the track's file name
+     * @return the ID of the track, or -1 if the track isn't in the table
+     */
+    int indexOf(String directory, String name) {
+        Integer directoryId = mDirectoryIds.get(directory);
+        if (directoryId == null) {
+            return -1;
+        }
+
+        int slot = findSlot(directoryId, name, hash(directoryId, name));
+
+        return slot >= 0 ? mSlots[slot] - 1 : -1;
+    }
+
+    /**
+     * Remove the track. The last track takes over the ID of the removed one.
+     *
+     * @param directory the path of the track's directory
+     * @param name the track's file name
+     * @return true if the track was in the table
+     */
+    boolean remove(String directory, String name) {
+        Integer directoryId = mDirectoryIds.get(directory);
+        if (directoryId == null) {
+            return false;
+        }
+
+        int slot = findSlot(directoryId, name, hash(directoryId, name));
+        if (slot < 0) {
+            return false;
+        }
+
+        int id = mSlots[slot] - 1;
+        deleteSlot(slot);
+        mGarbage += mNameLengths[id];
+        if (--mDirectoryTrackCounts[directoryId] == 0) {
+            removeDirectory(directoryId);
+        }
+
+        mTags.remove(id);
+        changeWords(id, -1, null);
+        int last = --mSize;
+        if (id != last) {
+            mSlots[findSlotOf(last)] = id + 1;
+            mNameStarts[id] = mNameStarts[last];
+            mNameLengths[id] = mNameLengths[last];
+            mTrackDirectories[id] = mTrackDirectories[last];
+            mHashes[id] = mHashes[last];
+            if (mPlayed.get(last)) {
+                mPlayed.set(id);
+            } else {
+                mPlayed.clear(id);
+            }
+
+            mWeights.set(id, mWeights.get(last));
+            mTags.move(last, id);
+            changeWords(last, id, null);
+        }
+
+        mPlayed.clear(last);
+        mWeights.set(last, 0);
+
+        if (mGarbage > mNamesLength / 2) {
+            compactNames();
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove all tracks. The memory of the table is kept for the tracks added next.
+     */
+    void clear() {
+        mSize = 0;
+        mNamesLength = 0;
+        mGarbage = 0;
+        Arrays.fill(mSlots, 0);
+        mDirectories.clear();
+        mDirectoryIds.clear();
+        mFreeDirectoryCount = 0;
+        mPlayed.clear();
+        mWeights.clear();
+        mTags.clear();
+        mSearch = null;
+        mSearchWords = null;
+    }
+
+    /**
+     * Set the weight of the track in the weighted shuffle.
+     *
+     * @param id the track ID
+     * @param weight the weight, relative to {@link #DEFAULT_WEIGHT}
+     */
+    void setWeight(int id, int weight) {
+        checkId(id);
+        mWeights.set(id, weight);
+    }
+
+    /**
+     * @param id the track ID
+     * @return the weight of the track in the weighted shuffle
+     */
+    int getWeight(int id) {
+        checkId(id);
+
+        return mWeights.get(id);
+    }
+
+    /**
+     * Pick a random track with a probability proportional to its weight.
+     *
+     * @param random the random generator to pick with
+     * @return the ID of the track, or -1 if the table is empty or all weights are 0
+     */
+    int pickWeighted(Random random) {
+        return mWeights.pick(random);
+    }
+
+    /**
+     * Set the tags of the track the radios pick by.
+     *
+     * @param id the track ID
+     * @param genre the genre, or null
+     * @param artist the artist, or null
+     * @param decade the decade like "1990s", or null
+     */
+    void setTags(int id, String genre, String artist, String decade) {
+        checkId(id);
+        mTags.set(id, genre, artist, decade);
+        indexWords(id);
+    }
+
+    /**
+     * @param id the track ID
+     * @param facet the tag, one of the TagIndex.FACET_* constants
+     * @return the value of the track's tag, or null if it has none or its tags aren't set
+     */
+    String getTag(int id, int facet) {
+        checkId(id);
+
+        return mTags.get(id, facet);
+    }
+
+    /**
+     * @param id the track ID
+     * @return true if the tags of the track have been set
+     */
+    boolean isTagged(int id) {
+        checkId(id);
+
+        return mTags.isTagged(id);
+    }
+
+    /**
+     * Find a track whose tags haven't been set yet.
+     *
+     * @param n the number of such tracks with a lower ID, from 0
+     * @return the ID of the track, or -1 if there are at most n such tracks
+     */
+    int findUntagged(int n) {
+        int id = mTags.findUntagged(n);
+
+        return id < mSize ? id : -1;
+    }
+
+    /**
+     * @param filter the filter of the radio
+     * @return the number of tracks which match the filter
+     */
+    int countFiltered(RadioFilter filter) {
+        return mTags.count(filter);
+    }
+
+    /**
+     * Pick a uniformly random track which matches the filter.
+     *
+     * @param filter the filter of the radio
+     * @param random the random generator to pick with
+     * @return the ID of the track, or -1 if no track matches
+     */
+    int pickFiltered(RadioFilter filter, Random random) {
+        return mTags.pick(filter, random);
+    }
+
+    /**
+     * Find the tracks which have a word starting with every word of the query, in the
+     * alphabetical order of the matched words.
+     *
+     * @param query the words the user has typed so far, the case doesn't matter
+     * @param results the array to write the IDs of the found tracks into, a search stops once
+     *                it is full
+     * @return the number of tracks found
+     */
+    int search(CharSequence query, int[] results) {
+        if (mSearch == null) {
+            mSearch = new SearchWords(this).build();
+            mSearchWords = null;
+        }
+
+        return mSearch.search(query, results);
+    }
+
+    /**
+     * Copy the words of the tracks to build the search index from. The changes of the words
+     * from now on are kept for {@link #setSearchIndex(SearchWords, SearchIndex)}.
+     *
+     * @return the words of the tracks
+     */
+    SearchWords getSearchWords() {
+        mSearchWords = new SearchWords(this);
+
+        return mSearchWords;
+    }
+
+    /**
+     * Set the search index built from the words, after applying the changes of the words made
+     * since they were copied.
+     *
+     * @param words the words the index was built from
+     * @param search the search index
+     * @return false if the index is out of date because the table has been cleared, searched
+     * or copied again in the meantime
+     */
+    boolean setSearchIndex(SearchWords words, SearchIndex search) {
+        if (words != mSearchWords) {
+            return false;
+        }
+
+        for (SearchChange change : words.mChanges) {
+            applyChange(search, change.mFrom, change.mTo, change.mFields);
+        }
+
+        mSearch = search;
+        mSearchWords = null;
+
+        return true;
+    }
+
+    /**
+     * @return true if the words of the tracks are indexed
+     */
+    boolean isSearchable() {
+        return mSearch != null;
+    }
+
+    /**
+     * Mark the track as played in the current shuffle cycle.
+     *
+     * @param id the track ID
+     */
+    void setPlayed(int id) {
+        checkId(id);
+        mPlayed.set(id);
+    }
+
+    /**
+     * @param id the track ID
+     * @return true if the track has been played in the current shuffle cycle
+     */
+    boolean isPlayed(int id) {
+        checkId(id);
+
+        return mPlayed.get(id);
+    }
+
+    /**
+     * @return the number of tracks played in the current shuffle cycle
+     */
+    int getPlayedCount() {
+        return mPlayed.cardinality();
+    }
+
+    /**
+     * Start a new shuffle cycle in which no track has been played.
+     */
+    void clearPlayed() {
+        mPlayed.clear();
+    }
+
+    /**
+     * Pick a uniformly random track which hasn't been played in the current shuffle cycle.
+     *
+     * @param random the random generator to pick with
+     * @return the ID of the track, or -1 if every track has been played
+     */
+    int pickUnplayed(Random random) {
+        int unplayed = mSize - mPlayed.cardinality();
+        if (unplayed == 0) {
+            return -1;
+        }
+
+        return mPlayed.selectClear(random.nextInt(unplayed));
+    }
+
+    /**
+     * Get the 64-bit hash of the track's path, which is the same as {@link #getPathHash(String)}
+     * of the path string. It doesn't depend on the track ID, so it identifies the track in the
+     * files of the index across restarts, and with 64 bits a collision among the tracks of even
+     * a huge library is unlikely.
+     *
+     * @param id the track ID
+     * @return the hash of the track's path
+     */
+    long getPathHash(int id) {
+        long hash = hash(hash(FNV_OFFSET_BASIS, getDirectory(id)), File.separatorChar);
+        int start = mNameStarts[id];
+        for (int i = start, end = start + mNameLengths[id]; i < end; i++) {
+            hash = hash(hash, mNames[i]);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Get the 64-bit FNV-1a hash of the path, over the two bytes of every char.
+     *
+     * @param path the file path
+     * @return the hash of the path
+     */
+    static long getPathHash(String path) {
+        return hash(FNV_OFFSET_BASIS, path);
+    }
+
+    /**
+     * @param id the track ID
+     * @return the path of the track's directory
+     */
+    String getDirectory(int id) {
+        checkId(id);
+
+        return mDirectories.get(mTrackDirectories[id]);
+    }
+
+    /**
+     * @param id the track ID
+     * @return the track's file name
+     */
+    String getName(int id) {
+        checkId(id);
+
+        return new String(mNames, mNameStarts[id], mNameLengths[id]);
+    }
+
+    /**
+     * @param id the track ID
+     * @return the track's file
+     */
+    File getFile(int id) {
+        return new File(getDirectory(id), getName(id));
+    }
+
+    /**
+     * Index the words of the track's file name without the extension, of the name of its
+     * directory, which is usually the album, and of its genre and artist.
+     */
+    private void indexWords(int id) {
+        if (mSearch != null || mSearchWords != null) {
+            changeWords(-1, id, getWordFields(getDirectory(id), getName(id),
+                    mTags.get(id, TagIndex.FACET_GENRE), mTags.get(id, TagIndex.FACET_ARTIST)));
+        }
+    }
+
+    /**
+     * Apply the change to the search index, or keep it for the index being built.
+     */
+    private void changeWords(int from, int to, String[] fields) {
+        if (mSearch != null) {
+            applyChange(mSearch, from, to, fields);
+        } else if (mSearchWords != null) {
+            mSearchWords.mChanges.add(new SearchChange(from, to, fields));
+        }
+    }
+
+    private static void applyChange(SearchIndex search, int from, int to, String[] fields) {
+        if (fields != null) {
+            search.set(to, fields);
+        } else if (to == -1) {
+            search.remove(from);
+        } else {
+            search.move(from, to);
+        }
+    }
+
+    /**
+     * @return the indexed fields of a track: the name of its directory, which is usually the
+     * album, its file name without the extension, its genre and its artist
+     */
+    private static String[] getWordFields(String directory, String name, String genre,
+                                          String artist) {
+        int extension = name.lastIndexOf('.');
+
+        return new String[] { directory.substring(directory.lastIndexOf(File.separatorChar) + 1),
+                extension > 0 ? name.substring(0, extension) : name, genre, artist };
+    }
+
+    private static long hash(long hash, String chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            hash = hash(hash, chars.charAt(i));
+        }
+
+        return hash;
+    }
+
+    private static long hash(long hash, char c) {
+        hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+
+        return (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= mSize) {
+            throw new IndexOutOfBoundsException("Track " + id + ", size " + mSize);
+        }
+    }
+
+    private int addDirectory(String path) {
+        Integer id = mDirectoryIds.get(path);
+        if (id != null) {
+            return id;
+        }
+
+        int directoryId;
+        if (mFreeDirectoryCount > 0) {
+            directoryId = mFreeDirectoryIds[--mFreeDirectoryCount];
+            mDirectories.set(directoryId, path);
+        } else {
+            directoryId = mDirectories.size();
+            mDirectories.add(path);
+            if (directoryId == mDirectoryTrackCounts.length) {
+                mDirectoryTrackCounts = Arrays.copyOf(mDirectoryTrackCounts, directoryId * 2);
+            }
+        }
+
+        mDirectoryTrackCounts[directoryId] = 0;
+        mDirectoryIds.put(path, directoryId);
+
+        return directoryId;
+    }
+
+    private void removeDirectory(int directoryId) {
+        mDirectoryIds.remove(mDirectories.set(directoryId, null));
+        if (mFreeDirectoryCount == mFreeDirectoryIds.length) {
+            mFreeDirectoryIds = Arrays.copyOf(mFreeDirectoryIds, mFreeDirectoryCount * 2);
+        }
+
+        mFreeDirectoryIds[mFreeDirectoryCount++] = directoryId;
+    }
+
+    /**
+     * @return the slot of the track, or -1 - the empty slot to insert the track into if the
+     * track isn't in the table
+     */
+    private int findSlot(int directoryId, String name, int hash) {
+        int mask = mSlots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = mSlots[slot];
+            if (entry == 0) {
+                return -1 - slot;
+            }
+
+            int id = entry - 1;
+            if (mHashes[id] == hash && mTrackDirectories[id] == directoryId
+                    && nameEquals(id, name)) {
+                return slot;
+            }
+        }
+    }
+
+    private int findSlotOf(int id) {
+        int mask = mSlots.length - 1;
+        int slot = mHashes[id] & mask;
+        while (mSlots[slot] != id + 1) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Empty the slot and move the following entries of the probe sequence back, so no entry
+     * becomes unreachable.
+     */
+    private void deleteSlot(int slot) {
+        int mask = mSlots.length - 1;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; mSlots[next] != 0; next = (next + 1) & mask) {
+            int home = mHashes[mSlots[next] - 1] & mask;
+            // The entry can fill the hole if the hole lies on its way from its home slot.
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mSlots[hole] = mSlots[next];
+                hole = next;
+            }
+        }
+
+        mSlots[hole] = 0;
+    }
+
+    private boolean nameEquals(int id, String name) {
+        int length = mNameLengths[id];
+        if (length != name.length()) {
+            return false;
+        }
+
+        int start = mNameStarts[id];
+        for (int i = 0; i < length; i++) {
+            if (mNames[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void ensureTrackCapacity(int capacity) {
+        if (capacity <= mNameStarts.length) {
+            return;
+        }
+
+        int newCapacity = mNameStarts.length * 2;
+        mNameStarts = Arrays.copyOf(mNameStarts, newCapacity);
+        mNameLengths = Arrays.copyOf(mNameLengths, newCapacity);
+        mTrackDirectories = Arrays.copyOf(mTrackDirectories, newCapacity);
+        mHashes = Arrays.copyOf(mHashes, newCapacity);
+
+        // Keep the load factor of the slots at 1/2 at most.
+        mSlots = new int[newCapacity * 2];
+        int mask = mSlots.length - 1;
+        for (int id = 0; id < mSize; id++) {
+            int slot = mHashes[id] & mask;
+            while (mSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            mSlots[slot] = id + 1;
+        }
+    }
+
+    private void ensureNameCapacity(int capacity) {
+        if (capacity > mNames.length) {
+            mNames = Arrays.copyOf(mNames, Math.max(capacity, mNames.length * 2));
+        }
+    }
+
+    /**
+     * Copy the names of the tracks into a new buffer without the removed names.
+     */
+    private void compactNames() {
+        char[] names = new char[Math.max(mNamesLength - mGarbage,
+                INITIAL_CAPACITY * AVERAGE_NAME_LENGTH)];
+        int length = 0;
+        for (int id = 0; id < mSize; id++) {
+            System.arraycopy(mNames, mNameStarts[id], names, length, mNameLengths[id]);
+            mNameStarts[id] = length;
+            length += mNameLengths[id];
+        }
+
+        mNames = names;
+        mNamesLength = length;
+        mGarbage = 0;
+    }
+
+    private static int hash(int directoryId, String name) {
+        int hash = name.hashCode() * 31 + directoryId;
+        // Spread the bits, so the low bits used as the slot depend on the whole hash.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+
+        return hash;
+    }
+}
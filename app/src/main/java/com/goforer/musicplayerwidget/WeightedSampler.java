@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks an index with a probability proportional to its weight in O(log n).
+ *
+ * <p>
+ * The weights are kept in a Fenwick tree of prefix sums, so changing a weight updates O(log n)
+ * sums and a pick descends the tree to the index whose prefix sum range holds a random number
+ * below the total weight. Unlike an alias table, nothing is rebuilt when a weight changes, so
+ * the weights can be updated after every song. The weights are ints, which keeps the sums
+ * exact however often they change.
+ * </p>
+ *
+ * <p>
+ * The sampler isn't thread-safe.
+ * </p>
+ */
+final class WeightedSampler {
+    private int[] mWeights;
+    // Fenwick tree of the weights, 1-based
+    private long[] mTree;
+    private long mTotal;
+
+    /**
+     * Create the sampler in which all weights are 0.
+     *
+     * @param capacity the number of indexes before the sampler grows
+     */
+    WeightedSampler(int capacity) {
+        int length = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1);
+        mWeights = new int[length];
+        mTree = new long[length + 1];
+    }
+
+    /**
+     * @param index the index
+     * @return the weight of the index
+     */
+    int get(int index) {
+        return index < mWeights.length ? mWeights[index] : 0;
+    }
+
+    /**
+     * Set the weight of the index.
+     *
+     * @param index the index
+     * @param weight the weight, 0 to never pick the index
+     */
+    void set(int index, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight " + weight);
+        }
+
+        if (index >= mWeights.length) {
+            grow(index + 1);
+        }
+
+        int delta = weight - mWeights[index];
+        if (delta == 0) {
+            return;
+        }
+
+        mWeights[index] = weight;
+        mTotal += delta;
+        for (int i = index + 1; i < mTree.length; i += i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    /**
+     * Set all weights to 0. The memory is kept.
+     */
+    void clear() {
+        Arrays.fill(mWeights, 0);
+        Arrays.fill(mTree, 0);
+        mTotal = 0;
+    }
+
+    /**
+     * @return the sum of all weights
+     */
+    long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Pick an index with a probability of its weight divided by the total weight.
+     *
+     * @param random the random generator to pick with
+     * @return the index, or -1 if all weights are 0
+     */
+    int pick(Random random) {
+        if (mTotal == 0) {
+            return -1;
+        }
+
+        // The product can round up to the total when the total is huge.
+        long target = Math.min((long) (random.nextDouble() * mTotal), mTotal - 1);
+        // Find the last index whose prefix sum is at most the target, the pick follows it.
+        int index = 0;
+        for (int step = Integer.highestOneBit(mWeights.length); step > 0; step >>= 1) {
+            int next = index + step;
+            if (next < mTree.length && mTree[next] <= target) {
+                index = next;
+                target -= mTree[next];
+            }
+        }
+
+        return index;
+    }
+
+    private void grow(int capacity) {
+        int length = mWeights.length;
+        while (length < capacity) {
+            length *= 2;
+        }
+
+        mWeights = Arrays.copyOf(mWeights, length);
+        mTree = new long[length + 1];
+        for (int i = 1; i <= length; i++) {
+            mTree[i] += mWeights[i - 1];
+            int parent = i + (i & -i);
+            if (parent <= length) {
+                mTree[parent] += mTree[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.RemoteViews;
+
+/**
+ * Renders a {@link WidgetState} into the RemoteViews of MPlayer Widget.
+ *
+ * <p>
+ * RemoteViews records every setter call as an action and sends all recorded actions with each
+ * update, so the views are never kept and changed again. Every render builds fresh views holding
+ * only the actions for the rendered state, which keeps the size of every update the same however
+ * long the player runs.
+ * </p>
+ *
+ * <p>
+ * A widget which already shows a state only needs the parts that changed, so
+ * {@link #renderChanges(WidgetState, WidgetState)} builds views with just those parts for a
+ * partial update.
+ * </p>
+ */
+class WidgetRenderer {
+    private static final int INTENT_FLAGS = 0;
+    private static final int REQUEST_CODE = 0;
+
+    private final String mPackageName;
+
+    private final PendingIntent mPlayPendingIntent;
+    private final PendingIntent mPausePendingIntent;
+    private final PendingIntent mStopPendingIntent;
+    private final PendingIntent mModePendingIntent;
+
+    WidgetRenderer(Context context) {
+        mPackageName = context.getPackageName();
+
+        Intent playIntent = new Intent(PlayerService.ACTION_PLAY);
+        Intent pauseIntent = new Intent(PlayerService.ACTION_PAUSE);
+        Intent stopIntent = new Intent(PlayerService.ACTION_STOP);
+        Intent modeIntent = new Intent(PlayerService.ACTION_NEXT_PICK_MODE);
+
+        mPlayPendingIntent = PendingIntent.getService(
+                context, REQUEST_CODE, playIntent, INTENT_FLAGS);
+        mPausePendingIntent = PendingIntent.getService(
+                context, REQUEST_CODE, pauseIntent, INTENT_FLAGS);
+        mStopPendingIntent = PendingIntent.getService(
+                context, REQUEST_CODE, stopIntent, INTENT_FLAGS);
+        mModePendingIntent = PendingIntent.getService(
+                context, REQUEST_CODE, modeIntent, INTENT_FLAGS);
+    }
+
+    /**
+     * Build the views which show the specified state.
+     *
+     * @param state the state to show
+     * @return the new views
+     */
+    RemoteViews render(WidgetState state) {
+        RemoteViews views = new RemoteViews(mPackageName, R.layout.player_app_widget);
+
+        views.setOnClickPendingIntent(R.id.btn_play, mPlayPendingIntent);
+        views.setOnClickPendingIntent(R.id.btn_pause, mPausePendingIntent);
+        views.setOnClickPendingIntent(R.id.btn_stop, mStopPendingIntent);
+        views.setOnClickPendingIntent(R.id.btn_mode, mModePendingIntent);
+
+        setChanges(views, state, state.getChanges(WidgetState.INITIAL));
+
+        return views;
+    }
+
+    /**
+     * Build the views which only change the parts of the specified previous state which differ
+     * from the specified state, to be applied with a partial update.
+     *
+     * @param previous the state the widgets show
+     * @param state the state to show
+     * @return the new views, or null if nothing has changed
+     */
+    RemoteViews renderChanges(WidgetState previous, WidgetState state) {
+        int changes = state.getChanges(previous);
+        if (changes == 0) {
+            return null;
+        }
+
+        RemoteViews views = new RemoteViews(mPackageName, R.layout.player_app_widget);
+        setChanges(views, state, changes);
+
+        return views;
+    }
+
+    private static void setChanges(RemoteViews views, WidgetState state, int changes) {
+        if ((changes & WidgetState.CHANGE_FILE_NAME) != 0) {
+            views.setTextViewText(R.id.tv_file_name, state.mFileName);
+        }
+
+        if ((changes & WidgetState.CHANGE_ALBUM_TITLE) != 0) {
+            views.setTextViewText(R.id.tv_album_name, state.mAlbumTitle);
+        }
+
+        if ((changes & WidgetState.CHANGE_PLAY_BUTTON) != 0) {
+            setButtonBackground(views, R.id.btn_play, state, PlayerAppWidget.PLAYER_STATE_PLAY);
+        }
+
+        if ((changes & WidgetState.CHANGE_PAUSE_BUTTON) != 0) {
+            setButtonBackground(views, R.id.btn_pause, state, PlayerAppWidget.PLAYER_STATE_PAUSE);
+        }
+
+        if ((changes & WidgetState.CHANGE_STOP_BUTTON) != 0) {
+            setButtonBackground(views, R.id.btn_stop, state, PlayerAppWidget.PLAYER_STATE_STOP);
+        }
+    }
+
+    private static void setButtonBackground(RemoteViews views, int buttonId, WidgetState state,
+                                            int buttonState) {
+        views.setInt(buttonId, "setBackgroundResource", state.isSelected(buttonState)
+                ? R.color.colorSelectedButton : R.color.colorButton);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+/**
+ * Immutable snapshot of what MPlayer Widget shows.
+ *
+ * <p>
+ * Every change creates a new snapshot, so a snapshot can be rendered or compared with another
+ * one at any time without copying it.
+ * </p>
+ */
+final class WidgetState {
+    // The player state before the player has reported any
+    static final int PLAYER_STATE_UNKNOWN = 0;
+
+    static final WidgetState INITIAL = new WidgetState(PLAYER_STATE_UNKNOWN, null, null);
+
+    // The parts of the widget which differ between two snapshots, see getChanges()
+    static final int CHANGE_FILE_NAME = 1;
+    static final int CHANGE_ALBUM_TITLE = 1 << 1;
+    static final int CHANGE_PLAY_BUTTON = 1 << 2;
+    static final int CHANGE_PAUSE_BUTTON = 1 << 3;
+    static final int CHANGE_STOP_BUTTON = 1 << 4;
+
+    /**
+     * The player state : State - {PLAYER_STATE_UNKNOWN, PlayerAppWidget.PLAYER_STATE_PLAY,
+     * PlayerAppWidget.PLAYER_STATE_PAUSE, PlayerAppWidget.PLAYER_STATE_STOP}
+     */
+    final int mPlayerState;
+    // The playing song's file name, or null before any song has been played
+    final String mFileName;
+    // The playing song's album title, or null before any song has been played
+    final String mAlbumTitle;
+
+    WidgetState(int playerState, String fileName, String albumTitle) {
+        mPlayerState = playerState;
+        mFileName = fileName;
+        mAlbumTitle = albumTitle;
+    }
+
+    /**
+     * @param playerState the new player state
+     * @return the snapshot with the specified player state
+     */
+    WidgetState withPlayerState(int playerState) {
+        return playerState == mPlayerState ? this
+                : new WidgetState(playerState, mFileName, mAlbumTitle);
+    }
+
+    /**
+     * @param fileName the new song's file name
+     * @param albumTitle the new song's album title
+     * @return the snapshot with the specified song
+     */
+    WidgetState withTitle(String fileName, String albumTitle) {
+        return equal(fileName, mFileName) && equal(albumTitle, mAlbumTitle) ? this
+                : new WidgetState(mPlayerState, fileName, albumTitle);
+    }
+
+    /**
+     * Get the parts of the widget which have to be updated to show this snapshot instead of
+     * the specified previous one. A part this snapshot doesn't know yet is never reported, the
+     * widget keeps showing its previous content.
+     *
+     * @param previous the snapshot the widget shows
+     * @return the changes, a combination of the CHANGE_* flags or 0 if nothing changed
+     */
+    int getChanges(WidgetState previous) {
+        int changes = 0;
+        if (mFileName != null && !mFileName.equals(previous.mFileName)) {
+            changes |= CHANGE_FILE_NAME;
+        }
+
+        if (mAlbumTitle != null && !mAlbumTitle.equals(previous.mAlbumTitle)) {
+            changes |= CHANGE_ALBUM_TITLE;
+        }
+
+        if (mPlayerState != PLAYER_STATE_UNKNOWN) {
+            boolean unknown = previous.mPlayerState == PLAYER_STATE_UNKNOWN;
+            if (unknown || isSelected(PlayerAppWidget.PLAYER_STATE_PLAY)
+                    != previous.isSelected(PlayerAppWidget.PLAYER_STATE_PLAY)) {
+                changes |= CHANGE_PLAY_BUTTON;
+            }
+
+            if (unknown || isSelected(PlayerAppWidget.PLAYER_STATE_PAUSE)
+                    != previous.isSelected(PlayerAppWidget.PLAYER_STATE_PAUSE)) {
+                changes |= CHANGE_PAUSE_BUTTON;
+            }
+
+            if (unknown || isSelected(PlayerAppWidget.PLAYER_STATE_STOP)
+                    != previous.isSelected(PlayerAppWidget.PLAYER_STATE_STOP)) {
+                changes |= CHANGE_STOP_BUTTON;
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * @param buttonState the player state of the button
+     * @return true if the button of the specified player state is shown as selected
+     */
+    boolean isSelected(int buttonState) {
+        return mPlayerState == buttonState;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof WidgetState)) {
+            return false;
+        }
+
+        WidgetState other = (WidgetState) o;
+
+        return mPlayerState == other.mPlayerState && equal(mFileName, other.mFileName)
+                && equal(mAlbumTitle, other.mAlbumTitle);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mPlayerState;
+        result = 31 * result + (mFileName != null ? mFileName.hashCode() : 0);
+        result = 31 * result + (mAlbumTitle != null ? mAlbumTitle.hashCode() : 0);
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "WidgetState{state=" + mPlayerState + ", fileName=" + mFileName + ", album="
+                + mAlbumTitle + "}";
+    }
+
+    static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CommandQueueTest {
+    private final List<String> mExecuted = new ArrayList<>();
+    private final Runnable mPlay = new RecordingCommand("play");
+    private final Runnable mPause = new RecordingCommand("pause");
+    private final Runnable mStop = new RecordingCommand("stop");
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final CommandQueue mQueue = new CommandQueue(mScheduler, 100, mDropped);
+
+    private ScheduledExecutorService mExecutor;
+
+    @After
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void offer_executesTheFirstCommandRightAway() {
+        mQueue.offer(mPlay);
+
+        assertEquals(1, mExecuted.size());
+        assertFalse(mQueue.isIdle());
+        assertEquals(100, mScheduler.mDelay);
+
+        mScheduler.runPending();
+        assertTrue(mQueue.isIdle());
+        assertEquals(1, mExecuted.size());
+    }
+
+    @Test
+    public void burst_executesOnlyTheLastCommand() {
+        mQueue.offer(mPlay);
+        mQueue.offer(mPause);
+        mQueue.offer(mStop);
+        mQueue.offer(mPause);
+        mScheduler.runPending();
+
+        assertEquals(2, mExecuted.size());
+        assertEquals("pause", mExecuted.get(1));
+        assertEquals(2, mDropped.get());
+
+        // The executed command has opened another window.
+        assertFalse(mQueue.isIdle());
+        mScheduler.runPending();
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void playPausePlay_isASinglePlay() {
+        mQueue.offer(mPlay);
+        mQueue.offer(mPause);
+        mQueue.offer(mPlay);
+        mScheduler.runPending();
+
+        assertEquals(1, mExecuted.size());
+        assertEquals("play", mExecuted.get(0));
+        assertEquals(2, mDropped.get());
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void repeatedStops_areASingleStop() {
+        for (int i = 0; i < 10; i++) {
+            mQueue.offer(mStop);
+        }
+        mScheduler.runPending();
+
+        assertEquals(1, mExecuted.size());
+        assertEquals(10, mQueue.getOfferedCount());
+        assertEquals(1, mQueue.getExecutedCount());
+        assertEquals(9, mDropped.get());
+    }
+
+    @Test
+    public void clear_dropsThePendingCommand() {
+        mQueue.offer(mPlay);
+        mQueue.offer(mStop);
+        mQueue.clear();
+        mScheduler.runPending();
+
+        assertEquals(1, mExecuted.size());
+        assertEquals(1, mDropped.get());
+        assertTrue(mQueue.isIdle());
+    }
+
+    /**
+     * Mash the buttons in bursts and measure how long the queue takes to settle after the last
+     * tap of a burst and how many commands it drops.
+     */
+    @Test
+    public void stress_settlesOnTheLastCommandOfEveryBurst() throws InterruptedException {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        final long window = 50;
+        final CommandQueue queue = new CommandQueue(new CommandQueue.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }, window, mDropped);
+
+        Random random = new Random(20);
+        Runnable[] commands = { mPlay, mPause, mStop };
+        Histogram settleTime = new Histogram();
+        for (int burst = 0; burst < 50; burst++) {
+            int executedBefore;
+            synchronized (mExecuted) {
+                executedBefore = mExecuted.size();
+            }
+
+            Runnable last = null;
+            int taps = 1 + random.nextInt(12);
+            for (int tap = 0; tap < taps; tap++) {
+                last = commands[random.nextInt(commands.length)];
+                queue.offer(last);
+                Thread.sleep(random.nextInt(3));
+            }
+
+            long start = System.nanoTime();
+            while (!queue.isIdle()) {
+                Thread.sleep(1);
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            }
+            settleTime.record((System.nanoTime() - start) / 1000);
+
+            synchronized (mExecuted) {
+                assertEquals(last.toString(), mExecuted.get(mExecuted.size() - 1));
+                // The bursts are shorter than the window, so the first and the last tap at most.
+                assertTrue(mExecuted.size() - executedBefore <= 2);
+            }
+        }
+
+        long offered = queue.getOfferedCount();
+        long executed = queue.getExecutedCount();
+        assertEquals(offered - executed, mDropped.get());
+        assertTrue(mDropped.get() > 0);
+        // A burst settles at most two windows after its last tap.
+        assertTrue(settleTime.getPercentile(50) / 1000 <= window * 2 + 20);
+        assertTrue(settleTime.getPercentile(99) / 1000 < window * 2 + 100);
+    }
+
+    private final class RecordingCommand implements Runnable {
+        private final String mName;
+
+        RecordingCommand(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mExecuted) {
+                mExecuted.add(mName);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private static final class ManualScheduler implements CommandQueue.Scheduler {
+        private final List<Runnable> mTasks = new ArrayList<>();
+        long mDelay;
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            mTasks.add(task);
+            mDelay = delayMillis;
+        }
+
+        void runPending() {
+            List<Runnable> tasks = new ArrayList<>(mTasks);
+            mTasks.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
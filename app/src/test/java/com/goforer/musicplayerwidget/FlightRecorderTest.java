@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class FlightRecorderTest {
+    @Test
+    public void forEach_visitsTheEventsInOrder() {
+        FlightRecorder recorder = new FlightRecorder(8);
+        recorder.record(FlightRecorder.EVENT_REQUEST, 2, 0);
+        recorder.record(FlightRecorder.EVENT_STATE, 2, 1);
+        recorder.record(FlightRecorder.EVENT_ERROR, 1, -1004);
+
+        ArrayList<int[]> events = collect(recorder);
+        assertEquals(3, events.size());
+        assertArrayEquals(new int[] { FlightRecorder.EVENT_REQUEST, 2, 0 }, events.get(0));
+        assertArrayEquals(new int[] { FlightRecorder.EVENT_STATE, 2, 1 }, events.get(1));
+        assertArrayEquals(new int[] { FlightRecorder.EVENT_ERROR, 1, -1004 }, events.get(2));
+    }
+
+    @Test
+    public void record_keepsOnlyTheLastEvents() {
+        FlightRecorder recorder = new FlightRecorder(6);
+        for (int i = 0; i < 20; i++) {
+            recorder.record(FlightRecorder.EVENT_COMMAND, i, 0);
+        }
+
+        ArrayList<int[]> events = collect(recorder);
+        assertEquals(8, events.size());
+        assertEquals(12, events.get(0)[1]);
+        assertEquals(19, events.get(7)[1]);
+        assertEquals(20, recorder.getRecordedCount());
+    }
+
+    @Test
+    public void concurrentWriters_neverProduceTornEvents() throws InterruptedException {
+        final FlightRecorder recorder = new FlightRecorder(64);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        recorder.record(FlightRecorder.EVENT_INFO, j, -j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        final long[] checked = new long[1];
+        do {
+            recorder.forEach(new FlightRecorder.Visitor() {
+                @Override
+                public void onEvent(long time, int event, int thread, int arg1, int arg2) {
+                    assertEquals(FlightRecorder.EVENT_INFO, event);
+                    assertEquals(-arg1, arg2);
+                    checked[0]++;
+                }
+            });
+        } while (threads[0].isAlive());
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400000, recorder.getRecordedCount());
+        assertEquals(64, collect(recorder).size());
+        assertTrue(checked[0] > 0);
+    }
+
+    @Test
+    public void dump_printsTheEventNames() {
+        FlightRecorder recorder = new FlightRecorder(4);
+        recorder.record(FlightRecorder.EVENT_WIDGET_RENDER, -1, 1);
+
+        StringWriter out = new StringWriter();
+        recorder.dump(new PrintWriter(out));
+
+        assertTrue(out.toString(), out.toString().contains("1 events recorded"));
+        assertTrue(out.toString(), out.toString().contains("widget-render"));
+    }
+
+    private static ArrayList<int[]> collect(FlightRecorder recorder) {
+        final ArrayList<int[]> events = new ArrayList<>();
+        recorder.forEach(new FlightRecorder.Visitor() {
+            @Override
+            public void onEvent(long time, int event, int thread, int arg1, int arg2) {
+                events.add(new int[] { event, arg1, arg2 });
+            }
+        });
+
+        return events;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void empty_reportsZero() {
+        Histogram histogram = new Histogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void smallValues_areExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(9, histogram.getPercentile(90));
+        assertEquals(10, histogram.getPercentile(100));
+        assertEquals(5.5, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void percentiles_areWithinTheBucketError() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(5);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (Math.exp(random.nextDouble() * 20));
+            histogram.record(values[i]);
+        }
+
+        Arrays.sort(values);
+        for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+            long expected = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long actual = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual + " vs " + expected,
+                    actual >= expected && actual <= expected + expected / 16 + 1);
+        }
+
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void record_clampsNegativeAndHugeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void concurrentRecords_areAllCounted() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50000; j++) {
+                        histogram.record(j % 1000 + offset);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(200000, histogram.getCount());
+        assertEquals(1002, histogram.getMax());
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ID3TagReaderTest {
+    private static final byte[] AUDIO = new byte[] { (byte) 0xff, (byte) 0xfb, (byte) 0x90, 0x64 };
+
+    private File mRoot;
+    private ID3TagReader mReader;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = TestFiles.createTempDirectory();
+        mReader = new ID3TagReader();
+    }
+
+    @After
+    public void tearDown() {
+        mReader.close();
+        TestFiles.delete(mRoot);
+    }
+
+    @Test
+    public void extract_readsID3v23AndSkipsArtwork() throws IOException {
+        byte[] artwork = new byte[64 * 1024];
+        Arrays.fill(artwork, (byte) 0xff);
+        File file = write(tag(3, 0, 256,
+                frame(3, "APIC", artwork, 0),
+                textFrame(3, "TALB", 0, "Kind of Blue"),
+                textFrame(3, "TIT2", 0, "So What"),
+                textFrame(3, "TPE1", 0, "Miles Davis")));
+
+        assertEquals(new SongMetadata("Kind of Blue", "So What", "Miles Davis"),
+                mReader.extract(file));
+    }
+
+    @Test
+    public void extract_readsTheGenreAndTheYear() throws IOException {
+        File file = write(tag(3, 0, 0,
+                textFrame(3, "TCON", 0, "(17)"),
+                textFrame(3, "TYER", 0, "1994")));
+        assertEquals(new SongMetadata(null, null, null, "Rock", 1994), mReader.extract(file));
+
+        file = write(tag(4, 0, 0,
+                textFrame(4, "TCON", 3, "Shoegaze"),
+                textFrame(4, "TDRC", 3, "1991-11-04")));
+        assertEquals(new SongMetadata(null, null, null, "Shoegaze", 1991), mReader.extract(file));
+
+        file = write(tag(2, 0, 0,
+                textFrame(2, "TCO", 0, "(13)Synthpop"),
+                textFrame(2, "TYE", 0, "1983")));
+        assertEquals(new SongMetadata(null, null, null, "Synthpop", 1983), mReader.extract(file));
+    }
+
+    @Test
+    public void normalizeGenre_resolvesTheGenreNumbers() {
+        assertEquals("Blues", ID3TagReader.normalizeGenre("0"));
+        assertEquals("Pop", ID3TagReader.normalizeGenre("(13)"));
+        assertEquals("Jazz", ID3TagReader.normalizeGenre("Jazz"));
+        assertNull(ID3TagReader.normalizeGenre("(255)"));
+        assertNull(ID3TagReader.normalizeGenre(null));
+    }
+
+    @Test
+    public void extract_readsID3v22() throws IOException {
+        File file = write(tag(2, 0, 0,
+                textFrame(2, "TAL", 0, "Album"),
+                textFrame(2, "TT2", 0, "Title"),
+                textFrame(2, "TP1", 0, "Artist")));
+
+        assertEquals(new SongMetadata("Album", "Title", "Artist"), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_decodesEveryTextEncoding() throws IOException {
+        File file = write(tag(4, 0, 0,
+                textFrame(4, "TALB", 1, "\u00dcn\u00efc\u00f6d\u00e9"),
+                textFrame(4, "TIT2", 2, "\ub0a0\uac1c"),
+                textFrame(4, "TPE1", 3, "Bj\u00f6rk")));
+
+        assertEquals(new SongMetadata("\u00dcn\u00efc\u00f6d\u00e9", "\ub0a0\uac1c",
+                "Bj\u00f6rk"), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_takesTheFirstOfSeveralValues() throws IOException {
+        File file = write(tag(4, 0, 0, textFrame(4, "TPE1", 3, "First\u0000Second")));
+
+        assertEquals("First", mReader.extract(file).mArtist);
+    }
+
+    @Test
+    public void extract_undoesTagUnsynchronisationInID3v23() throws IOException {
+        byte[] frames = concat(
+                frame(3, "PRIV", new byte[] { (byte) 0xff, (byte) 0xe0, (byte) 0xff, 0 }, 0),
+                textFrame(3, "TALB", 1, "Album"),
+                textFrame(3, "TIT2", 0, "Title"));
+
+        File file = write(tag(3, 0x80, unsynchronise(frames)));
+
+        assertEquals(new SongMetadata("Album", "Title", null), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_undoesFrameUnsynchronisationInID3v24() throws IOException {
+        byte[] text = textBody(1, "Album");
+        byte[] body = concat(syncSafe(text.length), unsynchronise(text));
+        File file = write(tag(4, 0, 0,
+                frame(4, "TALB", body, 0x02 | 0x01),
+                textFrame(4, "TIT2", 0, "Title")));
+
+        assertEquals(new SongMetadata("Album", "Title", null), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_skipsTheExtendedHeader() throws IOException {
+        byte[] extended = new byte[] { 0, 0, 0, 6, 0, 0, 0, 0, 0, 0 };
+        File file = write(tag(3, 0x40, concat(extended, textFrame(3, "TIT2", 0, "Title"))));
+
+        assertEquals("Title", mReader.extract(file).mTitle);
+    }
+
+    @Test
+    public void extract_skipsCompressedFrames() throws IOException {
+        File file = write(tag(3, 0, 0,
+                frame(3, "TALB", new byte[] { 0, 0, 0, 5, 'x', 'y' }, 0x80),
+                textFrame(3, "TIT2", 0, "Title")));
+
+        assertEquals(new SongMetadata(null, "Title", null), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_readsID3v1() throws IOException {
+        File file = write(concat(AUDIO, id3v1("Title", "Artist", "Album")));
+
+        assertEquals(new SongMetadata("Album", "Title", "Artist"), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_readsTheYearFromID3v1() throws IOException {
+        byte[] tag = id3v1("Title", "Artist", "Album");
+        put(tag, 93, "1977");
+        tag[127] = 17;
+
+        assertEquals(new SongMetadata("Album", "Title", "Artist", null, 1977),
+                mReader.extract(write(concat(AUDIO, tag))));
+    }
+
+    @Test
+    public void extract_fillsMissingFieldsFromID3v1() throws IOException {
+        File file = write(concat(tag(3, 0, 0, textFrame(3, "TIT2", 0, "Long Title")),
+                id3v1("Short", "Artist", "")));
+
+        assertEquals(new SongMetadata(null, "Long Title", "Artist"), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_returnsEmptyWithoutTags() throws IOException {
+        assertSame(SongMetadata.EMPTY, mReader.extract(write(new byte[0])));
+        assertSame(SongMetadata.EMPTY, mReader.extract(write(AUDIO)));
+    }
+
+    @Test
+    public void extract_stopsAtATruncatedTag() throws IOException {
+        byte[] tag = tag(3, 0, 0,
+                textFrame(3, "TIT2", 0, "Title"),
+                textFrame(3, "TALB", 0, "Album"));
+
+        File file = write(Arrays.copyOf(tag, tag.length - AUDIO.length - 3));
+
+        assertEquals(new SongMetadata(null, "Title", null), mReader.extract(file));
+    }
+
+    @Test
+    public void extract_forgetsThePreviousSong() throws IOException {
+        mReader.extract(write(tag(3, 0, 0, textFrame(3, "TALB", 0, "Album"))));
+
+        assertSame(SongMetadata.EMPTY, mReader.extract(write(AUDIO)));
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = File.createTempFile("song", ".mp3", mRoot);
+        TestFiles.write(file, content);
+
+        return file;
+    }
+
+    private static byte[] tag(int version, int flags, int padding, byte[]... frames) {
+        return tag(version, flags, concat(concat(frames), new byte[padding]));
+    }
+
+    private static byte[] tag(int version, int flags, byte[] body) {
+        byte[] header = new byte[] { 'I', 'D', '3', (byte) version, 0, (byte) flags };
+
+        return concat(header, syncSafe(body.length), body, AUDIO);
+    }
+
+    private static byte[] textFrame(int version, String id, int encoding, String text) {
+        return frame(version, id, textBody(encoding, text), 0);
+    }
+
+    private static byte[] frame(int version, String id, byte[] body, int flags) {
+        byte[] name = id.getBytes(Charset.forName("ISO-8859-1"));
+        if (version == 2) {
+            byte[] size = new byte[] { (byte) (body.length >> 16), (byte) (body.length >> 8),
+                    (byte) body.length };
+
+            return concat(name, size, body);
+        }
+
+        byte[] size = version == 4 ? syncSafe(body.length) : new byte[] {
+                (byte) (body.length >> 24), (byte) (body.length >> 16),
+                (byte) (body.length >> 8), (byte) body.length };
+
+        return concat(name, size, new byte[] { 0, (byte) flags }, body);
+    }
+
+    private static byte[] textBody(int encoding, String text) {
+        String[] charsets = { "ISO-8859-1", "UTF-16LE", "UTF-16BE", "UTF-8" };
+        byte[] bom = encoding == 1 ? new byte[] { (byte) 0xff, (byte) 0xfe } : new byte[0];
+        byte[] terminator = encoding == 1 || encoding == 2 ? new byte[2] : new byte[1];
+
+        return concat(new byte[] { (byte) encoding }, bom,
+                text.getBytes(Charset.forName(charsets[encoding])), terminator);
+    }
+
+    private static byte[] id3v1(String title, String artist, String album) {
+        byte[] tag = new byte[128];
+        tag[0] = 'T';
+        tag[1] = 'A';
+        tag[2] = 'G';
+        put(tag, 3, title);
+        put(tag, 33, artist);
+        put(tag, 63, album);
+
+        return tag;
+    }
+
+    private static void put(byte[] tag, int offset, String text) {
+        byte[] bytes = text.getBytes(Charset.forName("ISO-8859-1"));
+        System.arraycopy(bytes, 0, tag, offset, bytes.length);
+    }
+
+    private static byte[] unsynchronise(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < data.length; i++) {
+            out.write(data[i]);
+            if (data[i] == (byte) 0xff
+                    && (i + 1 == data.length || data[i + 1] == 0 || (data[i + 1] & 0xe0) == 0xe0)) {
+                out.write(0);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] syncSafe(int value) {
+        return new byte[] { (byte) ((value >> 21) & 0x7f), (byte) ((value >> 14) & 0x7f),
+                (byte) ((value >> 7) & 0x7f), (byte) (value & 0x7f) };
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+
+        return out.toByteArray();
+    }
+}
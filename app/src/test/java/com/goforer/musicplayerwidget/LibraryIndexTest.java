@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class LibraryIndexTest {
+    private File mRoot;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = TestFiles.createTempDirectory();
+        mIndexFile = new File(TestFiles.createTempDirectory(), "library.idx");
+
+        TestFiles.touch(new File(mRoot, "a.mp3"));
+        TestFiles.touch(new File(mRoot, "cover.jpg"));
+        TestFiles.touch(new File(mRoot, "album/b.mp3"));
+        TestFiles.touch(new File(mRoot, "album/disc/c.mp3"));
+        TestFiles.touch(new File(mRoot, ".hidden/d.mp3"));
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mRoot);
+        TestFiles.delete(mIndexFile.getParentFile());
+    }
+
+    @Test
+    public void refresh_indexesVisibleMp3Files() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+
+        assertTrue(index.refresh(mRoot));
+        assertEquals(3, index.size());
+        assertEquals(pickAll(index), setOf("a.mp3", "b.mp3", "c.mp3"));
+    }
+
+    @Test
+    public void contains_onlyFindsTheIndexedSongs() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        assertTrue(index.contains(new File(mRoot, "album/b.mp3")));
+        assertFalse(index.contains(new File(mRoot, "cover.jpg")));
+        assertFalse(index.contains(new File(mRoot, ".hidden/d.mp3")));
+        assertFalse(index.contains(new File(mRoot, "album/../a.mp3")));
+    }
+
+    @Test
+    public void refresh_unchangedTreeReportsNoChange() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        assertFalse(index.refresh(mRoot));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void refresh_onlyPicksUpChangedDirectories() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        File disc = new File(mRoot, "album/disc");
+        long lastModified = disc.lastModified();
+        TestFiles.touch(new File(disc, "e.mp3"));
+        assertTrue(disc.setLastModified(lastModified - 10000));
+
+        assertTrue(index.refresh(mRoot));
+        assertEquals(4, index.size());
+
+        // A directory whose time hasn't changed is served from the index without listing it.
+        TestFiles.touch(new File(disc, "f.mp3"));
+        assertTrue(disc.setLastModified(lastModified - 10000));
+        assertFalse(index.refresh(mRoot));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void refresh_dropsDeletedDirectories() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        TestFiles.delete(new File(mRoot, "album"));
+
+        assertTrue(index.refresh(mRoot));
+        assertEquals(setOf("a.mp3"), pickAll(index));
+    }
+
+    @Test
+    public void saveAndLoad_restoresTheIndex() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        index.save();
+
+        LibraryIndex loaded = new LibraryIndex(mIndexFile);
+        assertTrue(loaded.load());
+        assertEquals(3, loaded.size());
+        assertFalse(loaded.refresh(mRoot));
+    }
+
+    @Test
+    public void openSnapshot_picksBeforeTheIndexIsLoaded() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        index.save();
+
+        LibraryIndex started = new LibraryIndex(mIndexFile);
+        assertTrue(started.openSnapshot());
+        assertEquals(3, started.size());
+        assertEquals(pickAll(started), setOf("a.mp3", "b.mp3", "c.mp3"));
+
+        assertTrue(started.load());
+        assertEquals(3, started.size());
+        assertFalse(started.refresh(mRoot));
+    }
+
+    @Test
+    public void load_corruptFileFallsBackToARefresh() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        index.save();
+        try (RandomAccessFile file = new RandomAccessFile(mIndexFile, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(0);
+        }
+
+        LibraryIndex loaded = new LibraryIndex(mIndexFile);
+        assertTrue(loaded.openSnapshot());
+        assertFalse(loaded.load());
+        assertTrue(loaded.isEmpty());
+        assertTrue(loaded.refresh(mRoot));
+        assertEquals(3, loaded.size());
+    }
+
+    @Test
+    public void load_missingFileLeavesTheIndexEmpty() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+
+        assertFalse(index.load());
+        assertTrue(index.isEmpty());
+        assertNull(index.pickRandomTrack(new Random(1)));
+    }
+
+    @Test
+    public void pickShuffledTrack_playsEverySongOnceBeforeRepeating() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        Random random = new Random(3);
+        for (int cycle = 0; cycle < 5; cycle++) {
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                assertTrue(names.add(playShuffledTrack(index, random).getName()));
+            }
+
+            assertEquals(setOf("a.mp3", "b.mp3", "c.mp3"), names);
+            assertEquals(3, index.getPlayedCount());
+        }
+    }
+
+    @Test
+    public void pickShuffledTrack_countsOnlyTheStartedSongsAsPlayed() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        Random random = new Random(5);
+        // Lookahead picks which are discarded before they are heard.
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(index.pickShuffledTrack(random));
+        }
+        assertEquals(0, index.getPlayedCount());
+
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            index.pickShuffledTrack(random);
+            assertTrue(names.add(playShuffledTrack(index, random).getName()));
+        }
+
+        assertEquals(setOf("a.mp3", "b.mp3", "c.mp3"), names);
+    }
+
+    @Test
+    public void pickShuffledTrack_continuesTheCycleAfterARestart() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        index.save();
+        Random random = new Random(4);
+        Set<String> names = new HashSet<>();
+        names.add(playShuffledTrack(index, random).getName());
+        names.add(playShuffledTrack(index, random).getName());
+
+        LibraryIndex restarted = new LibraryIndex(mIndexFile);
+        assertTrue(restarted.load());
+        assertEquals(2, restarted.getPlayedCount());
+        assertTrue(names.add(playShuffledTrack(restarted, random).getName()));
+        assertEquals(setOf("a.mp3", "b.mp3", "c.mp3"), names);
+    }
+
+    @Test
+    public void pickShuffledTrack_staysValidWhenTheLibraryChanges() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        Random random = new Random(6);
+        File first = playShuffledTrack(index, random);
+
+        // Delete an unplayed song and add a new one.
+        File album = new File(mRoot, "album");
+        File deleted = first.getName().equals("b.mp3") ? new File(mRoot, "album/disc/c.mp3")
+                : new File(album, "b.mp3");
+        assertTrue(deleted.delete());
+        TestFiles.touch(new File(album, "e.mp3"));
+        index.update(mRoot, album, null, null);
+        index.update(mRoot, new File(album, "disc"), null, null);
+        // A full refresh rebuilds the track table.
+        TestFiles.touch(new File(mRoot, "f.mp3"));
+        assertTrue(index.refresh(mRoot));
+
+        assertEquals(4, index.size());
+        assertEquals(1, index.getPlayedCount());
+        Set<String> names = new HashSet<>();
+        names.add(first.getName());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(names.add(playShuffledTrack(index, random).getName()));
+        }
+
+        assertFalse(names.contains(deleted.getName()));
+        assertEquals(4, names.size());
+    }
+
+    @Test
+    public void recordPlayback_makesSkippedSongsLessLikely() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        File skipped = new File(mRoot, "a.mp3");
+        for (int i = 0; i < 5; i++) {
+            index.recordPlayback(skipped, 0.05f, 200000);
+        }
+
+        int weight = index.getWeight(skipped);
+        int fullWeight = index.getWeight(new File(mRoot, "album/b.mp3"));
+        assertTrue(weight < fullWeight / 4);
+
+        Random random = new Random(8);
+        int picks = 30000;
+        int count = 0;
+        for (int i = 0; i < picks; i++) {
+            if (index.pickWeightedTrack(random).equals(skipped)) {
+                count++;
+            }
+        }
+
+        double p = (double) weight / (weight + 2 * fullWeight);
+        assertEquals(picks * p, count, 5 * Math.sqrt(picks * p * (1 - p)));
+    }
+
+    @Test
+    public void recordPlayback_keepsTheWeightsAfterARestart() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        index.save();
+        File skipped = new File(mRoot, "album/disc/c.mp3");
+        File played = new File(mRoot, "a.mp3");
+        index.recordPlayback(skipped, 0, 180000);
+        index.compactPlayLog();
+        // Only in the log, as if the process died before the next compaction
+        index.recordPlayback(played, 0.2f, 240000);
+
+        LibraryIndex restarted = new LibraryIndex(mIndexFile);
+        assertTrue(restarted.load());
+        assertEquals(index.getWeight(skipped), restarted.getWeight(skipped));
+        assertEquals(index.getWeight(played), restarted.getWeight(played));
+        assertTrue(restarted.getWeight(skipped) < TrackStats.MAX_WEIGHT);
+        assertTrue(restarted.getWeight(played) < TrackStats.MAX_WEIGHT);
+    }
+
+    @Test
+    public void recordPlayback_countsThePlaysBeforeTheLoadOnce() {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        LibraryIndex index = new LibraryIndex(mIndexFile, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        File skipped = new File(mRoot, "a.mp3");
+        index.recordPlayback(skipped, 0, 180000);
+        // Nothing is written or counted on the calling thread.
+        assertFalse(tasks.isEmpty());
+
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        index.refresh(mRoot);
+        // The statistics are loaded on the executor, in order with the plays.
+        assertEquals(TrackStats.MAX_WEIGHT, index.getWeight(skipped));
+        index.recordPlayback(skipped, 0, 180000);
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        int weight = index.getWeight(skipped);
+        assertTrue(weight < TrackStats.MAX_WEIGHT);
+
+        LibraryIndex countedAfterLoad = new LibraryIndex(new File(mIndexFile.getPath() + "2"));
+        countedAfterLoad.refresh(mRoot);
+        countedAfterLoad.recordPlayback(skipped, 0, 180000);
+        countedAfterLoad.recordPlayback(skipped, 0, 180000);
+        assertEquals(countedAfterLoad.getWeight(skipped), weight);
+    }
+
+    @Test
+    public void tagTracks_letsTheRadiosPickByTag() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        RadioFilter rock = new RadioFilter("Rock", null, null);
+        assertNull(index.pickFilteredTrack(rock, new Random(4)));
+
+        MetadataService service = new MetadataService(new EmptyStore(), new MetadataExtractor() {
+            @Override
+            public SongMetadata extract(File file) {
+                boolean isRock = !file.getName().equals("b.mp3");
+
+                return new SongMetadata(null, null, null, isRock ? "Rock" : "Pop", 1990);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 4);
+        assertEquals(2, index.tagTracks(service, 2));
+        assertEquals(1, index.tagTracks(service, 2));
+        assertEquals(0, index.tagTracks(service, 2));
+
+        assertEquals(2, index.getFilteredCount(rock));
+        assertEquals(3, index.getFilteredCount(new RadioFilter(null, null, "1990s")));
+        Random random = new Random(4);
+        for (int i = 0; i < 20; i++) {
+            assertFalse(index.pickFilteredTrack(rock, random).getName().equals("b.mp3"));
+        }
+    }
+
+    @Test
+    public void load_restoresTheSavedTags() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        MetadataService service = new MetadataService(new EmptyStore(), new MetadataExtractor() {
+            @Override
+            public SongMetadata extract(File file) {
+                return new SongMetadata(null, null, null, "Rock", 0);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 4);
+        assertEquals(3, index.tagTracks(service, 16));
+        index.save();
+
+        LibraryIndex restarted = new LibraryIndex(mIndexFile);
+        assertTrue(restarted.load());
+
+        assertEquals(3, restarted.getFilteredCount(new RadioFilter("Rock", null, null)));
+        assertEquals(0, restarted.tagTracks(service, 16));
+    }
+
+    @Test
+    public void refresh_keepsTheTagsOfTheRemainingTracks() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+        MetadataService service = new MetadataService(new EmptyStore(), new MetadataExtractor() {
+            @Override
+            public SongMetadata extract(File file) {
+                return new SongMetadata(null, null, file.getName(), null, 0);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 4);
+        index.tagTracks(service, 16);
+
+        assertTrue(new File(mRoot, "a.mp3").delete());
+        TestFiles.touch(new File(mRoot, "f.mp3"));
+        assertTrue(index.refresh(mRoot));
+
+        assertEquals(1, index.getFilteredCount(new RadioFilter(null, "c.mp3", null)));
+        assertEquals(0, index.getFilteredCount(new RadioFilter(null, "a.mp3", null)));
+        assertEquals(1, index.tagTracks(service, 16));
+        assertEquals(new File(mRoot, "f.mp3"), index.pickFilteredTrack(
+                new RadioFilter(null, "f.mp3", null), new Random(5)));
+    }
+
+    @Test
+    public void update_picksUpAddedAndDeletedSongs() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        File album = new File(mRoot, "album");
+        TestFiles.touch(new File(album, "e.mp3"));
+        assertTrue(new File(album, "b.mp3").delete());
+
+        assertTrue(index.update(mRoot, album, null, null));
+        assertEquals(3, index.size());
+        assertEquals(pickAll(index), setOf("a.mp3", "c.mp3", "e.mp3"));
+        assertFalse(index.update(mRoot, album, null, null));
+    }
+
+    @Test
+    public void update_walksAddedDirectories() throws IOException {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        TestFiles.touch(new File(mRoot, "new/deep/e.mp3"));
+        ArrayList<String> added = new ArrayList<>();
+
+        assertTrue(index.update(mRoot, mRoot, added, null));
+        assertEquals(4, index.size());
+        assertEquals(setOf(new File(mRoot, "new").getPath(),
+                new File(mRoot, "new/deep").getPath()), new HashSet<>(added));
+    }
+
+    @Test
+    public void update_dropsRemovedDirectories() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        File album = new File(mRoot, "album");
+        TestFiles.delete(album);
+        ArrayList<String> removed = new ArrayList<>();
+
+        assertTrue(index.update(mRoot, album, null, removed));
+        assertEquals(1, index.size());
+        assertEquals(pickAll(index), setOf("a.mp3"));
+        assertEquals(setOf(album.getPath(), new File(album, "disc").getPath()),
+                new HashSet<>(removed));
+        assertEquals(-1, index.getLastModified(album.getPath()));
+    }
+
+    @Test
+    public void update_followsMovedDirectories() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.refresh(mRoot);
+
+        File album = new File(mRoot, "album");
+        File moved = new File(mRoot, "moved");
+        assertTrue(album.renameTo(moved));
+
+        assertTrue(index.update(mRoot, mRoot, null, null));
+        assertEquals(3, index.size());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(index.pickRandomTrack(new Random(i)).exists());
+        }
+
+        assertEquals(-1, index.getLastModified(album.getPath()));
+        assertFalse(index.getLastModified(new File(moved, "disc").getPath()) == -1);
+    }
+
+    private static Set<String> pickAll(LibraryIndex index) {
+        Set<String> names = new HashSet<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            names.add(index.pickRandomTrack(random).getName());
+        }
+
+        return names;
+    }
+
+    /**
+     * Pick a song in the shuffle and start it, which counts it as played.
+     */
+    private static File playShuffledTrack(LibraryIndex index, Random random) {
+        File file = index.pickShuffledTrack(random);
+        index.markPlayed(file);
+
+        return file;
+    }
+
+    private static Set<String> setOf(String... names) {
+        Set<String> set = new HashSet<>();
+        for (String name : names) {
+            set.add(name);
+        }
+
+        return set;
+    }
+
+    private static final class EmptyStore implements MetadataStore {
+        @Override
+        public SongMetadata get(String path, long size, long lastModified) {
+            return null;
+        }
+
+        @Override
+        public void put(String path, long size, long lastModified, SongMetadata metadata) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LibrarySnapshotTest {
+    private File mDir;
+    private File mFile;
+    private Map<String, LibraryIndex.Directory> mDirectories;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = TestFiles.createTempDirectory();
+        mFile = new File(mDir, "library.idx");
+
+        mDirectories = new HashMap<>();
+        mDirectories.put("/music", new LibraryIndex.Directory(1000,
+                new String[] { "album", "empty" }, new String[] { "a.mp3" }));
+        mDirectories.put("/music/album", new LibraryIndex.Directory(2000, new String[0],
+                new String[] { "b.mp3", "\uc548\ub155.mp3" }));
+        mDirectories.put("/music/empty", new LibraryIndex.Directory(3000, new String[0],
+                new String[0]));
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    @Test
+    public void writeAndOpen_readsTracksInPlace() throws IOException {
+        LibrarySnapshot.write(mFile, mDirectories);
+        LibrarySnapshot snapshot = LibrarySnapshot.open(mFile);
+
+        assertEquals(3, snapshot.getTrackCount());
+        assertEquals(3, snapshot.getDirectoryCount());
+        assertTrue(snapshot.verify());
+
+        Set<File> tracks = new HashSet<>();
+        for (int i = 0; i < snapshot.getTrackCount(); i++) {
+            tracks.add(snapshot.getTrack(i));
+        }
+
+        Set<File> expected = new HashSet<>();
+        expected.add(new File("/music/a.mp3"));
+        expected.add(new File("/music/album/b.mp3"));
+        expected.add(new File("/music/album/\uc548\ub155.mp3"));
+        assertEquals(expected, tracks);
+        assertTrue(expected.contains(snapshot.pickRandomTrack(new Random(3))));
+        assertFalse(new File(mDir, "library.idx.tmp").exists());
+    }
+
+    @Test
+    public void readDirectories_restoresTheListings() throws IOException {
+        LibrarySnapshot.write(mFile, mDirectories);
+        Map<String, LibraryIndex.Directory> directories =
+                LibrarySnapshot.open(mFile).readDirectories();
+
+        assertEquals(mDirectories.keySet(), directories.keySet());
+        for (Map.Entry<String, LibraryIndex.Directory> entry : mDirectories.entrySet()) {
+            LibraryIndex.Directory expected = entry.getValue();
+            LibraryIndex.Directory actual = directories.get(entry.getKey());
+            assertEquals(expected.mLastModified, actual.mLastModified);
+            assertArrayEquals(expected.mSubDirectories, actual.mSubDirectories);
+            assertArrayEquals(expected.mTracks, actual.mTracks);
+        }
+    }
+
+    @Test
+    public void readTags_returnsTheTagsOfTheTaggedTracks() throws IOException {
+        TrackTable tracks = new TrackTable();
+        int a = tracks.add("/music", "a.mp3");
+        int b = tracks.add("/music/album", "b.mp3");
+        tracks.add("/music/album", "\uc548\ub155.mp3");
+        tracks.setTags(a, "Rock", null, "1990s");
+        tracks.setTags(b, "Rock", "Artist", null);
+        LibrarySnapshot.write(mFile, mDirectories, tracks);
+
+        TrackTable restored = new TrackTable();
+        restored.add("/music/album", "\uc548\ub155.mp3");
+        int restoredB = restored.add("/music/album", "b.mp3");
+        int restoredA = restored.add("/music", "a.mp3");
+        LibrarySnapshot snapshot = LibrarySnapshot.open(mFile);
+        assertTrue(snapshot.verify());
+        LibrarySnapshot.TrackTags tags = snapshot.readTags();
+        assertEquals(2, tags.mCount);
+        for (int i = 0; i < tags.mCount; i++) {
+            int id = restored.indexOf(tags.mDirectories[i], tags.mNames[i]);
+            int offset = i * TagIndex.FACET_COUNT;
+            restored.setTags(id, tags.mTags[offset + TagIndex.FACET_GENRE],
+                    tags.mTags[offset + TagIndex.FACET_ARTIST],
+                    tags.mTags[offset + TagIndex.FACET_DECADE]);
+        }
+
+        assertEquals("Rock", restored.getTag(restoredA, TagIndex.FACET_GENRE));
+        assertNull(restored.getTag(restoredA, TagIndex.FACET_ARTIST));
+        assertEquals("1990s", restored.getTag(restoredA, TagIndex.FACET_DECADE));
+        assertEquals("Artist", restored.getTag(restoredB, TagIndex.FACET_ARTIST));
+        assertFalse(restored.isTagged(restored.indexOf("/music/album", "\uc548\ub155.mp3")));
+        assertEquals(2, restored.countFiltered(new RadioFilter("Rock", null, null)));
+    }
+
+    @Test
+    public void verify_detectsCorruptRecords() throws IOException {
+        LibrarySnapshot.write(mFile, mDirectories);
+        flipByte(mFile.length() - 2);
+
+        assertFalse(LibrarySnapshot.open(mFile).verify());
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsCorruptHeader() throws IOException {
+        LibrarySnapshot.write(mFile, mDirectories);
+        flipByte(13);
+
+        LibrarySnapshot.open(mFile);
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsTruncatedFile() throws IOException {
+        LibrarySnapshot.write(mFile, mDirectories);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        LibrarySnapshot.open(mFile);
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsOtherVersions() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.writeInt(0x4d504c49);
+            file.writeInt(LibrarySnapshot.VERSION - 1);
+            file.writeInt(0);
+        }
+
+        LibrarySnapshot.open(mFile);
+    }
+
+    private void flipByte(long position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class LibraryWatcherTest {
+    private File mRoot;
+    private File mIndexFile;
+    private LibraryIndex mIndex;
+    private FakeWatchFactory mFactory;
+    private QueueExecutor mExecutor;
+    private int mChanges;
+
+    private final LibraryWatcher.Listener mListener = new LibraryWatcher.Listener() {
+        @Override
+        public void onLibraryChanged() {
+            mChanges++;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = TestFiles.createTempDirectory();
+        mIndexFile = new File(TestFiles.createTempDirectory(), "library.idx");
+
+        TestFiles.touch(new File(mRoot, "a.mp3"));
+        TestFiles.touch(new File(mRoot, "one/b.mp3"));
+        TestFiles.touch(new File(mRoot, "two/c.mp3"));
+        TestFiles.touch(new File(mRoot, "three/d.mp3"));
+        setLastModified("", 10000);
+        setLastModified("one", 20000);
+        setLastModified("two", 30000);
+        setLastModified("three", 40000);
+
+        mIndex = new LibraryIndex(mIndexFile);
+        mIndex.refresh(mRoot);
+        mFactory = new FakeWatchFactory();
+        mExecutor = new QueueExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mRoot);
+        TestFiles.delete(mIndexFile.getParentFile());
+    }
+
+    @Test
+    public void start_watchesTheMostRecentlyModifiedDirectories() {
+        LibraryWatcher watcher = createWatcher(2);
+        watcher.start(mRoot);
+
+        assertTrue(watcher.isWatching());
+        assertEquals(2, watcher.getWatchCount());
+        assertEquals(2, watcher.getColdDirectoryCount());
+        assertEquals(setOf(mRoot.getPath(), path("one")), mFactory.mWatching);
+    }
+
+    @Test
+    public void onDirectoryChanged_coalescesAndUpdatesTheIndex() throws IOException {
+        LibraryWatcher watcher = createWatcher(LibraryWatcher.DEFAULT_MAX_WATCHES);
+        watcher.start(mRoot);
+
+        TestFiles.touch(new File(mRoot, "one/e.mp3"));
+        TestFiles.touch(new File(mRoot, "one/f.mp3"));
+        watcher.onDirectoryChanged(path("one"));
+        watcher.onDirectoryChanged(path("one"));
+
+        assertEquals(1, mExecutor.mTasks.size());
+        mExecutor.runAll();
+        assertEquals(6, mIndex.size());
+        assertEquals(1, mChanges);
+    }
+
+    @Test
+    public void onDirectoryChanged_watchesAddedAndReleasesRemovedDirectories()
+            throws IOException {
+        LibraryWatcher watcher = createWatcher(LibraryWatcher.DEFAULT_MAX_WATCHES);
+        watcher.start(mRoot);
+
+        TestFiles.touch(new File(mRoot, "four/e.mp3"));
+        TestFiles.delete(new File(mRoot, "two"));
+        watcher.onDirectoryChanged(mRoot.getPath());
+        mExecutor.runAll();
+
+        assertEquals(setOf(mRoot.getPath(), path("one"), path("three"), path("four")),
+                mFactory.mWatching);
+        assertEquals(4, mIndex.size());
+    }
+
+    @Test
+    public void poll_promotesChangedColdDirectories() throws IOException {
+        LibraryWatcher watcher = createWatcher(2);
+        watcher.start(mRoot);
+
+        TestFiles.touch(new File(mRoot, "three/e.mp3"));
+        setLastModified("three", 5000);
+
+        assertEquals(1, watcher.poll());
+        assertEquals(5, mIndex.size());
+        assertEquals(setOf(mRoot.getPath(), path("three")), mFactory.mWatching);
+        assertEquals(2, watcher.getColdDirectoryCount());
+        assertEquals(0, watcher.poll());
+    }
+
+    @Test
+    public void stop_releasesAllWatchesAndDropsPendingChanges() throws IOException {
+        LibraryWatcher watcher = createWatcher(LibraryWatcher.DEFAULT_MAX_WATCHES);
+        watcher.start(mRoot);
+
+        TestFiles.touch(new File(mRoot, "one/e.mp3"));
+        watcher.onDirectoryChanged(path("one"));
+        watcher.stop();
+        mExecutor.runAll();
+
+        assertFalse(watcher.isWatching());
+        assertTrue(mFactory.mWatching.isEmpty());
+        assertEquals(4, mIndex.size());
+        assertEquals(0, mChanges);
+    }
+
+    @Test
+    public void onDirectoryChanged_dropsChangesAfterStop() {
+        LibraryWatcher watcher = createWatcher(LibraryWatcher.DEFAULT_MAX_WATCHES);
+        watcher.start(mRoot);
+        watcher.stop();
+
+        watcher.onDirectoryChanged(path("one"));
+
+        assertTrue(mExecutor.mTasks.isEmpty());
+    }
+
+    @Test
+    public void onDirectoryChanged_dropsChangesOnceTheExecutorIsShutDown() throws IOException {
+        LibraryWatcher watcher = createWatcher(LibraryWatcher.DEFAULT_MAX_WATCHES);
+        watcher.start(mRoot);
+        mExecutor.mShutdown = true;
+
+        TestFiles.touch(new File(mRoot, "one/e.mp3"));
+        watcher.onDirectoryChanged(path("one"));
+        watcher.onDirectoryChanged(path("two"));
+
+        assertTrue(mExecutor.mTasks.isEmpty());
+        assertEquals(4, mIndex.size());
+    }
+
+    private LibraryWatcher createWatcher(int maxWatches) {
+        return new LibraryWatcher(mIndex, mFactory, mExecutor, maxWatches, mListener);
+    }
+
+    private String path(String name) {
+        return new File(mRoot, name).getPath();
+    }
+
+    private void setLastModified(String name, long age) {
+        File dir = name.isEmpty() ? mRoot : new File(mRoot, name);
+        assertTrue(dir.setLastModified(System.currentTimeMillis() - age * 1000));
+    }
+
+    private static Set<String> setOf(String... names) {
+        Set<String> set = new HashSet<>();
+        for (String name : names) {
+            set.add(name);
+        }
+
+        return set;
+    }
+
+    private static final class FakeWatchFactory implements LibraryWatcher.WatchFactory {
+        final Set<String> mWatching = new HashSet<>();
+
+        @Override
+        public LibraryWatcher.Watch startWatching(final String path, LibraryWatcher watcher) {
+            assertTrue(mWatching.add(path));
+
+            return new LibraryWatcher.Watch() {
+                @Override
+                public void stop() {
+                    assertTrue(mWatching.remove(path));
+                }
+            };
+        }
+    }
+
+    private static final class QueueExecutor implements Executor {
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        boolean mShutdown;
+
+        @Override
+        public void execute(Runnable task) {
+            if (mShutdown) {
+                throw new RejectedExecutionException();
+            }
+
+            mTasks.add(task);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.poll().run();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MP3FileIteratorTest {
+    private File mRoot;
+    private File mOutside;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = TestFiles.createTempDirectory();
+        mOutside = TestFiles.createTempDirectory();
+
+        TestFiles.touch(new File(mRoot, "a.mp3"));
+        TestFiles.touch(new File(mRoot, "notes.txt"));
+        TestFiles.touch(new File(mRoot, "album/b.mp3"));
+        TestFiles.touch(new File(mRoot, "album/disc/c.mp3"));
+        TestFiles.touch(new File(mRoot, ".hidden/d.mp3"));
+        TestFiles.touch(new File(mOutside, "e.mp3"));
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mRoot);
+        TestFiles.delete(mOutside);
+    }
+
+    @Test
+    public void iterator_handsOutEveryVisibleTrack() {
+        assertEquals(setOf("a.mp3", "b.mp3", "c.mp3"), names(new MP3FileIterator(mRoot)));
+    }
+
+    @Test
+    public void moveToNext_handsOutDirectoryAndName() {
+        MP3FileIterator iterator = new MP3FileIterator(mRoot);
+        Set<String> paths = new HashSet<>();
+        while (iterator.moveToNext()) {
+            paths.add(iterator.getDirectory() + File.separator + iterator.getName());
+        }
+
+        assertEquals(3, paths.size());
+        assertTrue(paths.contains(new File(mRoot, "album/disc/c.mp3").getPath()));
+        assertFalse(iterator.moveToNext());
+    }
+
+    @Test
+    public void iterator_doesNotFollowLinkLoops() throws Exception {
+        Files.createSymbolicLink(new File(mRoot, "album/disc/loop").toPath(), mRoot.toPath());
+        Files.createSymbolicLink(new File(mRoot, "again").toPath(),
+                new File(mRoot, "album").toPath());
+
+        List<File> files = list(new MP3FileIterator(mRoot));
+
+        assertEquals(3, files.size());
+    }
+
+    @Test
+    public void iterator_entersLinkTargetOutsideTheRootOnce() throws Exception {
+        Files.createSymbolicLink(new File(mRoot, "first").toPath(), mOutside.toPath());
+        Files.createSymbolicLink(new File(mRoot, "album/second").toPath(), mOutside.toPath());
+
+        assertEquals(setOf("a.mp3", "b.mp3", "c.mp3", "e.mp3"), names(new MP3FileIterator(mRoot)));
+        assertEquals(4, list(new MP3FileIterator(mRoot)).size());
+    }
+
+    @Test
+    public void iterator_stopsAtTheMaximumDepth() throws Exception {
+        File dir = mRoot;
+        for (int i = 0; i <= DirectoryLoopGuard.MAX_DEPTH; i++) {
+            dir = new File(dir, "d");
+        }
+        TestFiles.touch(new File(dir, "too_deep.mp3"));
+        TestFiles.touch(new File(dir.getParentFile(), "deepest.mp3"));
+
+        Set<String> names = names(new MP3FileIterator(mRoot));
+
+        assertTrue(names.contains("deepest.mp3"));
+        assertFalse(names.contains("too_deep.mp3"));
+    }
+
+    @Test
+    public void guard_rejectsSiblingsSharingTheRootPrefix() throws Exception {
+        File sibling = new File(mRoot.getPath() + "foo");
+        assertTrue(sibling.mkdir());
+        try {
+            DirectoryLoopGuard guard = new DirectoryLoopGuard(mRoot);
+
+            assertFalse(guard.enter(sibling.getPath(), 1));
+            assertTrue(guard.enter(new File(mRoot, "album").getPath(), 1));
+        } finally {
+            TestFiles.delete(sibling);
+        }
+    }
+
+    @Test
+    public void iterator_handlesMissingRoot() {
+        assertFalse(new MP3FileIterator(new File(mRoot, "missing")).hasNext());
+    }
+
+    @Test
+    public void parallelWalker_doesNotFollowLinkLoops() throws Exception {
+        Files.createSymbolicLink(new File(mRoot, "album/disc/loop").toPath(), mRoot.toPath());
+
+        final AtomicInteger tracks = new AtomicInteger();
+        new ParallelMP3Walker(new ForkJoinPool(2)).walk(mRoot, new ParallelMP3Walker.Sink() {
+            @Override
+            public String[] getUnchangedSubDirectories(String path, long lastModified) {
+                return null;
+            }
+
+            @Override
+            public void onDirectory(String path, long lastModified, String[] subDirectories,
+                                    String[] names) {
+                tracks.addAndGet(names.length);
+            }
+        });
+
+        assertEquals(3, tracks.get());
+    }
+
+    private static List<File> list(MP3FileIterator iterator) {
+        List<File> files = new ArrayList<>();
+        while (iterator.hasNext()) {
+            files.add(iterator.next());
+        }
+
+        return files;
+    }
+
+    private static Set<String> names(MP3FileIterator iterator) {
+        Set<String> names = new HashSet<>();
+        for (File file : list(iterator)) {
+            names.add(file.getName());
+        }
+
+        return names;
+    }
+
+    private static Set<String> setOf(String... names) {
+        Set<String> set = new HashSet<>();
+        for (String name : names) {
+            set.add(name);
+        }
+
+        return set;
+    }
+}
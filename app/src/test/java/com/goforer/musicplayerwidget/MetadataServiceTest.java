@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetadataServiceTest {
+    private File mRoot;
+    private FakeStore mStore;
+    private FakeExtractor mExtractor;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = TestFiles.createTempDirectory();
+        mStore = new FakeStore();
+        mExtractor = new FakeExtractor();
+        for (int i = 0; i < 4; i++) {
+            TestFiles.touch(new File(mRoot, i + ".mp3"));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mRoot);
+    }
+
+    @Test
+    public void get_extractsOnlyOnce() {
+        MetadataService service = new MetadataService(mStore, mExtractor, 2);
+        File file = new File(mRoot, "0.mp3");
+
+        assertEquals("album of 0.mp3", service.get(file).mAlbum);
+        assertEquals("album of 0.mp3", service.get(file).mAlbum);
+        assertEquals(1, mExtractor.mCalls);
+        assertEquals(1, mStore.mPuts);
+    }
+
+    @Test
+    public void get_evictedEntriesComeFromTheStore() {
+        MetadataService service = new MetadataService(mStore, mExtractor, 2);
+        for (int i = 0; i < 4; i++) {
+            service.get(new File(mRoot, i + ".mp3"));
+        }
+
+        service.get(new File(mRoot, "0.mp3"));
+
+        assertEquals(4, mExtractor.mCalls);
+        assertEquals(1, mStore.mHits);
+    }
+
+    @Test
+    public void get_changedFileIsExtractedAgain() throws IOException {
+        MetadataService service = new MetadataService(mStore, mExtractor, 2);
+        File file = new File(mRoot, "0.mp3");
+        service.get(file);
+
+        TestFiles.write(file, new byte[] { 1, 2, 3 });
+        service.get(file);
+
+        assertEquals(2, mExtractor.mCalls);
+    }
+
+    @Test
+    public void get_failedExtractionIsEmptyAndNotStored() {
+        MetadataService service = new MetadataService(mStore, mExtractor, 2);
+        mExtractor.mFail = true;
+
+        assertSame(SongMetadata.EMPTY, service.get(new File(mRoot, "0.mp3")));
+        assertEquals(0, mStore.mPuts);
+    }
+
+    @Test
+    public void get_cachedEntryDoesNotWaitForAnExtraction() throws Exception {
+        final MetadataService service = new MetadataService(mStore, mExtractor, 2);
+        service.get(new File(mRoot, "0.mp3"));
+
+        mExtractor.mStarted = new CountDownLatch(1);
+        mExtractor.mRelease = new CountDownLatch(1);
+        Thread extraction = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                service.get(new File(mRoot, "1.mp3"));
+            }
+        });
+        extraction.start();
+        try {
+            assertTrue(mExtractor.mStarted.await(5, TimeUnit.SECONDS));
+            FutureTask<SongMetadata> lookup = new FutureTask<>(new Callable<SongMetadata>() {
+                @Override
+                public SongMetadata call() {
+                    return service.get(new File(mRoot, "0.mp3"));
+                }
+            });
+            new Thread(lookup).start();
+            assertEquals("album of 0.mp3", lookup.get(5, TimeUnit.SECONDS).mAlbum);
+        } finally {
+            mExtractor.mRelease.countDown();
+            extraction.join();
+        }
+
+        assertEquals(2, mExtractor.mCalls);
+    }
+
+    @Test
+    public void close_releasesExtractorAndStore() {
+        new MetadataService(mStore, mExtractor, 2).close();
+
+        assertTrue(mExtractor.mClosed);
+        assertTrue(mStore.mClosed);
+    }
+
+    private static final class FakeExtractor implements MetadataExtractor {
+        volatile int mCalls;
+        boolean mFail;
+        boolean mClosed;
+        // Set to hold the extraction until released
+        CountDownLatch mStarted;
+        CountDownLatch mRelease;
+
+        @Override
+        public SongMetadata extract(File file) throws IOException {
+            mCalls++;
+            if (mFail) {
+                throw new IOException("broken");
+            }
+
+            if (mRelease != null) {
+                mStarted.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            return new SongMetadata("album of " + file.getName(), null, null);
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+
+    private static final class FakeStore implements MetadataStore {
+        private final Map<String, Object[]> mRows = new HashMap<>();
+        int mHits;
+        int mPuts;
+        boolean mClosed;
+
+        @Override
+        public SongMetadata get(String path, long size, long lastModified) {
+            Object[] row = mRows.get(path);
+            if (row == null || (Long) row[0] != size || (Long) row[1] != lastModified) {
+                return null;
+            }
+
+            mHits++;
+
+            return (SongMetadata) row[2];
+        }
+
+        @Override
+        public void put(String path, long size, long lastModified, SongMetadata metadata) {
+            mPuts++;
+            mRows.put(path, new Object[] { size, lastModified, metadata });
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Scanner;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = TestFiles.createTempDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    @Test
+    public void histogramAndCounter_areCreatedOnce() {
+        MetricsRegistry registry = new MetricsRegistry();
+
+        assertSame(registry.histogram("a"), registry.histogram("a"));
+        assertSame(registry.counter("b"), registry.counter("b"));
+        assertNotSame(registry.histogram("a"), registry.histogram("c"));
+    }
+
+    @Test
+    public void dump_printsPercentilesInMillis() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.histogram(MetricsRegistry.TAP_TO_PLAY).record(12000);
+        registry.counter(MetricsRegistry.PLAYER_ERRORS).incrementAndGet();
+
+        StringWriter out = new StringWriter();
+        registry.dump(new PrintWriter(out));
+        String dump = out.toString();
+
+        assertTrue(dump, dump.contains("tap_to_play"));
+        assertTrue(dump, dump.contains("count=1 mean=12.0 p50=12.0"));
+        assertTrue(dump, dump.contains("player_errors=1"));
+    }
+
+    @Test
+    public void appendCsv_writesTheHeaderOnce() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.histogram(MetricsRegistry.SONG_GAP).record(40000);
+        registry.counter(MetricsRegistry.MISSING_FILE_SKIPS).addAndGet(2);
+        File file = new File(mDir, "metrics.csv");
+
+        registry.appendCsv(file, 1000);
+        registry.appendCsv(file, 2000);
+
+        String[] lines = read(file).split("\n");
+        assertEquals(5, lines.length);
+        assertEquals(MetricsRegistry.CSV_HEADER, lines[0]);
+        assertEquals("1000,song_gap,1,40.000,40.000,40.000,40.000,40.000", lines[1]);
+        assertEquals("1000,missing_file_skips,2,,,,,", lines[2]);
+        assertTrue(lines[3].startsWith("2000,song_gap,"));
+    }
+
+    private static String read(File file) throws IOException {
+        try (Scanner scanner = new Scanner(new FileInputStream(file), "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+}
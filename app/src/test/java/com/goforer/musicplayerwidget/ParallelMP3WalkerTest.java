@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ParallelMP3WalkerTest {
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = TestFiles.createTempDirectory();
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 4; j++) {
+                TestFiles.touch(new File(mRoot, "artist" + i + "/album" + j + "/track.mp3"));
+                TestFiles.touch(new File(mRoot, "artist" + i + "/album" + j + "/cover.jpg"));
+            }
+        }
+
+        TestFiles.touch(new File(mRoot, ".thumbnails/hidden.mp3"));
+        TestFiles.touch(new File(mRoot, "folder.mp3/inside.mp3"));
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mRoot);
+    }
+
+    @Test
+    public void walk_reportsEveryVisibleTrackOnce() {
+        CollectingSink sink = new CollectingSink();
+        ParallelMP3Walker.Stats stats = new ParallelMP3Walker(new ForkJoinPool(4))
+                .walk(mRoot, sink);
+
+        assertEquals(33, sink.mTracks.size());
+        assertTrue(sink.mTracks.contains(mRoot.getPath() + "/folder.mp3/inside.mp3"));
+        assertFalse(sink.mTracks.contains(mRoot.getPath() + "/.thumbnails/hidden.mp3"));
+        assertEquals(33, stats.mTracks);
+        assertEquals(1 + 8 + 32 + 1, stats.mDirectories);
+        assertTrue(stats.getFilesPerSecond() > 0);
+    }
+
+    @Test
+    public void walk_skipsListingOfUnchangedDirectories() {
+        CollectingSink sink = new CollectingSink();
+        sink.mUnchanged = mRoot.getPath() + "/artist0";
+
+        ParallelMP3Walker.Stats stats = new ParallelMP3Walker(new ForkJoinPool(2))
+                .walk(mRoot, sink);
+
+        // The unchanged directory isn't listed and has no cached sub directories to walk into.
+        assertEquals(33 - 4, sink.mTracks.size());
+        assertEquals(1 + 8 + 28 + 1, stats.mDirectories);
+    }
+
+    @Test
+    public void walk_ignoresMissingRoot() {
+        CollectingSink sink = new CollectingSink();
+        ParallelMP3Walker.Stats stats = new ParallelMP3Walker(new ForkJoinPool(2))
+                .walk(new File(mRoot, "missing"), sink);
+
+        assertTrue(sink.mTracks.isEmpty());
+        assertEquals(0, stats.mDirectories);
+    }
+
+    private static final class CollectingSink implements ParallelMP3Walker.Sink {
+        private final Set<String> mTracks = Collections.synchronizedSet(new HashSet<String>());
+        private String mUnchanged;
+
+        @Override
+        public String[] getUnchangedSubDirectories(String path, long lastModified) {
+            return path.equals(mUnchanged) ? new String[0] : null;
+        }
+
+        @Override
+        public void onDirectory(String path, long lastModified, String[] subDirectories,
+                                String[] tracks) {
+            for (String name : tracks) {
+                mTracks.add(path + File.separator + name);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class PlayLogTest {
+    private File mDirectory;
+    private File mLogDirectory;
+    private final List<Runnable> mPending = new ArrayList<>();
+
+    private final Executor mDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Executor mQueuedExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mPending.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = TestFiles.createTempDirectory();
+        mLogDirectory = new File(mDirectory, "library.idx.plays");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDirectory);
+    }
+
+    @Test
+    public void append_writesOnTheExecutor() {
+        PlayLog log = new PlayLog(mLogDirectory, mQueuedExecutor);
+        log.append(1000, 42, 180000, 1);
+        assertEquals(1, mPending.size());
+        assertEquals(0, count(log));
+
+        runPending();
+        assertEquals(1, count(log));
+    }
+
+    @Test
+    public void append_isDroppedOnceTheExecutorIsShutDown() {
+        PlayLog log = new PlayLog(mLogDirectory, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+
+        log.append(1000, 42, 180000, 1);
+        log.compact();
+        log.close();
+        assertEquals(0, count(log));
+    }
+
+    @Test
+    public void replay_countsThePlaysOfAllSegments() {
+        PlayLog log = new PlayLog(mLogDirectory, mDirectExecutor);
+        for (int i = 0; i < PlayLog.SEGMENT_RECORDS + 10; i++) {
+            log.append(i, i % 2, 200000, i % 4 == 0 ? 0.1f : 1);
+        }
+
+        final List<Long> times = new ArrayList<>();
+        log.read(0, Long.MAX_VALUE, new PlayLog.Visitor() {
+            @Override
+            public void onPlay(long time, long hash, int duration, float completion) {
+                times.add(time);
+                assertEquals(200000, duration);
+            }
+        });
+        assertEquals(PlayLog.SEGMENT_RECORDS + 10, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(i, (long) times.get(i));
+        }
+
+        TrackStats stats = new TrackStats(log.getAggregatesFile());
+        log.replay(stats);
+        assertEquals((PlayLog.SEGMENT_RECORDS + 10) / 2, stats.getPlayCount(0));
+        assertEquals((PlayLog.SEGMENT_RECORDS + 10) / 4 + 1, stats.getSkipCount(0));
+        assertEquals(0, stats.getSkipCount(1));
+    }
+
+    @Test
+    public void replay_stopsAtATornRecord() throws IOException {
+        PlayLog log = new PlayLog(mLogDirectory, mDirectExecutor);
+        log.append(1, 5, 0, 1);
+        log.append(2, 5, 0, 1);
+        log.close();
+
+        File segment = new File(mLogDirectory, "plays-1.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // A crash in the middle of the second record
+            file.setLength(PlayLog.RECORD_SIZE + PlayLog.RECORD_SIZE / 2);
+        }
+
+        assertEquals(1, count(new PlayLog(mLogDirectory, mDirectExecutor)));
+
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(3);
+            file.write(0x55);
+        }
+
+        assertEquals(0, count(new PlayLog(mLogDirectory, mDirectExecutor)));
+    }
+
+    @Test
+    public void append_neverWritesToTheSegmentOfAnEarlierProcess() throws IOException {
+        PlayLog log = new PlayLog(mLogDirectory, mDirectExecutor);
+        log.append(1, 5, 0, 1);
+        try (RandomAccessFile file = new RandomAccessFile(new File(mLogDirectory,
+                "plays-1.log"), "rw")) {
+            file.setLength(PlayLog.RECORD_SIZE / 2);
+        }
+
+        PlayLog restarted = new PlayLog(mLogDirectory, mDirectExecutor);
+        restarted.append(2, 5, 0, 1);
+        assertTrue(new File(mLogDirectory, "plays-2.log").isFile());
+        assertEquals(1, count(restarted));
+    }
+
+    @Test
+    public void compact_foldsTheSegmentsIntoTheAggregates() {
+        PlayLog log = new PlayLog(mLogDirectory, mDirectExecutor);
+        log.append(1, 5, 0, 1);
+        log.append(2, 6, 0, 0);
+        log.compact();
+        log.append(3, 5, 0, 0.3f);
+        log.compact();
+
+        assertArrayEquals(new String[] { PlayLog.AGGREGATES_FILE_NAME }, mLogDirectory.list());
+        TrackStats stats = new TrackStats(log.getAggregatesFile());
+        assertTrue(stats.load());
+        assertEquals(2, stats.getCompactedSegment());
+        assertEquals(2, stats.getPlayCount(5));
+        assertEquals(1, stats.getSkipCount(5));
+        assertEquals(1, stats.getSkipCount(6));
+
+        log.replay(stats);
+        assertEquals(2, stats.getPlayCount(5));
+
+        // The numbers go on after the compacted segments
+        log.append(4, 6, 0, 1);
+        assertTrue(new File(mLogDirectory, "plays-3.log").isFile());
+    }
+
+    @Test
+    public void replay_skipsTheSegmentsACrashLeftAfterTheirCompaction() throws IOException {
+        PlayLog log = new PlayLog(mLogDirectory, mDirectExecutor);
+        log.append(1, 5, 0, 1);
+        log.close();
+        File segment = new File(mLogDirectory, "plays-1.log");
+        byte[] content = new byte[(int) segment.length()];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            file.readFully(content);
+        }
+
+        log.compact();
+        // As if the process died between saving the aggregates and deleting the segment
+        TestFiles.write(segment, content);
+
+        PlayLog restarted = new PlayLog(mLogDirectory, mDirectExecutor);
+        TrackStats stats = new TrackStats(restarted.getAggregatesFile());
+        assertTrue(stats.load());
+        restarted.replay(stats);
+        assertEquals(1, stats.getPlayCount(5));
+
+        restarted.compact();
+        assertFalse(segment.exists());
+        assertTrue(stats.load());
+        assertEquals(1, stats.getPlayCount(5));
+    }
+
+    private void runPending() {
+        for (Runnable command : mPending) {
+            command.run();
+        }
+
+        mPending.clear();
+    }
+
+    private static int count(PlayLog log) {
+        final int[] count = new int[1];
+        log.read(0, Long.MAX_VALUE, new PlayLog.Visitor() {
+            @Override
+            public void onPlay(long time, long hash, int duration, float completion) {
+                count[0]++;
+            }
+        });
+
+        return count[0];
+    }
+}
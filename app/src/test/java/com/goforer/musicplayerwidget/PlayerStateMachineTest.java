@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.goforer.musicplayerwidget.PlayerStateMachine.Event;
+import com.goforer.musicplayerwidget.PlayerStateMachine.State;
+
+import static org.junit.Assert.*;
+
+public class PlayerStateMachineTest {
+    private final AtomicLong mIllegal = new AtomicLong();
+    private final FlightRecorder mRecorder = new FlightRecorder(64);
+    private final PlayerStateMachine mMachine = new PlayerStateMachine(mRecorder, mIllegal);
+
+    @Test
+    public void fire_followsTheLifecycle() {
+        assertEquals(State.Stopped, mMachine.getState());
+        assertFired(Event.PLAY, State.Stopped, State.Preparing);
+        assertFired(Event.SONG_STARTED, State.Preparing, State.Playing);
+        assertFired(Event.PAUSE, State.Playing, State.Paused);
+        assertFired(Event.PLAY, State.Paused, State.Playing);
+        assertFired(Event.SONG_COMPLETED, State.Playing, State.Preparing);
+        assertFired(Event.ERROR, State.Preparing, State.Stopped);
+        assertFired(Event.RELEASE, State.Stopped, State.Released);
+        assertEquals(0, mIllegal.get());
+    }
+
+    @Test
+    public void fire_rejectsIllegalEvents() {
+        assertEquals(-1, mMachine.fire(Event.PAUSE));
+        assertEquals(-1, mMachine.fire(Event.SONG_STARTED));
+        mMachine.fire(Event.PLAY);
+        assertEquals(-1, mMachine.fire(Event.PLAY));
+        assertEquals(-1, mMachine.fire(Event.PAUSE));
+
+        assertEquals(State.Preparing, mMachine.getState());
+        assertEquals(4, mIllegal.get());
+
+        final List<int[]> rejected = new ArrayList<>();
+        mRecorder.forEach(new FlightRecorder.Visitor() {
+            @Override
+            public void onEvent(long time, int event, int thread, int arg1, int arg2) {
+                if (event == FlightRecorder.EVENT_ILLEGAL_TRANSITION) {
+                    rejected.add(new int[] { arg1, arg2 });
+                }
+            }
+        });
+        assertEquals(4, rejected.size());
+        assertArrayEquals(new int[] { State.Preparing.ordinal(), Event.PAUSE.ordinal() },
+                rejected.get(3));
+    }
+
+    @Test
+    public void fire_playSongPreparesTheChosenSongFromAnyStateButReleased() {
+        assertFired(Event.PLAY_SONG, State.Stopped, State.Preparing);
+        assertFired(Event.PLAY_SONG, State.Preparing, State.Preparing);
+        assertFired(Event.SONG_STARTED, State.Preparing, State.Playing);
+        assertFired(Event.PLAY_SONG, State.Playing, State.Preparing);
+        mMachine.fire(Event.SONG_STARTED);
+        assertFired(Event.PAUSE, State.Playing, State.Paused);
+        assertFired(Event.PLAY_SONG, State.Paused, State.Preparing);
+        assertEquals(0, mIllegal.get());
+    }
+
+    @Test
+    public void fire_rejectsEverythingOnceReleased() {
+        mMachine.fire(Event.RELEASE);
+        for (Event event : Event.values()) {
+            assertEquals(-1, mMachine.fire(event));
+        }
+
+        assertEquals(State.Released, mMachine.getState());
+        assertEquals(Event.values().length, mIllegal.get());
+    }
+
+    @Test
+    public void isCurrent_isFalseAfterAnotherTransition() {
+        int play = mMachine.fire(Event.PLAY);
+        assertTrue(mMachine.isCurrent(play));
+
+        int stop = mMachine.fire(Event.STOP);
+        assertFalse(mMachine.isCurrent(play));
+        assertTrue(mMachine.isCurrent(stop));
+
+        // Stopping again leaves the state as it is, but still supersedes the first stop.
+        int again = mMachine.fire(Event.STOP);
+        assertFalse(mMachine.isCurrent(stop));
+        assertEquals(State.Stopped, PlayerStateMachine.getFrom(again));
+        assertEquals(State.Stopped, PlayerStateMachine.getTo(again));
+    }
+
+    @Test
+    public void randomCommandsAndCallbacks_keepTheEngineConsistent() throws Exception {
+        for (int round = 0; round < 30; round++) {
+            new Model(round).run(4, 300);
+        }
+    }
+
+    private void assertFired(Event event, State from, State to) {
+        int stamp = mMachine.fire(event);
+        assertTrue(stamp != -1);
+        assertEquals(from, PlayerStateMachine.getFrom(stamp));
+        assertEquals(to, PlayerStateMachine.getTo(stamp));
+        assertEquals(to, mMachine.getState());
+    }
+
+    private enum PlayerState { Idle, Preparing, Started, Paused, Completed, Error, Released }
+
+    /**
+     * A model of PlayerEngine: the commands fire their events on the caller threads and the work
+     * runs on a single worker thread, while the fake player calls back from other threads
+     * through the worker, like MediaPlayer does through the looper.
+     */
+    private static final class Model {
+        final Random mSeeds;
+        final AtomicLong mIllegal = new AtomicLong();
+        final PlayerStateMachine mMachine =
+                new PlayerStateMachine(new FlightRecorder(64), mIllegal);
+        final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+        final ExecutorService mMedia = Executors.newFixedThreadPool(2);
+        final ConcurrentLinkedQueue<int[]> mAccepted = new ConcurrentLinkedQueue<>();
+        final AtomicLong mRejected = new AtomicLong();
+        final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+
+        // The fake player is only used on the worker thread.
+        PlayerState mPlayer = PlayerState.Idle;
+        int mToken;
+        volatile boolean mQuiet;
+
+        Model(long seed) {
+            mSeeds = new Random(seed);
+        }
+
+        void run(int threadCount, final int commandCount) throws Exception {
+            final CountDownLatch done = new CountDownLatch(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                final Random random = new Random(mSeeds.nextLong());
+                new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < commandCount; j++) {
+                            int pick = random.nextInt(1000);
+                            command(pick < 400 ? Event.PLAY : pick < 700 ? Event.PAUSE
+                                    : pick < 998 ? Event.STOP : Event.RELEASE);
+                            LockSupport.parkNanos(random.nextInt(50000));
+                        }
+                        done.countDown();
+                    }
+                }.start();
+            }
+
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            mQuiet = true;
+            mMedia.shutdown();
+            assertTrue(mMedia.awaitTermination(10, TimeUnit.SECONDS));
+            mWorker.shutdown();
+            assertTrue(mWorker.awaitTermination(10, TimeUnit.SECONDS));
+
+            if (mFailure.get() != null) {
+                throw new AssertionError(mFailure.get());
+            }
+
+            assertEquals(mRejected.get(), mIllegal.get());
+            State state = mMachine.getState();
+            assertBalanced(state);
+            assertEquals(state, toMachineState(mPlayer));
+        }
+
+        /**
+         * Every transition leaves a state once more than it enters it only for the initial
+         * state, and enters once more than it leaves only the final state.
+         */
+        void assertBalanced(State last) {
+            int[] balance = new int[State.values().length];
+            for (int[] transition : mAccepted) {
+                State from = State.values()[transition[0]];
+                Event event = Event.values()[transition[1]];
+                State to = State.values()[transition[2]];
+                assertEquals(to, PlayerStateMachine.getTransition(from, event));
+                balance[from.ordinal()]++;
+                balance[to.ordinal()]--;
+            }
+
+            balance[State.Stopped.ordinal()]--;
+            balance[last.ordinal()]++;
+            for (int b : balance) {
+                assertEquals(0, b);
+            }
+        }
+
+        static State toMachineState(PlayerState player) {
+            switch (player) {
+                case Idle:
+                case Error:
+                    return State.Stopped;
+                case Preparing:
+                    return State.Preparing;
+                case Started:
+                    return State.Playing;
+                case Paused:
+                case Completed:
+                    return State.Paused;
+                default:
+                    return State.Released;
+            }
+        }
+
+        int fire(Event event) {
+            int stamp = mMachine.fire(event);
+            if (stamp == -1) {
+                mRejected.incrementAndGet();
+            } else {
+                mAccepted.add(new int[] { PlayerStateMachine.getFrom(stamp).ordinal(),
+                        event.ordinal(), PlayerStateMachine.getTo(stamp).ordinal() });
+            }
+
+            return stamp;
+        }
+
+        void command(final Event event) {
+            final int stamp = fire(event);
+            if (stamp == -1) {
+                return;
+            }
+
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleCommand(event, stamp);
+                    } catch (Throwable t) {
+                        mFailure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        void handleCommand(Event event, int stamp) {
+            if (event != Event.RELEASE && !mMachine.isCurrent(stamp)) {
+                return;
+            }
+
+            State from = PlayerStateMachine.getFrom(stamp);
+            switch (event) {
+                case PLAY:
+                    if (from == State.Paused) {
+                        start();
+                    } else {
+                        prepare();
+                    }
+                    break;
+                case PAUSE:
+                    check(PlayerState.Started, PlayerState.Paused, PlayerState.Completed);
+                    mPlayer = PlayerState.Paused;
+                    break;
+                case STOP:
+                    if (from == State.Playing || from == State.Paused) {
+                        check(PlayerState.Started, PlayerState.Paused, PlayerState.Completed);
+                    }
+                    reset();
+                    break;
+                case RELEASE:
+                    reset();
+                    mPlayer = PlayerState.Released;
+                    break;
+                default:
+                    fail("Unexpected command " + event);
+            }
+        }
+
+        void onSongStarted() {
+            fire(Event.SONG_STARTED);
+        }
+
+        void onSongCompleted() {
+            if (fire(Event.SONG_COMPLETED) != -1) {
+                prepare();
+            }
+        }
+
+        void onError() {
+            fire(Event.ERROR);
+        }
+
+        void prepare() {
+            reset();
+            mPlayer = PlayerState.Preparing;
+            callBack(PlayerState.Preparing);
+        }
+
+        void start() {
+            check(PlayerState.Started, PlayerState.Paused, PlayerState.Completed);
+            mPlayer = PlayerState.Started;
+            callBack(PlayerState.Started);
+        }
+
+        void reset() {
+            check(PlayerState.values());
+            mPlayer = PlayerState.Idle;
+            mToken++;
+        }
+
+        /**
+         * Throw if the player isn't in one of the specified states, the released player can't
+         * be used at all.
+         */
+        void check(PlayerState... allowed) {
+            for (PlayerState state : allowed) {
+                if (state == mPlayer && state != PlayerState.Released) {
+                    return;
+                }
+            }
+
+            throw new IllegalStateException("Illegal player operation in " + mPlayer);
+        }
+
+        /**
+         * Let the player report the outcome of the current operation from another thread,
+         * unless the operation has been superseded by then.
+         */
+        void callBack(final PlayerState expected) {
+            if (mQuiet) {
+                return;
+            }
+
+            final int token = ++mToken;
+            final int outcome = mSeeds.nextInt(10);
+            mMedia.execute(new Runnable() {
+                @Override
+                public void run() {
+                    LockSupport.parkNanos(outcome * 20000);
+                    mWorker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                deliver(token, expected, outcome);
+                            } catch (Throwable t) {
+                                mFailure.compareAndSet(null, t);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        void deliver(int token, PlayerState expected, int outcome) {
+            if (token != mToken || mPlayer != expected) {
+                return;
+            }
+
+            if (outcome == 0) {
+                mPlayer = PlayerState.Error;
+                onError();
+            } else if (expected == PlayerState.Preparing) {
+                mPlayer = PlayerState.Started;
+                callBack(PlayerState.Started);
+                onSongStarted();
+            } else {
+                mPlayer = PlayerState.Completed;
+                onSongCompleted();
+            }
+        }
+    }
+}
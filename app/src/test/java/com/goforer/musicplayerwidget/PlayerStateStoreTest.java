@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PlayerStateStoreTest {
+    private final PlayerStateStore mStore = new PlayerStateStore();
+    private final QueueExecutor mExecutor = new QueueExecutor();
+    private final RecordingObserver mObserver = new RecordingObserver();
+
+    @Test
+    public void addObserver_deliversTheCurrentSnapshot() {
+        mStore.setSong("song", "album");
+        mStore.addObserver(mObserver, mExecutor);
+
+        mExecutor.runAll();
+
+        assertEquals(1, mObserver.mSnapshots.size());
+        assertEquals("song", mObserver.mSnapshots.get(0).mFileName);
+    }
+
+    @Test
+    public void changes_areCoalescedIntoOneDeliveryOfTheLatestSnapshot() {
+        mStore.addObserver(mObserver, mExecutor);
+        mExecutor.runAll();
+
+        for (int i = 0; i < 100; i++) {
+            mStore.setSong("song " + i, "album");
+            mStore.setPlayerState(i % 2 == 0 ? PlayerAppWidget.PLAYER_STATE_PLAY
+                    : PlayerAppWidget.PLAYER_STATE_PAUSE);
+        }
+
+        assertEquals(1, mExecutor.mQueue.size());
+        mExecutor.runAll();
+
+        assertEquals(2, mObserver.mSnapshots.size());
+        PlayerStateStore.Snapshot last = mObserver.mSnapshots.get(1);
+        assertSame(mStore.getSnapshot(), last);
+        assertEquals("song 99", last.mFileName);
+        assertEquals(PlayerAppWidget.PLAYER_STATE_PAUSE, last.mPlayerState);
+    }
+
+    @Test
+    public void changesAfterADelivery_scheduleTheNextOne() {
+        mStore.addObserver(mObserver, mExecutor);
+        mExecutor.runAll();
+
+        mStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY);
+        mExecutor.runAll();
+        mStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_STOP);
+        mExecutor.runAll();
+
+        assertEquals(3, mObserver.mSnapshots.size());
+        assertEquals(PlayerAppWidget.PLAYER_STATE_PLAY, mObserver.mSnapshots.get(1).mPlayerState);
+        assertEquals(PlayerAppWidget.PLAYER_STATE_STOP, mObserver.mSnapshots.get(2).mPlayerState);
+    }
+
+    @Test
+    public void unchangedState_isNotDelivered() {
+        mStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY);
+        mStore.addObserver(mObserver, mExecutor);
+        mExecutor.runAll();
+
+        mStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY);
+        mStore.setPosition(0);
+
+        assertTrue(mExecutor.mQueue.isEmpty());
+    }
+
+    @Test
+    public void setSong_restartsThePositionAndKeepsTheState() {
+        mStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY);
+        mStore.setPosition(1234);
+        mStore.setSong("song", "album");
+
+        PlayerStateStore.Snapshot snapshot = mStore.getSnapshot();
+        assertEquals(0, snapshot.mPosition);
+        assertEquals(PlayerAppWidget.PLAYER_STATE_PLAY, snapshot.mPlayerState);
+        assertEquals(3, snapshot.mVersion);
+    }
+
+    @Test
+    public void removeObserver_dropsThePendingDelivery() {
+        mStore.addObserver(mObserver, mExecutor);
+        mStore.removeObserver(mObserver);
+
+        mExecutor.runAll();
+        mStore.setPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY);
+        mExecutor.runAll();
+
+        assertTrue(mObserver.mSnapshots.isEmpty());
+    }
+
+    @Test
+    public void concurrentChanges_areDeliveredInOrderEndingWithTheLatest() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        mStore.addObserver(mObserver, executor);
+
+        final int writers = 4;
+        final CountDownLatch done = new CountDownLatch(writers);
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        mStore.setSong("song " + writer + "-" + i, "album");
+                        mStore.setPosition(i + 1);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        List<PlayerStateStore.Snapshot> snapshots = mObserver.getSnapshots();
+        for (int i = 1; i < snapshots.size(); i++) {
+            assertTrue(snapshots.get(i).mVersion > snapshots.get(i - 1).mVersion);
+        }
+
+        assertSame(mStore.getSnapshot(), snapshots.get(snapshots.size() - 1));
+        assertTrue(snapshots.size() <= mStore.getSnapshot().mVersion + 1);
+    }
+
+    /**
+     * Executor which queues the commands until the test runs them.
+     */
+    private static final class QueueExecutor implements Executor {
+        final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            Runnable command;
+            while ((command = mQueue.poll()) != null) {
+                command.run();
+            }
+        }
+    }
+
+    private static final class RecordingObserver implements PlayerStateStore.Observer {
+        final List<PlayerStateStore.Snapshot> mSnapshots = new ArrayList<>();
+
+        @Override
+        public synchronized void onStateChanged(PlayerStateStore.Snapshot snapshot) {
+            mSnapshots.add(snapshot);
+        }
+
+        synchronized List<PlayerStateStore.Snapshot> getSnapshots() {
+            return new ArrayList<>(mSnapshots);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RankSelectBitSetTest {
+    @Test
+    public void selectClear_skipsTheSetBits() {
+        RankSelectBitSet bits = new RankSelectBitSet(256);
+        bits.set(0);
+        bits.set(1);
+        bits.set(3);
+        bits.set(64);
+
+        assertEquals(2, bits.selectClear(0));
+        assertEquals(4, bits.selectClear(1));
+        assertEquals(63, bits.selectClear(60));
+        assertEquals(65, bits.selectClear(61));
+        assertEquals(4, bits.cardinality());
+    }
+
+    @Test
+    public void selectClear_findsTheBitsBeyondTheWords() {
+        RankSelectBitSet bits = new RankSelectBitSet(64);
+        for (int i = 0; i < 64; i++) {
+            bits.set(i);
+        }
+
+        assertEquals(64, bits.selectClear(0));
+        assertEquals(70, bits.selectClear(6));
+    }
+
+    @Test
+    public void rank_countsTheSetBitsBelow() {
+        RankSelectBitSet bits = new RankSelectBitSet(64);
+        bits.set(5);
+        bits.set(100);
+        bits.set(200);
+
+        assertEquals(0, bits.rank(5));
+        assertEquals(1, bits.rank(6));
+        assertEquals(2, bits.rank(200));
+        assertEquals(3, bits.rank(10000));
+    }
+
+    @Test
+    public void clear_keepsTheCountsConsistent() {
+        RankSelectBitSet bits = new RankSelectBitSet(128);
+        bits.set(10);
+        bits.set(10);
+        bits.clear(10);
+        bits.clear(11);
+        bits.clear(5000);
+
+        assertEquals(0, bits.cardinality());
+        assertEquals(10, bits.selectClear(10));
+
+        bits.set(70);
+        bits.clear();
+        assertEquals(0, bits.cardinality());
+        assertFalse(bits.get(70));
+        assertEquals(70, bits.selectClear(70));
+    }
+
+    @Test
+    public void randomOperations_matchABitSet() {
+        RankSelectBitSet bits = new RankSelectBitSet(1);
+        BitSet expected = new BitSet();
+        Random random = new Random(21);
+        for (int i = 0; i < 20000; i++) {
+            int index = random.nextInt(3000);
+            if (random.nextBoolean()) {
+                bits.set(index);
+                expected.set(index);
+            } else {
+                bits.clear(index);
+                expected.clear(index);
+            }
+
+            if (i % 100 == 0) {
+                assertEquals(expected.cardinality(), bits.cardinality());
+                assertEquals(expected.get(0, index).cardinality(), bits.rank(index));
+                int n = random.nextInt(3000 - expected.cardinality());
+                int clear = expected.nextClearBit(0);
+                for (int j = 0; j < n; j++) {
+                    clear = expected.nextClearBit(clear + 1);
+                }
+
+                assertEquals(clear, bits.selectClear(n));
+            }
+        }
+    }
+}
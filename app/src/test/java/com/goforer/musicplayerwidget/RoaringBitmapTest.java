@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RoaringBitmapTest {
+    @Test
+    public void add_keepsTheValuesSortedAcrossChunks() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        assertTrue(bitmap.add(70000));
+        assertTrue(bitmap.add(3));
+        assertTrue(bitmap.add(65535));
+        assertFalse(bitmap.add(3));
+
+        assertEquals(3, bitmap.getCardinality());
+        assertArrayEquals(new int[] { 3, 65535, 70000 }, bitmap.toArray());
+        assertEquals(65535, bitmap.select(1));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(4));
+    }
+
+    @Test
+    public void add_turnsADenseChunkIntoABitmapAndBack() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        int count = RoaringBitmap.MAX_ARRAY_SIZE * 3;
+        for (int i = 0; i < count; i++) {
+            bitmap.add(i * 2);
+        }
+
+        assertEquals(count, bitmap.getCardinality());
+        assertEquals(2 * 5000, bitmap.select(5000));
+        assertTrue(bitmap.contains(2 * 9000));
+        assertFalse(bitmap.contains(2 * 9000 + 1));
+
+        for (int i = 0; i < count; i += 2) {
+            assertTrue(bitmap.remove(i * 2));
+        }
+
+        assertEquals(count / 2, bitmap.getCardinality());
+        assertEquals(2, bitmap.select(0));
+        assertEquals(6, bitmap.select(1));
+        assertFalse(bitmap.remove(0));
+    }
+
+    @Test
+    public void remove_dropsEmptyChunks() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        bitmap.add(1);
+        bitmap.add(200000);
+        assertTrue(bitmap.remove(1));
+
+        assertEquals(200000, bitmap.select(0));
+        assertArrayEquals(new int[] { 200000 }, bitmap.toArray());
+
+        bitmap.clear();
+        assertTrue(bitmap.isEmpty());
+        assertFalse(bitmap.contains(200000));
+    }
+
+    @Test
+    public void and_intersectsEveryKindOfChunk() {
+        Random random = new Random(5);
+        for (int round = 0; round < 20; round++) {
+            RoaringBitmap a = new RoaringBitmap();
+            RoaringBitmap b = new RoaringBitmap();
+            BitSet expectedA = new BitSet();
+            BitSet expectedB = new BitSet();
+            // Sparse and dense chunks in both bitmaps
+            fill(a, expectedA, random, 1 + random.nextInt(20000), 1 << 18);
+            fill(b, expectedB, random, 1 + random.nextInt(20000), 1 << 18);
+
+            RoaringBitmap and = RoaringBitmap.and(a, b);
+            expectedA.and(expectedB);
+            assertEquals(expectedA.cardinality(), and.getCardinality());
+            assertArrayEquals(toArray(expectedA), and.toArray());
+        }
+    }
+
+    @Test
+    public void select_matchesABitSet() {
+        Random random = new Random(17);
+        RoaringBitmap bitmap = new RoaringBitmap();
+        BitSet expected = new BitSet();
+        for (int i = 0; i < 100000; i++) {
+            int value = random.nextInt(300000);
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.get(value), bitmap.remove(value));
+                expected.clear(value);
+            } else {
+                assertEquals(!expected.get(value), bitmap.add(value));
+                expected.set(value);
+            }
+        }
+
+        int[] values = toArray(expected);
+        assertEquals(values.length, bitmap.getCardinality());
+        for (int i = 0; i < values.length; i += 97) {
+            assertEquals(values[i], bitmap.select(i));
+        }
+
+        assertArrayEquals(values, bitmap.toArray());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void select_rejectsAnIndexBeyondTheValues() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        bitmap.add(1);
+
+        bitmap.select(1);
+    }
+
+    private static int[] toArray(BitSet bits) {
+        int[] values = new int[bits.cardinality()];
+        int count = 0;
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            values[count++] = i;
+        }
+
+        return values;
+    }
+
+    private static void fill(RoaringBitmap bitmap, BitSet expected, Random random, int count,
+                             int bound) {
+        for (int i = 0; i < count; i++) {
+            int value = random.nextInt(bound);
+            bitmap.add(value);
+            expected.set(value);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    @Test
+    public void search_findsTheTracksByThePrefixesOfTheirWords() {
+        SearchIndex index = new SearchIndex(2);
+        index.set(0, "A Night at the Opera", "Bohemian Rhapsody", null, "Queen");
+        index.set(1, "Nevermind", "Smells Like Teen Spirit", "Grunge", "Nirvana");
+        index.set(2, "Innuendo", "The Show Must Go On", "Rock", "Queen");
+
+        assertArrayEquals(new int[] { 0, 2 }, search(index, "que", 4));
+        assertArrayEquals(new int[] { 1 }, search(index, "TEEN"));
+        assertArrayEquals(new int[] { 1 }, search(index, "grun"));
+        assertArrayEquals(new int[] { 1, 0 }, search(index, "n", 4));
+        assertArrayEquals(new int[0], search(index, "queens"));
+        assertArrayEquals(new int[0], search(index, "x"));
+        assertArrayEquals(new int[0], search(index, " - "));
+    }
+
+    @Test
+    public void search_matchesEveryWordOfTheQuery() {
+        SearchIndex index = new SearchIndex(4);
+        index.set(0, "Greatest Hits", "Another One Bites the Dust", null, "Queen");
+        index.set(1, "Greatest Hits", "Like a Prayer", null, "Madonna");
+        index.set(2, "Innuendo", "The Show Must Go On", null, "Queen");
+
+        assertArrayEquals(new int[] { 0 }, search(index, "queen greatest"));
+        assertArrayEquals(new int[] { 0 }, search(index, "gr, q"));
+        assertArrayEquals(new int[] { 2 }, search(index, "the show"));
+        assertArrayEquals(new int[0], search(index, "madonna innuendo"));
+    }
+
+    @Test
+    public void search_listsTheWholeWordFirstAndStopsOnceFull() {
+        SearchIndex index = new SearchIndex(4);
+        index.set(0, "Queens of the Stone Age");
+        index.set(1, "Queen");
+        index.set(2, "Queensryche");
+
+        assertArrayEquals(new int[] { 1, 0 }, search(index, "queen", 2));
+        assertArrayEquals(new int[] { 1, 0, 2 }, search(index, "queen", 3));
+    }
+
+    @Test
+    public void set_replacesTheWordsOfTheTrack() {
+        SearchIndex index = new SearchIndex(2);
+        index.set(0, "Bohemian Rhapsody");
+        index.set(0, "Radio Ga Ga", "Radio");
+
+        assertArrayEquals(new int[0], search(index, "bohemian"));
+        assertArrayEquals(new int[] { 0 }, search(index, "radio"));
+        assertArrayEquals(new int[] { 0 }, search(index, "ga"));
+    }
+
+    @Test
+    public void move_keepsTheWordsOfTheTrack() {
+        SearchIndex index = new SearchIndex(2);
+        index.set(0, "Bohemian Rhapsody");
+        index.set(5, "Like a Prayer");
+
+        index.remove(0);
+        index.move(5, 0);
+
+        assertArrayEquals(new int[] { 0 }, search(index, "prayer"));
+        assertArrayEquals(new int[0], search(index, "bohemian"));
+        index.set(5, "Prayer");
+        assertArrayEquals(new int[] { 0, 5 }, search(index, "prayer"));
+    }
+
+    @Test
+    public void clear_removesAllWords() {
+        SearchIndex index = new SearchIndex(2);
+        index.set(0, "Bohemian Rhapsody");
+        index.clear();
+        assertArrayEquals(new int[0], search(index, "b"));
+
+        index.set(0, "Radio Ga Ga");
+        assertArrayEquals(new int[] { 0 }, search(index, "r"));
+        assertArrayEquals(new int[0], search(index, "b"));
+    }
+
+    @Test
+    public void randomSetsAndRemoves_matchAScanOfTheFields() {
+        Random random = new Random(11);
+        String[] syllables = { "ka", "lo", "mi", "ne", "ru", "so", "ta", "ve" };
+        int trackCount = 200;
+        String[] fields = new String[trackCount];
+        SearchIndex index = new SearchIndex(4);
+        for (int round = 0; round < 5000; round++) {
+            int id = random.nextInt(trackCount);
+            if (random.nextInt(4) == 0) {
+                index.remove(id);
+                fields[id] = null;
+            } else {
+                StringBuilder field = new StringBuilder();
+                for (int word = random.nextInt(4); word >= 0; word--) {
+                    for (int syllable = random.nextInt(3); syllable >= 0; syllable--) {
+                        field.append(syllables[random.nextInt(syllables.length)]);
+                    }
+
+                    field.append(' ');
+                }
+
+                fields[id] = field.toString().toUpperCase();
+                index.set(id, fields[id]);
+            }
+
+            String query = syllables[random.nextInt(syllables.length)];
+            if (random.nextBoolean()) {
+                query += " " + syllables[random.nextInt(syllables.length)].charAt(0);
+            }
+
+            int[] found = search(index, query, trackCount);
+            Arrays.sort(found);
+            assertArrayEquals(query, scan(fields, query), found);
+        }
+    }
+
+    private static int[] search(SearchIndex index, String query) {
+        return search(index, query, 8);
+    }
+
+    private static int[] search(SearchIndex index, String query, int maxResults) {
+        int[] results = new int[maxResults];
+
+        return Arrays.copyOf(results, index.search(query, results));
+    }
+
+    /**
+     * @return the IDs of the tracks whose field has a word starting with every word of the query
+     */
+    private static int[] scan(String[] fields, String query) {
+        int[] ids = new int[fields.length];
+        int count = 0;
+        for (int id = 0; id < fields.length; id++) {
+            if (fields[id] == null) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (String prefix : query.split(" ")) {
+                boolean found = false;
+                for (String word : fields[id].toLowerCase().split(" ")) {
+                    found |= word.startsWith(prefix);
+                }
+
+                matches &= found;
+            }
+
+            if (matches) {
+                ids[count++] = id;
+            }
+        }
+
+        return Arrays.copyOf(ids, count);
+    }
+}
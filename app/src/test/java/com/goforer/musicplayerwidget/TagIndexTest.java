@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TagIndexTest {
+    @Test
+    public void pick_onlyPicksTheTracksOfTheFilter() {
+        TagIndex index = new TagIndex(4);
+        index.set(0, "Rock", "Queen", "1970s");
+        index.set(1, "Rock", "Nirvana", "1990s");
+        index.set(2, "Pop", "Madonna", "1990s");
+        index.set(3, null, "Queen", null);
+
+        Random random = new Random(1);
+        RadioFilter rock90s = new RadioFilter("Rock", null, "1990s");
+        for (int i = 0; i < 20; i++) {
+            assertEquals(1, index.pick(rock90s, random));
+        }
+
+        assertEquals(2, index.count(new RadioFilter(null, "Queen", null)));
+        assertEquals(2, index.count(new RadioFilter(null, null, "1990s")));
+        assertEquals(0, index.count(new RadioFilter("Pop", "Queen", null)));
+        assertEquals(-1, index.pick(new RadioFilter("Jazz", null, null), random));
+    }
+
+    @Test
+    public void set_replacesTheValuesOfTheTrack() {
+        TagIndex index = new TagIndex(2);
+        index.set(0, "Rock", "Queen", "1970s");
+        index.set(0, "Pop", null, "1970s");
+
+        assertEquals(0, index.count(new RadioFilter("Rock", null, null)));
+        assertEquals(1, index.count(new RadioFilter("Pop", null, "1970s")));
+        assertNull(index.get(0, TagIndex.FACET_ARTIST));
+        assertEquals("Pop", index.get(0, TagIndex.FACET_GENRE));
+    }
+
+    @Test
+    public void move_keepsTheValuesOfTheTrack() {
+        TagIndex index = new TagIndex(2);
+        index.set(0, "Rock", "Queen", "1970s");
+        index.set(5, "Pop", "Madonna", "1980s");
+
+        index.remove(0);
+        index.move(5, 0);
+
+        assertFalse(index.isTagged(5));
+        assertTrue(index.isTagged(0));
+        assertEquals("Madonna", index.get(0, TagIndex.FACET_ARTIST));
+        assertNull(index.get(5, TagIndex.FACET_ARTIST));
+        assertEquals(0, index.count(new RadioFilter(null, "Queen", null)));
+        assertEquals(0, index.pick(new RadioFilter("Pop", null, null), new Random(2)));
+        assertEquals(1, index.findUntagged(0));
+    }
+
+    @Test
+    public void findUntagged_skipsTheTaggedTracks() {
+        TagIndex index = new TagIndex(8);
+        index.set(0, null, null, null);
+        index.set(2, "Rock", null, null);
+
+        assertEquals(1, index.findUntagged(0));
+        assertEquals(3, index.findUntagged(1));
+        assertTrue(index.isTagged(0));
+    }
+
+    @Test
+    public void radioFilter_takesTheValueOfTheSong() {
+        SongMetadata metadata = new SongMetadata("Album", "Title", "Artist", "Rock", 1994);
+
+        assertEquals(new RadioFilter(null, null, "1990s"),
+                RadioFilter.of(TagIndex.FACET_DECADE, metadata));
+        assertEquals(new RadioFilter("Rock", null, null),
+                RadioFilter.of(TagIndex.FACET_GENRE, metadata));
+        assertNull(RadioFilter.of(TagIndex.FACET_DECADE, SongMetadata.EMPTY));
+        assertEquals("Rock / 1990s", new RadioFilter("Rock", null, "1990s").getLabel());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void radioFilter_needsAValue() {
+        new RadioFilter(null, null, null);
+    }
+}
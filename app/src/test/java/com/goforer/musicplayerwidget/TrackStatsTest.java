@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class TrackStatsTest {
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = TestFiles.createTempDirectory();
+        mFile = new File(mDirectory, PlayLog.AGGREGATES_FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDirectory);
+    }
+
+    @Test
+    public void record_countsPlaysSkipsAndCompletion() {
+        TrackStats stats = new TrackStats(mFile);
+        stats.record(7, 1);
+        stats.record(7, 0.25f);
+        stats.record(7, 2);
+
+        assertEquals(3, stats.getPlayCount(7));
+        assertEquals(1, stats.getSkipCount(7));
+        assertEquals(0.75f, stats.getCompletionRatio(7), 1e-6);
+        assertEquals(0, stats.getPlayCount(8));
+        assertEquals(1, stats.getCompletionRatio(8), 0);
+    }
+
+    @Test
+    public void getWeight_fallsWithSkipsAndRecoversWithCompletePlays() {
+        TrackStats stats = new TrackStats(mFile);
+        assertEquals(TrackStats.MAX_WEIGHT, stats.getWeight(1));
+
+        stats.record(1, 1);
+        assertEquals(TrackStats.MAX_WEIGHT, stats.getWeight(1));
+
+        int weight = stats.getWeight(2);
+        for (int i = 0; i < 10; i++) {
+            stats.record(2, 0.1f);
+            int skipped = stats.getWeight(2);
+            assertTrue(skipped < weight);
+            assertTrue(skipped >= 1);
+            weight = skipped;
+        }
+
+        stats.record(2, 1);
+        assertTrue(stats.getWeight(2) > weight);
+    }
+
+    @Test
+    public void getWeight_neverDropsBelowOne() {
+        assertEquals(1, TrackStats.getWeight(100000, 100000, 0));
+    }
+
+    @Test
+    public void saveAndLoad_restoresTheStatistics() throws IOException {
+        TrackStats stats = new TrackStats(mFile);
+        stats.record(-5, 0.5f);
+        stats.record(9, 0.1f);
+        stats.setCompactedSegment(12);
+        stats.save();
+
+        TrackStats loaded = new TrackStats(mFile);
+        assertTrue(loaded.load());
+        assertEquals(1, loaded.getPlayCount(-5));
+        assertEquals(0, loaded.getSkipCount(-5));
+        assertEquals(1, loaded.getSkipCount(9));
+        assertEquals(stats.getWeight(9), loaded.getWeight(9));
+        assertEquals(12, loaded.getCompactedSegment());
+    }
+
+    @Test
+    public void load_corruptFileLeavesTheStatisticsEmpty() throws IOException {
+        TrackStats stats = new TrackStats(mFile);
+        stats.record(3, 1);
+        stats.save();
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(0x7f);
+        }
+
+        TrackStats loaded = new TrackStats(mFile);
+        assertFalse(loaded.load());
+        assertTrue(loaded.isEmpty());
+        assertFalse(new TrackStats(new File(mDirectory, "missing")).load());
+    }
+}
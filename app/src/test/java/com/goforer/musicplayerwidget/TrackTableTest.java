@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TrackTableTest {
+    @Test
+    public void add_returnsDenseIdsAndIgnoresDuplicates() {
+        TrackTable table = new TrackTable();
+
+        assertEquals(0, table.add("/music/a", "one.mp3"));
+        assertEquals(1, table.add("/music/a", "two.mp3"));
+        assertEquals(2, table.add("/music/b", "one.mp3"));
+        assertEquals(1, table.add("/music/a", "two.mp3"));
+        assertEquals(3, table.size());
+
+        assertEquals("/music/b", table.getDirectory(2));
+        assertEquals("one.mp3", table.getName(2));
+        assertEquals(new File("/music/a", "two.mp3"), table.getFile(1));
+    }
+
+    @Test
+    public void remove_movesTheLastTrackIntoTheGap() {
+        TrackTable table = new TrackTable();
+        table.add("/music/a", "one.mp3");
+        table.add("/music/a", "two.mp3");
+        table.add("/music/b", "three.mp3");
+
+        assertTrue(table.remove("/music/a", "one.mp3"));
+        assertFalse(table.remove("/music/a", "one.mp3"));
+        assertEquals(2, table.size());
+        assertEquals(-1, table.indexOf("/music/a", "one.mp3"));
+        assertEquals(0, table.indexOf("/music/b", "three.mp3"));
+        assertEquals("three.mp3", table.getName(0));
+        assertEquals(1, table.indexOf("/music/a", "two.mp3"));
+    }
+
+    @Test
+    public void remove_reusesTheIdsOfEmptyDirectories() {
+        TrackTable table = new TrackTable();
+        table.add("/music/a", "one.mp3");
+        table.remove("/music/a", "one.mp3");
+        table.add("/music/b", "two.mp3");
+
+        assertEquals(-1, table.indexOf("/music/a", "one.mp3"));
+        assertEquals("/music/b", table.getDirectory(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getName_rejectsRemovedIds() {
+        TrackTable table = new TrackTable();
+        table.add("/music/a", "one.mp3");
+        table.remove("/music/a", "one.mp3");
+
+        table.getName(0);
+    }
+
+    @Test
+    public void clear_emptiesTheTable() {
+        TrackTable table = new TrackTable();
+        table.add("/music/a", "one.mp3");
+        table.clear();
+
+        assertEquals(0, table.size());
+        assertEquals(-1, table.indexOf("/music/a", "one.mp3"));
+        assertEquals(0, table.add("/music/a", "one.mp3"));
+    }
+
+    @Test
+    public void randomAddsAndRemoves_matchASetOfFiles() {
+        TrackTable table = new TrackTable();
+        Set<File> expected = new HashSet<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            String directory = "/music/" + random.nextInt(50);
+            String name = "track" + random.nextInt(100) + ".mp3";
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(new File(directory, name)),
+                        table.remove(directory, name));
+            } else {
+                expected.add(new File(directory, name));
+                table.add(directory, name);
+            }
+        }
+
+        assertEquals(expected.size(), table.size());
+        ArrayList<File> files = new ArrayList<>();
+        for (int id = 0; id < table.size(); id++) {
+            File file = table.getFile(id);
+            files.add(file);
+            assertEquals(id, table.indexOf(file.getParent(), file.getName()));
+        }
+
+        assertEquals(expected, new HashSet<>(files));
+    }
+
+    @Test
+    public void remove_movesThePlayedFlagWithTheTrack() {
+        TrackTable table = new TrackTable();
+        table.add("/music/a", "one.mp3");
+        table.add("/music/a", "two.mp3");
+        table.add("/music/b", "three.mp3");
+        table.setPlayed(2);
+
+        table.remove("/music/a", "one.mp3");
+
+        assertTrue(table.isPlayed(table.indexOf("/music/b", "three.mp3")));
+        assertFalse(table.isPlayed(table.indexOf("/music/a", "two.mp3")));
+        assertEquals(1, table.getPlayedCount());
+
+        table.remove("/music/b", "three.mp3");
+        assertEquals(0, table.getPlayedCount());
+        assertEquals(1, table.add("/music/c", "four.mp3"));
+        assertFalse(table.isPlayed(1));
+    }
+
+    @Test
+    public void pickUnplayed_picksEveryTrackOnceUntilAllArePlayed() {
+        TrackTable table = new TrackTable();
+        for (int i = 0; i < 500; i++) {
+            table.add("/music/" + (i % 7), "track" + i + ".mp3");
+        }
+
+        Random random = new Random(5);
+        Set<Integer> picked = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            int id = table.pickUnplayed(random);
+            assertFalse(table.isPlayed(id));
+            assertTrue(picked.add(id));
+            table.setPlayed(id);
+        }
+
+        assertEquals(-1, table.pickUnplayed(random));
+        table.clearPlayed();
+        assertTrue(table.pickUnplayed(random) >= 0);
+    }
+
+    @Test
+    public void pickUnplayed_isUniform() {
+        TrackTable table = new TrackTable();
+        for (int i = 0; i < 10; i++) {
+            table.add("/music", "track" + i + ".mp3");
+        }
+        table.setPlayed(3);
+        table.setPlayed(7);
+
+        int[] counts = new int[10];
+        Random random = new Random(9);
+        for (int i = 0; i < 80000; i++) {
+            counts[table.pickUnplayed(random)]++;
+        }
+
+        for (int id = 0; id < 10; id++) {
+            if (id == 3 || id == 7) {
+                assertEquals(0, counts[id]);
+            } else {
+                assertEquals(10000, counts[id], 500);
+            }
+        }
+    }
+
+    @Test
+    public void remove_movesTheWeightWithTheTrack() {
+        TrackTable table = new TrackTable();
+        table.add("/music/a", "one.mp3");
+        table.add("/music/a", "two.mp3");
+        table.add("/music/b", "three.mp3");
+        assertEquals(TrackTable.DEFAULT_WEIGHT, table.getWeight(0));
+        table.setWeight(2, 7);
+
+        table.remove("/music/a", "one.mp3");
+
+        assertEquals(7, table.getWeight(table.indexOf("/music/b", "three.mp3")));
+        table.remove("/music/a", "two.mp3");
+        table.remove("/music/b", "three.mp3");
+        assertEquals(-1, table.pickWeighted(new Random(1)));
+    }
+
+    @Test
+    public void remove_movesTheTagsWithTheTrack() {
+        TrackTable table = new TrackTable();
+        table.add("/music/a", "one.mp3");
+        table.add("/music/a", "two.mp3");
+        table.add("/music/b", "three.mp3");
+        table.setTags(0, "Rock", "Queen", "1970s");
+        table.setTags(2, "Pop", "Madonna", "1980s");
+
+        table.remove("/music/a", "one.mp3");
+
+        int id = table.indexOf("/music/b", "three.mp3");
+        assertEquals("Madonna", table.getTag(id, TagIndex.FACET_ARTIST));
+        assertEquals(id, table.pickFiltered(new RadioFilter("Pop", null, null), new Random(3)));
+        assertEquals(0, table.countFiltered(new RadioFilter("Rock", null, null)));
+        assertEquals(table.indexOf("/music/a", "two.mp3"), table.findUntagged(0));
+        assertEquals(-1, table.findUntagged(1));
+    }
+
+    @Test
+    public void search_findsTheTracksByTheirNamesAlbumsAndTags() {
+        TrackTable table = new TrackTable();
+        table.add("/music/Innuendo", "The Show Must Go On.mp3");
+        table.add("/music/Nevermind", "Lithium.mp3");
+        table.add("/music/Nevermind", "Polly.mp3");
+        table.setTags(0, "Rock", "Queen", "1990s");
+
+        int[] results = new int[4];
+        assertEquals(1, table.search("show", results));
+        assertEquals(0, results[0]);
+        assertEquals(1, table.search("queen inn", results));
+        assertEquals(0, results[0]);
+        assertEquals(0, table.search("mp3", results));
+        assertEquals(0, table.search("music", results));
+
+        table.remove("/music/Nevermind", "Lithium.mp3");
+
+        assertEquals(1, table.search("never", results));
+        assertEquals(table.indexOf("/music/Nevermind", "Polly.mp3"), results[0]);
+        assertEquals(0, table.search("lith", results));
+
+        // The words of the tracks are indexed as they change from the first search on.
+        int id = table.add("/music/Nevermind", "Breed.mp3");
+        table.setTags(id, "Grunge", "Nirvana", "1990s");
+        assertEquals(1, table.search("breed nirv", results));
+        assertEquals(id, results[0]);
+    }
+
+    @Test
+    public void setSearchIndex_takesInTheChangesSinceTheWordsWereCopied() {
+        TrackTable table = new TrackTable();
+        table.add("/music/Innuendo", "The Show Must Go On.mp3");
+        table.add("/music/Nevermind", "Lithium.mp3");
+        table.add("/music/Nevermind", "Polly.mp3");
+
+        TrackTable.SearchWords words = table.getSearchWords();
+        SearchIndex search = words.build();
+        // The last track moves into the place of the removed one.
+        table.remove("/music/Innuendo", "The Show Must Go On.mp3");
+        int id = table.add("/music/Nevermind", "Breed.mp3");
+        table.setTags(id, "Grunge", "Nirvana", "1990s");
+        assertTrue(table.setSearchIndex(words, search));
+        assertTrue(table.isSearchable());
+
+        int[] results = new int[4];
+        assertEquals(0, table.search("show", results));
+        assertEquals(1, table.search("polly", results));
+        assertEquals(table.indexOf("/music/Nevermind", "Polly.mp3"), results[0]);
+        assertEquals(1, table.search("breed nirv", results));
+        assertEquals(id, results[0]);
+
+        words = table.getSearchWords();
+        search = words.build();
+        table.clear();
+        assertFalse(table.setSearchIndex(words, search));
+        assertFalse(table.isSearchable());
+    }
+
+    @Test
+    public void getPathHash_isThe64BitHashOfThePath() {
+        TrackTable table = new TrackTable();
+        int id = table.add("/music/a", "one.mp3");
+        int other = table.add("/music/a", "two.mp3");
+
+        assertEquals(TrackTable.getPathHash(new File("/music/a", "one.mp3").getPath()),
+                table.getPathHash(id));
+        assertTrue(table.getPathHash(id) != table.getPathHash(other));
+        // The 64-bit FNV-1a offset basis hashed over the two bytes of "a".
+        assertEquals(0x089be207b544f1e4L, TrackTable.getPathHash("a"));
+    }
+}
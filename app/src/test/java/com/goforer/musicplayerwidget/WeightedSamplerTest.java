@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WeightedSamplerTest {
+    @Test
+    public void pick_followsTheWeights() {
+        WeightedSampler sampler = new WeightedSampler(8);
+        int[] weights = { 1, 0, 4, 10, 0, 25, 60, 100 };
+        for (int i = 0; i < weights.length; i++) {
+            sampler.set(i, weights[i]);
+        }
+
+        assertEquals(200, sampler.getTotal());
+        assertDistribution(sampler, weights, 200000, new Random(1));
+    }
+
+    @Test
+    public void set_updatesTheDistributionIncrementally() {
+        WeightedSampler sampler = new WeightedSampler(4);
+        int[] weights = new int[100];
+        Random random = new Random(2);
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = 1 + random.nextInt(50);
+            sampler.set(i, weights[i]);
+        }
+
+        // Change half of the weights after the sampler has grown.
+        for (int i = 0; i < 50; i++) {
+            int index = random.nextInt(weights.length);
+            weights[index] = random.nextInt(3) == 0 ? 0 : random.nextInt(200);
+            sampler.set(index, weights[index]);
+        }
+
+        long total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+
+        assertEquals(total, sampler.getTotal());
+        assertDistribution(sampler, weights, 400000, random);
+    }
+
+    @Test
+    public void pick_isMinusOneWithoutWeights() {
+        WeightedSampler sampler = new WeightedSampler(4);
+        assertEquals(-1, sampler.pick(new Random(3)));
+
+        sampler.set(2, 5);
+        sampler.clear();
+        assertEquals(-1, sampler.pick(new Random(3)));
+        assertEquals(0, sampler.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void set_rejectsNegativeWeights() {
+        new WeightedSampler(4).set(0, -1);
+    }
+
+    /**
+     * Check that every index is picked within 5 standard deviations of its expected count.
+     */
+    private static void assertDistribution(WeightedSampler sampler, int[] weights, int picks,
+                                           Random random) {
+        int[] counts = new int[weights.length];
+        for (int i = 0; i < picks; i++) {
+            counts[sampler.pick(random)]++;
+        }
+
+        double total = sampler.getTotal();
+        for (int i = 0; i < weights.length; i++) {
+            double p = weights[i] / total;
+            double expected = picks * p;
+            double deviation = Math.sqrt(picks * p * (1 - p));
+            assertEquals("index " + i, expected, counts[i], 5 * deviation + 1e-9);
+        }
+    }
+}
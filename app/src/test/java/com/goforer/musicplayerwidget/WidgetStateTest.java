@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WidgetStateTest {
+    private static final WidgetState PLAYING = WidgetState.INITIAL
+            .withTitle("song", "album")
+            .withPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY);
+
+    @Test
+    public void getChanges_reportsEverythingKnownAgainstTheInitialState() {
+        assertEquals(WidgetState.CHANGE_FILE_NAME | WidgetState.CHANGE_ALBUM_TITLE
+                        | WidgetState.CHANGE_PLAY_BUTTON | WidgetState.CHANGE_PAUSE_BUTTON
+                        | WidgetState.CHANGE_STOP_BUTTON,
+                PLAYING.getChanges(WidgetState.INITIAL));
+    }
+
+    @Test
+    public void getChanges_skipsWhatIsNotKnownYet() {
+        WidgetState titleOnly = WidgetState.INITIAL.withTitle("song", null);
+
+        assertEquals(WidgetState.CHANGE_FILE_NAME, titleOnly.getChanges(WidgetState.INITIAL));
+        assertEquals(0, WidgetState.INITIAL.getChanges(PLAYING));
+    }
+
+    @Test
+    public void getChanges_reportsOnlyTheButtonsWhichChanged() {
+        WidgetState paused = PLAYING.withPlayerState(PlayerAppWidget.PLAYER_STATE_PAUSE);
+
+        assertEquals(WidgetState.CHANGE_PLAY_BUTTON | WidgetState.CHANGE_PAUSE_BUTTON,
+                paused.getChanges(PLAYING));
+    }
+
+    @Test
+    public void getChanges_reportsOnlyTheTitlesWhichChanged() {
+        assertEquals(WidgetState.CHANGE_FILE_NAME,
+                PLAYING.withTitle("next song", "album").getChanges(PLAYING));
+        assertEquals(WidgetState.CHANGE_FILE_NAME | WidgetState.CHANGE_ALBUM_TITLE,
+                PLAYING.withTitle("next song", "next album").getChanges(PLAYING));
+    }
+
+    @Test
+    public void getChanges_isEmptyForTheSameState() {
+        assertEquals(0, PLAYING.getChanges(PLAYING));
+        assertEquals(0, PLAYING.withTitle("song", "album").getChanges(PLAYING));
+    }
+
+    @Test
+    public void with_returnsTheSameSnapshotWithoutChange() {
+        assertSame(PLAYING, PLAYING.withTitle("song", "album"));
+        assertSame(PLAYING, PLAYING.withPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY));
+        assertEquals(PLAYING, WidgetState.INITIAL
+                .withPlayerState(PlayerAppWidget.PLAYER_STATE_PLAY)
+                .withTitle("song", "album"));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getting the album title of a song.
+ *
+ * <p>
+ * The legacy MediaMetadataRetriever needs the Android runtime, so it is measured by the
+ * instrumented tests, and only the pure Java replacements are compared here.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AlbumTitleBenchmark {
+    private static final int SONGS = 64;
+
+    // The size of the embedded artwork in front of the text frames
+    @Param({ "0", "262144" })
+    public int artworkSize;
+
+    private final File[] mSongs = new File[SONGS];
+
+    private File mDirectory;
+    private ID3TagReader mReader;
+    private MetadataService mService;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("songs").toFile();
+        for (int i = 0; i < SONGS; i++) {
+            mSongs[i] = new File(mDirectory, i + ".mp3");
+            try (FileOutputStream out = new FileOutputStream(mSongs[i])) {
+                out.write(SyntheticLibrary.createSong("Album " + i, "Title " + i, "Artist",
+                        artworkSize));
+            }
+        }
+
+        mReader = new ID3TagReader();
+        mService = new MetadataService(new MemoryStore(), new ID3TagReader(), SONGS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mService.close();
+        SyntheticLibrary.delete(mDirectory);
+    }
+
+    @Benchmark
+    public String id3TagReader() throws IOException {
+        return mReader.extract(nextSong()).mAlbum;
+    }
+
+    @Benchmark
+    public String cachedMetadataService() {
+        return mService.get(nextSong()).mAlbum;
+    }
+
+    private File nextSong() {
+        mNext = (mNext + 1) % SONGS;
+
+        return mSongs[mNext];
+    }
+
+    /**
+     * The persistent store kept in memory, the database is not part of the measurement.
+     */
+    private static final class MemoryStore implements MetadataStore {
+        private final Map<String, SongMetadata> mEntries = new HashMap<>();
+
+        @Override
+        public SongMetadata get(String path, long size, long lastModified) {
+            return mEntries.get(path);
+        }
+
+        @Override
+        public void put(String path, long size, long lastModified, SongMetadata metadata) {
+            mEntries.put(path, metadata);
+        }
+
+        @Override
+        public void close() {
+            mEntries.clear();
+        }
+    }
+}
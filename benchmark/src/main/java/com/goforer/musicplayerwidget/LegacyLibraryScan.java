@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The song pick of the first release, which walked the whole storage and collected all mp3 files
+ * for every song. It is kept as it was to compare the replacements against.
+ */
+final class LegacyLibraryScan {
+    private LegacyLibraryScan() {
+    }
+
+    /**
+     * Get a randomly selected song file from list
+     *
+     * @param files the song list
+     * @return A randomly selected song file
+     */
+    static File getRandomFile(ArrayList<File> files) {
+        Random mRandomGenerator = new Random();
+
+        return files.get(mRandomGenerator.nextInt(files.size()));
+    }
+
+    /**
+     * Get all mp3 files from specified directory.
+     *
+     * @param root the specified directory
+     * @return  All mp3 files
+     */
+    static ArrayList<File> findMP3Files(final File root) {
+        ArrayList<File> fileList = new ArrayList<>();
+        File[] files = root.listFiles();
+        for(File file : files) {
+            if (file.isDirectory() && !file.isHidden()) {
+                fileList.addAll(findMP3Files(file));
+            } else {
+                if (file.getName().endsWith(".mp3")) {
+                    fileList.add(file);
+                }
+            }
+        }
+
+        return  fileList;
+    }
+
+    static File getRandomMusicFile(final File root) {
+        ArrayList<File> mFileList = findMP3Files(root);
+        if (mFileList == null || mFileList.size() == 0) {
+            return null;
+        } else {
+            return getRandomFile(mFileList);
+        }
+    }
+}
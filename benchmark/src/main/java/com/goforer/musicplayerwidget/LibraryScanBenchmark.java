@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares listing all songs of a library with the legacy recursive scan and its replacements.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LibraryScanBenchmark {
+    @Param({ "2", "3" })
+    public int depth;
+
+    @Param({ "8" })
+    public int fanOut;
+
+    @Param({ "10" })
+    public int tracksPerDirectory;
+
+    private File mDirectory;
+    private File mRoot;
+    private File mIndexFile;
+    private ParallelMP3Walker mWalker;
+    private LibraryIndex mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("library").toFile();
+        mRoot = new File(mDirectory, "music");
+        mIndexFile = new File(mDirectory, "library.idx");
+        SyntheticLibrary.create(mRoot, depth, fanOut, tracksPerDirectory);
+
+        mWalker = new ParallelMP3Walker();
+        mIndex = new LibraryIndex(mIndexFile, mWalker);
+        mIndex.refresh(mRoot);
+        mIndex.save();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticLibrary.delete(mDirectory);
+    }
+
+    @Benchmark
+    public int legacyFindMP3Files() {
+        return LegacyLibraryScan.findMP3Files(mRoot).size();
+    }
+
+    @Benchmark
+    public int mp3FileIterator() {
+        MP3FileIterator iterator = new MP3FileIterator(mRoot);
+        int count = 0;
+        while (iterator.moveToNext()) {
+            count++;
+        }
+
+        return count;
+    }
+
+    @Benchmark
+    public ParallelMP3Walker.Stats parallelWalk() {
+        return mWalker.walk(mRoot, new ParallelMP3Walker.Sink() {
+            @Override
+            public String[] getUnchangedSubDirectories(String path, long lastModified) {
+                return null;
+            }
+
+            @Override
+            public void onDirectory(String path, long lastModified, String[] subDirectories,
+                                    String[] tracks) {
+            }
+        });
+    }
+
+    @Benchmark
+    public int indexFullRefresh() {
+        LibraryIndex index = new LibraryIndex(mIndexFile, mWalker);
+        index.refresh(mRoot);
+
+        return index.size();
+    }
+
+    @Benchmark
+    public boolean indexIncrementalRefresh() {
+        return mIndex.refresh(mRoot);
+    }
+
+    @Benchmark
+    public int indexLoad() {
+        LibraryIndex index = new LibraryIndex(mIndexFile, mWalker);
+        index.load();
+
+        return index.size();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the radio picks from the bitmap indexes of the {@link TrackTable} at the size of a
+ * large library, against picking from a scan over the tags of every track.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RadioBenchmark {
+    private static final String[] GENRES = { "Rock", "Pop", "Jazz", "Classical", "Hip-Hop",
+            "Electronic", "Country", "Metal", "Folk", "Blues", "Reggae", "Soul" };
+
+    @Param({ "200000" })
+    public int tracks;
+
+    @Param({ "10" })
+    public int tracksPerAlbum;
+
+    private final Random mRandom = new Random(42);
+
+    private TrackTable mTable;
+    // The tags of the tracks by track ID, as a scan would see them
+    private String[] mGenres;
+    private String[] mDecades;
+
+    // Every second track is rock, every eighth of the 1990s
+    private final RadioFilter mGenre = new RadioFilter("Rock", null, null);
+    private final RadioFilter mGenreAndDecade = new RadioFilter("Rock", null, "1990s");
+    // An artist has 8 albums
+    private final RadioFilter mArtist = new RadioFilter(null, "Artist 1234", null);
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(7);
+        mTable = new TrackTable();
+        mGenres = new String[tracks];
+        mDecades = new String[tracks];
+        for (int i = 0; i < tracks; i++) {
+            int album = i / tracksPerAlbum;
+            int id = mTable.add("/storage/emulated/0/Music/Album " + album,
+                    String.format("%02d - Song Title.mp3", i % tracksPerAlbum + 1));
+            // Skewed like a real library, half of the tracks are of the first genre.
+            int genre = random.nextBoolean() ? 0 : 1 + random.nextInt(GENRES.length - 1);
+            mGenres[id] = GENRES[genre];
+            mDecades[id] = RadioFilter.getDecade(1950 + 10 * random.nextInt(8));
+            mTable.setTags(id, mGenres[id], "Artist " + album / 8, mDecades[id]);
+        }
+    }
+
+    @Benchmark
+    public int genreIntersection() {
+        return mTable.countFiltered(mGenreAndDecade);
+    }
+
+    @Benchmark
+    public int genrePick() {
+        return mTable.pickFiltered(mGenre, mRandom);
+    }
+
+    @Benchmark
+    public int genreAndDecadePick() {
+        return mTable.pickFiltered(mGenreAndDecade, mRandom);
+    }
+
+    @Benchmark
+    public int artistPick() {
+        return mTable.pickFiltered(mArtist, mRandom);
+    }
+
+    /**
+     * The pick from the tracks of a genre and a decade found by a scan over the tags of every
+     * track, which is what a pick without the indexes has to do.
+     */
+    @Benchmark
+    public int genreAndDecadeScanPick() {
+        int count = 0;
+        for (int id = 0; id < tracks; id++) {
+            if (mGenreAndDecade.mGenre.equals(mGenres[id])
+                    && mGenreAndDecade.mDecade.equals(mDecades[id])) {
+                count++;
+            }
+        }
+
+        int n = mRandom.nextInt(count);
+        for (int id = 0; ; id++) {
+            if (mGenreAndDecade.mGenre.equals(mGenres[id])
+                    && mGenreAndDecade.mDecade.equals(mDecades[id]) && n-- == 0) {
+                return id;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the prefix searches of the {@link TrackTable} as the user types, at the size of a
+ * large library, against a scan over the words of every track. Run with -Pprofiler=gc to see
+ * that a search allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SearchBenchmark {
+    private static final String[] SYLLABLES = { "ba", "ce", "di", "fo", "gu", "ha", "ke", "li",
+            "mo", "nu", "pa", "re", "si", "to", "va", "we", "xi", "yo", "za", "lu" };
+
+    private static final String[] GENRES = { "Rock", "Pop", "Jazz", "Classical", "Hip-Hop",
+            "Electronic", "Country", "Metal", "Folk", "Blues", "Reggae", "Soul" };
+
+    @Param({ "200000" })
+    public int tracks;
+
+    @Param({ "10" })
+    public int tracksPerAlbum;
+
+    // The number of songs a search screen shows
+    @Param({ "50" })
+    public int maxResults;
+
+    private TrackTable mTable;
+    private int[] mResults;
+    // The lower case words of the tracks by track ID, as a scan would see them
+    private String[][] mWords;
+
+    // The queries of typing the artist and the album of a track
+    private String mFirstLetter;
+    private String mArtistPrefix;
+    private String mArtist;
+    private String mArtistAndAlbum;
+    private String[] mArtistAndAlbumWords;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(7);
+        String[] words = new String[4000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int syllable = 1 + random.nextInt(4); syllable > 0; syllable--) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+
+            words[i] = word.toString();
+        }
+
+        mTable = new TrackTable();
+        mResults = new int[maxResults];
+        mWords = new String[tracks][];
+        String artist = null;
+        String albumName = null;
+        for (int i = 0; i < tracks; i++) {
+            if (i % (tracksPerAlbum * 8) == 0) {
+                artist = words[random.nextInt(words.length)];
+            }
+
+            if (i % tracksPerAlbum == 0) {
+                albumName = words[random.nextInt(words.length)] + " "
+                        + words[random.nextInt(words.length)];
+            }
+
+            String title = words[random.nextInt(words.length)] + " "
+                    + words[random.nextInt(words.length)];
+            String genre = GENRES[random.nextInt(GENRES.length)];
+            int id = mTable.add("/storage/emulated/0/Music/" + artist + "/" + albumName + " "
+                    + i / tracksPerAlbum, String.format("%02d - %s.mp3", i % tracksPerAlbum + 1,
+                    title));
+            mTable.setTags(id, genre, artist, null);
+            mWords[id] = (albumName + " " + title + " " + genre + " " + artist).toLowerCase()
+                    .split("[^a-z0-9]+");
+        }
+
+        int id = tracks / 2;
+        mArtist = mTable.getTag(id, TagIndex.FACET_ARTIST);
+        mFirstLetter = mArtist.substring(0, 1);
+        mArtistPrefix = mArtist.substring(0, Math.min(3, mArtist.length()));
+        String album = mWords[id][0];
+        mArtistAndAlbum = mArtist + " " + album.substring(0, Math.min(3, album.length()));
+        mArtistAndAlbumWords = mArtistAndAlbum.split(" ");
+        // The words are indexed by the first search.
+        mTable.search("", mResults);
+    }
+
+    /**
+     * The first keystroke, which matches a large part of the library.
+     */
+    @Benchmark
+    public int firstLetterSearch() {
+        return mTable.search(mFirstLetter, mResults);
+    }
+
+    @Benchmark
+    public int prefixSearch() {
+        return mTable.search(mArtistPrefix, mResults);
+    }
+
+    @Benchmark
+    public int wordSearch() {
+        return mTable.search(mArtist, mResults);
+    }
+
+    /**
+     * A query of two words, whose tracks are checked against both.
+     */
+    @Benchmark
+    public int twoWordSearch() {
+        return mTable.search(mArtistAndAlbum, mResults);
+    }
+
+    /**
+     * The query of two words answered by a scan over the words of every track, which is what a
+     * search without the index has to do when fewer tracks match than are shown.
+     */
+    @Benchmark
+    public int twoWordScan() {
+        int count = 0;
+        for (int id = 0; id < tracks && count < maxResults; id++) {
+            if (hasAllPrefixes(mWords[id], mArtistAndAlbumWords)) {
+                mResults[count++] = id;
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean hasAllPrefixes(String[] words, String[] prefixes) {
+        for (String prefix : prefixes) {
+            boolean found = false;
+            for (int i = 0; i < words.length && !found; i++) {
+                found = words[i].startsWith(prefix);
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares picking a random song with the legacy getRandomMusicFile() and its replacements,
+ * including the first pick of a cold started service from the saved index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SongPickBenchmark {
+    @Param({ "2", "3" })
+    public int depth;
+
+    @Param({ "8" })
+    public int fanOut;
+
+    @Param({ "10" })
+    public int tracksPerDirectory;
+
+    private final Random mRandom = new Random(42);
+
+    private File mRoot;
+    private File mIndexFile;
+    private LibraryIndex mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        mRoot = Files.createTempDirectory("library").toFile();
+        SyntheticLibrary.create(mRoot, depth, fanOut, tracksPerDirectory);
+
+        mIndexFile = new File(mRoot, ".library.idx");
+        mIndex = new LibraryIndex(mIndexFile);
+        mIndex.refresh(mRoot);
+        mIndex.save();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticLibrary.delete(mRoot);
+    }
+
+    @Benchmark
+    public File legacyGetRandomMusicFile() {
+        return LegacyLibraryScan.getRandomMusicFile(mRoot);
+    }
+
+    @Benchmark
+    public File indexPick() {
+        return mIndex.pickRandomTrack(mRandom);
+    }
+
+    @Benchmark
+    public File indexPickAndCheck() {
+        File file = mIndex.pickRandomTrack(mRandom);
+
+        return file.exists() ? file : null;
+    }
+
+    @Benchmark
+    public File coldStartSnapshotPick() throws IOException {
+        return LibrarySnapshot.open(mIndexFile).pickRandomTrack(mRandom);
+    }
+
+    @Benchmark
+    public File coldStartLoadAndPick() {
+        LibraryIndex index = new LibraryIndex(mIndexFile);
+        index.load();
+
+        return index.pickRandomTrack(mRandom);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.goforer.musicplayerwidget;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Generator of synthetic music libraries for the benchmarks.
+ *
+ * <p>
+ * Every directory of the tree holds the specified number of tagged mp3 files, a cover image and
+ * a playlist which aren't songs, and the specified number of subdirectories down to the
+ * specified depth. The root directory also holds a hidden directory the walkers have to skip.
+ * </p>
+ */
+final class SyntheticLibrary {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // MPEG-1 Layer III frame header, 128 kbps, 44.1 kHz
+    private static final byte[] AUDIO = new byte[] { (byte) 0xff, (byte) 0xfb, (byte) 0x90, 0x64 };
+
+    private SyntheticLibrary() {
+    }
+
+    /**
+     * Create a synthetic library.
+     *
+     * @param root the root directory of the library, it is created if missing
+     * @param depth the number of directory levels below the root
+     * @param fanOut the number of subdirectories of every directory above the last level
+     * @param tracksPerDirectory the number of mp3 files in every directory
+     * @return the number of mp3 files created
+     * @throws IOException if a file can't be created
+     */
+    static int create(File root, int depth, int fanOut, int tracksPerDirectory)
+            throws IOException {
+        int tracks = createDirectory(root, depth, fanOut, tracksPerDirectory);
+        createFile(new File(root, ".thumbnails/hidden.mp3"), AUDIO);
+
+        return tracks;
+    }
+
+    /**
+     * Create the content of an mp3 file with an ID3v2.3 tag and an ID3v1 tag.
+     *
+     * @param album the album
+     * @param title the title
+     * @param artist the artist
+     * @param artworkSize the size of the artwork frame in front of the text frames, 0 for none
+     * @return the file content
+     */
+    static byte[] createSong(String album, String title, String artist, int artworkSize) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        if (artworkSize > 0) {
+            writeFrame(frames, "APIC", new byte[artworkSize]);
+        }
+
+        writeFrame(frames, "TIT2", text(title));
+        writeFrame(frames, "TPE1", text(artist));
+        writeFrame(frames, "TALB", text(album));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int size = frames.size();
+        out.write('I');
+        out.write('D');
+        out.write('3');
+        out.write(3);
+        out.write(0);
+        out.write(0);
+        out.write((size >> 21) & 0x7f);
+        out.write((size >> 14) & 0x7f);
+        out.write((size >> 7) & 0x7f);
+        out.write(size & 0x7f);
+        out.write(frames.toByteArray(), 0, size);
+        out.write(AUDIO, 0, AUDIO.length);
+
+        byte[] id3v1 = new byte[128];
+        id3v1[0] = 'T';
+        id3v1[1] = 'A';
+        id3v1[2] = 'G';
+        put(id3v1, 3, title);
+        put(id3v1, 33, artist);
+        put(id3v1, 63, album);
+        out.write(id3v1, 0, id3v1.length);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Delete the file, or the directory with all its content.
+     *
+     * @param file the file or directory
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Create a synthetic library from the command line.
+     *
+     * @param args the root directory, the depth, the fan-out and the tracks per directory
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: SyntheticLibrary <root> <depth> <fanOut> <tracks>");
+            System.exit(1);
+        }
+
+        File root = new File(args[0]);
+        int tracks = create(root, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]));
+        System.out.println("Created " + tracks + " tracks in " + root);
+    }
+
+    private static int createDirectory(File dir, int depth, int fanOut, int tracksPerDirectory)
+            throws IOException {
+        for (int i = 0; i < tracksPerDirectory; i++) {
+            String title = "Track " + i;
+            createFile(new File(dir, String.format("%02d - %s.mp3", i, title)),
+                    createSong(dir.getName(), title, "Artist " + (i % 7), 0));
+        }
+
+        createFile(new File(dir, "cover.jpg"), AUDIO);
+        createFile(new File(dir, "playlist.m3u"), AUDIO);
+
+        int tracks = tracksPerDirectory;
+        if (depth > 0) {
+            for (int i = 0; i < fanOut; i++) {
+                tracks += createDirectory(new File(dir, "Folder " + depth + "-" + i), depth - 1,
+                        fanOut, tracksPerDirectory);
+            }
+        }
+
+        return tracks;
+    }
+
+    private static void createFile(File file, byte[] content) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent);
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, String id, byte[] body) {
+        byte[] name = id.getBytes(ISO_8859_1);
+        out.write(name, 0, name.length);
+        out.write(body.length >>> 24);
+        out.write(body.length >>> 16);
+        out.write(body.length >>> 8);
+        out.write(body.length);
+        out.write(0);
+        out.write(0);
+        out.write(body, 0, body.length);
+    }
+
+    private static byte[] text(String text) {
+        byte[] bytes = text.getBytes(ISO_8859_1);
+        byte[] body = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, body, 1, bytes.length);
+
+        return body;
+    }
+
+    private static void put(byte[] tag, int offset, String text) {
+        byte[] bytes = text.getBytes(ISO_8859_1);
+        System.arraycopy(bytes, 0, tag, offset, Math.min(bytes.length, 30));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 Lukoh Nam, goForer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.goforer.musicplayerwidget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link TrackTable} with the list of files the legacy findMP3Files() built on
+ * every song change, at the size of a large library, and measures the shuffle picks.
+ * Run with -Pprofiler=gc to see the allocation rate, and run the main method
+ * (./gradlew :benchmark:trackTableFootprint) to see the retained heap per track.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrackTableBenchmark {
+    @Param({ "200000" })
+    public int tracks;
+
+    @Param({ "10" })
+    public int tracksPerDirectory;
+
+    private final Random mRandom = new Random(42);
+
+    private String[] mDirectories;
+    private String[] mNames;
+
+    private ArrayList<File> mFileList;
+    private TrackTable mTable;
+
+    @Setup
+    public void setUp() {
+        mDirectories = createDirectories(tracks, tracksPerDirectory);
+        mNames = createNames(tracksPerDirectory);
+        mFileList = buildFileList(mDirectories, mNames);
+        mTable = new TrackTable();
+        fill(mTable, mDirectories, mNames);
+    }
+
+    @Benchmark
+    public ArrayList<File> fileListRebuild() {
+        return buildFileList(mDirectories, mNames);
+    }
+
+    @Benchmark
+    public int trackTableRebuild() {
+        mTable.clear();
+        fill(mTable, mDirectories, mNames);
+
+        return mTable.size();
+    }
+
+    @Benchmark
+    public File fileListPick() {
+        return mFileList.get(mRandom.nextInt(mFileList.size()));
+    }
+
+    @Benchmark
+    public File trackTablePick() {
+        return mTable.getFile(mRandom.nextInt(mTable.size()));
+    }
+
+    /**
+     * A no-repeat shuffle pick, which starts a new cycle once every track has been played.
+     */
+    @Benchmark
+    public File trackTableShufflePick() {
+        int id = mTable.pickUnplayed(mRandom);
+        if (id == -1) {
+            mTable.clearPlayed();
+            id = mTable.pickUnplayed(mRandom);
+        }
+
+        mTable.setPlayed(id);
+
+        return mTable.getFile(id);
+    }
+
+    /**
+     * A weighted pick followed by the weight update of a counted play.
+     */
+    @Benchmark
+    public File trackTableWeightedPick() {
+        int id = mTable.pickWeighted(mRandom);
+        mTable.setWeight(id, 1 + mRandom.nextInt(TrackTable.DEFAULT_WEIGHT));
+
+        return mTable.getFile(id);
+    }
+
+    /**
+     * Print the heap retained by the legacy file list, the path list of the previous index
+     * and the track table.
+     *
+     * @param args the number of tracks and the tracks per directory
+     */
+    public static void main(String[] args) {
+        int tracks = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int tracksPerDirectory = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final String[] directories = createDirectories(tracks, tracksPerDirectory);
+        final String[] names = createNames(tracksPerDirectory);
+
+        report("ArrayList<File>", tracks, new Builder() {
+            @Override
+            public Object build() {
+                return buildFileList(directories, names);
+            }
+        });
+        report("ArrayList<String> + HashMap", tracks, new Builder() {
+            @Override
+            public Object build() {
+                ArrayList<String> paths = new ArrayList<>();
+                HashMap<String, Integer> positions = new HashMap<>();
+                for (String directory : directories) {
+                    for (String name : names) {
+                        String path = directory + File.separator + name;
+                        positions.put(path, paths.size());
+                        paths.add(path);
+                    }
+                }
+
+                return new Object[] { paths, positions };
+            }
+        });
+        report("TrackTable", tracks, new Builder() {
+            @Override
+            public Object build() {
+                TrackTable table = new TrackTable();
+                fill(table, directories, names);
+
+                return table;
+            }
+        });
+    }
+
+    private interface Builder {
+        Object build();
+    }
+
+    private static void report(String name, int tracks, Builder builder) {
+        long before = usedHeap();
+        Object result = builder.build();
+        long retained = usedHeap() - before;
+        System.out.println(name + ": " + retained / 1024 + " KB, " + retained / tracks
+                + " bytes per track (" + result.getClass().getSimpleName() + ")");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String[] createDirectories(int tracks, int tracksPerDirectory) {
+        String[] directories = new String[(tracks + tracksPerDirectory - 1) / tracksPerDirectory];
+        for (int i = 0; i < directories.length; i++) {
+            directories[i] = "/storage/emulated/0/Music/Artist " + (i / 8) + "/Album " + i;
+        }
+
+        return directories;
+    }
+
+    private static String[] createNames(int tracksPerDirectory) {
+        String[] names = new String[tracksPerDirectory];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("%02d - Song Title %d.mp3", i + 1, i + 1);
+        }
+
+        return names;
+    }
+
+    private static ArrayList<File> buildFileList(String[] directories, String[] names) {
+        ArrayList<File> files = new ArrayList<>();
+        for (String directory : directories) {
+            for (String name : names) {
+                // Like the legacy scan, every file carries its full path.
+                files.add(new File(directory + File.separator + name));
+            }
+        }
+
+        return files;
+    }
+
+    private static void fill(TrackTable table, String[] directories, String[] names) {
+        for (String directory : directories) {
+            for (String name : names) {
+                table.add(directory, name);
+            }
+        }
+    }
+}